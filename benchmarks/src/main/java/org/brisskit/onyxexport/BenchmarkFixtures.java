@@ -0,0 +1,277 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.brisskit.export.metadata.config.beans.OnyxExportConfigDocument;
+import org.brisskit.export.metadata.config.beans.SelectType;
+import org.brisskit.export.metadata.config.beans.SwapType;
+
+/**
+ * Input for the benchmarks: the bundled Onyx export and configuration,
+ * and synthetic value sets and selects of a given shape.
+ * <p/>
+ * The fixtures directory defaults to the main project's test resources, relative to
+ * the benchmarks directory, and may be set with the system property <code>onyx.fixtures</code>.
+ * <p/>
+ * A synthetic value set carries the fixture's own valueSet start tag, so that it parses
+ * as the bundled files do. Of its variables, the first <code>selectedCount</code> are named
+ * to be selected (spread across the selects in turn) and the rest are matched by no select.
+ *
+ */
+final class BenchmarkFixtures {
+
+	public static final String FIXTURES_PROPERTY = "onyx.fixtures" ;
+	public static final String QUESTIONNAIRE = "MedicalHistoryInterviewQuestionnaire" ;
+	public static final String PARTICIPANT_ONE = "0000001.xml" ;
+	public static final String PARTICIPANT_TWO = "0000002.xml" ;
+
+	private static final String DEFAULT_FIXTURES = "../src/main/test/resources" ;
+	private static final String EXPORT_DIRECTORY = "a-onyx-export" ;
+	private static final String CONFIG_FILE = "export-metadata-config.xml" ;
+	private static final String SYNTHETIC_QUESTIONNAIRE = "Bench" ;
+
+	private BenchmarkFixtures() {}
+
+	public static File getFixturesDirectory() {
+		return new File( System.getProperty( FIXTURES_PROPERTY, DEFAULT_FIXTURES ) ) ;
+	}
+
+	public static File getExportDirectory() {
+		return new File( getFixturesDirectory(), EXPORT_DIRECTORY ) ;
+	}
+
+	public static File getConfigFile() {
+		return new File( getFixturesDirectory(), CONFIG_FILE ) ;
+	}
+
+	public static File getParticipantFile( String fileName ) {
+		return new File( new File( getExportDirectory(), QUESTIONNAIRE ), fileName ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return the select constructs which the bundled configuration applies to the questionnaire.
+	 */
+	public static List<SelectType> getConfiguredSelects( String questionnaire ) throws Exception {
+		OnyxExportConfigDocument config = OnyxExportConfigDocument.Factory.parse( getConfigFile() ) ;
+		ArrayList<SelectType> selects = new ArrayList<SelectType>() ;
+		for( SwapType st : config.getOnyxExportConfig().getCompositionPhase().getSwapArray() ) {
+			if( questionnaire.equals( st.getQuestionnaire() ) ) {
+				selects.addAll( Arrays.asList( st.getSelectArray() ) ) ;
+			}
+		}
+		return selects ;
+	}
+
+	/**
+	 * @return the questionnaire's selection table, resolved against the bundled export.
+	 */
+	public static SelectionTable getConfiguredSelectionTable() throws Exception {
+		ExportIndex index = ExportIndex.newInstance( getExportDirectory() ) ;
+		try {
+			return SelectionTable.newInstance( QUESTIONNAIRE, getConfiguredSelects( QUESTIONNAIRE ), index, null ) ;
+		}
+		finally {
+			index.close() ;
+		}
+	}
+
+	/**
+	 * @return the names of the variables declared by the bundled questionnaire.
+	 */
+	public static List<String> getConfiguredVariableNames() throws Exception {
+		ExportIndex index = ExportIndex.newInstance( getExportDirectory() ) ;
+		try {
+			return SelectionTable.readVariableNames( index, QUESTIONNAIRE ) ;
+		}
+		finally {
+			index.close() ;
+		}
+	}
+
+	public static byte[] readFile( File file ) throws IOException {
+		InputStream in = new FileInputStream( file ) ;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream( (int)file.length() ) ;
+			byte[] buffer = new byte[ 64*1024 ] ;
+			int n ;
+			while( ( n = in.read( buffer ) ) != -1 ) {
+				out.write( buffer, 0, n ) ;
+			}
+			return out.toByteArray() ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	/**
+	 * @return the start tag of the bundled participant file's valueSet element.
+	 */
+	public static String getValueSetStartTag() throws IOException {
+		String content = new String( readFile( getParticipantFile( PARTICIPANT_ONE ) ), "UTF-8" ) ;
+		int start = content.indexOf( "<valueSet" ) ;
+		return content.substring( start, content.indexOf( '>', start ) + 1 ) ;
+	}
+
+	/**
+	 * @param index
+	 * @param selectCount
+	 * @param selectedCount
+	 * @return the name of the index'th variable of a synthetic value set.
+	 */
+	public static String getVariableName( int index, int selectCount, int selectedCount ) {
+		if( index < selectedCount ) {
+			return SYNTHETIC_QUESTIONNAIRE + ".sel" + ( index % selectCount ) + "_" + index ;
+		}
+		return SYNTHETIC_QUESTIONNAIRE + ".var" + index ;
+	}
+
+	public static List<String> newVariableNames( int variableCount, int selectCount, int selectedCount ) {
+		ArrayList<String> names = new ArrayList<String>( variableCount ) ;
+		for( int i=0; i<variableCount; i++ ) {
+			names.add( getVariableName( i, selectCount, selectedCount ) ) ;
+		}
+		return names ;
+	}
+
+	/**
+	 * @param variableCount number of variableValue elements
+	 * @param sequenceSize number of values per variable; more than one gives a sequence value
+	 * @param selectCount number of selects the selected variables are spread across
+	 * @param selectedCount number of variables to be selected
+	 * @return the value set document, as bytes.
+	 */
+	public static byte[] newValueSet( int variableCount
+			                        , int sequenceSize
+			                        , int selectCount
+			                        , int selectedCount ) throws IOException {
+		StringBuilder b = new StringBuilder( variableCount * ( 96 + sequenceSize * 48 ) ) ;
+		b.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" ) ;
+		b.append( getValueSetStartTag() ).append( '\n' ) ;
+		for( int i=0; i<variableCount; i++ ) {
+			b.append( "  <variableValue variable=\"" ).append( getVariableName( i, selectCount, selectedCount ) ).append( "\">\n" ) ;
+			if( sequenceSize > 1 ) {
+				b.append( "    <value class=\"sequence\" valueType=\"text\" size=\"" ).append( sequenceSize ).append( "\">\n" ) ;
+				for( int j=0; j<sequenceSize; j++ ) {
+					b.append( "      <value order=\"" ).append( j ).append( "\">value-" ).append( i ).append( '-' ).append( j ).append( "</value>\n" ) ;
+				}
+				b.append( "    </value>\n" ) ;
+			}
+			else {
+				b.append( "    <value valueType=\"text\">value-" ).append( i ).append( "</value>\n" ) ;
+			}
+			b.append( "  </variableValue>\n" ) ;
+		}
+		b.append( "</valueSet>\n" ) ;
+		return b.toString().getBytes( "UTF-8" ) ;
+	}
+
+	/**
+	 * Select k carries the hint matching the variables named for it. Further hints,
+	 * which match nothing, are spread across the selects until there are hintCount in all.
+	 *
+	 * @param selectCount
+	 * @param hintCount total number of hints; at least selectCount
+	 * @return the select constructs.
+	 */
+	public static List<SelectType> newSelects( int selectCount, int hintCount ) {
+		ArrayList<ArrayList<String>> hints = new ArrayList<ArrayList<String>>( selectCount ) ;
+		for( int k=0; k<selectCount; k++ ) {
+			ArrayList<String> h = new ArrayList<String>() ;
+			h.add( "sel" + k + "_" ) ;
+			hints.add( h ) ;
+		}
+		for( int j=selectCount; j<hintCount; j++ ) {
+			hints.get( j % selectCount ).add( "nomatch" + j ) ;
+		}
+		ArrayList<SelectType> selects = new ArrayList<SelectType>( selectCount ) ;
+		for( ArrayList<String> h : hints ) {
+			SelectType select = SelectType.Factory.newInstance() ;
+			select.setHintArray( h.toArray( new String[ h.size() ] ) ) ;
+			selects.add( select ) ;
+		}
+		return selects ;
+	}
+
+	/**
+	 * Resolves the selects against a synthetic questionnaire's variables.xml,
+	 * written to a temporary export directory.
+	 *
+	 * @return the resolved selection table.
+	 */
+	public static SelectionTable newSelectionTable( List<SelectType> selects, List<String> variableNames ) throws Exception {
+		File export = File.createTempFile( "onyx-bench", "" ) ;
+		if( !export.delete() || !export.mkdir() ) {
+			throw new IOException( "Could not create directory: " + export.getAbsolutePath() ) ;
+		}
+		File directory = new File( export, SYNTHETIC_QUESTIONNAIRE ) ;
+		File variables = new File( directory, ExportIndex.VARIABLES_FILE_NAME ) ;
+		try {
+			if( !directory.mkdir() ) {
+				throw new IOException( "Could not create directory: " + directory.getAbsolutePath() ) ;
+			}
+			OutputStream out = new FileOutputStream( variables ) ;
+			try {
+				StringBuilder b = new StringBuilder() ;
+				b.append( "<variables xmlns='http://brisskit.org/xml/onyxvariables/v1.0/ov'>\n" ) ;
+				for( String name : variableNames ) {
+					b.append( "  <variable name=\"" ).append( name ).append( "\" valueType=\"text\" entityType=\"Participant\"/>\n" ) ;
+				}
+				b.append( "</variables>\n" ) ;
+				out.write( b.toString().getBytes( "UTF-8" ) ) ;
+			}
+			finally {
+				out.close() ;
+			}
+			ExportIndex index = ExportIndex.newInstance( export ) ;
+			try {
+				return SelectionTable.newInstance( SYNTHETIC_QUESTIONNAIRE, selects, index, null ) ;
+			}
+			finally {
+				index.close() ;
+			}
+		}
+		finally {
+			variables.delete() ;
+			directory.delete() ;
+			export.delete() ;
+		}
+	}
+
+	/**
+	 * An output stream which discards what is written, so that saving is measured without disk.
+	 */
+	public static class NullOutputStream extends OutputStream {
+
+		private long count ;
+
+		@Override
+		public void write( int b ) {
+			count++ ;
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) {
+			count += len ;
+		}
+
+		public long getCount() {
+			return count ;
+		}
+
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler, so that the allocation rate of each
+ * is reported alongside its throughput (ops/s).
+ * <p/>
+ * Takes the usual JMH command line; eg: to run the swap benchmarks over 1000 variables only
+ * <pre>
+ * java -jar target/benchmarks.jar SwapBenchmark -p variableCount=1000
+ * </pre>
+ * The fixtures directory is passed on to the forked benchmark JVMs.
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main( String[] args ) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent( new CommandLineOptions( args ) )
+				.addProfiler( GCProfiler.class )
+				.jvmArgsAppend( "-D" + BenchmarkFixtures.FIXTURES_PROPERTY + "=" + BenchmarkFixtures.getFixturesDirectory().getAbsolutePath() )
+				.build() ;
+		new Runner( options ).run() ;
+	}
+
+}
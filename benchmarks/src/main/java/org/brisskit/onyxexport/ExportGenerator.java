@@ -0,0 +1,682 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.brisskit.onyxexport.ParticipantCompositor.FactoryException;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Generates an expanded Onyx export of any number of imaginary participants,
+ * shaped after a template export (by default the bundled test export), for
+ * exercising the compositor at realistic scale.
+ * <p/>
+ * Each questionnaire of the template is described by its variables.xml: the variables'
+ * names, value types, categories and whether they are repeatable. (A questionnaire
+ * without a variables.xml is described by its first data file instead.) For every
+ * participant, each questionnaire receives a data file holding values for a share of
+ * its variables; the share is that of the template's first data file. Categorical
+ * variables take one of their categories, repeatable variables a sequence of values.
+ * Every questionnaire's entities.xml lists all the participants.
+ * <p/>
+ * The participants' genders (Admin.Participant.gender) are drawn with the given
+ * proportion of males; the given proportion of participants is left without a gender,
+ * and so is deleted by the compositor. The same seed always generates the same export.
+ *
+ */
+public class ExportGenerator {
+
+	private static final String USAGE =
+	        "Usage: ExportGenerator {Parameters}\n" +
+	                "Parameters:\n" +
+	                " -output=path-to-new-export-directory\n" +
+	                " -participants=number\n" +
+	                " -template=path-to-template-export-directory\n" +
+	                " -male=proportion\n" +
+	                " -ungendered=proportion\n" +
+	                " -threads=number-of-worker-threads\n" +
+	                " -seed=number\n" +
+	                "Notes:\n" +
+	                " (1) The output and participants parameters are mandatory. The output directory\n" +
+	                "     must not exist or must be empty.\n" +
+	                "     The template parameter defaults to the bundled test export.\n" +
+	                "     The male parameter is the proportion of gendered participants who are male,\n" +
+	                "     and defaults to 0.5. The ungendered parameter is the proportion of participants\n" +
+	                "     without a gender, and defaults to 0.\n" +
+	                "     The threads parameter defaults to 1. The seed parameter defaults to 0.\n" +
+	                " (2) Parameter triggers can be shortened to the first letter; ie: -o,-p,-t,-m,-u,-s." ;
+
+	public static final String ENTITY_TYPE = "Participant" ;
+	public static final String METADATA_FILE_NAME = "metadata.xml" ;
+
+	private static final int CHUNK_SIZE = 1000 ;
+	private static final int MAX_SEQUENCE_SIZE = 8 ;
+	private static final String MALE = "MALE" ;
+	private static final String FEMALE = "FEMALE" ;
+
+	private static final XMLInputFactory inputFactory = newInputFactory() ;
+
+	private File template = BenchmarkFixtures.getExportDirectory() ;
+	private File output ;
+	private int participants ;
+	private double male = 0.5 ;
+	private double ungendered = 0.0 ;
+	private int threads = 1 ;
+	private long seed = 0L ;
+
+	private final AtomicLong filesWritten = new AtomicLong() ;
+	private final AtomicLong bytesWritten = new AtomicLong() ;
+
+	public static void main( String[] args ) {
+		try {
+			ExportGenerator generator = Factory.newInstance( args ) ;
+			long started = System.currentTimeMillis() ;
+			generator.generate() ;
+			System.out.println( generator.report( System.currentTimeMillis() - started ) ) ;
+		}
+		catch( FactoryException fex ) {
+			System.out.println( fex.getMessage() ) ;
+			System.out.println( USAGE ) ;
+			System.exit( 1 ) ;
+		}
+		catch( Exception ex ) {
+			ex.printStackTrace() ;
+			System.exit( 1 ) ;
+		}
+	}
+
+	public void setTemplate( File template ) {
+		this.template = template ;
+	}
+
+	public void setOutput( File output ) {
+		this.output = output ;
+	}
+
+	public void setParticipants( int participants ) {
+		this.participants = participants ;
+	}
+
+	public void setMale( double male ) {
+		this.male = male ;
+	}
+
+	public void setUngendered( double ungendered ) {
+		this.ungendered = ungendered ;
+	}
+
+	public void setThreads( int threads ) {
+		this.threads = threads ;
+	}
+
+	public void setSeed( long seed ) {
+		this.seed = seed ;
+	}
+
+	public long getFilesWritten() {
+		return filesWritten.get() ;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get() ;
+	}
+
+	public static String getEntityId( int participant ) {
+		return String.format( "BPt%08d", participant + 1 ) ;
+	}
+
+	public static String getFileName( int participant ) {
+		return String.format( "%07d.xml", participant + 1 ) ;
+	}
+
+	/**
+	 * Writes the export.
+	 *
+	 * @throws ProcessException
+	 */
+	public void generate() throws ProcessException {
+		if( !output.isDirectory() && !output.mkdirs() ) {
+			throw new ProcessException( "Could not create output directory: " + output.getAbsolutePath() ) ;
+		}
+		String[] existing = output.list() ;
+		if( existing == null || existing.length > 0 ) {
+			throw new ProcessException( "Output directory is not empty: " + output.getAbsolutePath() ) ;
+		}
+		File[] directories = template.listFiles() ;
+		if( directories == null ) {
+			throw new ProcessException( "Could not list template directory: " + template.getAbsolutePath() ) ;
+		}
+		Arrays.sort( directories ) ;
+		File metadata = new File( template, METADATA_FILE_NAME ) ;
+		if( metadata.isFile() ) {
+			copy( metadata, new File( output, METADATA_FILE_NAME ) ) ;
+		}
+		String[] genders = newGenders() ;
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>() ;
+		for( File directory : directories ) {
+			if( !directory.isDirectory() ) {
+				continue ;
+			}
+			final Questionnaire q = readQuestionnaire( directory ) ;
+			final File target = new File( output, q.name ) ;
+			if( !target.mkdir() ) {
+				throw new ProcessException( "Could not create directory: " + target.getAbsolutePath() ) ;
+			}
+			File variables = new File( directory, ExportIndex.VARIABLES_FILE_NAME ) ;
+			if( variables.isFile() ) {
+				copy( variables, new File( target, ExportIndex.VARIABLES_FILE_NAME ) ) ;
+			}
+			writeEntities( target ) ;
+			for( int first=0; first<participants; first+=CHUNK_SIZE ) {
+				final int from = first ;
+				final int to = Math.min( first + CHUNK_SIZE, participants ) ;
+				final String[] g = genders ;
+				tasks.add( new Callable<Void>() {
+					public Void call() throws Exception {
+						writeDataFiles( q, target, g, from, to ) ;
+						return null ;
+					}
+				} ) ;
+			}
+		}
+		execute( tasks ) ;
+	}
+
+	public String report( long elapsed ) {
+		double seconds = Math.max( elapsed, 1 ) / 1000.0 ;
+		return String.format( "Generated %d participants: %d files, %d bytes in %.3fs (%.1f files/s, %.2f MB/s)"
+				            , participants
+				            , getFilesWritten()
+				            , getBytesWritten()
+				            , seconds
+				            , getFilesWritten() / seconds
+				            , getBytesWritten() / seconds / ( 1024 * 1024 ) ) ;
+	}
+
+	/**
+	 * @return each participant's gender value, or null where the participant has none.
+	 */
+	private String[] newGenders() {
+		Random r = new Random( seed ) ;
+		String[] genders = new String[ participants ] ;
+		for( int i=0; i<participants; i++ ) {
+			if( r.nextDouble() < ungendered ) {
+				continue ;
+			}
+			genders[i] = r.nextDouble() < male ? MALE : FEMALE ;
+		}
+		return genders ;
+	}
+
+	private void writeEntities( File directory ) throws ProcessException {
+		File file = new File( directory, ExportIndex.ENTITIES_FILE_NAME ) ;
+		Writer w = null ;
+		try {
+			w = newWriter( file ) ;
+			w.write( "<entities xmlns='http://brisskit.org/xml/onyx-entities/v1.0/oe' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>\n" ) ;
+			w.write( "  <string>" + ENTITY_TYPE + "</string>\n" ) ;
+			w.write( "  <map>\n" ) ;
+			for( int i=0; i<participants; i++ ) {
+				w.write( "    <entry>\n      <string>" ) ;
+				w.write( getEntityId( i ) ) ;
+				w.write( "</string>\n      <string>" ) ;
+				w.write( getFileName( i ) ) ;
+				w.write( "</string>\n    </entry>\n" ) ;
+			}
+			w.write( "  </map>\n</entities>" ) ;
+			w.close() ;
+			w = null ;
+			written( file ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write entities file: " + file.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( w ) ;
+		}
+	}
+
+	/**
+	 * Writes the questionnaire's data files for participants [from,to), from a generator
+	 * seeded by the run's seed, the questionnaire and the first participant.
+	 */
+	private void writeDataFiles( Questionnaire q, File directory, String[] genders, int from, int to ) throws ProcessException {
+		Random r = new Random( seed * 31 + q.name.hashCode() * 1000003L + from ) ;
+		boolean participantsFile = ExportIndex.PARTICIPANTS.equals( q.name ) ;
+		StringBuilder b = new StringBuilder( 64 * 1024 ) ;
+		for( int i=from; i<to; i++ ) {
+			b.setLength( 0 ) ;
+			b.append( "<valueSet xmlns='http://brisskit.org/xml/onyxdata/v1.0/od' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'" )
+			 .append( " valueTable=\"" ).append( escape( q.name ) )
+			 .append( "\" entityType=\"" ).append( ENTITY_TYPE )
+			 .append( "\" entityIdentifier=\"" ).append( getEntityId( i ) ).append( "\">\n" ) ;
+			for( Variable v : q.variables ) {
+				if( participantsFile && ParticipantCompositor.GENDER_VARIABLE.equals( v.name ) ) {
+					if( genders[i] != null ) {
+						appendValue( b, v, genders[i] ) ;
+					}
+				}
+				else if( r.nextDouble() < q.density ) {
+					appendVariableValue( b, v, r, i ) ;
+				}
+			}
+			if( participantsFile && genders[i] != null && !q.declares( ParticipantCompositor.GENDER_VARIABLE ) ) {
+				appendValue( b, new Variable( ParticipantCompositor.GENDER_VARIABLE, "text" ), genders[i] ) ;
+			}
+			b.append( "</valueSet>" ) ;
+			File file = new File( directory, getFileName( i ) ) ;
+			Writer w = null ;
+			try {
+				w = newWriter( file ) ;
+				w.append( b ) ;
+				w.close() ;
+				w = null ;
+				written( file ) ;
+			}
+			catch( IOException iox ) {
+				throw new ProcessException( "Could not write data file: " + file.getAbsolutePath(), iox ) ;
+			}
+			finally {
+				IOUtil.closeQuietly( w ) ;
+			}
+		}
+	}
+
+	private static void appendValue( StringBuilder b, Variable v, String value ) {
+		b.append( "  <variableValue variable=\"" ).append( escape( v.name ) ).append( "\">\n" )
+		 .append( "    <value valueType=\"" ).append( v.valueType ).append( "\">" ).append( escape( value ) ).append( "</value>\n" )
+		 .append( "  </variableValue>\n" ) ;
+	}
+
+	private static void appendVariableValue( StringBuilder b, Variable v, Random r, int participant ) {
+		if( !v.repeatable ) {
+			appendValue( b, v, newValue( v, r, participant ) ) ;
+			return ;
+		}
+		int size = 1 + r.nextInt( MAX_SEQUENCE_SIZE ) ;
+		b.append( "  <variableValue variable=\"" ).append( escape( v.name ) ).append( "\">\n" )
+		 .append( "    <value class=\"sequence\" valueType=\"" ).append( v.valueType ).append( "\" size=\"" ).append( size ).append( "\">\n" ) ;
+		for( int j=0; j<size; j++ ) {
+			b.append( "      <value valueType=\"" ).append( v.valueType ).append( "\" order=\"" ).append( j ).append( "\">" )
+			 .append( escape( newValue( v, r, participant ) ) ).append( "</value>\n" ) ;
+		}
+		b.append( "    </value>\n" )
+		 .append( "  </variableValue>\n" ) ;
+	}
+
+	private static String newValue( Variable v, Random r, int participant ) {
+		if( v.categories.length > 0 ) {
+			return v.categories[ r.nextInt( v.categories.length ) ] ;
+		}
+		if( "boolean".equals( v.valueType ) ) {
+			return r.nextBoolean() ? "true" : "false" ;
+		}
+		if( "integer".equals( v.valueType ) ) {
+			return String.valueOf( r.nextInt( 1000 ) ) ;
+		}
+		if( "decimal".equals( v.valueType ) ) {
+			return String.format( "%.2f", r.nextDouble() * 1000 ) ;
+		}
+		if( "date".equals( v.valueType ) ) {
+			return String.format( "%04d-%02d-%02d", 1930 + r.nextInt( 80 ), 1 + r.nextInt( 12 ), 1 + r.nextInt( 28 ) ) ;
+		}
+		if( "datetime".equals( v.valueType ) ) {
+			return String.format( "2010-%02d-%02dT%02d:%02d:%02d.000+0100", 1 + r.nextInt( 12 ), 1 + r.nextInt( 28 )
+					            , r.nextInt( 24 ), r.nextInt( 60 ), r.nextInt( 60 ) ) ;
+		}
+		if( "locale".equals( v.valueType ) ) {
+			return "en" ;
+		}
+		return "text-" + participant + "-" + r.nextInt( 100000 ) ;
+	}
+
+	/**
+	 * Describes the questionnaire from its variables.xml or, lacking that, from its first data file.
+	 */
+	private Questionnaire readQuestionnaire( File directory ) throws ProcessException {
+		Questionnaire q = new Questionnaire( directory.getName() ) ;
+		File[] dataFiles = directory.listFiles() ;
+		File sample = null ;
+		if( dataFiles != null ) {
+			Arrays.sort( dataFiles ) ;
+			for( File f : dataFiles ) {
+				String name = f.getName() ;
+				if( name.endsWith( ".xml" )
+					&&
+					!name.equals( ExportIndex.ENTITIES_FILE_NAME )
+					&&
+					!name.equals( ExportIndex.VARIABLES_FILE_NAME ) ) {
+					sample = f ;
+					break ;
+				}
+			}
+		}
+		List<Variable> sampled = sample == null ? new ArrayList<Variable>() : readDataFile( sample ) ;
+		File variables = new File( directory, ExportIndex.VARIABLES_FILE_NAME ) ;
+		if( variables.isFile() ) {
+			q.variables = readVariablesFile( variables ) ;
+			if( !q.variables.isEmpty() ) {
+				q.density = Math.min( 1.0, sampled.size() / (double)q.variables.size() ) ;
+			}
+		}
+		else {
+			q.variables = sampled ;
+			q.density = 1.0 ;
+		}
+		return q ;
+	}
+
+	private static List<Variable> readVariablesFile( File file ) throws ProcessException {
+		ArrayList<Variable> variables = new ArrayList<Variable>() ;
+		InputStream in = null ;
+		XMLStreamReader reader = null ;
+		try {
+			in = new FileInputStream( file ) ;
+			reader = inputFactory.createXMLStreamReader( in ) ;
+			Variable current = null ;
+			ArrayList<String> categories = new ArrayList<String>() ;
+			while( reader.hasNext() ) {
+				int event = reader.next() ;
+				if( event == XMLStreamConstants.START_ELEMENT ) {
+					String element = reader.getLocalName() ;
+					if( "variable".equals( element ) ) {
+						current = new Variable( reader.getAttributeValue( null, "name" )
+								              , reader.getAttributeValue( null, "valueType" ) ) ;
+						current.repeatable = "true".equals( reader.getAttributeValue( null, "repeatable" ) ) ;
+						categories.clear() ;
+					}
+					else if( "category".equals( element ) && current != null ) {
+						categories.add( reader.getAttributeValue( null, "name" ) ) ;
+					}
+				}
+				else if( event == XMLStreamConstants.END_ELEMENT
+						 &&
+						 "variable".equals( reader.getLocalName() )
+						 &&
+						 current != null ) {
+					current.categories = categories.toArray( new String[ categories.size() ] ) ;
+					if( current.name != null ) {
+						variables.add( current ) ;
+					}
+					current = null ;
+				}
+			}
+			return variables ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not read variables file: " + file.getAbsolutePath(), iox ) ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Could not parse variables file: " + file.getAbsolutePath(), xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+	/**
+	 * @return the variables of a data file, each with the value type of its value
+	 *         and repeatable if its value is a sequence.
+	 */
+	private static List<Variable> readDataFile( File file ) throws ProcessException {
+		ArrayList<Variable> variables = new ArrayList<Variable>() ;
+		InputStream in = null ;
+		XMLStreamReader reader = null ;
+		try {
+			in = new FileInputStream( file ) ;
+			reader = inputFactory.createXMLStreamReader( in ) ;
+			Variable current = null ;
+			while( reader.hasNext() ) {
+				if( reader.next() != XMLStreamConstants.START_ELEMENT ) {
+					continue ;
+				}
+				String element = reader.getLocalName() ;
+				if( ValueSetScanner.VARIABLE_VALUE_ELEMENT.equals( element ) ) {
+					current = new Variable( reader.getAttributeValue( null, ValueSetScanner.VARIABLE_ATTRIBUTE ), "text" ) ;
+					if( current.name != null ) {
+						variables.add( current ) ;
+					}
+				}
+				else if( ValueSetScanner.VALUE_ELEMENT.equals( element ) && current != null ) {
+					String valueType = reader.getAttributeValue( null, "valueType" ) ;
+					if( valueType != null ) {
+						current.valueType = valueType ;
+					}
+					current.repeatable = "sequence".equals( reader.getAttributeValue( null, "class" ) ) ;
+					current = null ;
+				}
+			}
+			return variables ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not read data file: " + file.getAbsolutePath(), iox ) ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Could not parse data file: " + file.getAbsolutePath(), xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+	private void copy( File from, File to ) throws ProcessException {
+		try {
+			InputStream in = new FileInputStream( from ) ;
+			try {
+				BufferedOutputStream out = new BufferedOutputStream( new FileOutputStream( to ) ) ;
+				try {
+					byte[] buffer = new byte[ 64*1024 ] ;
+					int n ;
+					while( ( n = in.read( buffer ) ) != -1 ) {
+						out.write( buffer, 0, n ) ;
+					}
+				}
+				finally {
+					out.close() ;
+				}
+			}
+			finally {
+				in.close() ;
+			}
+			written( to ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not copy " + from.getAbsolutePath() + " to " + to.getAbsolutePath(), iox ) ;
+		}
+	}
+
+	private void execute( List<Callable<Void>> tasks ) throws ProcessException {
+		ExecutorService pool = Executors.newFixedThreadPool( threads ) ;
+		try {
+			for( Future<Void> future : pool.invokeAll( tasks ) ) {
+				try {
+					future.get() ;
+				}
+				catch( ExecutionException eex ) {
+					throw new ProcessException( "Generation failed: " + eex.getCause().getMessage(), eex.getCause() ) ;
+				}
+			}
+		}
+		catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt() ;
+			throw new ProcessException( "Interrupted during generation", iex ) ;
+		}
+		finally {
+			pool.shutdownNow() ;
+		}
+	}
+
+	private void written( File file ) {
+		filesWritten.incrementAndGet() ;
+		bytesWritten.addAndGet( file.length() ) ;
+	}
+
+	private static Writer newWriter( File file ) throws IOException {
+		return new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ), 64 * 1024 ) ;
+	}
+
+	private static String escape( String text ) {
+		if( text.indexOf( '&' ) < 0 && text.indexOf( '<' ) < 0 && text.indexOf( '>' ) < 0 && text.indexOf( '"' ) < 0 ) {
+			return text ;
+		}
+		return text.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" ) ;
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE ) ;
+		return factory ;
+	}
+
+	/**
+	 * A questionnaire of the template: its variables, and the proportion
+	 * of them to be given values in each data file.
+	 */
+	private static class Questionnaire {
+
+		private final String name ;
+		private List<Variable> variables ;
+		private double density = 1.0 ;
+
+		private Questionnaire( String name ) {
+			this.name = name ;
+		}
+
+		private boolean declares( String variableName ) {
+			for( Variable v : variables ) {
+				if( v.name.equals( variableName ) ) {
+					return true ;
+				}
+			}
+			return false ;
+		}
+
+	}
+
+	private static class Variable {
+
+		private final String name ;
+		private String valueType ;
+		private String[] categories = new String[0] ;
+		private boolean repeatable = false ;
+
+		private Variable( String name, String valueType ) {
+			this.name = name ;
+			this.valueType = valueType == null ? "text" : valueType ;
+		}
+
+	}
+
+	public static class Factory {
+
+		public static ExportGenerator newInstance( String[] args ) throws FactoryException {
+			ExportGenerator generator = new ExportGenerator() ;
+			boolean participants = false ;
+			if( args != null ) {
+				for( String arg : args ) {
+					if( arg.startsWith( "-output=" ) || arg.startsWith( "-o=" ) ) {
+						generator.setOutput( new File( value( arg ) ) ) ;
+					}
+					else if( arg.startsWith( "-participants=" ) || arg.startsWith( "-p=" ) ) {
+						generator.setParticipants( newInt( arg ) ) ;
+						participants = true ;
+					}
+					else if( arg.startsWith( "-template=" ) ) {
+						generator.setTemplate( newTemplate( value( arg ) ) ) ;
+					}
+					else if( arg.startsWith( "-male=" ) || arg.startsWith( "-m=" ) ) {
+						generator.setMale( newProportion( arg ) ) ;
+					}
+					else if( arg.startsWith( "-ungendered=" ) || arg.startsWith( "-u=" ) ) {
+						generator.setUngendered( newProportion( arg ) ) ;
+					}
+					else if( arg.startsWith( "-threads=" ) || arg.startsWith( "-t=" ) ) {
+						generator.setThreads( Math.max( 1, newInt( arg ) ) ) ;
+					}
+					else if( arg.startsWith( "-seed=" ) || arg.startsWith( "-s=" ) ) {
+						generator.setSeed( newLong( arg ) ) ;
+					}
+				}
+			}
+			if( generator.output == null ) {
+				throw new FactoryException( "Output directory path missing." ) ;
+			}
+			else if( !participants || generator.participants < 0 ) {
+				throw new FactoryException( "Number of participants missing." ) ;
+			}
+			return generator ;
+		}
+
+		private static String value( String arg ) {
+			return arg.substring( arg.indexOf( '=' ) + 1 ) ;
+		}
+
+		private static File newTemplate( String path ) throws FactoryException {
+			File template = new File( path ) ;
+			if( !template.isDirectory() ) {
+				throw new FactoryException( "Template is not an expanded export directory: " + path ) ;
+			}
+			return template ;
+		}
+
+		private static int newInt( String arg ) throws FactoryException {
+			try {
+				return Integer.parseInt( value( arg ) ) ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Not a number: " + arg ) ;
+			}
+		}
+
+		private static long newLong( String arg ) throws FactoryException {
+			try {
+				return Long.parseLong( value( arg ) ) ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Not a number: " + arg ) ;
+			}
+		}
+
+		private static double newProportion( String arg ) throws FactoryException {
+			try {
+				double proportion = Double.parseDouble( value( arg ) ) ;
+				if( proportion < 0.0 || proportion > 1.0 ) {
+					throw new FactoryException( "Proportion must be between 0 and 1: " + arg ) ;
+				}
+				return proportion ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Not a number: " + arg ) ;
+			}
+		}
+
+	}
+
+}
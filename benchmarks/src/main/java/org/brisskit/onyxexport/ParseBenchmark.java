@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.brisskit.onyxdata.beans.ValueSetDocument;
+
+/**
+ * Parsing of a participant's value set: loading it as an XMLBeans document (as the
+ * xmlbeans engine and the SwappablePair do), and scanning it forward for a single
+ * variable (as the gender scan does).
+ * <p/>
+ * parseXmlBeans loads with XMLBeans' default options, for comparison with the
+ * tuned options and backends of the DocumentParser (see -parser).
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class ParseBenchmark {
+
+	@Param( { "100", "1000", "5000" } )
+	public int variableCount ;
+
+	@Param( { "1", "8", "64" } )
+	public int sequenceSize ;
+
+	private byte[] valueSet ;
+	private byte[] fixture ;
+	private Set<String> lastVariable ;
+	private DocumentParser xmlBeansParser ;
+	private DocumentParser saxParser ;
+	private DocumentParser staxParser ;
+
+	@Setup
+	public void setUp() throws Exception {
+		valueSet = BenchmarkFixtures.newValueSet( variableCount, sequenceSize, 1, 0 ) ;
+		fixture = BenchmarkFixtures.readFile( BenchmarkFixtures.getParticipantFile( BenchmarkFixtures.PARTICIPANT_ONE ) ) ;
+		//
+		// The last variable in the file, so that the scan reads the whole of it...
+		lastVariable = Collections.singleton( BenchmarkFixtures.getVariableName( variableCount-1, 1, 0 ) ) ;
+		xmlBeansParser = DocumentParser.newInstance( ParticipantCompositor.Parser.XMLBEANS ) ;
+		saxParser = DocumentParser.newInstance( ParticipantCompositor.Parser.SAX ) ;
+		staxParser = DocumentParser.newInstance( ParticipantCompositor.Parser.STAX ) ;
+	}
+
+	@Benchmark
+	public ValueSetDocument parseXmlBeans() throws Exception {
+		return ValueSetDocument.Factory.parse( new ByteArrayInputStream( valueSet ) ) ;
+	}
+
+	@Benchmark
+	public ValueSetDocument parseWithXmlBeansParser() throws Exception {
+		return xmlBeansParser.loadValueSet( new ByteArrayInputStream( valueSet ) ) ;
+	}
+
+	@Benchmark
+	public ValueSetDocument parseWithSaxParser() throws Exception {
+		return saxParser.loadValueSet( new ByteArrayInputStream( valueSet ) ) ;
+	}
+
+	@Benchmark
+	public ValueSetDocument parseWithStaxParser() throws Exception {
+		return staxParser.loadValueSet( new ByteArrayInputStream( valueSet ) ) ;
+	}
+
+	@Benchmark
+	public Object scanValueSet() throws Exception {
+		return ValueSetScanner.scanValues( new ByteArrayInputStream( valueSet ), lastVariable ) ;
+	}
+
+	/**
+	 * The bundled participant file, which does not vary with the parameters.
+	 */
+	@Benchmark
+	public ValueSetDocument parseFixture() throws Exception {
+		return ValueSetDocument.Factory.parse( new ByteArrayInputStream( fixture ) ) ;
+	}
+
+	@Benchmark
+	public Object scanFixtureGender() throws Exception {
+		return ValueSetScanner.scanValues( new ByteArrayInputStream( fixture ), Collections.singleton( ParticipantCompositor.GENDER_VARIABLE ) ) ;
+	}
+
+}
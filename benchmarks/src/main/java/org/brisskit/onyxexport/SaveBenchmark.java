@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.brisskit.onyxdata.beans.ValueSetDocument;
+
+import org.brisskit.onyxexport.BenchmarkFixtures.NullOutputStream;
+import org.brisskit.onyxexport.ParticipantCompositor.Format;
+import org.brisskit.onyxexport.ParticipantCompositor.SwappablePair;
+
+/**
+ * Saving a swapped value set document, in each output format, to a stream
+ * which discards it; so the serialization is measured rather than the disk.
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class SaveBenchmark {
+
+	@Param( { "PRETTY", "COMPACT" } )
+	public Format format ;
+
+	@Param( { "100", "1000", "5000" } )
+	public int variableCount ;
+
+	@Param( { "1", "8", "64" } )
+	public int sequenceSize ;
+
+	private ValueSetDocument valueSet ;
+	private ValueSetDocument fixture ;
+	private SwappablePair pair ;
+
+	@Setup
+	public void setUp() throws Exception {
+		valueSet = ValueSetDocument.Factory.parse( new ByteArrayInputStream( BenchmarkFixtures.newValueSet( variableCount, sequenceSize, 1, 0 ) ) ) ;
+		fixture = ValueSetDocument.Factory.parse( BenchmarkFixtures.getParticipantFile( BenchmarkFixtures.PARTICIPANT_ONE ) ) ;
+		ParticipantCompositor compositor = new ParticipantCompositor() ;
+		compositor.setFormat( format ) ;
+		//
+		// Saving uses neither the pair's documents nor its selection...
+		pair = compositor.new SwappablePair( valueSet, fixture, null ) ;
+	}
+
+	@Benchmark
+	public long saveValueSetDoc() throws Exception {
+		NullOutputStream out = new NullOutputStream() ;
+		pair.saveValueSetDoc( valueSet, out, "synthetic" ) ;
+		return out.getCount() ;
+	}
+
+	@Benchmark
+	public long saveFixture() throws Exception {
+		NullOutputStream out = new NullOutputStream() ;
+		pair.saveValueSetDoc( fixture, out, BenchmarkFixtures.PARTICIPANT_ONE ) ;
+		return out.getCount() ;
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.brisskit.export.metadata.config.beans.SelectType;
+
+/**
+ * Selection of variables: matching every variable name against the select constructs
+ * (as a questionnaire's table is first resolved), and looking names up in a resolved
+ * table (as every variableValue of every participant file is), by name or by variable id.
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class SelectBenchmark {
+
+	@Param( { "100", "1000", "5000" } )
+	public int variableCount ;
+
+	@Param( { "1", "4", "16" } )
+	public int selectCount ;
+
+	@Param( { "4", "16", "128" } )
+	public int hintCount ;
+
+	private String[] variableNames ;
+	private SelectionMatcher[] matchers ;
+	private SelectionTable table ;
+	private int[] variableIds ;
+	private String[] fixtureVariableNames ;
+	private SelectionMatcher[] fixtureMatchers ;
+
+	@Setup
+	public void setUp() throws Exception {
+		//
+		// One variable in ten is selected...
+		List<String> names = BenchmarkFixtures.newVariableNames( variableCount, selectCount, variableCount / 10 ) ;
+		variableNames = names.toArray( new String[ names.size() ] ) ;
+		List<SelectType> selects = BenchmarkFixtures.newSelects( selectCount, Math.max( selectCount, hintCount ) ) ;
+		matchers = newMatchers( selects ) ;
+		table = BenchmarkFixtures.newSelectionTable( selects, names ) ;
+		variableIds = new int[ variableNames.length ] ;
+		for( int i=0; i<variableIds.length; i++ ) {
+			variableIds[i] = table.getVocabulary().getId( variableNames[i] ) ;
+		}
+
+		List<String> fixtureNames = BenchmarkFixtures.getConfiguredVariableNames() ;
+		fixtureVariableNames = fixtureNames.toArray( new String[ fixtureNames.size() ] ) ;
+		fixtureMatchers = newMatchers( BenchmarkFixtures.getConfiguredSelects( BenchmarkFixtures.QUESTIONNAIRE ) ) ;
+	}
+
+	@Benchmark
+	public void matchAll( Blackhole bh ) {
+		bh.consume( match( variableNames, matchers ) ) ;
+	}
+
+	@Benchmark
+	public void lookupAll( Blackhole bh ) {
+		for( String name : variableNames ) {
+			bh.consume( table.getSelectIndex( name ) ) ;
+		}
+	}
+
+	@Benchmark
+	public void lookupAllById( Blackhole bh ) {
+		for( int id : variableIds ) {
+			bh.consume( table.getSelectIndex( id ) ) ;
+		}
+	}
+
+	/**
+	 * The bundled configuration's selects against the bundled questionnaire's variables,
+	 * which do not vary with the parameters.
+	 */
+	@Benchmark
+	public void matchFixture( Blackhole bh ) {
+		bh.consume( match( fixtureVariableNames, fixtureMatchers ) ) ;
+	}
+
+	private static int match( String[] names, SelectionMatcher[] matchers ) {
+		int selected = 0 ;
+		for( String name : names ) {
+			for( SelectionMatcher matcher : matchers ) {
+				if( matcher.matches( name ) ) {
+					selected++ ;
+					break ;
+				}
+			}
+		}
+		return selected ;
+	}
+
+	private static SelectionMatcher[] newMatchers( List<SelectType> selects ) {
+		SelectionMatcher[] matchers = new SelectionMatcher[ selects.size() ] ;
+		for( int i=0; i<matchers.length; i++ ) {
+			matchers[i] = new SelectionMatcher( selects.get(i) ) ;
+		}
+		return matchers ;
+	}
+
+}
@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.brisskit.onyxdata.beans.ValueSetDocument;
+import org.brisskit.onyxdata.beans.VariableValueType;
+
+import org.brisskit.onyxexport.BenchmarkFixtures.NullOutputStream;
+import org.brisskit.onyxexport.ParticipantCompositor.SwappablePair;
+
+/**
+ * Swapping a matched pair's selected variables: each stage of the XMLBeans swap
+ * (gathering the selected variables, deleting them, inserting the partner's, and
+ * the whole of apply()), the lookup of a variable by scan and by index, and the
+ * StAX streaming swap.
+ * <p/>
+ * The XMLBeans stages alter their documents, so each invocation is given a freshly
+ * parsed pair (see {@link Documents}); the parse is not measured.
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class SwapBenchmark {
+
+	@Param( { "100", "1000", "5000" } )
+	public int variableCount ;
+
+	@Param( { "1", "8" } )
+	public int sequenceSize ;
+
+	@Param( { "1", "4" } )
+	public int selectCount ;
+
+	@Param( { "1", "10", "100" } )
+	public int selectedCount ;
+
+	private byte[] valueSetOne ;
+	private byte[] valueSetTwo ;
+	private SelectionTable table ;
+	private byte[] fixtureOne ;
+	private byte[] fixtureTwo ;
+	private SelectionTable fixtureTable ;
+	private ParticipantCompositor compositor ;
+	//
+	// The last variable of the synthetic value sets: the worst case for a scan...
+	private String lastVariable ;
+
+	@Setup
+	public void setUp() throws Exception {
+		int selected = Math.min( selectedCount, variableCount ) ;
+		valueSetOne = BenchmarkFixtures.newValueSet( variableCount, sequenceSize, selectCount, selected ) ;
+		valueSetTwo = BenchmarkFixtures.newValueSet( variableCount, sequenceSize, selectCount, selected ) ;
+		table = BenchmarkFixtures.newSelectionTable( BenchmarkFixtures.newSelects( selectCount, selectCount )
+				                                   , BenchmarkFixtures.newVariableNames( variableCount, selectCount, selected ) ) ;
+		fixtureOne = BenchmarkFixtures.readFile( BenchmarkFixtures.getParticipantFile( BenchmarkFixtures.PARTICIPANT_ONE ) ) ;
+		fixtureTwo = BenchmarkFixtures.readFile( BenchmarkFixtures.getParticipantFile( BenchmarkFixtures.PARTICIPANT_TWO ) ) ;
+		fixtureTable = BenchmarkFixtures.getConfiguredSelectionTable() ;
+		compositor = new ParticipantCompositor() ;
+		lastVariable = BenchmarkFixtures.newVariableNames( variableCount, selectCount, selected ).get( variableCount-1 ) ;
+	}
+
+	/**
+	 * A freshly parsed pair of synthetic value sets, for one invocation.
+	 */
+	@State( Scope.Thread )
+	public static class Documents {
+
+		ValueSetDocument one ;
+		ValueSetDocument two ;
+		SwappablePair pair ;
+		ArrayList<ArrayList<VariableValueType>> varsOne ;
+		ArrayList<ArrayList<VariableValueType>> varsTwo ;
+
+		@Setup( Level.Invocation )
+		public void parse( SwapBenchmark b ) throws Exception {
+			one = ValueSetDocument.Factory.parse( new ByteArrayInputStream( b.valueSetOne ) ) ;
+			two = ValueSetDocument.Factory.parse( new ByteArrayInputStream( b.valueSetTwo ) ) ;
+			pair = b.compositor.new SwappablePair( one, two, b.table ) ;
+			varsOne = pair.getSwappableVars( one ) ;
+			varsTwo = pair.getSwappableVars( two ) ;
+		}
+
+	}
+
+	@Benchmark
+	public Object getSwappableVars( Documents d ) throws Exception {
+		return d.pair.getSwappableVars( d.one ) ;
+	}
+
+	@Benchmark
+	public void deleteVars( Documents d, Blackhole bh ) {
+		for( ArrayList<VariableValueType> vars : d.varsOne ) {
+			bh.consume( d.pair.deleteVars( d.one, vars ) ) ;
+		}
+	}
+
+	/**
+	 * Inserts partner two's selected variables into document one (which still holds its own).
+	 */
+	@Benchmark
+	public void updateVars( Documents d ) {
+		for( ArrayList<VariableValueType> vars : d.varsTwo ) {
+			d.pair.updateVars( d.one, vars ) ;
+		}
+	}
+
+	@Benchmark
+	public Object getValueByScan( Documents d ) {
+		return compositor.getValueAsXmlObject( d.one.getValueSet(), lastVariable ) ;
+	}
+
+	/**
+	 * A lookup in the index built by the pair's scan (see {@link Documents}).
+	 */
+	@Benchmark
+	public Object getValueByIndex( Documents d ) {
+		return d.pair.getIndex( d.one ).getValue( lastVariable ) ;
+	}
+
+	@Benchmark
+	public boolean apply( Documents d ) throws Exception {
+		return d.pair.apply() ;
+	}
+
+	@Benchmark
+	public boolean streamingSwap() throws Exception {
+		return StreamingSwapEngine.swap( new ByteArrayInputStream( valueSetOne )
+				                       , new ByteArrayInputStream( valueSetTwo )
+				                       , new NullOutputStream()
+				                       , new NullOutputStream()
+				                       , table ) ;
+	}
+
+	@Benchmark
+	public boolean spliceSwap() throws Exception {
+		return SpliceSwapEngine.swap( ByteBuffer.wrap( valueSetOne )
+				                    , ByteBuffer.wrap( valueSetTwo )
+				                    , new NullOutputStream()
+				                    , new NullOutputStream()
+				                    , table ) ;
+	}
+
+	/**
+	 * The bundled pair, swapped by the bundled configuration from parse through to save,
+	 * as the xmlbeans engine does for each pair of the questionnaire.
+	 */
+	@Benchmark
+	public boolean swapFixturePair() throws Exception {
+		ValueSetDocument one = ValueSetDocument.Factory.parse( new ByteArrayInputStream( fixtureOne ) ) ;
+		ValueSetDocument two = ValueSetDocument.Factory.parse( new ByteArrayInputStream( fixtureTwo ) ) ;
+		SwappablePair pair = compositor.new SwappablePair( one, two, fixtureTable ) ;
+		if( !pair.apply() ) {
+			return false ;
+		}
+		pair.saveValueSetDoc( one, new NullOutputStream(), BenchmarkFixtures.PARTICIPANT_ONE ) ;
+		pair.saveValueSetDoc( two, new NullOutputStream(), BenchmarkFixtures.PARTICIPANT_TWO ) ;
+		return true ;
+	}
+
+	/**
+	 * The bundled pair, swapped by the bundled configuration with the stax engine.
+	 */
+	@Benchmark
+	public boolean streamFixturePair() throws Exception {
+		return StreamingSwapEngine.swap( new ByteArrayInputStream( fixtureOne )
+				                       , new ByteArrayInputStream( fixtureTwo )
+				                       , new NullOutputStream()
+				                       , new NullOutputStream()
+				                       , fixtureTable ) ;
+	}
+
+	/**
+	 * The bundled pair, swapped by the bundled configuration with the splice engine.
+	 */
+	@Benchmark
+	public boolean spliceFixturePair() throws Exception {
+		return SpliceSwapEngine.swap( ByteBuffer.wrap( fixtureOne )
+				                    , ByteBuffer.wrap( fixtureTwo )
+				                    , new NullOutputStream()
+				                    , new NullOutputStream()
+				                    , fixtureTable ) ;
+	}
+
+}
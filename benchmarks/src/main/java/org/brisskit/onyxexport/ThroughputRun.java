@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.brisskit.onyxexport.ParticipantCompositor.FactoryException;
+import org.brisskit.onyxexport.ParticipantCompositor.Phase;
+
+/**
+ * End to end throughput of the compositor over generated exports of increasing size.
+ * <p/>
+ * For each number of participants, an export is generated (see {@link ExportGenerator})
+ * and then composed in place by a fresh JVM, which reports the wall time, the duration
+ * and rate of each phase of the run, its metrics as JSON and its own peak resident set size.
+ * (Peak RSS is read from /proc where there is one; elsewhere the peak heap usage is reported.)
+ * <p/>
+ * eg: from the benchmarks directory, once packaged:
+ * <pre>
+ * java -cp target/benchmarks.jar org.brisskit.onyxexport.ThroughputRun -work=/tmp/onyx -participants=1000,10000,100000
+ * </pre>
+ * Parameters other than those below are passed on to the compositor (eg: -threads=4 -engine=stax).
+ *
+ */
+public class ThroughputRun {
+
+	private static final String USAGE =
+	        "Usage: ThroughputRun {Parameters} {Compositor parameters}\n" +
+	                "Parameters:\n" +
+	                " -work=path-to-work-directory\n" +
+	                " -participants=number[,number...]\n" +
+	                " -config=path-to-config-file\n" +
+	                " -male=proportion\n" +
+	                " -ungendered=proportion\n" +
+	                " -keep\n" +
+	                "Notes:\n" +
+	                " (1) The work parameter is mandatory. Each export is generated in a new directory within it.\n" +
+	                "     The participants parameter defaults to 1000,10000,100000.\n" +
+	                "     The config parameter defaults to the bundled configuration.\n" +
+	                "     The male and ungendered parameters are passed to the generator.\n" +
+	                "     Generated exports are removed after their run unless keep is given.\n" +
+	                " (2) Any other parameters (eg: -threads, -engine, -format, -seed) are passed to the compositor." ;
+
+	private static final String CHILD = "-child" ;
+
+	public static void main( String[] args ) {
+		try {
+			if( args.length > 0 && CHILD.equals( args[0] ) ) {
+				compose( Arrays.copyOfRange( args, 1, args.length ) ) ;
+			}
+			else {
+				run( args ) ;
+			}
+		}
+		catch( FactoryException fex ) {
+			System.out.println( fex.getMessage() ) ;
+			System.out.println( USAGE ) ;
+			System.exit( 1 ) ;
+		}
+		catch( Exception ex ) {
+			ex.printStackTrace() ;
+			System.exit( 1 ) ;
+		}
+		System.exit( 0 ) ;
+	}
+
+	private static void run( String[] args ) throws Exception {
+		File work = null ;
+		String participants = "1000,10000,100000" ;
+		String config = BenchmarkFixtures.getConfigFile().getAbsolutePath() ;
+		boolean keep = false ;
+		ArrayList<String> generatorArgs = new ArrayList<String>() ;
+		ArrayList<String> compositorArgs = new ArrayList<String>() ;
+		for( String arg : args ) {
+			if( arg.startsWith( "-work=" ) ) {
+				work = new File( arg.substring( 6 ) ) ;
+			}
+			else if( arg.startsWith( "-participants=" ) ) {
+				participants = arg.substring( 14 ) ;
+			}
+			else if( arg.startsWith( "-config=" ) ) {
+				config = arg.substring( 8 ) ;
+			}
+			else if( arg.startsWith( "-male=" ) || arg.startsWith( "-ungendered=" ) ) {
+				generatorArgs.add( arg ) ;
+			}
+			else if( arg.equals( "-keep" ) ) {
+				keep = true ;
+			}
+			else {
+				compositorArgs.add( arg ) ;
+			}
+		}
+		if( work == null ) {
+			throw new FactoryException( "Work directory path missing." ) ;
+		}
+		for( String count : participants.split( "," ) ) {
+			File export = new File( work, "export-" + count.trim() ) ;
+			//
+			// Generate the export...
+			ArrayList<String> g = new ArrayList<String>( generatorArgs ) ;
+			g.add( "-output=" + export.getAbsolutePath() ) ;
+			g.add( "-participants=" + count.trim() ) ;
+			g.add( "-threads=" + Runtime.getRuntime().availableProcessors() ) ;
+			ExportGenerator generator = ExportGenerator.Factory.newInstance( g.toArray( new String[ g.size() ] ) ) ;
+			long started = System.currentTimeMillis() ;
+			generator.generate() ;
+			System.out.println( generator.report( System.currentTimeMillis() - started ) ) ;
+			//
+			// Compose it in a JVM of its own, so that its memory is its own...
+			ArrayList<String> command = new ArrayList<String>() ;
+			command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getAbsolutePath() ) ;
+			for( String jvmArg : ManagementFactory.getRuntimeMXBean().getInputArguments() ) {
+				if( jvmArg.startsWith( "-X" ) || jvmArg.startsWith( "-D" ) ) {
+					command.add( jvmArg ) ;
+				}
+			}
+			command.add( "-cp" ) ;
+			command.add( System.getProperty( "java.class.path" ) ) ;
+			command.add( ThroughputRun.class.getName() ) ;
+			command.add( CHILD ) ;
+			command.add( "-export=" + export.getAbsolutePath() ) ;
+			command.add( "-config=" + config ) ;
+			command.addAll( compositorArgs ) ;
+			Process child = new ProcessBuilder( command ).inheritIO().start() ;
+			int status = child.waitFor() ;
+			if( !keep ) {
+				delete( export ) ;
+			}
+			if( status != 0 ) {
+				throw new Exception( "Composition of " + count + " participants failed with status " + status ) ;
+			}
+		}
+	}
+
+	/**
+	 * Runs the compositor and reports on the run.
+	 */
+	private static void compose( String[] args ) throws Exception {
+		ParticipantCompositor pc = ParticipantCompositor.Factory.newInstance( args ) ;
+		long started = System.currentTimeMillis() ;
+		pc.exec() ;
+		long elapsed = System.currentTimeMillis() - started ;
+		System.out.println( report( pc.getPhases(), elapsed ) ) ;
+		System.out.println( Metrics.toJson( pc.getPhases(), elapsed ) ) ;
+	}
+
+	static String report( List<Phase> phases, long elapsed ) {
+		StringBuilder b = new StringBuilder() ;
+		b.append( String.format( "Composed in %.3fs; %s%n", elapsed / 1000.0, getPeakMemory() ) ) ;
+		for( Phase phase : phases ) {
+			b.append( String.format( "  %-8s %10d %-14s %9.3fs %12.1f/s%n"
+					               , phase.getName()
+					               , phase.getCount()
+					               , phase.getUnit()
+					               , phase.getElapsed() / 1000.0
+					               , phase.getRate() ) ) ;
+		}
+		return b.toString() ;
+	}
+
+	/**
+	 * @return peak RSS from /proc/self/status where available, otherwise peak heap usage.
+	 */
+	static String getPeakMemory() {
+		File status = new File( "/proc/self/status" ) ;
+		if( status.isFile() ) {
+			BufferedReader reader = null ;
+			try {
+				reader = new BufferedReader( new FileReader( status ) ) ;
+				String line ;
+				while( ( line = reader.readLine() ) != null ) {
+					if( line.startsWith( "VmHWM:" ) ) {
+						return "peak RSS " + line.substring( 6 ).trim() ;
+					}
+				}
+			}
+			catch( IOException iox ) {
+				// Fall through to the heap...
+			}
+			finally {
+				IOUtil.closeQuietly( reader ) ;
+			}
+		}
+		long peak = 0 ;
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if( pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null ) {
+				peak += pool.getPeakUsage().getUsed() ;
+			}
+		}
+		return "peak heap " + ( peak / 1024 ) + " kB" ;
+	}
+
+	private static void delete( File file ) {
+		File[] children = file.listFiles() ;
+		if( children != null ) {
+			for( File child : children ) {
+				delete( child ) ;
+			}
+		}
+		file.delete() ;
+	}
+
+}
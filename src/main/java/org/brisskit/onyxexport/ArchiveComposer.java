@@ -0,0 +1,418 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxentities.beans.EntitiesDocument;
+
+import org.brisskit.onyxexport.Metrics.Counter;
+import org.brisskit.onyxexport.ParticipantCompositor.Engine;
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Composes an export zip file into a new zip file (see -output), leaving the export
+ * zip file itself untouched. The participants to delete and the pairs to swap are
+ * the compositor's, which also swaps pairs for the xmlbeans engine.
+ * <p/>
+ * Where a manifest is kept (see -manifest), each swapped participant's entries are
+ * recorded in it, and the pairs the previous composition made from the same entries
+ * are copied from the previous composed zip file rather than swapped again.
+ *
+ */
+final class ArchiveComposer {
+
+	private static Log log = LogFactory.getLog( ArchiveComposer.class ) ;
+
+	private final ParticipantCompositor compositor ;
+	private final ExportIndex index ;
+	private final File outputArchive ;
+	private final List<MatchedPair> matchedPairs ;
+	private final Engine engine ;
+	private Manifest manifest ;
+	private Manifest previousManifest ;
+	private ZipFile previousArchive ;
+
+	/**
+	 * @param compositor the compositor of the export
+	 * @param index the export zip file
+	 * @param outputArchive the composed zip file to write
+	 * @param matchedPairs the pairs to swap
+	 * @param engine the swap engine
+	 */
+	ArchiveComposer( ParticipantCompositor compositor
+			       , ExportIndex index
+			       , File outputArchive
+			       , List<MatchedPair> matchedPairs
+			       , Engine engine ) {
+		this.compositor = compositor ;
+		this.index = index ;
+		this.outputArchive = outputArchive ;
+		this.matchedPairs = matchedPairs ;
+		this.engine = engine ;
+	}
+
+	/**
+	 * Records the composition in a manifest.
+	 * 
+	 * @param manifest the manifest of this composition, with its pairs
+	 * @param previousManifest the manifest of the previous composition, where it still
+	 *        describes the output zip file; otherwise null
+	 */
+	void setManifests( Manifest manifest, Manifest previousManifest ) {
+		this.manifest = manifest ;
+		this.previousManifest = previousManifest ;
+	}
+	
+	/**
+	 * Writes the composed export as a new zip file, in one pass over the export zip file.
+	 * <p/>
+	 * Entries unaffected by the composition (eg: metadata.xml, variables.xml, questionnaires
+	 * without a swap section) are copied raw; that is, without being decompressed and 
+	 * recompressed. The data files of participants marked for deletion are left out, and the
+	 * entities.xml entries referring to them rewritten. The data files of matched pairs within 
+	 * swapped questionnaires are swapped pair by pair in memory (in parallel when more than
+	 * one thread is available) and written after the copied entries.
+	 * <p/>
+	 * The zip file is written alongside the output path and renamed once complete.
+	 * 
+	 * @param selections questionnaire name to resolved selects, for each swapped questionnaire
+	 */
+	void compose( LinkedHashMap<String,SelectionTable> selections ) throws ProcessException {
+		if( log.isTraceEnabled() ) ParticipantCompositor.enterTrace( "ArchiveComposer.compose()" ) ;
+		File temp = new File( this.outputArchive.getAbsoluteFile().getParentFile(), this.outputArchive.getName() + ".tmp" ) ;
+		ZipArchiveOutputStream zipOut = null ;
+		boolean complete = false ;
+		try {
+			if( this.manifest != null ) {
+				openPreviousComposition() ;
+			}
+			zipOut = new ZipArchiveOutputStream( temp ) ;
+			//
+			// The entries which are not copied as they stand:
+			// those of deleted participants and those of pairs to be swapped...
+			HashMap<String,HashSet<String>> deleted = new HashMap<String,HashSet<String>>() ;
+			for( String questionnaire : this.index.getQuestionnaireNames() ) {
+				deleted.put( questionnaire, new HashSet<String>( this.compositor.removeDeletions( questionnaire ) ) ) ;
+			}
+			HashMap<String,HashSet<String>> swapped = new HashMap<String,HashSet<String>>() ;
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>() ;
+			for( SelectionTable selection : selections.values() ) {
+				HashSet<String> fileNames = new HashSet<String>() ;
+				tasks.addAll( processQuestionnaire( selection, zipOut, fileNames ) ) ;
+				swapped.put( selection.getQuestionnaire(), fileNames ) ;
+			}
+			//
+			// One pass over the export zip file...
+			Enumeration<ZipArchiveEntry> entries = this.index.getArchive().getEntriesInPhysicalOrder() ;
+			while( entries.hasMoreElements() ) {
+				ZipArchiveEntry entry = entries.nextElement() ;
+				String questionnaire = ExportIndex.getQuestionnaireName( entry ) ;
+				if( questionnaire != null ) {
+					String fileName = ExportIndex.getFileName( entry ) ;
+					HashSet<String> deletedFileNames = deleted.get( questionnaire ) ;
+					HashSet<String> swappedFileNames = swapped.get( questionnaire ) ;
+					if( deletedFileNames.contains( fileName ) ) {
+						continue ;
+					}
+					if( swappedFileNames != null && swappedFileNames.contains( fileName ) ) {
+						continue ;
+					}
+					if( !deletedFileNames.isEmpty() && ExportIndex.ENTITIES_FILE_NAME.equals( fileName ) ) {
+						EntitiesDocument ed = this.compositor.getEntity( questionnaire ) ;
+						this.compositor.removeDeletedEntries( ed ) ;
+						ByteArrayOutputStream content = new ByteArrayOutputStream() ;
+						ed.save( content, this.compositor.getEntitySaveOptions() ) ;
+						writeEntry( zipOut, entry, content ) ;
+						continue ;
+					}
+				}
+				copyEntry( zipOut, entry ) ;
+			}
+			//
+			// The swapped pairs...
+			this.compositor.execute( tasks, "swap" ) ;
+			zipOut.finish() ;
+			zipOut.close() ;
+			zipOut = null ;
+			closePreviousComposition() ;
+			if( !temp.renameTo( this.outputArchive ) ) {
+				throw new ProcessException( "Could not create output archive: " + this.outputArchive.getAbsolutePath() ) ;
+			}
+			if( this.manifest != null ) {
+				this.manifest.setOutput( this.outputArchive ) ;
+			}
+			complete = true ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write output archive: " + temp.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( zipOut ) ;
+			closePreviousComposition() ;
+			if( !complete && temp.exists() && !temp.delete() ) {
+				log.warn( "Could not delete temporary file: " + temp.getAbsolutePath() ) ;
+			}
+			if( log.isTraceEnabled() ) ParticipantCompositor.exitTrace( "ArchiveComposer.compose()" ) ;
+		}
+	}
+	
+	/**
+	 * Where the manifest of the previous composition was made with the same selects and
+	 * settings as this one, opens the previous composed zip file so that its unchanged
+	 * pairs can be copied rather than swapped again.
+	 */
+	private void openPreviousComposition() {
+		if( this.previousManifest == null ) {
+			return ;
+		}
+		if( !this.manifest.getKey().equals( this.previousManifest.getKey() ) ) {
+			log.info( "Selects or settings have changed since the previous composition; swapping all pairs afresh." ) ;
+			return ;
+		}
+		try {
+			this.previousArchive = new ZipFile( this.outputArchive ) ;
+		}
+		catch( IOException iox ) {
+			log.warn( "Could not open the previous composition; swapping all pairs afresh: " + iox.getMessage() ) ;
+		}
+	}
+	
+	private void closePreviousComposition() {
+		if( this.previousArchive != null ) {
+			ZipFile.closeQuietly( this.previousArchive ) ;
+			this.previousArchive = null ;
+		}
+	}
+	
+	/**
+	 * @param selection
+	 * @param zipOut the composed zip file
+	 * @param fileNames collects the names of the data files the tasks will write
+	 * @return one task per matched pair, swapping the pair's entries within the questionnaire
+	 *         and writing them to the composed zip file.
+	 */
+	private ArrayList<Callable<Void>> processQuestionnaire( final SelectionTable selection
+			                                              , final ZipArchiveOutputStream zipOut
+			                                              , HashSet<String> fileNames ) throws ProcessException {
+		if( log.isTraceEnabled() ) ParticipantCompositor.enterTrace( "ArchiveComposer.processQuestionnaire()" ) ;
+		try {
+			final String questionnaire = selection.getQuestionnaire() ;
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>( this.matchedPairs.size() ) ;
+			for( final MatchedPair mp : this.matchedPairs ) {
+				final String candidateOne = this.index.getDataFileName( questionnaire, mp.idOne ) ;
+				final String candidateTwo = this.index.getDataFileName( questionnaire, mp.idTwo ) ;
+				if( candidateOne == null || candidateTwo == null ) {
+					if( log.isDebugEnabled() ) {
+						log.debug( questionnaire + ": no data to swap for " + mp.idOne + " / " + mp.idTwo ) ;
+					}
+					continue ;
+				}
+				fileNames.add( candidateOne ) ;
+				fileNames.add( candidateTwo ) ;
+				tasks.add( new Callable<Void>() {
+					public Void call() throws ProcessException {
+						if( !copyPreviousEntries( questionnaire, mp, candidateOne, candidateTwo, zipOut ) ) {
+							swapEntries( selection, candidateOne, candidateTwo, zipOut ) ;
+						}
+						return null ;
+					}
+				} ) ;
+			}
+			return tasks ;
+		}
+		finally {
+			if( log.isTraceEnabled() ) ParticipantCompositor.exitTrace( "ArchiveComposer.processQuestionnaire()" ) ;
+		}
+	}
+	
+	/**
+	 * Swaps a matched pair's entries of the export zip file in memory and writes the result
+	 * to the composed zip file. Where neither entry holds a selected variable, both are copied raw.
+	 */
+	private void swapEntries( SelectionTable selection
+			                , String candidateOne
+			                , String candidateTwo
+			                , ZipArchiveOutputStream zipOut ) throws ProcessException {
+		String questionnaire = selection.getQuestionnaire() ;
+		String pathOne = questionnaire + "/" + candidateOne ;
+		String pathTwo = questionnaire + "/" + candidateTwo ;
+		if( log.isDebugEnabled() ) {
+			log.debug( "candidateOne: " + pathOne ) ;
+			log.debug( "candidateTwo: " + pathTwo ) ;
+		}
+		ZipArchiveEntry entryOne = this.index.getEntry( questionnaire, candidateOne ) ;
+		ZipArchiveEntry entryTwo = this.index.getEntry( questionnaire, candidateTwo ) ;
+		if( entryOne == null || entryTwo == null ) {
+			throw new ProcessException( "Could not locate file " + ( entryOne == null ? pathOne : pathTwo ) ) ;
+		}
+		InputStream inOne = null ;
+		InputStream inTwo = null ;
+		ByteArrayOutputStream outOne = new ByteArrayOutputStream( (int)Math.max( entryOne.getSize(), 1024 ) ) ;
+		ByteArrayOutputStream outTwo = new ByteArrayOutputStream( (int)Math.max( entryTwo.getSize(), 1024 ) ) ;
+		try {
+			inOne = this.index.open( questionnaire, candidateOne ) ;
+			inTwo = this.index.open( questionnaire, candidateTwo ) ;
+			boolean changed ;
+			if( this.engine == Engine.STAX ) {
+				changed = StreamingSwapEngine.swap( inOne, inTwo, outOne, outTwo, selection ) ;
+			}
+			else if( this.engine == Engine.SPLICE ) {
+				changed = SpliceSwapEngine.swap( ByteBuffer.wrap( IOUtil.readStream( inOne, entryOne.getSize() ) )
+						                       , ByteBuffer.wrap( IOUtil.readStream( inTwo, entryTwo.getSize() ) )
+						                       , outOne
+						                       , outTwo
+						                       , selection ) ;
+			}
+			else {
+				changed = this.compositor.swapValueSets( inOne, inTwo, outOne, outTwo, selection, pathOne, pathTwo ) ;
+			}
+			if( !changed && log.isDebugEnabled() ) {
+				log.debug( "Nothing to swap: " + pathOne + " / " + pathTwo ) ;
+			}
+			synchronized( zipOut ) {
+				if( changed ) {
+					writeEntry( zipOut, entryOne, outOne ) ;
+					writeEntry( zipOut, entryTwo, outTwo ) ;
+				}
+				else {
+					copyEntry( zipOut, entryOne ) ;
+					copyEntry( zipOut, entryTwo ) ;
+				}
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Swap failed: " + pathOne + " / " + pathTwo, iox ) ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Swap failed: " + pathOne + " / " + pathTwo, xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( inOne ) ;
+			IOUtil.closeQuietly( inTwo ) ;
+		}
+	}
+	
+	/**
+	 * Records a matched pair's entries in the manifest and, if the pair was composed
+	 * from the same entries by the previous composition, copies its composed entries
+	 * from there (raw) rather than swapping them again.
+	 * 
+	 * @return true if the pair was copied from the previous composition.
+	 */
+	private boolean copyPreviousEntries( String questionnaire
+			                           , MatchedPair mp
+			                           , String candidateOne
+			                           , String candidateTwo
+			                           , ZipArchiveOutputStream zipOut ) throws ProcessException {
+		if( this.manifest == null ) {
+			return false ;
+		}
+		ZipArchiveEntry entryOne = this.index.getEntry( questionnaire, candidateOne ) ;
+		ZipArchiveEntry entryTwo = this.index.getEntry( questionnaire, candidateTwo ) ;
+		if( entryOne == null || entryTwo == null ) {
+			return false ;
+		}
+		this.manifest.record( questionnaire, mp.idOne, entryOne ) ;
+		this.manifest.record( questionnaire, mp.idTwo, entryTwo ) ;
+		if( this.previousArchive == null || !mp.idTwo.equals( this.previousManifest.getPartner( mp.idOne ) ) ) {
+			return false ;
+		}
+		String previousOne = this.previousManifest.getUnchanged( questionnaire, mp.idOne, entryOne ) ;
+		String previousTwo = this.previousManifest.getUnchanged( questionnaire, mp.idTwo, entryTwo ) ;
+		if( previousOne == null || previousTwo == null ) {
+			return false ;
+		}
+		ZipArchiveEntry composedOne = this.previousArchive.getEntry( previousOne ) ;
+		ZipArchiveEntry composedTwo = this.previousArchive.getEntry( previousTwo ) ;
+		if( composedOne == null || composedTwo == null ) {
+			return false ;
+		}
+		try {
+			synchronized( zipOut ) {
+				copyEntry( zipOut, this.previousArchive, composedOne, entryOne ) ;
+				copyEntry( zipOut, this.previousArchive, composedTwo, entryTwo ) ;
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not copy from the previous composition: " + previousOne + " / " + previousTwo, iox ) ;
+		}
+		Metrics.increment( Counter.PAIRS_REUSED ) ;
+		return true ;
+	}
+	
+	/**
+	 * Copies an entry of another zip file to the composed zip file, without decompressing
+	 * it, in place of an entry of the export zip file (whose name and time it takes).
+	 */
+	private static void copyEntry( ZipArchiveOutputStream zipOut
+			                     , ZipFile archive
+			                     , ZipArchiveEntry composed
+			                     , ZipArchiveEntry source ) throws IOException {
+		ZipArchiveEntry entry = new ZipArchiveEntry( source.getName() ) ;
+		entry.setTime( source.getTime() ) ;
+		entry.setMethod( composed.getMethod() ) ;
+		entry.setCrc( composed.getCrc() ) ;
+		entry.setSize( composed.getSize() ) ;
+		entry.setCompressedSize( composed.getCompressedSize() ) ;
+		InputStream raw = null ;
+		try {
+			raw = archive.getRawInputStream( composed ) ;
+			zipOut.addRawArchiveEntry( entry, raw ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( raw ) ;
+		}
+	}
+	
+	/**
+	 * Copies an entry of the export zip file to the composed zip file as it stands,
+	 * without decompressing it.
+	 */
+	private void copyEntry( ZipArchiveOutputStream zipOut, ZipArchiveEntry entry ) throws IOException {
+		InputStream raw = null ;
+		try {
+			raw = this.index.getArchive().getRawInputStream( entry ) ;
+			zipOut.addRawArchiveEntry( entry, raw ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( raw ) ;
+		}
+	}
+	
+	/**
+	 * Writes new content for an entry of the export zip file to the composed zip file.
+	 */
+	private static void writeEntry( ZipArchiveOutputStream zipOut
+			                      , ZipArchiveEntry source
+			                      , ByteArrayOutputStream content ) throws IOException {
+		ZipArchiveEntry entry = new ZipArchiveEntry( source.getName() ) ;
+		entry.setTime( source.getTime() ) ;
+		zipOut.putArchiveEntry( entry ) ;
+		content.writeTo( zipOut ) ;
+		zipOut.closeArchiveEntry() ;
+		IOUtil.countOutput( content.size() ) ;
+	}
+
+}
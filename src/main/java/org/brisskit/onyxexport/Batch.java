@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Composes many exports in one run, so that JVM startup, the loading of the XMLBeans
+ * type systems, the parsing of the configuration and the compiling of its select
+ * constructs are paid for once rather than once per export.
+ * <p/>
+ * The exports are either those given (by -export, more than once) or those that
+ * arrive in an inbox directory (see -inbox). Each is composed by its own compositor,
+ * made from the one configured for the run (see {@link ParticipantCompositor#newBatchInstance(File, File)}),
+ * with the same settings, configuration and compiled selects.
+ * <p/>
+ * Where an output directory is given, each export is composed there, under its own
+ * name, and is itself left untouched; otherwise an expanded export is composed in place.
+ * <p/>
+ * Given exports are composed in turn, and a failure does not stop the rest;
+ * the batch fails once all have been tried if any export failed.
+ * <p/>
+ * An inbox is watched until the process is stopped. Each export moved into it
+ * (an expanded export directory, or a zip file) is composed into the output directory and
+ * then moved into the inbox's <code>.done</code> directory, or its <code>.failed</code>
+ * directory if it could not be composed. Exports are taken oldest first, and must be moved
+ * into the inbox whole (eg: by rename), not written there.
+ * Should the process be stopped part way through an export, the export is still in the inbox,
+ * untouched, and is composed afresh when the inbox is next watched.
+ * <p/>
+ * The time taken by each export is logged, alongside the metrics each logs of its own.
+ *
+ */
+public final class Batch {
+
+	private static Log log = LogFactory.getLog( Batch.class ) ;
+
+	public static final String DONE_DIRECTORY_NAME = ".done" ;
+	public static final String FAILED_DIRECTORY_NAME = ".failed" ;
+
+	//
+	// How often an empty inbox is looked at again...
+	static final long INBOX_POLL_MILLIS = 5000L ;
+
+	private final List<File> exports ;
+	private final File inbox ;
+	private final File output ;
+
+	private Batch( List<File> exports, File inbox, File output ) {
+		this.exports = exports ;
+		this.inbox = inbox ;
+		this.output = output ;
+	}
+
+	/**
+	 * @param exports the exports to compose, in order
+	 * @param output the directory in which to compose them; or null to compose expanded exports in place
+	 * @return the batch
+	 */
+	public static Batch newInstance( List<File> exports, File output ) {
+		return new Batch( new ArrayList<File>( exports ), null, output ) ;
+	}
+
+	/**
+	 * @param inbox the directory to watch for exports
+	 * @param output the directory in which to compose them
+	 * @return the batch
+	 */
+	public static Batch newInbox( File inbox, File output ) {
+		return new Batch( null, inbox, output ) ;
+	}
+
+	/**
+	 * @param export
+	 * @param output the output directory of the batch; may be null
+	 * @return where the export is composed: the output zip file or directory, or null if in place.
+	 */
+	static File getOutput( File export, File output ) {
+		return output == null ? null : new File( output, export.getName() ) ;
+	}
+
+	/**
+	 * Composes the exports of the batch.
+	 *
+	 * @param template the compositor configured for the run, from which each export's is made
+	 * @throws ProcessException if any export could not be composed, or the inbox could not be watched.
+	 */
+	void run( ParticipantCompositor template ) throws ProcessException {
+		if( this.inbox != null ) {
+			watch( template ) ;
+			return ;
+		}
+		long started = System.currentTimeMillis() ;
+		int failed = 0 ;
+		for( int i=0; i<this.exports.size(); i++ ) {
+			File export = this.exports.get( i ) ;
+			if( !compose( template, export, ( i+1 ) + " of " + this.exports.size() ) ) {
+				failed++ ;
+			}
+		}
+		log.info( "Batch complete: " + ( this.exports.size() - failed ) + " exports composed, "
+				+ failed + " failed, in " + seconds( started ) ) ;
+		if( failed > 0 ) {
+			throw new ProcessException( failed + " of " + this.exports.size() + " exports could not be composed." ) ;
+		}
+	}
+
+	private void watch( ParticipantCompositor template ) throws ProcessException {
+		File done = makeDirectory( new File( this.inbox, DONE_DIRECTORY_NAME ) ) ;
+		File failed = makeDirectory( new File( this.inbox, FAILED_DIRECTORY_NAME ) ) ;
+		log.info( "Watching inbox " + this.inbox.getAbsolutePath() + "; composing into " + this.output.getAbsolutePath() ) ;
+		int count = 0 ;
+		while( true ) {
+			List<File> arrived = listInbox() ;
+			if( arrived.isEmpty() ) {
+				try {
+					Thread.sleep( INBOX_POLL_MILLIS ) ;
+				}
+				catch( InterruptedException ix ) {
+					log.info( "Stopped watching inbox after " + count + " exports." ) ;
+					Thread.currentThread().interrupt() ;
+					return ;
+				}
+				continue ;
+			}
+			for( File export : arrived ) {
+				count++ ;
+				File out = getOutput( export, this.output ) ;
+				if( out.exists() ) {
+					//
+					// The output of an earlier export of the same name is never overwritten.
+					// Otherwise the output is from an attempt at this export cut short,
+					// as the export would have left the inbox had it completed...
+					if( new File( done, export.getName() ).exists() ) {
+						log.error( "Export #" + count + " not composed, as its output is that of an earlier export: " + out.getAbsolutePath() ) ;
+						moveTo( export, failed ) ;
+						continue ;
+					}
+					log.info( "Removing incomplete output: " + out.getAbsolutePath() ) ;
+					delete( out ) ;
+				}
+				if( compose( template, export, "#" + count ) ) {
+					moveTo( export, done ) ;
+				}
+				else {
+					delete( out ) ;
+					moveTo( export, failed ) ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the export was composed.
+	 */
+	private boolean compose( ParticipantCompositor template, File export, String which ) {
+		long started = System.currentTimeMillis() ;
+		log.info( "Composing export " + which + ": " + export.getAbsolutePath() ) ;
+		try {
+			template.newBatchInstance( export, getOutput( export, this.output ) ).exec() ;
+			log.info( "Export " + which + " composed in " + seconds( started ) + ": " + export.getName() ) ;
+			return true ;
+		}
+		catch( ProcessException px ) {
+			log.error( "Export " + which + " could not be composed after " + seconds( started ) + ": " + export.getName(), px ) ;
+			return false ;
+		}
+		catch( RuntimeException rx ) {
+			log.error( "Export " + which + " could not be composed after " + seconds( started ) + ": " + export.getName(), rx ) ;
+			return false ;
+		}
+	}
+
+	/**
+	 * @return the exports in the inbox, oldest first.
+	 */
+	private List<File> listInbox() throws ProcessException {
+		File[] files = this.inbox.listFiles( new FileFilter() {
+			public boolean accept( File file ) {
+				if( file.getName().startsWith( "." ) ) {
+					return false ;
+				}
+				return file.isDirectory() || ( file.isFile() && file.getName().toLowerCase().endsWith( ".zip" ) ) ;
+			}
+		} ) ;
+		if( files == null ) {
+			throw new ProcessException( "Could not list inbox: " + this.inbox.getAbsolutePath() ) ;
+		}
+		Arrays.sort( files, new Comparator<File>() {
+			public int compare( File one, File two ) {
+				long diff = one.lastModified() - two.lastModified() ;
+				return diff < 0 ? -1 : diff > 0 ? 1 : one.getName().compareTo( two.getName() ) ;
+			}
+		} ) ;
+		ArrayList<File> exports = new ArrayList<File>( files.length ) ;
+		Collections.addAll( exports, files ) ;
+		return exports ;
+	}
+
+	private static File makeDirectory( File directory ) throws ProcessException {
+		if( !directory.isDirectory() && !directory.mkdir() ) {
+			throw new ProcessException( "Could not create directory: " + directory.getAbsolutePath() ) ;
+		}
+		return directory ;
+	}
+
+	/**
+	 * Moves an export out of the inbox. Where an export of the same name was
+	 * moved there before, the export is renamed after the time it was moved.
+	 */
+	private static void moveTo( File export, File directory ) throws ProcessException {
+		File target = new File( directory, export.getName() ) ;
+		if( target.exists() ) {
+			target = new File( directory, export.getName() + "." + System.currentTimeMillis() ) ;
+		}
+		if( !export.renameTo( target ) ) {
+			throw new ProcessException( "Could not move " + export.getAbsolutePath() + " to " + target.getAbsolutePath() ) ;
+		}
+	}
+
+	private static void delete( File file ) throws ProcessException {
+		try {
+			IOUtil.deleteTree( file ) ;
+			IOUtil.deleteTree( IOUtil.getTempFile( file.getAbsoluteFile() ) ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not delete " + file.getAbsolutePath(), iox ) ;
+		}
+	}
+
+	private static String seconds( long started ) {
+		return String.format( "%.3fs", ( System.currentTimeMillis() - started ) / 1000.0 ) ;
+	}
+
+}
@@ -0,0 +1,277 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlOptions;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import org.brisskit.onyxdata.beans.ValueSetDocument;
+import org.brisskit.onyxentities.beans.EntitiesDocument;
+
+import org.brisskit.onyxexport.ParticipantCompositor.Parser;
+
+/**
+ * Loads the value set and entities documents of an export as XMLBeans documents,
+ * through the backend chosen by -parser, and times each load against its questionnaire
+ * in the run's metrics (see {@link Metrics#parsed(String, long, long)}).
+ * <p/>
+ * Every backend loads with the same tuned options: comments and processing instructions
+ * are stripped, as nothing saved from an export relies on them, and line numbers are not
+ * recorded. Whitespace is stripped from entities documents only: XMLBeans strips not just
+ * the whitespace between elements but that leading and trailing the text of an element,
+ * which in a value set would alter the participant's answers.
+ * The backends differ in what feeds XMLBeans its events:
+ * <ul>
+ * <li>XMLBEANS: the parser built into XMLBeans, as used by <code>Factory.parse</code>.</li>
+ * <li>SAX: the platform's JAXP parser. Each thread keeps one XMLReader, reused for every
+ *     document it loads, rather than a reader being configured afresh per document.</li>
+ * <li>STAX: the platform's StAX parser, through one shared XMLInputFactory.</li>
+ * </ul>
+ * A parser may be shared between threads.
+ *
+ */
+abstract class DocumentParser {
+
+	private final Parser backend ;
+
+	private DocumentParser( Parser backend ) {
+		this.backend = backend ;
+	}
+
+	/**
+	 * @param backend
+	 * @return a parser using the given backend.
+	 */
+	static DocumentParser newInstance( Parser backend ) {
+		switch( backend ) {
+			case SAX:
+				return new SaxParser() ;
+			case STAX:
+				return new StaxParser() ;
+			default:
+				return new XmlBeansParser() ;
+		}
+	}
+
+	Parser getBackend() {
+		return backend ;
+	}
+
+	/**
+	 * Loads a value set document. The stream is read to its end but not closed.
+	 *
+	 * @param in
+	 * @param questionnaire the questionnaire the document belongs to, against which the load is timed
+	 */
+	final ValueSetDocument parseValueSet( InputStream in, String questionnaire ) throws IOException, XmlException {
+		CountingInputStream cin = new CountingInputStream( in ) ;
+		long started = System.nanoTime() ;
+		ValueSetDocument doc = loadValueSet( cin ) ;
+		Metrics.parsed( questionnaire, cin.count, System.nanoTime() - started ) ;
+		return doc ;
+	}
+
+	/**
+	 * Loads an entities document. The stream is read to its end but not closed.
+	 *
+	 * @param in
+	 * @param questionnaire the questionnaire the document belongs to, against which the load is timed
+	 */
+	final EntitiesDocument parseEntities( InputStream in, String questionnaire ) throws IOException, XmlException {
+		CountingInputStream cin = new CountingInputStream( in ) ;
+		long started = System.nanoTime() ;
+		EntitiesDocument doc = loadEntities( cin ) ;
+		Metrics.parsed( questionnaire, cin.count, System.nanoTime() - started ) ;
+		return doc ;
+	}
+
+	abstract ValueSetDocument loadValueSet( InputStream in ) throws IOException, XmlException ;
+
+	abstract EntitiesDocument loadEntities( InputStream in ) throws IOException, XmlException ;
+
+	/**
+	 * @param entities true for the options of entities documents
+	 * @return the load options shared by all backends.
+	 */
+	static XmlOptions newLoadOptions( boolean entities ) {
+		XmlOptions opts = new XmlOptions() ;
+		if( entities ) {
+			opts.setLoadStripWhitespace() ;
+		}
+		opts.setLoadStripComments() ;
+		opts.setLoadStripProcinsts() ;
+		//
+		// Line numbers are left off (setLoadLineNumbers): recording them
+		// costs a bookmark on every element...
+		return opts ;
+	}
+
+	private static final class XmlBeansParser extends DocumentParser {
+
+		//
+		// Only read by XMLBeans, so may be shared...
+		private static final XmlOptions VALUE_SET_OPTIONS = newLoadOptions( false ) ;
+		private static final XmlOptions ENTITIES_OPTIONS = newLoadOptions( true ) ;
+
+		private XmlBeansParser() {
+			super( Parser.XMLBEANS ) ;
+		}
+
+		ValueSetDocument loadValueSet( InputStream in ) throws IOException, XmlException {
+			return ValueSetDocument.Factory.parse( in, VALUE_SET_OPTIONS ) ;
+		}
+
+		EntitiesDocument loadEntities( InputStream in ) throws IOException, XmlException {
+			return EntitiesDocument.Factory.parse( in, ENTITIES_OPTIONS ) ;
+		}
+
+	}
+
+	private static final class SaxParser extends DocumentParser {
+
+		private static final SAXParserFactory factory = newFactory() ;
+
+		//
+		// The value set and entities options of each thread,
+		// both holding the thread's reader once it has one...
+		private final ThreadLocal<XmlOptions[]> options = new ThreadLocal<XmlOptions[]>() ;
+
+		private SaxParser() {
+			super( Parser.SAX ) ;
+		}
+
+		private static SAXParserFactory newFactory() {
+			SAXParserFactory factory = SAXParserFactory.newInstance() ;
+			factory.setNamespaceAware( true ) ;
+			factory.setValidating( false ) ;
+			return factory ;
+		}
+
+		private XmlOptions getOptions( boolean entities ) throws IOException {
+			XmlOptions[] opts = options.get() ;
+			if( opts == null ) {
+				XMLReader reader ;
+				try {
+					synchronized( factory ) {
+						reader = factory.newSAXParser().getXMLReader() ;
+					}
+				}
+				catch( ParserConfigurationException pcx ) {
+					throw new IOException( "Could not create SAX parser.", pcx ) ;
+				}
+				catch( SAXException sx ) {
+					throw new IOException( "Could not create SAX parser.", sx ) ;
+				}
+				opts = new XmlOptions[] { newLoadOptions( false ), newLoadOptions( true ) } ;
+				opts[0].setLoadUseXMLReader( reader ) ;
+				opts[1].setLoadUseXMLReader( reader ) ;
+				options.set( opts ) ;
+			}
+			return opts[ entities ? 1 : 0 ] ;
+		}
+
+		ValueSetDocument loadValueSet( InputStream in ) throws IOException, XmlException {
+			return ValueSetDocument.Factory.parse( in, getOptions( false ) ) ;
+		}
+
+		EntitiesDocument loadEntities( InputStream in ) throws IOException, XmlException {
+			return EntitiesDocument.Factory.parse( in, getOptions( true ) ) ;
+		}
+
+	}
+
+	private static final class StaxParser extends DocumentParser {
+
+		//
+		// Thread safe once configured...
+		private static final XMLInputFactory factory = newFactory() ;
+		private static final XmlOptions VALUE_SET_OPTIONS = newLoadOptions( false ) ;
+		private static final XmlOptions ENTITIES_OPTIONS = newLoadOptions( true ) ;
+
+		private StaxParser() {
+			super( Parser.STAX ) ;
+		}
+
+		private static XMLInputFactory newFactory() {
+			XMLInputFactory factory = XMLInputFactory.newInstance() ;
+			factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE ) ;
+			return factory ;
+		}
+
+		private static XMLStreamReader newReader( InputStream in ) throws IOException {
+			try {
+				return factory.createXMLStreamReader( in ) ;
+			}
+			catch( XMLStreamException xsx ) {
+				throw new IOException( "Could not create StAX reader.", xsx ) ;
+			}
+		}
+
+		ValueSetDocument loadValueSet( InputStream in ) throws IOException, XmlException {
+			XMLStreamReader reader = newReader( in ) ;
+			try {
+				return ValueSetDocument.Factory.parse( reader, VALUE_SET_OPTIONS ) ;
+			}
+			finally {
+				IOUtil.closeQuietly( reader ) ;
+			}
+		}
+
+		EntitiesDocument loadEntities( InputStream in ) throws IOException, XmlException {
+			XMLStreamReader reader = newReader( in ) ;
+			try {
+				return EntitiesDocument.Factory.parse( reader, ENTITIES_OPTIONS ) ;
+			}
+			finally {
+				IOUtil.closeQuietly( reader ) ;
+			}
+		}
+
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private long count ;
+
+		private CountingInputStream( InputStream in ) {
+			super( in ) ;
+		}
+
+		public int read() throws IOException {
+			int b = in.read() ;
+			if( b != -1 ) {
+				count++ ;
+			}
+			return b ;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException {
+			int n = in.read( b, off, len ) ;
+			if( n > 0 ) {
+				count += n ;
+			}
+			return n ;
+		}
+
+		public long skip( long n ) throws IOException {
+			long skipped = in.skip( n ) ;
+			count += skipped ;
+			return skipped ;
+		}
+
+	}
+
+}
@@ -0,0 +1,391 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * One-time index of an Onyx export: questionnaire name to questionnaire directory,
+ * and within each questionnaire, entity id to data file.
+ * <p/>
+ * The export may be an expanded directory or the export zip file itself. For a zip,
+ * a questionnaire is the directory an entry sits in, and files are read directly
+ * from the archive's entries.
+ * <p/>
+ * The entity mappings are taken from each questionnaire's entities.xml file rather
+ * than from file naming conventions. The export is listed once and each entities.xml
+ * streamed once; every later lookup is a hash lookup against the index.
+ *
+ */
+public class ExportIndex {
+
+	private static Log log = LogFactory.getLog( ExportIndex.class ) ;
+
+	public static final String ENTITIES_FILE_NAME = "entities.xml" ;
+	public static final String VARIABLES_FILE_NAME = "variables.xml" ;
+	public static final String PARTICIPANTS = "Participants" ;
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance() ;
+
+	private final File export ;
+	private final ZipFile archive ;
+	private final LinkedHashMap<String,Questionnaire> questionnaires = new LinkedHashMap<String,Questionnaire>() ;
+	//
+	// Entity ids and data file names repeat across questionnaires, so are shared...
+	private final StringPool names = new StringPool( 4096 ) ;
+
+	private ExportIndex( File export, ZipFile archive ) {
+		this.export = export ;
+		this.archive = archive ;
+	}
+
+	/**
+	 * @param export an expanded Onyx export directory, or an Onyx export zip file
+	 * @return the index of the export
+	 * @throws ProcessException
+	 */
+	public static ExportIndex newInstance( File export ) throws ProcessException {
+		if( log.isTraceEnabled() ) ParticipantCompositor.enterTrace( "ExportIndex.newInstance()" ) ;
+		try {
+			ExportIndex index ;
+			if( export.isDirectory() ) {
+				index = new ExportIndex( export, null ) ;
+				index.indexDirectory() ;
+			}
+			else {
+				try {
+					index = new ExportIndex( export, new ZipFile( export ) ) ;
+				}
+				catch( IOException iox ) {
+					throw new ProcessException( "Could not open export archive: " + export.getAbsolutePath(), iox ) ;
+				}
+				index.indexArchive() ;
+			}
+			for( Questionnaire q : index.questionnaires.values() ) {
+				if( q.hasFile( ENTITIES_FILE_NAME ) ) {
+					index.readEntities( q ) ;
+				}
+				if( log.isDebugEnabled() ) {
+					log.debug( "Indexed " + q.name + ": " + q.entities.size() + " entities" ) ;
+				}
+			}
+			return index ;
+		}
+		finally {
+			if( log.isTraceEnabled() ) ParticipantCompositor.exitTrace( "ExportIndex.newInstance()" ) ;
+		}
+	}
+
+	private void indexDirectory() throws ProcessException {
+		File[] directories = export.listFiles() ;
+		if( directories == null ) {
+			throw new ProcessException( "Could not list export directory: " + export.getAbsolutePath() ) ;
+		}
+		for( File directory : directories ) {
+			//
+			// Dot-named (hidden) directories are not questionnaires...
+			if( directory.isDirectory() && !directory.getName().startsWith( "." ) ) {
+				Questionnaire q = new Questionnaire( directory.getName() ) ;
+				q.directory = directory ;
+				questionnaires.put( q.name, q ) ;
+			}
+		}
+	}
+
+	private void indexArchive() {
+		Enumeration<ZipArchiveEntry> entries = archive.getEntries() ;
+		while( entries.hasMoreElements() ) {
+			ZipArchiveEntry entry = entries.nextElement() ;
+			String name = getQuestionnaireName( entry ) ;
+			if( name == null ) {
+				continue ;
+			}
+			Questionnaire q = questionnaires.get( name ) ;
+			if( q == null ) {
+				q = new Questionnaire( name ) ;
+				q.entries = new HashMap<String,ZipArchiveEntry>() ;
+				questionnaires.put( name, q ) ;
+			}
+			q.entries.put( names.intern( getFileName( entry ) ), entry ) ;
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return the name of the questionnaire (directory) the zip entry sits in,
+	 *         or null if the entry is not a file within a questionnaire.
+	 */
+	public static String getQuestionnaireName( ZipArchiveEntry entry ) {
+		if( entry.isDirectory() ) {
+			return null ;
+		}
+		String[] path = entry.getName().split( "/" ) ;
+		return path.length < 2 ? null : path[ path.length-2 ] ;
+	}
+
+	/**
+	 * @param entry
+	 * @return the file name of the zip entry, without its directories.
+	 */
+	public static String getFileName( ZipArchiveEntry entry ) {
+		String name = entry.getName() ;
+		return name.substring( name.lastIndexOf( '/' ) + 1 ) ;
+	}
+
+	/**
+	 * @return true if the export is a zip file rather than a directory.
+	 */
+	public boolean isArchive() {
+		return archive != null ;
+	}
+
+	/**
+	 * @return the export zip file, or null if the export is a directory.
+	 */
+	public ZipFile getArchive() {
+		return archive ;
+	}
+
+	public File getExport() {
+		return export ;
+	}
+
+	/**
+	 * @return the names of all the questionnaires (directories) of the export.
+	 */
+	public Collection<String> getQuestionnaireNames() {
+		return Collections.unmodifiableCollection( questionnaires.keySet() ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return the questionnaire's directory, or null if the export is a zip file.
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public File getQuestionnaireDirectory( String questionnaire ) throws ProcessException {
+		return getQuestionnaire( questionnaire ).directory ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return entity id to data file name, in entities.xml order.
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public Map<String,String> getEntities( String questionnaire ) throws ProcessException {
+		return Collections.unmodifiableMap( getQuestionnaire( questionnaire ).entities ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @param entityId
+	 * @return the entity's data file name within the questionnaire, or null if the
+	 *         entity has no data for that questionnaire.
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public String getDataFileName( String questionnaire, String entityId ) throws ProcessException {
+		return getQuestionnaire( questionnaire ).entities.get( entityId ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @param entityId
+	 * @return the entity's data file within the questionnaire, or null if the
+	 *         entity has no data for that questionnaire (or the export is a zip file).
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public File getDataFile( String questionnaire, String entityId ) throws ProcessException {
+		Questionnaire q = getQuestionnaire( questionnaire ) ;
+		String fileName = q.entities.get( entityId ) ;
+		return ( fileName == null || q.directory == null ) ? null : new File( q.directory, fileName ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @param fileName
+	 * @return true if the questionnaire holds a file of the given name.
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public boolean exists( String questionnaire, String fileName ) throws ProcessException {
+		return getQuestionnaire( questionnaire ).hasFile( fileName ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @return the names of all the files of the questionnaire: as listed now from the
+	 *         directory, or as indexed from the zip file.
+	 * @throws ProcessException if the export has no such questionnaire, or its directory cannot be listed.
+	 */
+	public Collection<String> getFileNames( String questionnaire ) throws ProcessException {
+		Questionnaire q = getQuestionnaire( questionnaire ) ;
+		if( q.directory == null ) {
+			return Collections.unmodifiableCollection( q.entries.keySet() ) ;
+		}
+		File[] files = q.directory.listFiles() ;
+		if( files == null ) {
+			throw new ProcessException( "Could not list directory: " + q.directory.getAbsolutePath() ) ;
+		}
+		ArrayList<String> names = new ArrayList<String>( files.length ) ;
+		for( File file : files ) {
+			if( file.isFile() ) {
+				names.add( file.getName() ) ;
+			}
+		}
+		return names ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @param fileName
+	 * @return the zip entry of the named file, or null if there is none (or the export is a directory).
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public ZipArchiveEntry getEntry( String questionnaire, String fileName ) throws ProcessException {
+		Questionnaire q = getQuestionnaire( questionnaire ) ;
+		return q.entries == null ? null : q.entries.get( fileName ) ;
+	}
+
+	/**
+	 * Opens a file of a questionnaire for reading, from the directory or the zip file.
+	 * The caller must close the stream.
+	 *
+	 * @param questionnaire
+	 * @param fileName
+	 * @return a buffered stream of the file's content.
+	 * @throws ProcessException if there is no such file or it cannot be opened.
+	 */
+	public InputStream open( String questionnaire, String fileName ) throws ProcessException {
+		Questionnaire q = getQuestionnaire( questionnaire ) ;
+		try {
+			if( q.directory != null ) {
+				return IOUtil.newInputStream( new File( q.directory, fileName ) ) ;
+			}
+			ZipArchiveEntry entry = q.entries.get( fileName ) ;
+			if( entry == null ) {
+				throw new ProcessException( "Could not locate file " + questionnaire + "/" + fileName ) ;
+			}
+			InputStream in = new BufferedInputStream( archive.getInputStream( entry ), IOUtil.INPUT_BUFFER_SIZE ) ;
+			IOUtil.countInput( entry.getSize() ) ;
+			return in ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not open file " + questionnaire + "/" + fileName, iox ) ;
+		}
+	}
+
+	/**
+	 * Removes an entity from a questionnaire's index. Questionnaires are independent,
+	 * so different questionnaires may be updated concurrently.
+	 *
+	 * @param questionnaire
+	 * @param entityId
+	 * @return the data file name the entity had within the questionnaire, or null.
+	 * @throws ProcessException if the export has no such questionnaire
+	 */
+	public String remove( String questionnaire, String entityId ) throws ProcessException {
+		return getQuestionnaire( questionnaire ).entities.remove( entityId ) ;
+	}
+
+	/**
+	 * Releases the zip file, if any.
+	 */
+	public void close() {
+		if( archive != null ) {
+			ZipFile.closeQuietly( archive ) ;
+		}
+	}
+
+	private Questionnaire getQuestionnaire( String questionnaire ) throws ProcessException {
+		Questionnaire q = questionnaires.get( questionnaire ) ;
+		if( q == null ) {
+			throw new ProcessException( "Could not locate directory " + questionnaire ) ;
+		}
+		return q ;
+	}
+
+	/**
+	 * Streams an entities.xml file of the form
+	 * <code>&lt;entities&gt;&lt;string&gt;type&lt;/string&gt;&lt;map&gt;&lt;entry&gt;&lt;string&gt;id&lt;/string&gt;&lt;string&gt;file&lt;/string&gt;&lt;/entry&gt;...</code>
+	 */
+	private void readEntities( Questionnaire q ) throws ProcessException {
+		InputStream in = null ;
+		XMLStreamReader reader = null ;
+		String path = q.name + "/" + ENTITIES_FILE_NAME ;
+		try {
+			in = open( q.name, ENTITIES_FILE_NAME ) ;
+			reader = inputFactory.createXMLStreamReader( in ) ;
+			ArrayList<String> strings = new ArrayList<String>( 2 ) ;
+			boolean inEntry = false ;
+			while( reader.hasNext() ) {
+				int event = reader.next() ;
+				if( event == XMLStreamConstants.START_ELEMENT ) {
+					String name = reader.getLocalName() ;
+					if( "entry".equals( name ) ) {
+						inEntry = true ;
+						strings.clear() ;
+					}
+					else if( inEntry && "string".equals( name ) ) {
+						strings.add( reader.getElementText().trim() ) ;
+					}
+				}
+				else if( event == XMLStreamConstants.END_ELEMENT && "entry".equals( reader.getLocalName() ) ) {
+					inEntry = false ;
+					if( strings.size() < 2 ) {
+						throw new ProcessException( "Integrity issue with entities.xml file: " + path ) ;
+					}
+					q.entities.put( names.intern( strings.get(0) ), names.intern( strings.get(1) ) ) ;
+				}
+			}
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Could not parse entities file: " + path, xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+	private static class Questionnaire {
+
+		private final String name ;
+		private File directory ;
+		private HashMap<String,ZipArchiveEntry> entries ;
+		private final LinkedHashMap<String,String> entities = new LinkedHashMap<String,String>() ;
+
+		private Questionnaire( String name ) {
+			this.name = name ;
+		}
+
+		private boolean hasFile( String fileName ) {
+			if( directory != null ) {
+				return new File( directory, fileName ).isFile() ;
+			}
+			return entries.containsKey( fileName ) ;
+		}
+
+	}
+
+}
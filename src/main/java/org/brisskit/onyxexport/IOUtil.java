@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.Metrics.Counter;
+
+/**
+ * Small I/O helpers shared by the compositor's components.
+ *
+ */
+final class IOUtil {
+
+	private static Log log = LogFactory.getLog( IOUtil.class ) ;
+
+	static final int OUTPUT_BUFFER_SIZE = 256 * 1024 ;
+	static final int INPUT_BUFFER_SIZE = 64 * 1024 ;
+
+	private IOUtil() {}
+
+	/**
+	 * Opens a file for writing through its channel, behind a large buffer.
+	 * The file and the bytes written are counted in the run's metrics.
+	 *
+	 * @param file
+	 * @return the stream, which the caller must close.
+	 * @throws IOException
+	 */
+	static OutputStream newOutputStream( File file ) throws IOException {
+		FileOutputStream fos = new FileOutputStream( file ) ;
+		Metrics.increment( Counter.FILES_WRITTEN ) ;
+		return new BufferedOutputStream( new CountingOutputStream( Channels.newOutputStream( fos.getChannel() ) )
+		                               , OUTPUT_BUFFER_SIZE ) ;
+	}
+
+	/**
+	 * Opens a file to be parsed, behind a buffer.
+	 * The file and its size are counted in the run's metrics.
+	 *
+	 * @param file
+	 * @return the stream, which the caller must close.
+	 * @throws IOException
+	 */
+	static InputStream newInputStream( File file ) throws IOException {
+		InputStream in = new BufferedInputStream( new FileInputStream( file ), INPUT_BUFFER_SIZE ) ;
+		countInput( file.length() ) ;
+		return in ;
+	}
+
+	/**
+	 * Reads a whole file into memory.
+	 * The file and its size are counted in the run's metrics.
+	 */
+	static byte[] readFile( File file ) throws IOException {
+		long length = file.length() ;
+		if( length > Integer.MAX_VALUE ) {
+			throw new IOException( "File too large to read: " + file.getAbsolutePath() ) ;
+		}
+		byte[] content = new byte[ (int)length ] ;
+		RandomAccessFile raf = new RandomAccessFile( file, "r" ) ;
+		try {
+			raf.readFully( content ) ;
+		}
+		finally {
+			raf.close() ;
+		}
+		countInput( length ) ;
+		return content ;
+	}
+
+	/**
+	 * Reads a stream to its end. The stream is not closed.
+	 *
+	 * @param in
+	 * @param size the expected size, or -1 if not known
+	 */
+	static byte[] readStream( InputStream in, long size ) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream( size > 0 && size < Integer.MAX_VALUE ? (int)size : INPUT_BUFFER_SIZE ) ;
+		byte[] buffer = new byte[ INPUT_BUFFER_SIZE ] ;
+		int n ;
+		while( ( n = in.read( buffer ) ) != -1 ) {
+			content.write( buffer, 0, n ) ;
+		}
+		return content.toByteArray() ;
+	}
+
+	/**
+	 * Writes content to a file, through {@link #newOutputStream(File)}.
+	 * The file and the bytes written are counted in the run's metrics.
+	 */
+	static void writeFile( File file, ByteArrayOutputStream content ) throws IOException {
+		OutputStream out = newOutputStream( file ) ;
+		try {
+			content.writeTo( out ) ;
+		}
+		finally {
+			out.close() ;
+		}
+	}
+
+	/**
+	 * Counts a file read by other means (eg: from a zip file) in the run's metrics.
+	 */
+	static void countInput( long bytes ) {
+		Metrics.increment( Counter.FILES_PARSED ) ;
+		Metrics.add( Counter.BYTES_READ, bytes ) ;
+	}
+
+	/**
+	 * Counts a file opened to be spliced rather than parsed in the run's metrics.
+	 *
+	 * @param mapped the bytes of the file mapped to be scanned; 0 if it was not
+	 */
+	static void countSpliced( long mapped ) {
+		Metrics.increment( Counter.FILES_SPLICED ) ;
+		Metrics.add( Counter.BYTES_MAPPED, mapped ) ;
+	}
+
+	/**
+	 * @param file
+	 * @return the temporary file, alongside the given file, to which the file's
+	 *         new content is written before it replaces the file.
+	 */
+	static File getTempFile( File file ) {
+		return new File( file.getParentFile(), "." + file.getName() + ".tmp" ) ;
+	}
+
+	/**
+	 * Replaces a file with its temporary file, by rename, and forces the rename to disk
+	 * by syncing the directory: until then, a crash may undo the rename even though the
+	 * file's content is on disk.
+	 */
+	static void commit( File temp, File file ) throws IOException {
+		if( !temp.renameTo( file ) ) {
+			throw new IOException( "Could not replace " + file.getAbsolutePath() ) ;
+		}
+		syncDirectory( file.getAbsoluteFile().getParentFile() ) ;
+	}
+
+	/**
+	 * Forces a directory's entries to disk. Some platforms (eg: Windows) cannot open
+	 * a directory to do so; there, the rename is left to the file system.
+	 */
+	static void syncDirectory( File directory ) throws IOException {
+		FileChannel channel ;
+		try {
+			channel = FileChannel.open( directory.toPath(), StandardOpenOption.READ ) ;
+		}
+		catch( IOException iox ) {
+			log.debug( "Could not open directory to sync: " + directory.getAbsolutePath() ) ;
+			return ;
+		}
+		try {
+			channel.force( true ) ;
+		}
+		finally {
+			channel.close() ;
+		}
+	}
+
+	/**
+	 * Deletes a temporary file, if it exists.
+	 */
+	static void discard( File temp ) {
+		if( temp.exists() && !temp.delete() ) {
+			log.warn( "Could not delete temporary file: " + temp.getAbsolutePath() ) ;
+		}
+	}
+
+	/**
+	 * Deletes a file, or a directory and all within it.
+	 */
+	static void deleteTree( File file ) throws IOException {
+		File[] files = file.listFiles() ;
+		if( files != null ) {
+			for( File f : files ) {
+				deleteTree( f ) ;
+			}
+		}
+		if( !file.delete() && file.exists() ) {
+			throw new IOException( "Could not delete " + file.getAbsolutePath() ) ;
+		}
+	}
+
+	/**
+	 * Forces a file's content to disk.
+	 */
+	static void sync( File file ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ;
+		try {
+			raf.getFD().sync() ;
+		}
+		finally {
+			raf.close() ;
+		}
+	}
+
+	/**
+	 * Counts a file written by other means (eg: to a zip file) in the run's metrics.
+	 */
+	static void countOutput( long bytes ) {
+		Metrics.increment( Counter.FILES_WRITTEN ) ;
+		Metrics.add( Counter.BYTES_WRITTEN, bytes ) ;
+	}
+
+	static void closeQuietly( Closeable c ) {
+		if( c != null ) {
+			try {
+				c.close() ;
+			}
+			catch( IOException iox ) {
+				log.debug( "Failed to close stream.", iox ) ;
+			}
+		}
+	}
+
+	static void closeQuietly( XMLStreamReader reader ) {
+		if( reader != null ) {
+			try {
+				reader.close() ;
+			}
+			catch( XMLStreamException xsx ) {
+				log.debug( "Failed to close reader.", xsx ) ;
+			}
+		}
+	}
+
+	static String toHex( byte[] bytes ) {
+		StringBuilder hex = new StringBuilder( bytes.length * 2 ) ;
+		for( byte b : bytes ) {
+			hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) ) ;
+		}
+		return hex.toString() ;
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private CountingOutputStream( OutputStream out ) {
+			super( out ) ;
+		}
+
+		public void write( int b ) throws IOException {
+			out.write( b ) ;
+			Metrics.increment( Counter.BYTES_WRITTEN ) ;
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException {
+			out.write( b, off, len ) ;
+			Metrics.add( Counter.BYTES_WRITTEN, len ) ;
+		}
+
+	}
+
+}
@@ -0,0 +1,454 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Append-only record of a composition run over an expanded export, from which an
+ * interrupted run can be resumed.
+ * <p/>
+ * The journal first records the plan: the seed, the participants to be deleted and
+ * the matched pairs. A resumed run follows the recorded plan rather than forming a new
+ * one from an export which has already been partly altered. Thereafter one line is
+ * recorded per (questionnaire, pair) unit: P once both of the pair's new files have been
+ * written to disk, and C once both have replaced the originals. A unit with a P but no C
+ * is completed on resume by renaming whatever new files remain; a unit with neither
+ * is swapped again from its untouched files.
+ * <p/>
+ * Lines are tab separated:
+ * <pre>
+ * S  seed
+ * D  participant-id
+ * M  participant-id  participant-id
+ * B                          (end of plan)
+ * P  questionnaire  participant-id
+ * C  questionnaire  participant-id
+ * E                          (end of a shard)
+ * </pre>
+ * A unit is identified by the first participant of its pair. The journal is removed
+ * once the run completes.
+ * <p/>
+ * Each shard of a sharded run (see {@link Shard}) keeps its own journal, named for the
+ * shard. The journal of a completed shard is ended rather than removed, so that the final
+ * step can check every shard has completed to the same plan; the final step removes them.
+ *
+ */
+public class Journal {
+
+	private static Log log = LogFactory.getLog( Journal.class ) ;
+
+	public static final String FILE_NAME = ".compositor-journal" ;
+
+	private static final String SEED = "S" ;
+	private static final String DELETION = "D" ;
+	private static final String MATCHED_PAIR = "M" ;
+	private static final String PLANNED = "B" ;
+	private static final String PREPARED = "P" ;
+	private static final String COMMITTED = "C" ;
+	private static final String ENDED = "E" ;
+
+	private final File file ;
+	private final Shard shard ;
+	private FileOutputStream out ;
+	private long length ;
+
+	private boolean planned = false ;
+	private boolean ended = false ;
+	private Long seed ;
+	private final LinkedHashSet<String> deletions = new LinkedHashSet<String>() ;
+	private final ArrayList<String[]> pairs = new ArrayList<String[]>() ;
+	private final HashSet<String> prepared = new HashSet<String>() ;
+	private final HashSet<String> committed = new HashSet<String>() ;
+
+	private Journal( File exportDirectory, Shard shard ) {
+		this.file = new File( exportDirectory, getFileName( shard ) ) ;
+		this.shard = shard ;
+	}
+	
+	/**
+	 * @param shard or null where the run is not sharded
+	 * @return the name of the journal of the run or shard.
+	 */
+	public static String getFileName( Shard shard ) {
+		if( shard == null ) {
+			return FILE_NAME ;
+		}
+		return FILE_NAME + "-" + shard.getIndex() + "-of-" + shard.getCount() ;
+	}
+
+	/**
+	 * Starts the journal of a new run.
+	 *
+	 * @param exportDirectory
+	 * @return the journal, open for recording.
+	 * @throws ProcessException if the journal of an interrupted run is present.
+	 */
+	public static Journal create( File exportDirectory ) throws ProcessException {
+		return create( exportDirectory, null ) ;
+	}
+	
+	/**
+	 * Starts the journal of a new run of a shard.
+	 *
+	 * @param exportDirectory
+	 * @param shard or null where the run is not sharded
+	 * @return the journal, open for recording.
+	 * @throws ProcessException if the journal of an interrupted or completed run is present.
+	 */
+	public static Journal create( File exportDirectory, Shard shard ) throws ProcessException {
+		Journal journal = new Journal( exportDirectory, shard ) ;
+		if( journal.file.exists() ) {
+			throw new ProcessException( "The journal of an interrupted run exists: " + journal.file.getAbsolutePath()
+					                  + ". Use -resume to complete that run, or remove the journal." ) ;
+		}
+		journal.open( false ) ;
+		return journal ;
+	}
+
+	/**
+	 * Reads the journal of an interrupted run, to be continued.
+	 * If the run was interrupted before its plan was recorded, nothing in the export
+	 * has been altered and the journal starts afresh.
+	 *
+	 * @param exportDirectory
+	 * @return the journal, open for recording.
+	 * @throws ProcessException if there is no journal to resume.
+	 */
+	public static Journal resume( File exportDirectory ) throws ProcessException {
+		return resume( exportDirectory, null ) ;
+	}
+	
+	/**
+	 * Reads the journal of an interrupted run of a shard, to be continued.
+	 *
+	 * @param exportDirectory
+	 * @param shard or null where the run is not sharded
+	 * @return the journal, open for recording.
+	 * @throws ProcessException if there is no journal to resume.
+	 */
+	public static Journal resume( File exportDirectory, Shard shard ) throws ProcessException {
+		Journal journal = new Journal( exportDirectory, shard ) ;
+		if( !journal.file.isFile() ) {
+			throw new ProcessException( "No journal to resume: " + journal.file.getAbsolutePath() ) ;
+		}
+		journal.read() ;
+		if( !journal.planned ) {
+			log.info( "Interrupted run had not recorded its plan; starting afresh." ) ;
+			journal.reset() ;
+			journal.open( false ) ;
+		}
+		else {
+			int incomplete = 0 ;
+			for( String unit : journal.prepared ) {
+				if( !journal.committed.contains( unit ) ) {
+					incomplete++ ;
+				}
+			}
+			log.info( "Resuming run: " + journal.committed.size() + " units complete, "
+					+ incomplete + " to be completed." ) ;
+			journal.truncate() ;
+			journal.open( true ) ;
+		}
+		return journal ;
+	}
+
+	/**
+	 * @return true if the journal holds a plan.
+	 */
+	public boolean isPlanned() {
+		return planned ;
+	}
+
+	public Long getSeed() {
+		return seed ;
+	}
+
+	/**
+	 * @return the ids of the participants to be deleted, as planned.
+	 */
+	public LinkedHashSet<String> getDeletions() {
+		return deletions ;
+	}
+
+	/**
+	 * @return the planned matched pairs, each as an array of the two participant ids.
+	 */
+	public List<String[]> getPairs() {
+		return pairs ;
+	}
+
+	public synchronized boolean isPrepared( String questionnaire, String id ) {
+		return prepared.contains( key( questionnaire, id ) ) ;
+	}
+
+	public synchronized boolean isCommitted( String questionnaire, String id ) {
+		return committed.contains( key( questionnaire, id ) ) ;
+	}
+
+	/**
+	 * Records the plan of the run, which is forced to disk before the export is altered.
+	 */
+	public synchronized void plan( long seed
+			                     , Collection<String> deletions
+			                     , Collection<MatchedPair> pairs ) throws ProcessException {
+		StringBuilder b = new StringBuilder() ;
+		b.append( SEED ).append( '\t' ).append( seed ).append( '\n' ) ;
+		for( String id : deletions ) {
+			b.append( DELETION ).append( '\t' ).append( id ).append( '\n' ) ;
+		}
+		for( MatchedPair mp : pairs ) {
+			b.append( MATCHED_PAIR ).append( '\t' ).append( mp.idOne ).append( '\t' ).append( mp.idTwo ).append( '\n' ) ;
+		}
+		b.append( PLANNED ).append( '\n' ) ;
+		write( b.toString(), true ) ;
+		this.planned = true ;
+		this.seed = Long.valueOf( seed ) ;
+		this.deletions.addAll( deletions ) ;
+	}
+
+	/**
+	 * Records that both new files of a unit have been written, and forces the record
+	 * to disk. The new files must themselves be on disk before this is recorded.
+	 */
+	public synchronized void prepared( String questionnaire, String id ) throws ProcessException {
+		write( PREPARED + '\t' + questionnaire + '\t' + id + '\n', true ) ;
+		prepared.add( key( questionnaire, id ) ) ;
+	}
+
+	/**
+	 * Records that a unit is complete. This need not be forced to disk: a unit which is
+	 * prepared but not recorded as complete is completed again on resume, harmlessly.
+	 */
+	public synchronized void committed( String questionnaire, String id ) throws ProcessException {
+		write( COMMITTED + '\t' + questionnaire + '\t' + id + '\n', false ) ;
+		committed.add( key( questionnaire, id ) ) ;
+	}
+
+	/**
+	 * Closes and removes the journal of a completed run.
+	 * The journal of a shard is instead ended, and left for the final step.
+	 */
+	public synchronized void complete() throws ProcessException {
+		if( shard != null && !shard.isFinal() ) {
+			if( !ended ) {
+				write( ENDED + '\n', true ) ;
+				ended = true ;
+			}
+			close() ;
+			return ;
+		}
+		close() ;
+		if( !file.delete() ) {
+			log.warn( "Could not remove journal: " + file.getAbsolutePath() ) ;
+		}
+	}
+
+	/**
+	 * Closes and removes the journal of a run which stopped before recording its plan,
+	 * and so has altered nothing.
+	 */
+	public synchronized void abandon() {
+		if( planned ) {
+			throw new IllegalStateException( "Cannot abandon a planned run: " + file.getAbsolutePath() ) ;
+		}
+		close() ;
+		if( !file.delete() ) {
+			log.warn( "Could not remove journal: " + file.getAbsolutePath() ) ;
+		}
+	}
+
+	/**
+	 * Closes the journal, leaving it in place.
+	 */
+	public synchronized void close() {
+		IOUtil.closeQuietly( out ) ;
+		out = null ;
+	}
+
+	/**
+	 * Checks, for the final step of a sharded run, that every shard has completed 
+	 * to the same plan as the final step's.
+	 *
+	 * @param exportDirectory
+	 * @param count the number of shards
+	 * @param seed the seed of the plan
+	 * @param pairs the matched pairs of the plan
+	 * @throws ProcessException if a shard has not completed, or followed another plan.
+	 */
+	public static void checkShards( File exportDirectory
+			                      , int count
+			                      , long seed
+			                      , List<MatchedPair> pairs ) throws ProcessException {
+		for( int i=1; i<=count; i++ ) {
+			Journal journal = new Journal( exportDirectory, new Shard( i, count ) ) ;
+			if( !journal.file.isFile() ) {
+				throw new ProcessException( "Shard " + journal.shard + " has not been run: no journal "
+						                  + journal.file.getAbsolutePath() ) ;
+			}
+			journal.read() ;
+			if( !journal.ended ) {
+				throw new ProcessException( "Shard " + journal.shard + " has not completed. Use -resume with"
+						                  + " -shard=" + journal.shard + " to complete it." ) ;
+			}
+			boolean same = journal.seed != null 
+					       && 
+					       journal.seed.longValue() == seed 
+					       && 
+					       journal.pairs.size() == pairs.size() ;
+			for( int p=0; same && p<pairs.size(); p++ ) {
+				String[] pair = journal.pairs.get(p) ;
+				same = pair[0].equals( pairs.get(p).idOne ) && pair[1].equals( pairs.get(p).idTwo ) ;
+			}
+			if( !same ) {
+				throw new ProcessException( "Shard " + journal.shard + " followed another plan: "
+						                  + journal.file.getAbsolutePath() ) ;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the journals of the shards, once the final step has completed their run.
+	 */
+	public static void removeShards( File exportDirectory, int count ) {
+		for( int i=1; i<=count; i++ ) {
+			File file = new File( exportDirectory, getFileName( new Shard( i, count ) ) ) ;
+			if( file.exists() && !file.delete() ) {
+				log.warn( "Could not remove journal: " + file.getAbsolutePath() ) ;
+			}
+		}
+	}
+
+	private void open( boolean append ) throws ProcessException {
+		try {
+			out = new FileOutputStream( file, append ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not open journal: " + file.getAbsolutePath(), iox ) ;
+		}
+	}
+
+	/**
+	 * Drops any partly written last line, so that new lines are appended after a whole one.
+	 */
+	private void truncate() throws ProcessException {
+		RandomAccessFile raf = null ;
+		try {
+			raf = new RandomAccessFile( file, "rw" ) ;
+			raf.setLength( length ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not repair journal: " + file.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( raf ) ;
+		}
+	}
+
+	private void write( String lines, boolean force ) throws ProcessException {
+		try {
+			out.write( lines.getBytes( "UTF-8" ) ) ;
+			if( force ) {
+				out.getFD().sync() ;
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write journal: " + file.getAbsolutePath(), iox ) ;
+		}
+	}
+
+	/**
+	 * Reads the journal. A last line without its line end was being written
+	 * when the run was interrupted, and is ignored.
+	 */
+	private void read() throws ProcessException {
+		InputStream in = null ;
+		try {
+			in = new FileInputStream( file ) ;
+			ByteArrayOutputStream content = new ByteArrayOutputStream() ;
+			byte[] buffer = new byte[ 64*1024 ] ;
+			int n ;
+			while( ( n = in.read( buffer ) ) != -1 ) {
+				content.write( buffer, 0, n ) ;
+			}
+			byte[] bytes = content.toByteArray() ;
+			int end = bytes.length ;
+			while( end > 0 && bytes[end-1] != '\n' ) {
+				end-- ;
+			}
+			this.length = end ;
+			if( end == 0 ) {
+				return ;
+			}
+			for( String line : new String( bytes, 0, end-1, "UTF-8" ).split( "\n" ) ) {
+				String[] fields = line.split( "\t" ) ;
+				String type = fields[0] ;
+				if( SEED.equals( type ) ) {
+					seed = Long.valueOf( fields[1] ) ;
+				}
+				else if( DELETION.equals( type ) ) {
+					deletions.add( fields[1] ) ;
+				}
+				else if( MATCHED_PAIR.equals( type ) ) {
+					pairs.add( new String[] { fields[1], fields[2] } ) ;
+				}
+				else if( PLANNED.equals( type ) ) {
+					planned = true ;
+				}
+				else if( PREPARED.equals( type ) ) {
+					prepared.add( key( fields[1], fields[2] ) ) ;
+				}
+				else if( COMMITTED.equals( type ) ) {
+					committed.add( key( fields[1], fields[2] ) ) ;
+				}
+				else if( ENDED.equals( type ) ) {
+					ended = true ;
+				}
+				else {
+					throw new ProcessException( "Unrecognised journal entry: " + line ) ;
+				}
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not read journal: " + file.getAbsolutePath(), iox ) ;
+		}
+		catch( RuntimeException rx ) {
+			throw new ProcessException( "Corrupt journal: " + file.getAbsolutePath(), rx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+	private void reset() {
+		seed = null ;
+		deletions.clear() ;
+		pairs.clear() ;
+		prepared.clear() ;
+		committed.clear() ;
+		ended = false ;
+	}
+
+	private static String key( String questionnaire, String id ) {
+		return questionnaire + '\t' + id ;
+	}
+
+}
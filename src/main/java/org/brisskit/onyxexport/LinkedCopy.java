@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * A copy of an expanded export in a new directory (see -output), in which the export
+ * is then composed in place, leaving the export itself untouched.
+ * <p/>
+ * Each file is hard linked to the export's, where the file system allows, so that the copy
+ * costs a directory entry per file rather than the file's content. This is safe because
+ * composition never writes into a file: every file it alters is written anew alongside
+ * and renamed over the old, which replaces the link rather than the content it shares.
+ * Where a link cannot be made (eg: the directory is on another device) the file is copied,
+ * and so are all the rest.
+ * <p/>
+ * Left out of the copy are the journals of runs over the export itself, which are appended
+ * to in place, and any temporary files those runs left behind.
+ * The copy is made in a temporary directory alongside, renamed to the output
+ * directory once complete, so that an interrupted copy is simply made again.
+ *
+ */
+final class LinkedCopy {
+
+	private static Log log = LogFactory.getLog( LinkedCopy.class ) ;
+
+	private boolean linking = true ;
+	private long linked = 0 ;
+	private long copied = 0 ;
+
+	private LinkedCopy() {}
+
+	/**
+	 * @param export an expanded export
+	 * @param output the directory to be made, which must not yet exist
+	 * @return the copy made.
+	 * @throws ProcessException
+	 */
+	static LinkedCopy make( File export, File output ) throws ProcessException {
+		File temp = IOUtil.getTempFile( output.getAbsoluteFile() ) ;
+		try {
+			if( temp.exists() ) {
+				log.info( "Removing incomplete copy: " + temp.getAbsolutePath() ) ;
+				IOUtil.deleteTree( temp ) ;
+			}
+			LinkedCopy copy = new LinkedCopy() ;
+			copy.copyDirectory( export, temp, true ) ;
+			IOUtil.commit( temp, output ) ;
+			log.info( "Export copied to " + output.getAbsolutePath() + ": "
+					+ copy.linked + " files linked, " + copy.copied + " copied." ) ;
+			return copy ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not copy export to output directory: " + output.getAbsolutePath(), iox ) ;
+		}
+	}
+
+	/**
+	 * @return the number of files hard linked.
+	 */
+	long getLinked() {
+		return linked ;
+	}
+
+	/**
+	 * @return the number of files copied, where they could not be linked.
+	 */
+	long getCopied() {
+		return copied ;
+	}
+
+	private void copyDirectory( File from, File to, boolean root ) throws IOException {
+		if( !to.mkdir() ) {
+			throw new IOException( "Could not create directory: " + to.getAbsolutePath() ) ;
+		}
+		File[] files = from.listFiles() ;
+		if( files == null ) {
+			throw new IOException( "Could not list directory: " + from.getAbsolutePath() ) ;
+		}
+		for( File file : files ) {
+			String name = file.getName() ;
+			if( file.isDirectory() ) {
+				copyDirectory( file, new File( to, name ), false ) ;
+			}
+			else if( ( root && name.startsWith( Journal.FILE_NAME ) ) || isTempFile( name ) ) {
+				continue ;
+			}
+			else {
+				copyFile( file, new File( to, name ) ) ;
+			}
+		}
+	}
+
+	private void copyFile( File from, File to ) throws IOException {
+		if( linking ) {
+			try {
+				Files.createLink( to.toPath(), from.toPath() ) ;
+				linked++ ;
+				return ;
+			}
+			catch( UnsupportedOperationException uox ) {
+				linking = false ;
+			}
+			catch( FileSystemException fsx ) {
+				linking = false ;
+			}
+			log.info( "Could not link " + to.getAbsolutePath() + "; copying files instead." ) ;
+		}
+		Files.copy( from.toPath(), to.toPath(), StandardCopyOption.COPY_ATTRIBUTES ) ;
+		IOUtil.countInput( from.length() ) ;
+		IOUtil.countOutput( from.length() ) ;
+		copied++ ;
+	}
+
+	/**
+	 * @return true if the file name is of the form of IOUtil.getTempFile.
+	 */
+	private static boolean isTempFile( String name ) {
+		return name.startsWith( "." ) && name.endsWith( ".tmp" ) ;
+	}
+
+}
@@ -0,0 +1,344 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.Engine;
+import org.brisskit.onyxexport.ParticipantCompositor.Format;
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * What a composition of an export zip file was made from, so that the next composition
+ * of a slightly changed export need only swap what has changed (see -manifest).
+ * <p/>
+ * The manifest records the key of the selects and output settings, the seed, the matched
+ * pairs, and for each participant of each swapped questionnaire the name of its entry and
+ * the content hash (CRC-32 and size, as held by the zip file itself) of its input. It also
+ * records the length and time of the composed zip file, so that a manifest is only trusted
+ * alongside the output it describes.
+ * <p/>
+ * A later run keeps the recorded pairs whose participants are still present, and copies
+ * (raw) from the previous output the entries of any kept pair whose inputs are unchanged
+ * within a questionnaire, rather than swapping them again.
+ * <p/>
+ * Lines are tab separated, in the manner of the journal:
+ * <pre>
+ * F  format-version
+ * K  key-of-selects-and-settings
+ * S  seed
+ * O  output-length  output-time
+ * M  participant-id  participant-id
+ * H  questionnaire  participant-id  entry-name  crc  size
+ * </pre>
+ *
+ */
+public class Manifest {
+
+	private static Log log = LogFactory.getLog( Manifest.class ) ;
+
+	public static final int FORMAT_VERSION = 1 ;
+
+	private static final String FORMAT = "F" ;
+	private static final String KEY = "K" ;
+	private static final String SEED = "S" ;
+	private static final String OUTPUT = "O" ;
+	private static final String MATCHED_PAIR = "M" ;
+	private static final String HASH = "H" ;
+
+	private final String key ;
+	private final long seed ;
+	private long outputLength = -1 ;
+	private long outputTime = -1 ;
+	//
+	// Each participant to its partner, both ways round...
+	private final LinkedHashMap<String,String> partners = new LinkedHashMap<String,String>() ;
+	private final HashMap<String,Input> inputs = new HashMap<String,Input>() ;
+
+	/**
+	 * @param key see {@link #newKey(Collection, Engine, Format)}
+	 * @param seed the seed with which the pairs were formed
+	 */
+	public Manifest( String key, long seed ) {
+		this.key = key ;
+		this.seed = seed ;
+	}
+
+	public String getKey() {
+		return key ;
+	}
+
+	public long getSeed() {
+		return seed ;
+	}
+
+	public void addPairs( Collection<MatchedPair> pairs ) {
+		for( MatchedPair mp : pairs ) {
+			partners.put( mp.idOne, mp.idTwo ) ;
+			partners.put( mp.idTwo, mp.idOne ) ;
+		}
+	}
+
+	/**
+	 * @return the recorded pairs, each as an array of the two participant ids.
+	 */
+	public List<String[]> getPairs() {
+		ArrayList<String[]> pairs = new ArrayList<String[]>( partners.size() / 2 ) ;
+		for( Map.Entry<String,String> e : partners.entrySet() ) {
+			if( e.getKey().compareTo( e.getValue() ) < 0 ) {
+				pairs.add( new String[] { e.getKey(), e.getValue() } ) ;
+			}
+		}
+		return pairs ;
+	}
+
+	/**
+	 * @param id
+	 * @return the participant's recorded partner, or null.
+	 */
+	public String getPartner( String id ) {
+		return partners.get( id ) ;
+	}
+
+	/**
+	 * Records a participant's input within a questionnaire. Safe for concurrent use.
+	 */
+	public synchronized void record( String questionnaire, String id, ZipArchiveEntry entry ) {
+		inputs.put( key( questionnaire, id ), new Input( entry.getName(), entry.getCrc(), entry.getSize() ) ) ;
+	}
+
+	/**
+	 * @param questionnaire
+	 * @param id
+	 * @param entry the participant's input now
+	 * @return the name of the participant's entry in the recorded output, if its input
+	 *         was recorded and is unchanged; otherwise null.
+	 */
+	public synchronized String getUnchanged( String questionnaire, String id, ZipArchiveEntry entry ) {
+		Input input = inputs.get( key( questionnaire, id ) ) ;
+		if( input == null
+			||
+			entry.getCrc() == -1
+			||
+			input.crc != entry.getCrc()
+			||
+			input.size != entry.getSize() ) {
+			return null ;
+		}
+		return input.entryName ;
+	}
+
+	/**
+	 * Records the composed zip file the manifest describes, once it is complete.
+	 */
+	public void setOutput( File output ) {
+		this.outputLength = output.length() ;
+		this.outputTime = output.lastModified() ;
+	}
+
+	/**
+	 * @return true if the file is the composed zip file the manifest describes;
+	 *         ie: it has not been replaced or altered since.
+	 */
+	public boolean isOutput( File output ) {
+		return output.isFile()
+			   &&
+			   output.length() == outputLength
+			   &&
+			   output.lastModified() == outputTime ;
+	}
+
+	/**
+	 * @param selections the swapped questionnaires' resolved selects
+	 * @param engine
+	 * @param format
+	 * @return hex SHA-1 over everything other than the inputs which decides the output
+	 *         of a swap: the select constructs of each questionnaire, the engine and the format.
+	 */
+	public static String newKey( Collection<SelectionTable> selections, Engine engine, Format format ) throws ProcessException {
+		try {
+			MessageDigest md = MessageDigest.getInstance( "SHA-1" ) ;
+			update( md, "manifest-" + FORMAT_VERSION ) ;
+			update( md, engine.name() ) ;
+			update( md, format.name() ) ;
+			for( SelectionTable selection : selections ) {
+				update( md, "Q" + selection.getQuestionnaire() ) ;
+				for( SelectionMatcher matcher : selection.getMatchers() ) {
+					update( md, "S" ) ;
+					for( String hint : matcher.getHints() ) {
+						update( md, "H" + hint ) ;
+					}
+					for( String exclude : matcher.getExcludes() ) {
+						update( md, "X" + exclude ) ;
+					}
+					for( String explicit : matcher.getExplicits() ) {
+						update( md, "E" + explicit ) ;
+					}
+				}
+			}
+			return IOUtil.toHex( md.digest() ) ;
+		}
+		catch( NoSuchAlgorithmException nsax ) {
+			throw new ProcessException( "SHA-1 not available.", nsax ) ;
+		}
+		catch( UnsupportedEncodingException uex ) {
+			throw new ProcessException( "UTF-8 not available.", uex ) ;
+		}
+	}
+
+	private static void update( MessageDigest md, String s ) throws UnsupportedEncodingException {
+		md.update( s.getBytes( "UTF-8" ) ) ;
+		md.update( (byte)0 ) ;
+	}
+
+	/**
+	 * Writes the manifest. The file is written alongside and renamed into place,
+	 * so that a manifest file is always whole.
+	 */
+	public void write( File file ) throws ProcessException {
+		File temp = IOUtil.getTempFile( file ) ;
+		PrintWriter writer = null ;
+		boolean written = false ;
+		try {
+			writer = new PrintWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ) ) ;
+			writer.print( FORMAT + '\t' + FORMAT_VERSION + '\n' ) ;
+			writer.print( KEY + '\t' + key + '\n' ) ;
+			writer.print( SEED + '\t' + seed + '\n' ) ;
+			writer.print( OUTPUT + '\t' + outputLength + '\t' + outputTime + '\n' ) ;
+			for( String[] pair : getPairs() ) {
+				writer.print( MATCHED_PAIR + '\t' + pair[0] + '\t' + pair[1] + '\n' ) ;
+			}
+			synchronized( this ) {
+				for( Map.Entry<String,Input> e : inputs.entrySet() ) {
+					Input input = e.getValue() ;
+					writer.print( HASH + '\t' + e.getKey() + '\t' + input.entryName + '\t' + input.crc + '\t' + input.size + '\n' ) ;
+				}
+			}
+			writer.close() ;
+			if( writer.checkError() ) {
+				throw new IOException( "Write failed" ) ;
+			}
+			writer = null ;
+			IOUtil.commit( temp, file ) ;
+			written = true ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write manifest: " + file.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( writer ) ;
+			if( !written ) {
+				IOUtil.discard( temp ) ;
+			}
+		}
+	}
+
+	/**
+	 * Reads a manifest written by {@link #write(File)}.
+	 *
+	 * @return the manifest, or null if it cannot be read (in which case
+	 *         the run simply composes everything afresh).
+	 */
+	public static Manifest read( File file ) {
+		BufferedReader reader = null ;
+		try {
+			reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) ) ;
+			String line = reader.readLine() ;
+			if( line == null || !line.equals( FORMAT + '\t' + FORMAT_VERSION ) ) {
+				log.warn( "Ignoring manifest of another format: " + file.getAbsolutePath() ) ;
+				return null ;
+			}
+			String key = null ;
+			Long seed = null ;
+			long[] output = null ;
+			ArrayList<String[]> pairs = new ArrayList<String[]>() ;
+			HashMap<String,Input> inputs = new HashMap<String,Input>() ;
+			while( ( line = reader.readLine() ) != null ) {
+				String[] fields = line.split( "\t" ) ;
+				String type = fields[0] ;
+				if( KEY.equals( type ) ) {
+					key = fields[1] ;
+				}
+				else if( SEED.equals( type ) ) {
+					seed = Long.valueOf( fields[1] ) ;
+				}
+				else if( OUTPUT.equals( type ) ) {
+					output = new long[] { Long.parseLong( fields[1] ), Long.parseLong( fields[2] ) } ;
+				}
+				else if( MATCHED_PAIR.equals( type ) ) {
+					pairs.add( new String[] { fields[1], fields[2] } ) ;
+				}
+				else if( HASH.equals( type ) ) {
+					inputs.put( key( fields[1], fields[2] )
+							  , new Input( fields[3], Long.parseLong( fields[4] ), Long.parseLong( fields[5] ) ) ) ;
+				}
+				else {
+					throw new IOException( "Unrecognised manifest entry: " + line ) ;
+				}
+			}
+			if( key == null || seed == null || output == null ) {
+				throw new IOException( "Incomplete manifest" ) ;
+			}
+			Manifest manifest = new Manifest( key, seed.longValue() ) ;
+			manifest.outputLength = output[0] ;
+			manifest.outputTime = output[1] ;
+			for( String[] pair : pairs ) {
+				manifest.partners.put( pair[0], pair[1] ) ;
+				manifest.partners.put( pair[1], pair[0] ) ;
+			}
+			manifest.inputs.putAll( inputs ) ;
+			return manifest ;
+		}
+		catch( Exception ex ) {
+			log.warn( "Ignoring unreadable manifest: " + file.getAbsolutePath(), ex ) ;
+			return null ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+		}
+	}
+
+	private static String key( String questionnaire, String id ) {
+		return questionnaire + '\t' + id ;
+	}
+
+	/**
+	 * A participant's input within a questionnaire.
+	 */
+	private static class Input {
+
+		private final String entryName ;
+		private final long crc ;
+		private final long size ;
+
+		private Input( String entryName, long crc, long size ) {
+			this.entryName = entryName ;
+			this.crc = crc ;
+			this.size = size ;
+		}
+
+	}
+
+}
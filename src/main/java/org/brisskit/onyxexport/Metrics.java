@@ -0,0 +1,372 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.Phase;
+
+/**
+ * Counters over a run of the compositor: files parsed, bytes read and written,
+ * variables matched and swapped, pairs swapped per questionnaire, documents loaded
+ * per questionnaire (and the time taken to load them), and the time taken by each phase.
+ * <p/>
+ * Counting is a single atomic add, with nothing built or logged, so it can be
+ * left in the paths taken per file and per pair. Hot paths accumulate locally
+ * (eg: the variables of one file) and add once.
+ * <p/>
+ * The counters are published over JMX as <code>org.brisskit.onyxexport:type=Metrics</code>
+ * while a run is in progress, and summarised as JSON at its end.
+ *
+ */
+public final class Metrics implements MetricsMXBean {
+
+	private static Log log = LogFactory.getLog( Metrics.class ) ;
+
+	public static final String OBJECT_NAME = "org.brisskit.onyxexport:type=Metrics" ;
+
+	public enum Counter {
+		FILES_PARSED,
+		BYTES_READ,
+		FILES_SPLICED,
+		BYTES_MAPPED,
+		FILES_WRITTEN,
+		BYTES_WRITTEN,
+		VARIABLES_MATCHED,
+		VARIABLES_SWAPPED,
+		PAIRS_SWAPPED,
+		PAIRS_UNCHANGED,
+		PAIRS_REUSED ;
+	}
+
+	private static final Metrics instance = new Metrics() ;
+
+	private final AtomicLongArray counters = new AtomicLongArray( Counter.values().length ) ;
+	private final ConcurrentMap<String,AtomicLong> pairsSwapped = new ConcurrentHashMap<String,AtomicLong>() ;
+	private final ConcurrentMap<String,AtomicLong> phaseMillis = new ConcurrentHashMap<String,AtomicLong>() ;
+	private final ConcurrentMap<String,AtomicLong> parseCount = new ConcurrentHashMap<String,AtomicLong>() ;
+	private final ConcurrentMap<String,AtomicLong> parseBytes = new ConcurrentHashMap<String,AtomicLong>() ;
+	private final ConcurrentMap<String,AtomicLong> parseNanos = new ConcurrentHashMap<String,AtomicLong>() ;
+	private ObjectName registered ;
+
+	private Metrics() {}
+
+	public static Metrics getInstance() {
+		return instance ;
+	}
+
+	public static void add( Counter counter, long delta ) {
+		instance.counters.addAndGet( counter.ordinal(), delta ) ;
+	}
+
+	public static void increment( Counter counter ) {
+		instance.counters.incrementAndGet( counter.ordinal() ) ;
+	}
+
+	public static long get( Counter counter ) {
+		return instance.counters.get( counter.ordinal() ) ;
+	}
+
+	/**
+	 * Counts a pair swapped within the questionnaire, and the variables swapped between them.
+	 */
+	public static void pairSwapped( String questionnaire, long variables ) {
+		AtomicLong count = instance.pairsSwapped.get( questionnaire ) ;
+		if( count == null ) {
+			instance.pairsSwapped.putIfAbsent( questionnaire, new AtomicLong() ) ;
+			count = instance.pairsSwapped.get( questionnaire ) ;
+		}
+		count.incrementAndGet() ;
+		increment( Counter.PAIRS_SWAPPED ) ;
+		add( Counter.VARIABLES_SWAPPED, variables ) ;
+	}
+
+	/**
+	 * Counts a document of the questionnaire loaded by a {@link DocumentParser}.
+	 *
+	 * @param questionnaire
+	 * @param bytes the size of the document
+	 * @param nanos the time taken to load it
+	 */
+	public static void parsed( String questionnaire, long bytes, long nanos ) {
+		counter( instance.parseCount, questionnaire ).incrementAndGet() ;
+		counter( instance.parseBytes, questionnaire ).addAndGet( bytes ) ;
+		counter( instance.parseNanos, questionnaire ).addAndGet( nanos ) ;
+	}
+
+	private static AtomicLong counter( ConcurrentMap<String,AtomicLong> map, String key ) {
+		AtomicLong count = map.get( key ) ;
+		if( count == null ) {
+			map.putIfAbsent( key, new AtomicLong() ) ;
+			count = map.get( key ) ;
+		}
+		return count ;
+	}
+
+	public static void pairUnchanged() {
+		increment( Counter.PAIRS_UNCHANGED ) ;
+	}
+
+	public static void phase( Phase phase ) {
+		AtomicLong millis = instance.phaseMillis.get( phase.getName() ) ;
+		if( millis == null ) {
+			instance.phaseMillis.putIfAbsent( phase.getName(), new AtomicLong() ) ;
+			millis = instance.phaseMillis.get( phase.getName() ) ;
+		}
+		millis.addAndGet( phase.getElapsed() ) ;
+	}
+
+	/**
+	 * Zeroes all counters, at the start of a run.
+	 */
+	public static void reset() {
+		for( int i=0; i<instance.counters.length(); i++ ) {
+			instance.counters.set( i, 0L ) ;
+		}
+		instance.pairsSwapped.clear() ;
+		instance.phaseMillis.clear() ;
+		instance.parseCount.clear() ;
+		instance.parseBytes.clear() ;
+		instance.parseNanos.clear() ;
+	}
+
+	/**
+	 * Publishes the counters over JMX. Failure to do so is logged and otherwise ignored.
+	 */
+	public static synchronized void register() {
+		if( instance.registered != null ) {
+			return ;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer() ;
+			ObjectName name = new ObjectName( OBJECT_NAME ) ;
+			if( !server.isRegistered( name ) ) {
+				server.registerMBean( instance, name ) ;
+				instance.registered = name ;
+			}
+		}
+		catch( Exception ex ) {
+			log.warn( "Could not register metrics with JMX: " + ex.getMessage() ) ;
+		}
+	}
+
+	public static synchronized void unregister() {
+		if( instance.registered == null ) {
+			return ;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( instance.registered ) ;
+		}
+		catch( Exception ex ) {
+			log.debug( "Could not unregister metrics from JMX.", ex ) ;
+		}
+		instance.registered = null ;
+	}
+
+	public long getFilesParsed() {
+		return get( Counter.FILES_PARSED ) ;
+	}
+
+	public long getBytesRead() {
+		return get( Counter.BYTES_READ ) ;
+	}
+
+	public long getFilesSpliced() {
+		return get( Counter.FILES_SPLICED ) ;
+	}
+
+	public long getBytesMapped() {
+		return get( Counter.BYTES_MAPPED ) ;
+	}
+
+	public long getFilesWritten() {
+		return get( Counter.FILES_WRITTEN ) ;
+	}
+
+	public long getBytesWritten() {
+		return get( Counter.BYTES_WRITTEN ) ;
+	}
+
+	public long getVariablesMatched() {
+		return get( Counter.VARIABLES_MATCHED ) ;
+	}
+
+	public long getVariablesSwapped() {
+		return get( Counter.VARIABLES_SWAPPED ) ;
+	}
+
+	public long getPairsSwapped() {
+		return get( Counter.PAIRS_SWAPPED ) ;
+	}
+
+	public long getPairsUnchanged() {
+		return get( Counter.PAIRS_UNCHANGED ) ;
+	}
+
+	public long getPairsReused() {
+		return get( Counter.PAIRS_REUSED ) ;
+	}
+
+	public Map<String,Long> getPairsSwappedByQuestionnaire() {
+		return snapshot( pairsSwapped ) ;
+	}
+
+	public Map<String,Long> getPhaseMillis() {
+		return snapshot( phaseMillis ) ;
+	}
+
+	public Map<String,Long> getParseCountByQuestionnaire() {
+		return snapshot( parseCount ) ;
+	}
+
+	public Map<String,Long> getParseBytesByQuestionnaire() {
+		return snapshot( parseBytes ) ;
+	}
+
+	public Map<String,Long> getParseMillisByQuestionnaire() {
+		TreeMap<String,Long> millis = new TreeMap<String,Long>() ;
+		for( Map.Entry<String,AtomicLong> e : parseNanos.entrySet() ) {
+			millis.put( e.getKey(), Long.valueOf( e.getValue().get() / 1000000L ) ) ;
+		}
+		return millis ;
+	}
+
+	/**
+	 * @return a line per questionnaire with documents loaded: the documents, their bytes,
+	 *         the time taken to load them and the rate, in MB/s; or null if none were loaded.
+	 */
+	public static String getParseSummary() {
+		if( instance.parseCount.isEmpty() ) {
+			return null ;
+		}
+		Map<String,Long> counts = instance.getParseCountByQuestionnaire() ;
+		Map<String,Long> bytes = instance.getParseBytesByQuestionnaire() ;
+		Map<String,Long> nanos = snapshot( instance.parseNanos ) ;
+		StringBuilder b = new StringBuilder( counts.size() * 80 ) ;
+		for( Map.Entry<String,Long> e : counts.entrySet() ) {
+			long size = value( bytes, e.getKey() ) ;
+			double seconds = Math.max( value( nanos, e.getKey() ), 1L ) / 1.0E9 ;
+			if( b.length() > 0 ) {
+				b.append( '\n' ) ;
+			}
+			b.append( e.getKey() ).append( ": " )
+			 .append( e.getValue() ).append( " documents, " )
+			 .append( size ).append( " bytes in " )
+			 .append( String.format( "%.3fs (%.2f MB/s)", seconds, size / seconds / ( 1024 * 1024 ) ) ) ;
+		}
+		return b.toString() ;
+	}
+
+	private static long value( Map<String,Long> map, String key ) {
+		Long value = map.get( key ) ;
+		return value == null ? 0L : value.longValue() ;
+	}
+
+	/**
+	 * @param phases the phases of the run, in order
+	 * @param elapsed milliseconds taken by the run
+	 * @return the run's counters as a JSON object.
+	 */
+	public static String toJson( List<Phase> phases, long elapsed ) {
+		StringBuilder b = new StringBuilder( 1024 ) ;
+		b.append( "{\"elapsedMillis\":" ).append( elapsed ) ;
+		for( Counter counter : Counter.values() ) {
+			b.append( ",\"" ).append( toCamelCase( counter.name() ) ).append( "\":" ).append( get( counter ) ) ;
+		}
+		b.append( ",\"pairsSwappedByQuestionnaire\":{" ) ;
+		boolean first = true ;
+		for( Map.Entry<String,Long> e : instance.getPairsSwappedByQuestionnaire().entrySet() ) {
+			if( !first ) {
+				b.append( ',' ) ;
+			}
+			appendString( b, e.getKey() ).append( ':' ).append( e.getValue() ) ;
+			first = false ;
+		}
+		b.append( "},\"parseByQuestionnaire\":{" ) ;
+		first = true ;
+		Map<String,Long> parseBytes = instance.getParseBytesByQuestionnaire() ;
+		Map<String,Long> parseMillis = instance.getParseMillisByQuestionnaire() ;
+		for( Map.Entry<String,Long> e : instance.getParseCountByQuestionnaire().entrySet() ) {
+			if( !first ) {
+				b.append( ',' ) ;
+			}
+			appendString( b, e.getKey() ).append( ":{\"documents\":" ).append( e.getValue() )
+			 .append( ",\"bytes\":" ).append( value( parseBytes, e.getKey() ) )
+			 .append( ",\"millis\":" ).append( value( parseMillis, e.getKey() ) )
+			 .append( '}' ) ;
+			first = false ;
+		}
+		b.append( "},\"phases\":[" ) ;
+		first = true ;
+		for( Phase phase : phases ) {
+			if( !first ) {
+				b.append( ',' ) ;
+			}
+			b.append( "{\"name\":" ) ;
+			appendString( b, phase.getName() ) ;
+			b.append( ",\"millis\":" ).append( phase.getElapsed() )
+			 .append( ",\"count\":" ).append( phase.getCount() )
+			 .append( ",\"unit\":" ) ;
+			appendString( b, phase.getUnit() ) ;
+			b.append( '}' ) ;
+			first = false ;
+		}
+		b.append( "]}" ) ;
+		return b.toString() ;
+	}
+
+	private static Map<String,Long> snapshot( ConcurrentMap<String,AtomicLong> map ) {
+		TreeMap<String,Long> snapshot = new TreeMap<String,Long>() ;
+		for( Map.Entry<String,AtomicLong> e : map.entrySet() ) {
+			snapshot.put( e.getKey(), Long.valueOf( e.getValue().get() ) ) ;
+		}
+		return snapshot ;
+	}
+
+	private static String toCamelCase( String name ) {
+		StringBuilder b = new StringBuilder( name.length() ) ;
+		boolean upper = false ;
+		for( char c : name.toLowerCase().toCharArray() ) {
+			if( c == '_' ) {
+				upper = true ;
+			}
+			else {
+				b.append( upper ? Character.toUpperCase( c ) : c ) ;
+				upper = false ;
+			}
+		}
+		return b.toString() ;
+	}
+
+	private static StringBuilder appendString( StringBuilder b, String s ) {
+		b.append( '"' ) ;
+		for( int i=0; i<s.length(); i++ ) {
+			char c = s.charAt( i ) ;
+			if( c == '"' || c == '\\' ) {
+				b.append( '\\' ).append( c ) ;
+			}
+			else if( c < 0x20 ) {
+				b.append( String.format( "\\u%04x", (int)c ) ) ;
+			}
+			else {
+				b.append( c ) ;
+			}
+		}
+		return b.append( '"' ) ;
+	}
+
+}
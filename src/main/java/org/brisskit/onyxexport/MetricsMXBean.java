@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.Map;
+
+/**
+ * The counters of the run in progress, as published over JMX.
+ *
+ */
+public interface MetricsMXBean {
+
+	public long getFilesParsed() ;
+
+	public long getBytesRead() ;
+
+	/**
+	 * @return files opened by the splice engine, which are not parsed.
+	 */
+	public long getFilesSpliced() ;
+
+	/**
+	 * @return bytes of those files mapped to be scanned (none for a file with a saved index).
+	 */
+	public long getBytesMapped() ;
+
+	public long getFilesWritten() ;
+
+	public long getBytesWritten() ;
+
+	public long getVariablesMatched() ;
+
+	public long getVariablesSwapped() ;
+
+	public long getPairsSwapped() ;
+
+	public long getPairsUnchanged() ;
+
+	/**
+	 * @return pairs copied from the previous composition rather than swapped again.
+	 */
+	public long getPairsReused() ;
+
+	public Map<String,Long> getPairsSwappedByQuestionnaire() ;
+
+	/**
+	 * @return milliseconds taken by each phase completed so far.
+	 */
+	public Map<String,Long> getPhaseMillis() ;
+
+	/**
+	 * @return value set and entities documents loaded as XMLBeans documents, by questionnaire.
+	 */
+	public Map<String,Long> getParseCountByQuestionnaire() ;
+
+	public Map<String,Long> getParseBytesByQuestionnaire() ;
+
+	/**
+	 * @return milliseconds taken to load documents, by questionnaire, summed over all threads.
+	 */
+	public Map<String,Long> getParseMillisByQuestionnaire() ;
+
+}
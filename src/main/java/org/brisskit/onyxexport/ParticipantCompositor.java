@@ -4,24 +4,43 @@
 package org.brisskit.onyxexport;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
-import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
 
 import org.brisskit.export.metadata.config.beans.*;
 import org.brisskit.onyxdata.beans.*;
 import org.brisskit.onyxentities.beans.* ;
 
+import org.brisskit.onyxexport.Metrics.Counter;
+
 
 /**
  * @author jeff
@@ -33,10 +52,82 @@ public class ParticipantCompositor {
 		this.exportDirectory = exportDirectory;
 	}
 
+	public void setOutputArchive( File outputArchive ) {
+		this.outputArchive = outputArchive ;
+	}
+
+	public void setOutputDirectory( File outputDirectory ) {
+		this.outputDirectory = outputDirectory ;
+	}
+
 	public void setConfig( OnyxExportConfigDocument config ) {
 		this.config = config ;
 	}
 	
+	public void setThreads( int threads ) {
+		this.threads = threads ;
+	}
+	
+	public void setCacheDirectory( File cacheDirectory ) {
+		this.cacheDirectory = cacheDirectory ;
+	}
+	
+	public void setEngine( Engine engine ) {
+		this.engine = engine ;
+	}
+	
+	public void setFormat( Format format ) {
+		this.format = format ;
+	}
+	
+	public void setParser( Parser parser ) {
+		this.parser = DocumentParser.newInstance( parser ) ;
+	}
+	
+	public void setResume( boolean resume ) {
+		this.resume = resume ;
+	}
+	
+	public void setSeed( Long seed ) {
+		this.seed = seed ;
+	}
+	
+	public void setMetricsFile( File metricsFile ) {
+		this.metricsFile = metricsFile ;
+	}
+	
+	public void setPlanFile( File planFile ) {
+		this.planFile = planFile ;
+	}
+	
+	public void setApplyFile( File applyFile ) {
+		this.applyFile = applyFile ;
+	}
+	
+	public void setManifestFile( File manifestFile ) {
+		this.manifestFile = manifestFile ;
+	}
+	
+	public void setQueueCapacity( int queueCapacity ) {
+		this.queueCapacity = queueCapacity ;
+	}
+	
+	public void setShard( Shard shard ) {
+		this.shard = shard ;
+	}
+	
+	public void setSaveIndexes( boolean saveIndexes ) {
+		this.saveIndexes = saveIndexes ;
+	}
+	
+	public void setVerifyExport( File verifyExport ) {
+		this.verifyExport = verifyExport ;
+	}
+	
+	public void setBatch( Batch batch ) {
+		this.batch = batch ;
+	}
+	
 	public CompositionPhaseType getCompositionPhase() {
 		return this.config.getOnyxExportConfig().getCompositionPhase() ;
 	}
@@ -46,20 +137,166 @@ public class ParticipantCompositor {
 	private static final String USAGE =
 	        "Usage: ParticipantCompositor {Parameters}\n" +       
 	                "Parameters:\n" +
-	                " -export=path-to-onyx-export-directory\n" +
+	                " -export=path-to-onyx-export-directory-or-zip-file\n" +
+	                " -output=path-to-composed-zip-file-or-directory\n" +
 	                " -config=path-to-config-file\n" +
+	                " -threads=number-of-worker-threads\n" +
+	                " -queue=number-of-pairs\n" +
+	                " -cache=path-to-selection-cache-directory\n" +
+	                " -engine=xmlbeans|stax|splice\n" +
+	                " -format=pretty|compact\n" +
+	                " -parser=xmlbeans|sax|stax\n" +
+	                " -seed=number\n" +
+	                " -resume\n" +
+	                " -metrics=path-to-metrics-file\n" +
+	                " -plan=path-to-plan-file\n" +
+	                " -apply=path-to-plan-file\n" +
+	                " -manifest=path-to-manifest-file\n" +
+	                " -shard=i/n\n" +
+	                " -index\n" +
+	                " -verify=path-to-composed-export-directory-or-zip-file\n" +
+	                " -inbox=path-to-inbox-directory\n" +
 	                "Notes:\n" +
-	                " (1) All parameters are mandatory.\n" +
-	                " (2) Parameter triggers can be shortened to the first letter; ie: -e,-c.\n" +
-	                " (3) The export path must point to an expanded Onyx export file where the XML\n" +
-	                "     files have been updated with the appropriate name space." ;
+	                " (1) The export and config parameters are mandatory, except that config is not\n" +
+	                "     needed with -apply.\n" +
+	                "     The output parameter is mandatory where the export is a zip file, and is then\n" +
+	                "     the composed zip file. (It is not needed with -plan.) Where the export is expanded,\n" +
+	                "     it is optional: if given, the export is left untouched and composed instead in this\n" +
+	                "     new directory, which must not already exist (except to -resume a composition into it).\n" +
+	                "     The export's files are hard linked into the directory, where the file system allows, so\n" +
+	                "     that only the files the composition rewrites take space and time to write.\n" +
+	                "     The threads parameter is optional and defaults to 1, or to the number of\n" +
+	                "     processors with -apply.\n" +
+	                "     The queue parameter is optional and defaults to 8. The pairs of an expanded export\n" +
+	                "     are read, swapped (by the worker threads) and written by overlapping stages, with a\n" +
+	                "     queue of at most this many pairs between each stage. At most twice the queue, plus\n" +
+	                "     the threads, plus two pairs are held in memory at any time.\n" +
+	                "     The cache parameter is optional. If given, the variables selected for each\n" +
+	                "     questionnaire are saved there and reused by later runs with the same\n" +
+	                "     configuration and questionnaire variables.\n" +
+	                "     The engine parameter is optional and defaults to xmlbeans. The stax engine\n" +
+	                "     streams participant files rather than loading them, and so uses much less memory.\n" +
+	                "     The splice engine does not parse them at all: each file is scanned once for where its\n" +
+	                "     variables lie, and the partner's selected variables spliced in as they are, byte for\n" +
+	                "     byte. (A file not in UTF-8, or with a document type declaration, is streamed.)\n" +
+	                "     The format parameter is optional and defaults to pretty. The compact format saves\n" +
+	                "     documents without indentation, which is smaller and quicker to write. (The stax\n" +
+	                "     engine keeps the layout of the participant files it rewrites.)\n" +
+	                "     The parser parameter is optional and defaults to xmlbeans. It chooses what parses the\n" +
+	                "     files loaded as documents (the participant files of the xmlbeans engine, and each\n" +
+	                "     entities.xml): the parser built into XMLBeans, or the platform's sax or stax parser.\n" +
+	                "     The time taken to load the documents of each questionnaire, and the rate, is logged\n" +
+	                "     and written with the metrics. It has no short form.\n" +
+	                "     The seed parameter is optional. Runs over the same export with the same seed\n" +
+	                "     form the same matched pairs. The seed used is always logged.\n" +
+	                "     The resume parameter is optional. An expanded export is altered in place (or in its\n" +
+	                "     output directory) and the progress of the run journalled within it. If a run is\n" +
+	                "     interrupted, a later run with -resume completes it from the journal, without\n" +
+	                "     repeating completed work.\n" +
+	                "     (A zip file export is not altered, and so is simply run again.)\n" +
+	                "     The metrics parameter is optional. If given, the run's counters (files and bytes read\n" +
+	                "     and written, variables matched and swapped, pairs swapped per questionnaire and the\n" +
+	                "     time taken by each phase) are written there as JSON. They are always logged, and\n" +
+	                "     are published over JMX as org.brisskit.onyxexport:type=Metrics during the run.\n" +
+	                "     The plan parameter is optional. If given, the deletions, matched pairs and selected\n" +
+	                "     variables are worked out and written there as a plan, and the export is left untouched.\n" +
+	                "     The apply parameter is optional. If given, a plan written by -plan over the same\n" +
+	                "     export is carried out, rather than planning afresh.\n" +
+	                "     The manifest parameter is optional, and only applies to a zip file export. If given,\n" +
+	                "     what the composition was made from (input hashes, matched pairs, selects and settings)\n" +
+	                "     is written there. A later run with the same manifest and output keeps the recorded\n" +
+	                "     pairs of the participants still present, and copies each pair whose input files are\n" +
+	                "     unchanged from the previous output rather than swapping it again. It has no short form.\n" +
+	                "     The shard parameter is optional, and only applies to an expanded export. The matched\n" +
+	                "     pairs are dealt out to shards 1 to n, and a run with -shard=i/n swaps only the pairs\n" +
+	                "     of shard i. Shards never share a file, so may be run at the same time by separate\n" +
+	                "     processes or machines. Once all have completed, a run with -shard=0/n deletes the\n" +
+	                "     participants left out of the pairing. Every run of a sharding must form the same\n" +
+	                "     pairs, so must be given the same -apply plan (or else the same -seed); each keeps\n" +
+	                "     its own journal, and may be resumed with -resume. It has no short form.\n" +
+	                "     The index parameter is optional, and only applies to the splice engine over an expanded\n" +
+	                "     export. If given, where the variables of each file swapped lie is saved in the export's\n" +
+	                "     .compositor-index directory, and read back by later runs (and other tools) rather than\n" +
+	                "     scanning the file again. It has no short form.\n" +
+	                "     The verify parameter is optional. If given, the composition of the export into the\n" +
+	                "     given export is verified, and neither is altered: every entities.xml must list just the\n" +
+	                "     participants not deleted and match the files present, each participant of a matched\n" +
+	                "     pair must hold exactly its own unselected variables and its partner's selected ones,\n" +
+	                "     and everything else must be as it was. Each violation is logged, and the run fails if\n" +
+	                "     there are any. The pairs and selects are those of the -apply plan given, or else formed\n" +
+	                "     afresh with the -seed and -config given. It has no short form.\n" +
+	                "     The export parameter may be given more than once, to compose a batch of exports in\n" +
+	                "     turn within the one process, paying once for startup and for reading and compiling\n" +
+	                "     the configuration. The time taken by each export is logged. A failed export does\n" +
+	                "     not stop the rest, but the run fails once all are tried. Where the output parameter\n" +
+	                "     is given, it is a directory (created if need be) in which each export is composed\n" +
+	                "     under its own name; otherwise expanded exports are composed in place.\n" +
+	                "     The inbox parameter is optional, and an alternative to the export parameter. If given,\n" +
+	                "     the directory is watched until the process is stopped, and each export moved into it\n" +
+	                "     (whole, eg: by rename) is composed into the output directory, which is mandatory, and\n" +
+	                "     then moved to the inbox's .done directory (or .failed directory, if it failed).\n" +
+	                "     It has no short form.\n" +
+	                "     The plan, apply, verify, manifest, shard, resume, index and metrics parameters apply\n" +
+	                "     to a single export, not to a batch.\n" +
+	                " (2) Parameter triggers can be shortened to the first letter; ie: -e,-o,-c,-t,-q,-f,-s,-r,-m,-p,-a.\n" +
+	                " (3) The export path must point to an expanded Onyx export file, or to an Onyx\n" +
+	                "     export zip file, where the XML files have been updated with the appropriate\n" +
+	                "     name space. An expanded export is composed in place, or in the output directory.\n" +
+	                "     A zip file is left untouched and the composed export written to the output zip file." ;
+	
+	public static final String GENDER_VARIABLE = "Admin.Participant.gender" ;
+	public static final String INDEX_DIRECTORY_NAME = ".compositor-index" ;
 	
-	private static StringBuffer logIndent = null ;
+	//
+	// Save options are built once per format and only ever read thereafter...
+	private static final XmlOptions PRETTY_VALUE_SET_SAVE_OPTIONS = newValueSetSaveOptions( Format.PRETTY ) ;
+	private static final XmlOptions COMPACT_VALUE_SET_SAVE_OPTIONS = newValueSetSaveOptions( Format.COMPACT ) ;
+	private static final XmlOptions PRETTY_ENTITY_SAVE_OPTIONS = newEntitySaveOptions( Format.PRETTY ) ;
+	private static final XmlOptions COMPACT_ENTITY_SAVE_OPTIONS = newEntitySaveOptions( Format.COMPACT ) ;
+	
+	//
+	// The trace indent is kept per thread so that parallel runs
+	// do not corrupt each other's structured trace...
+	private static final ThreadLocal<StringBuffer> logIndent = new ThreadLocal<StringBuffer>() {
+		protected StringBuffer initialValue() {
+			return new StringBuffer() ;
+		}
+	} ;
 	
 	private File exportDirectory ;
+	private File outputArchive ;
+	private File outputDirectory ;
 	private OnyxExportConfigDocument config ;
 	private ArrayList<ParticipantCompositor.Participant> participants ;
 	private ArrayList<MatchedPair> matchedPairs ;
+	private LinkedHashSet<String> deletions ;
+	private ExportIndex index ;
+	private int threads = 1 ;
+	private File cacheDirectory ;
+	private Engine engine = Engine.XMLBEANS ;
+	private Format format = Format.PRETTY ;
+	private DocumentParser parser = DocumentParser.newInstance( Parser.XMLBEANS ) ;
+	private boolean resume = false ;
+	private Journal journal ;
+	private Long seed ;
+	private final ArrayList<Phase> phases = new ArrayList<Phase>() ;
+	private long phaseStarted ;
+	private File metricsFile ;
+	private File planFile ;
+	private File applyFile ;
+	private File manifestFile ;
+	private Manifest previousManifest ;
+	private Manifest manifest ;
+	private int queueCapacity = Pipeline.DEFAULT_CAPACITY ;
+	private Shard shard ;
+	private boolean saveIndexes = false ;
+	private File verifyExport ;
+	private Batch batch ;
+	//
+	// The selects of the configuration by questionnaire, and compiled; formed
+	// once and shared by all the compositors of a batch...
+	private LinkedHashMap<String,ArrayList<SelectType>> selectsByQuestionnaire ;
+	private HashMap<String,SelectionMatcher[]> matchersByQuestionnaire = new HashMap<String,SelectionMatcher[]>() ;
 	
 	/**
 	 * @param args
@@ -91,59 +328,440 @@ public class ParticipantCompositor {
 	}
 	
 	public void exec() throws ProcessException {
+		if( this.batch != null ) {
+			this.batch.run( this ) ;
+			return ;
+		}
 		if( log.isTraceEnabled() ) enterTrace( "exec()" ) ;
 		//
-		// Form a collection of basic participant data, 
-		// with an even number of males and an even number of females...
-		formBalancedParticipantCollection() ;
+		// Index the export's questionnaires and their entities once...
+		long started = System.currentTimeMillis() ;
+		this.phases.clear() ;
+		this.phaseStarted = started ;
+		Metrics.reset() ;
 		//
-		// Form a map collection of matched pairs;
-		// ie: participants matched on gender.
-		// We will use this to ensure swapping across questionnaires
-		// is consistently of the same matched pairs...
-		formMatchedPairs() ;
-		//
-		// Process each questionnaire which has a swap section ...
-		SwapType[] swaps = getCompositionPhase().getSwapArray() ;
-		for( SwapType st : swaps ) {
-			String questionnaireName = st.getQuestionnaire() ;
+		// Where composing into an output directory, the export is first copied there
+		// by linking its files (unless resuming a composition already there)...
+		if( this.outputDirectory != null && !this.outputDirectory.exists() ) {
+			LinkedCopy copy = LinkedCopy.make( this.exportDirectory, this.outputDirectory ) ;
+			endPhase( "copy", copy.getLinked() + copy.getCopied(), "files" ) ;
+		}
+		this.index = ExportIndex.newInstance( getCompositionDirectory() ) ;
+		try {
+			Metrics.register() ;
+			endPhase( "index", countDataFiles(), "files" ) ;
+			Plan plan = null ;
+			if( this.applyFile != null ) {
+				plan = Plan.read( this.applyFile ) ;
+			}
+			//
+			// The manifest of the previous composition is only followed
+			// while the output it describes is still in place...
+			if( this.manifestFile != null && this.manifestFile.isFile() ) {
+				this.previousManifest = Manifest.read( this.manifestFile ) ;
+				if( this.previousManifest != null && !this.previousManifest.isOutput( this.outputArchive ) ) {
+					log.info( "Manifest does not describe the present output; composing afresh." ) ;
+					this.previousManifest = null ;
+				}
+			}
+			//
+			// An expanded export is altered in place, so the run is journalled
+			// in order that it can be resumed if interrupted.
+			// (Planning or verifying alone alters nothing, so is not journalled)...
+			if( !this.index.isArchive() && this.planFile == null && this.verifyExport == null ) {
+				this.journal = this.resume 
+						     ? Journal.resume( getCompositionDirectory(), this.shard ) 
+						     : Journal.create( getCompositionDirectory(), this.shard ) ;
+			}
+			if( this.journal != null && this.journal.isPlanned() ) {
+				//
+				// Follow the plan of the interrupted run...
+				restorePlan( this.journal.getSeed(), this.journal.getDeletions(), this.journal.getPairs(), "journal" ) ;
+				endPhase( "plan", this.matchedPairs.size() * 2, "participants" ) ;
+			}
+			else if( plan != null ) {
+				//
+				// Follow the plan given...
+				restorePlan( Long.valueOf( plan.getSeed() ), plan.getDeletions(), plan.getPairs(), this.applyFile.getPath() ) ;
+				checkPlan() ;
+				recordPlan() ;
+				endPhase( "plan", this.matchedPairs.size() * 2, "participants" ) ;
+			}
+			else {
+				//
+				// Form a collection of basic participant data, 
+				// with an even number of males and an even number of females...
+				formBalancedParticipantCollection() ;
+				//
+				// Form a map collection of matched pairs;
+				// ie: participants matched on gender.
+				// We will use this to ensure swapping across questionnaires
+				// is consistently of the same matched pairs...
+				formMatchedPairs() ;
+				recordPlan() ;
+				endPhase( "plan", this.participants.size() + this.deletions.size(), "participants" ) ;
+			}
+			//
+			// Resolve the selects once for each questionnaire which has a swap section
+			// (or take them as resolved within the plan given)...
+			LinkedHashMap<String,SelectionTable> selections ;
+			if( plan != null ) {
+				selections = plan.getSelections() ;
+			}
+			else if( this.shard != null && this.shard.isFinal() ) {
+				//
+				// The final step of a sharding swaps nothing...
+				selections = new LinkedHashMap<String,SelectionTable>() ;
+			}
+			else {
+				selections = new LinkedHashMap<String,SelectionTable>() ;
+				for( Map.Entry<String,ArrayList<SelectType>> e : getSelectsByQuestionnaire().entrySet() ) {
+					String questionnaireName = e.getKey() ;
+					selections.put( questionnaireName
+							      , SelectionTable.newInstance( questionnaireName
+							                                  , e.getValue()
+							                                  , getMatchers( questionnaireName, e.getValue() )
+							                                  , this.index
+							                                  , this.cacheDirectory ) ) ;
+				}
+			}
+			endPhase( "select", selections.size(), "questionnaires" ) ;
+			//
+			// Where only planning, record the plan and leave the export untouched...
+			if( this.planFile != null ) {
+				plan = Plan.newInstance( this.seed.longValue(), this.deletions, this.matchedPairs, selections ) ;
+				plan.write( this.planFile ) ;
+				log.info( "Plan written to " + this.planFile.getAbsolutePath() + ": "
+						+ this.deletions.size() + " deletions, "
+						+ this.matchedPairs.size() + " matched pairs, "
+						+ plan.countSelected() + " selected variables over "
+						+ selections.size() + " questionnaires." ) ;
+				long elapsed = System.currentTimeMillis() - started ;
+				reportMetrics( elapsed ) ;
+				return ;
+			}
 			//
-			// Locate the questionnaire directory...
-			File questionnaireDirectory = locateFile( this.exportDirectory, questionnaireName, true ) ;
-			processQuestionnaire( questionnaireDirectory, st ) ;
+			// Where only verifying, check the composition against the plan...
+			if( this.verifyExport != null ) {
+				verify( selections ) ;
+				long elapsed = System.currentTimeMillis() - started ;
+				reportMetrics( elapsed ) ;
+				return ;
+			}
+			//
+			// Remove all trace of the participants who could not be included,
+			// in one pass over the export. (A zip file is not altered; 
+			// the participants are instead left out of the composed zip file.
+			// A shard leaves deletion to the final step, as it is the only work which 
+			// touches the entities.xml files that every shard reads)...
+			if( !this.index.isArchive() && ( this.shard == null || this.shard.isFinal() ) ) {
+				deleteParticipants() ;
+				endPhase( "delete", this.deletions.size(), "participants" ) ;
+			}
+			long filesWritten = Metrics.get( Counter.FILES_WRITTEN ) ;
+			if( this.index.isArchive() ) {
+				ArchiveComposer composer = new ArchiveComposer( this, this.index, this.outputArchive, this.matchedPairs, this.engine ) ;
+				if( this.manifestFile != null ) {
+					this.manifest = new Manifest( Manifest.newKey( selections.values(), this.engine, this.format ), this.seed.longValue() ) ;
+					this.manifest.addPairs( this.matchedPairs ) ;
+					composer.setManifests( this.manifest, this.previousManifest ) ;
+				}
+				composer.compose( selections ) ;
+				endPhase( "compose", Metrics.get( Counter.FILES_WRITTEN ) - filesWritten, "files" ) ;
+				if( this.manifest != null ) {
+					this.manifest.write( this.manifestFile ) ;
+					log.info( "Manifest written to " + this.manifestFile.getAbsolutePath() + "; " 
+							+ Metrics.get( Counter.PAIRS_REUSED ) + " pair units reused from the previous composition." ) ;
+				}
+			}
+			else {
+				//
+				// Process each questionnaire which has a swap section ...
+				// Pairs never share a file within a questionnaire and questionnaires
+				// never share a directory, so all the pairs of all the questionnaires
+				// can be swapped together...
+				List<MatchedPair> pairs = this.shard == null ? this.matchedPairs : this.shard.select( this.matchedPairs ) ;
+				ArrayList<SwapUnit> units = new ArrayList<SwapUnit>() ;
+				for( SelectionTable selection : selections.values() ) {
+					units.addAll( processQuestionnaire( selection, pairs ) ) ;
+				}
+				swap( units ) ;
+				if( this.shard != null && this.shard.isFinal() ) {
+					Journal.removeShards( getCompositionDirectory(), this.shard.getCount() ) ;
+				}
+				this.journal.complete() ;
+				endPhase( "swap", Metrics.get( Counter.FILES_WRITTEN ) - filesWritten, "files" ) ;
+			}
+			long elapsed = System.currentTimeMillis() - started ;
+			reportOutput( elapsed ) ;
+			reportMetrics( elapsed ) ;
+		}
+		finally {
+			Metrics.unregister() ;
+			if( this.journal != null ) {
+				this.journal.close() ;
+			}
+			this.index.close() ;
+			if( log.isTraceEnabled() ) exitTrace( "exec()" ) ;
+		}
+	}
+	
+	
+	/**
+	 * @return the export composed: the output directory if there is one, 
+	 *         else the export itself (composed in place if expanded).
+	 */
+	private File getCompositionDirectory() {
+		return this.outputDirectory != null ? this.outputDirectory : this.exportDirectory ;
+	}
+	
+	/**
+	 * Takes the deletions and matched pairs from the journal of an interrupted run,
+	 * or from a plan file.
+	 */
+	private void restorePlan( Long seed, LinkedHashSet<String> deletions, List<String[]> pairs, String source ) {
+		this.seed = seed ;
+		this.deletions = deletions ;
+		this.matchedPairs = new ArrayList<MatchedPair>( pairs.size() ) ;
+		for( String[] pair : pairs ) {
+			this.matchedPairs.add( new MatchedPair( pair[0], pair[1] ) ) ;
+		}
+		log.info( "Matched pairs restored from " + source + "; formed with seed: " + this.seed ) ;
+	}
+	
+	/**
+	 * Verifies the composed export against this export, the export it was composed from.
+	 * 
+	 * @throws ProcessException if any violation is found.
+	 */
+	private void verify( LinkedHashMap<String,SelectionTable> selections ) throws ProcessException {
+		ExportIndex composed = ExportIndex.newInstance( this.verifyExport ) ;
+		try {
+			Verifier verifier = new Verifier( this.index
+					                        , composed
+					                        , this.deletions
+					                        , this.matchedPairs
+					                        , selections
+					                        , this.threads
+					                        , this.queueCapacity ) ;
+			verifier.verify() ;
+			endPhase( "verify", verifier.getFilesVerified(), "files" ) ;
+		}
+		finally {
+			composed.close() ;
+		}
+	}
+	
+	/**
+	 * Records the plan in the journal, if there is one. The final step of a sharding
+	 * first checks that all the shards have completed to the same plan.
+	 */
+	private void recordPlan() throws ProcessException {
+		if( this.journal == null ) {
+			return ;
+		}
+		if( this.shard != null && this.shard.isFinal() ) {
+			try {
+				Journal.checkShards( getCompositionDirectory(), this.shard.getCount(), this.seed.longValue(), this.matchedPairs ) ;
+			}
+			catch( ProcessException px ) {
+				//
+				// Nothing is altered, so the final step can simply be run again later...
+				this.journal.abandon() ;
+				this.journal = null ;
+				throw px ;
+			}
+		}
+		this.journal.plan( this.seed.longValue(), this.deletions, this.matchedPairs ) ;
+	}
+	
+	/**
+	 * Checks that a plan given is of this export: every participant it names must be present.
+	 */
+	private void checkPlan() throws ProcessException {
+		Map<String,String> entities = this.index.getEntities( ExportIndex.PARTICIPANTS ) ;
+		ArrayList<String> ids = new ArrayList<String>( this.deletions ) ;
+		for( MatchedPair mp : this.matchedPairs ) {
+			ids.add( mp.idOne ) ;
+			ids.add( mp.idTwo ) ;
+		}
+		for( String id : ids ) {
+			if( !entities.containsKey( id ) ) {
+				throw new ProcessException( "Plan does not match the export. Participant not found: " + id ) ;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of data files indexed, over all questionnaires.
+	 */
+	private long countDataFiles() throws ProcessException {
+		long count = 0 ;
+		for( String questionnaire : this.index.getQuestionnaireNames() ) {
+			count += this.index.getEntities( questionnaire ).size() ;
+		}
+		return count ;
+	}
+	
+	/**
+	 * Records and logs the phase just completed: its duration and
+	 * the number of items (files, participants...) it dealt with.
+	 */
+	private void endPhase( String name, long count, String unit ) {
+		long now = System.currentTimeMillis() ;
+		Phase phase = new Phase( name, now - this.phaseStarted, count, unit ) ;
+		this.phases.add( phase ) ;
+		this.phaseStarted = now ;
+		Metrics.phase( phase ) ;
+		log.info( "Phase " + phase ) ;
+	}
+	
+	/**
+	 * @return the phases of the last run, in order.
+	 */
+	public List<Phase> getPhases() {
+		return this.phases ;
+	}
+	
+	/**
+	 * Logs the volume of output written and the rate at which it was written
+	 * over the whole run, for comparing engines and formats, and the rate at
+	 * which documents were loaded per questionnaire, for comparing parsers.
+	 * 
+	 * @param elapsed milliseconds
+	 */
+	private void reportOutput( long elapsed ) {
+		long bytes = Metrics.get( Counter.BYTES_WRITTEN ) ;
+		double seconds = Math.max( elapsed, 1 ) / 1000.0 ;
+		log.info( "Output (" + this.engine + ", " + this.format + "): " 
+				+ Metrics.get( Counter.FILES_WRITTEN ) + " files, " 
+				+ bytes + " bytes written in " 
+				+ String.format( "%.3fs (%.2f MB/s)", seconds, bytes / seconds / ( 1024 * 1024 ) ) ) ;
+		String parsed = Metrics.getParseSummary() ;
+		if( parsed != null ) {
+			log.info( "Documents loaded (" + this.parser.getBackend() + " parser):\n" + parsed ) ;
+		}
+	}
+	
+	/**
+	 * Logs the run's metrics as JSON and, if a metrics file was given, writes them there.
+	 * 
+	 * @param elapsed milliseconds
+	 */
+	private void reportMetrics( long elapsed ) throws ProcessException {
+		String json = Metrics.toJson( this.phases, elapsed ) ;
+		log.info( "Metrics: " + json ) ;
+		if( this.metricsFile == null ) {
+			return ;
+		}
+		OutputStream out = null ;
+		try {
+			out = new FileOutputStream( this.metricsFile ) ;
+			out.write( json.getBytes( "UTF-8" ) ) ;
+			out.write( '\n' ) ;
+			out.close() ;
+			out = null ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write metrics file: " + this.metricsFile.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( out ) ;
+		}
+	}
+	
+	/**
+	 * Groups the composition plan by questionnaire. A questionnaire named by more
+	 * than one swap section has all its selects, in configuration order, applied 
+	 * in the one pass over each of its files.
+	 * 
+	 * @return questionnaire name to select constructs, in configuration order.
+	 */
+	private LinkedHashMap<String,ArrayList<SelectType>> getSelectsByQuestionnaire() {
+		if( this.selectsByQuestionnaire != null ) {
+			return this.selectsByQuestionnaire ;
+		}
+		LinkedHashMap<String,ArrayList<SelectType>> plan = new LinkedHashMap<String,ArrayList<SelectType>>() ;
+		for( SwapType st : getCompositionPhase().getSwapArray() ) {
+			ArrayList<SelectType> selects = plan.get( st.getQuestionnaire() ) ;
+			if( selects == null ) {
+				selects = new ArrayList<SelectType>() ;
+				plan.put( st.getQuestionnaire(), selects ) ;
+			}
+			selects.addAll( Arrays.asList( st.getSelectArray() ) ) ;
 		}
-		if( log.isTraceEnabled() ) exitTrace( "exec()" ) ;
+		this.selectsByQuestionnaire = plan ;
+		return plan ;
 	}
 	
+	/**
+	 * @return the questionnaire's selects compiled, compiling them on first use.
+	 */
+	private SelectionMatcher[] getMatchers( String questionnaire, List<SelectType> selects ) {
+		SelectionMatcher[] matchers = this.matchersByQuestionnaire.get( questionnaire ) ;
+		if( matchers == null ) {
+			matchers = SelectionTable.compile( selects ) ;
+			this.matchersByQuestionnaire.put( questionnaire, matchers ) ;
+		}
+		return matchers ;
+	}
+	
+	/**
+	 * Makes the compositor of one export of a batch: with the settings of this compositor,
+	 * and sharing its configuration and compiled selects.
+	 * 
+	 * @param export
+	 * @param output the output zip file or directory, as the export is; or null to compose in place
+	 * @return the compositor
+	 */
+	ParticipantCompositor newBatchInstance( File export, File output ) {
+		ParticipantCompositor pc = new ParticipantCompositor() ;
+		pc.exportDirectory = export ;
+		if( output != null && export.isFile() ) {
+			pc.outputArchive = output ;
+		}
+		else {
+			pc.outputDirectory = output ;
+		}
+		pc.config = this.config ;
+		pc.threads = this.threads ;
+		pc.queueCapacity = this.queueCapacity ;
+		pc.cacheDirectory = this.cacheDirectory ;
+		pc.engine = this.engine ;
+		pc.format = this.format ;
+		pc.parser = this.parser ;
+		pc.seed = this.seed ;
+		pc.selectsByQuestionnaire = getSelectsByQuestionnaire() ;
+		pc.matchersByQuestionnaire = this.matchersByQuestionnaire ;
+		return pc ;
+	}
 	
 	private void formBalancedParticipantCollection() throws ProcessException {
 		if( log.isTraceEnabled() ) enterTrace( "formBalancedParticipantCollection()" ) ;
-		File particpantsDirectory = locateFile( this.exportDirectory, "Participants", true ) ;
-		File entities = locateFile( particpantsDirectory, "entities.xml", false ) ;
 		try {
-			EntitiesDocument ed = getEntity( entities ) ;
-			EntryType[] eta = ed.getEntities().getMap().getEntryArray() ;
-			this.participants = new ArrayList<Participant>( eta.length ) ;
+			Map<String,String> entities = this.index.getEntities( ExportIndex.PARTICIPANTS ) ;
+			this.participants = new ArrayList<Participant>( entities.size() ) ;
+			this.deletions = new LinkedHashSet<String>() ;
 			int iMaleCount = 0;
 			int iFemaleCount = 0 ;
-			for( int i = 0; i < eta.length; i++ ) {
-				String[] ida = eta[i].getStringArray() ;
-				String id = ida[0] ;
-				String fileName = ida[1] ;
-				File dataFile = locateFile( particpantsDirectory, fileName, false ) ;
-				Participant p = new Participant( id, dataFile ) ;
-				if( p.getGender().equalsIgnoreCase( "MALE" ) ) {
+			for( String id : entities.keySet() ) {
+				String fileName = this.index.getDataFileName( ExportIndex.PARTICIPANTS, id ) ;
+				if( !this.index.exists( ExportIndex.PARTICIPANTS, fileName ) ) {
+					throw new ProcessException( "Could not locate file " + ExportIndex.PARTICIPANTS + "/" + fileName ) ;
+				}
+				Participant p = new Participant( id, fileName ) ;
+				if( p.getGender() == Gender.MALE ) {
 					this.participants.add( p ) ;
 					iMaleCount++ ;
 				}
-				else if( p.getGender().equalsIgnoreCase( "FEMALE" ) ) {
+				else if( p.getGender() == Gender.FEMALE ) {
 					this.participants.add( p ) ;
 					iFemaleCount++ ;
 				}
 				else {
 					//
 					// If there is no gender recorded, delete all the relevant files from the test domain...
-					p.delete() ;
+					markForDeletion( p ) ;
 				}
 			}
 			//
@@ -152,28 +770,10 @@ public class ParticipantCompositor {
 			// or two females. 
 			// For any odds, delete all the relevant files from the test domain. 
 			if( iMaleCount%2 != 0) {
-				//
-				// Delete the first male we come across...
-				for(int i=0; i<participants.size(); i++ ) {
-					Participant p = participants.get(i) ;
-					if( p.getGender().equalsIgnoreCase( "MALE" ) ) {
-						participants.remove(i) ;
-						p.delete() ;
-						break ;
-					}
-				}
+				markOddForDeletion( Gender.MALE, entities ) ;
 			}
 			if( iFemaleCount%2 != 0) {
-				//
-				// Delete the first female we come across...
-				for(int i=0; i<participants.size(); i++ ) {
-					Participant p = participants.get(i) ;
-					if( participants.get(i).getGender().equalsIgnoreCase( "FEMALE" ) ) {
-						participants.remove(i) ;
-						p.delete() ;
-						break ;
-					}
-				}
+				markOddForDeletion( Gender.FEMALE, entities ) ;
 			}
 		}
 		finally {
@@ -181,286 +781,649 @@ public class ParticipantCompositor {
 		}	
 	}
 	
-	private void formMatchedPairs() throws ProcessException {
-		if( log.isTraceEnabled() ) enterTrace( "formMatchedPairs()" ) ;
+	/**
+	 * Deletes the first participant of the gender we come across. Where a previous
+	 * composition's pairs are being kept, the first whose recorded partner is not
+	 * present is deleted in preference, so as not to break up a recorded pair.
+	 */
+	private void markOddForDeletion( Gender gender, Map<String,String> entities ) {
+		int chosen = -1 ;
+		for( int i=0; i<participants.size(); i++ ) {
+			Participant p = participants.get(i) ;
+			if( p.getGender() != gender ) {
+				continue ;
+			}
+			if( chosen == -1 ) {
+				chosen = i ;
+			}
+			if( this.previousManifest == null ) {
+				break ;
+			}
+			String partner = this.previousManifest.getPartner( p.id ) ;
+			if( partner == null || !entities.containsKey( partner ) ) {
+				chosen = i ;
+				break ;
+			}
+		}
+		markForDeletion( participants.remove( chosen ) ) ;
+	}
+	
+	private void markForDeletion( Participant p ) {
+		if( log.isDebugEnabled() ) {
+			log.debug( "Participant marked for deletion: " + p.id ) ;
+		}
+		this.deletions.add( p.id ) ;
+	}
+	
+	/**
+	 * We need to remove all files and references to the participants marked for deletion.
+	 * Each questionnaire directory is visited once: its entities.xml file is rewritten
+	 * once with all the relevant entries removed, and the data files are deleted together.
+	 * Directories are independent of each other, so are processed in parallel 
+	 * when more than one thread is available.
+	 */
+	private void deleteParticipants() throws ProcessException {
+		if( log.isTraceEnabled() ) enterTrace( "deleteParticipants()" ) ;
 		try {
-			this.matchedPairs = new ArrayList<MatchedPair>( this.participants.size() ) ;
-			HashMap<String,Participant> usedList = new HashMap<String,Participant>() ;
-			@SuppressWarnings("unchecked")
-			ArrayList<Participant> duplicateList = (ArrayList<Participant>) this.participants.clone() ;
-			Iterator<Participant> it = this.participants.listIterator() ;
-			Random r = new Random() ;
-			while( it.hasNext() ) {
-				Participant one = it.next() ; 
-				if( !usedList.containsKey( one.dataFile.getName() ) ) {
-					for( int i=0; i<10001; i++ ) {
-						if( i == 10000 ) {
-							throw new ProcessException( "Loop out of control in formMatchedPairs()" ) ;
-						}
-						// 
-						// Choose a random member of the list...
-						Participant two = duplicateList.get( r.nextInt( duplicateList.size() ) ) ;
-						//
-						// If it is the same member, then cycle around...
-						if( two.getDataFile().getName().equals( one.getDataFile().getName() ) ) {
-							duplicateList.remove( two ) ;
-							continue ;
-						}
-						//
-						// But if two separate particpants of the same gender, 
-						// then form a matched pair and add them to the collection.
-						// Also remove the found Participant from the duplicate list
-						// to ensure it cannot be chosen and matched again...
-						if( one.getGender().equals( two.getGender() ) ) {
-							MatchedPair mp = new MatchedPair( one.getDataFile(), two.getDataFile() ) ;
-							this.matchedPairs.add( mp ) ;
-							duplicateList.remove( two ) ;
-							usedList.put( two.dataFile.getName(), two ) ;
-							break ;
-						} 
-					}
-				}			
+			if( this.deletions.isEmpty() ) {
+				return ;
+			}
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>() ;
+			for( final String questionnaire : this.index.getQuestionnaireNames() ) {
+				tasks.add( new Callable<Void>() {
+					public Void call() throws ProcessException {
+						deleteParticipants( questionnaire ) ;
+						return null ;
+					}
+				} ) ;
 			}
+			execute( tasks, "participant deletion" ) ;
 		}
 		finally {
-			if( log.isTraceEnabled() ) exitTrace( "formMatchedPairs()" ) ;
+			if( log.isTraceEnabled() ) exitTrace( "deleteParticipants()" ) ;
 		}
 	}
 	
-	private File locateFile( File searchDirectory, String targetName, boolean isDirectory ) throws ProcessException {
-		if( log.isTraceEnabled() ) enterTrace( "locateFile()" ) ;
-		File[] files = searchDirectory.listFiles();
+	private void deleteParticipants( String questionnaire ) throws ProcessException {
+		if( log.isTraceEnabled() ) enterTrace( "deleteParticipants(String)" ) ;
+		if( log.isDebugEnabled() ) {
+			log.debug( "questionnaire: " + questionnaire ) ;
+		}
 		try {
-			for (File file : files) {
-				if (file.getName().equals( targetName )) {
-					if( isDirectory && file.isDirectory() ) {
-						return file ;
+			File directory = this.index.getQuestionnaireDirectory( questionnaire ) ;
+			ArrayList<String> fileNames = removeDeletions( questionnaire ) ;
+			if( fileNames.isEmpty() ) {
+				return ;
+			}
+			//
+			// The data files (eg: 0000001.xml).
+			// These go first: until entities.xml is updated, an interrupted
+			// run will find the participants again when resumed...
+			for( String fileName : fileNames ) {
+				File dataFile = new File( directory, fileName ) ;
+				if( dataFile.isFile() && !dataFile.delete() ) {
+					throw new ProcessException( "Could not delete data file: " + dataFile.getAbsolutePath() ) ;
+				}
+			}
+			//
+			// The entities.xml file.
+			// We remove all the relevant entries and update the file once...
+			EntitiesDocument ed = getEntity( questionnaire ) ;
+			removeDeletedEntries( ed ) ;
+			saveEntitiesDoc( ed, new File( directory, ExportIndex.ENTITIES_FILE_NAME ) ) ;
+		}
+		finally {
+			if( log.isTraceEnabled() ) exitTrace( "deleteParticipants(String)" ) ;
+		}
+	}
+	
+	/**
+	 * Takes the participants marked for deletion out of a questionnaire's index.
+	 * 
+	 * @param questionnaire
+	 * @return the data file names the participants had within the questionnaire.
+	 */
+	ArrayList<String> removeDeletions( String questionnaire ) throws ProcessException {
+		ArrayList<String> fileNames = new ArrayList<String>() ;
+		for( String id : this.deletions ) {
+			String fileName = this.index.remove( questionnaire, id ) ;
+			if( fileName != null ) {
+				fileNames.add( fileName ) ;
+			}
+		}
+		return fileNames ;
+	}
+	
+	/**
+	 * Removes the entries of the participants marked for deletion from an entities document.
+	 * Entries are removed from the end so the remaining indices stay valid.
+	 */
+	void removeDeletedEntries( EntitiesDocument ed ) {
+		EntryType[] eta = ed.getEntities().getMap().getEntryArray() ;
+		for( int i=eta.length-1; i>=0; i-- ) {
+			if( this.deletions.contains( eta[i].getStringArray(0) ) ) {
+				ed.getEntities().getMap().removeEntry(i) ;
+			}
+		}
+	}
+	
+	private void saveEntitiesDoc( EntitiesDocument ed, File file ) throws ProcessException {
+		if (log.isTraceEnabled()) enterTrace("saveEntitiesDoc()");
+		File temp = IOUtil.getTempFile( file ) ;
+		OutputStream out = null ;
+		boolean committed = false ;
+		try {		
+			out = IOUtil.newOutputStream( temp ) ;
+			ed.save( out, getEntitySaveOptions() ) ;
+			out.close() ;
+			out = null ;
+			IOUtil.sync( temp ) ;
+			IOUtil.commit( temp, file ) ;
+			committed = true ;
+		}
+		catch( Exception iox ) {
+			String message = "Save entities file failed: " + file.getAbsolutePath() ;
+			throw new ProcessException( message, iox ) ;			
+		}
+		finally { 
+			IOUtil.closeQuietly( out ) ;
+			if( !committed ) {
+				IOUtil.discard( temp ) ;
+			}
+			if( log.isTraceEnabled() ) exitTrace( "saveEntitiesDoc()" ) ;
+		}
+	}
+	
+    /**
+     * Returns the <code>XmlOptions</code> required to produce
+     * a text representation of the emitted XML, in the selected format.
+     * 
+     * @return XmlOptions
+     */
+    XmlOptions getEntitySaveOptions() {
+        return this.format == Format.COMPACT ? COMPACT_ENTITY_SAVE_OPTIONS : PRETTY_ENTITY_SAVE_OPTIONS ;
+    }
+    
+    private static XmlOptions newEntitySaveOptions( Format format ) {
+        XmlOptions opts = newValueSetSaveOptions( format ) ;
+        
+        HashMap<String, String> suggestedPrefixes = new HashMap<String, String>();
+        suggestedPrefixes.put("http://brisskit.org/xml/onyx-entities/v1.0/oe", "oe");
+        opts.setSaveSuggestedPrefixes(suggestedPrefixes);
+        return opts ;
+    }
+    
+    private static XmlOptions newValueSetSaveOptions( Format format ) {
+        XmlOptions opts = new XmlOptions();
+        opts.setSaveOuter() ;
+        opts.setSaveNamespacesFirst() ;
+        opts.setSaveAggressiveNamespaces() ;  
+        
+        if( format == Format.PRETTY ) {
+            opts.setSavePrettyPrint() ;
+            opts.setSavePrettyPrintIndent( 3 ) ; 
+        }
+        return opts ;
+    }
+	
+	/**
+	 * Runs the given tasks; in parallel if more than one thread has been configured.
+	 * Every task is run to completion. Failures are logged and then aggregated into 
+	 * one ProcessException, so that one bad file does not hide another.
+	 * 
+	 * @param tasks
+	 * @param description used in messages
+	 * @throws ProcessException if any task failed
+	 */
+	void execute( List<Callable<Void>> tasks, String description ) throws ProcessException {
+		ArrayList<Throwable> failures = new ArrayList<Throwable>() ;
+		if( this.threads <= 1 || tasks.size() <= 1 ) {
+			for( Callable<Void> task : tasks ) {
+				try {
+					task.call() ;
+				}
+				catch( Exception ex ) {
+					failures.add( ex ) ;
+				}
+			}
+		}
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool( Math.min( this.threads, tasks.size() ) ) ;
+			try {
+				List<Future<Void>> futures = pool.invokeAll( tasks ) ;
+				for( Future<Void> future : futures ) {
+					try {
+						future.get() ;
 					}
-					else if( !isDirectory && file.isFile() ) {
-						return file ;
+					catch( ExecutionException eex ) {
+						failures.add( eex.getCause() ) ;
 					}
 				}
 			}
-			throw new ProcessException("Could not locate " + ( isDirectory ? "directory":"file" ) + targetName );
-		} finally {
-			if( log.isTraceEnabled() ) exitTrace( "locateFile()" ) ;
-		}		
+			catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt() ;
+				throw new ProcessException( "Interrupted during " + description, iex ) ;
+			}
+			finally {
+				pool.shutdownNow() ;
+			}
+		}
+		if( !failures.isEmpty() ) {
+			for( Throwable t : failures ) {
+				log.error( "Failure during " + description + ": " + t.getMessage(), t ) ;
+			}
+			throw new ProcessException( failures.size() + " of " + tasks.size() + " tasks failed during " + description, failures ) ;
+		}
+	}
+	
+	/**
+	 * Pairs participants of the same gender in time linear in the number of participants.
+	 * Each gender is bucketed in one pass, each bucket shuffled with a generator 
+	 * seeded from the seed parameter (or from the clock, if none was given), 
+	 * and consecutive members of a bucket paired off. The same seed over the same 
+	 * export therefore always produces the same pairs.
+	 * <p/>
+	 * Where the manifest of a previous composition is followed, its pairs whose
+	 * participants are both still present (and still of the same gender) are kept,
+	 * and only the remaining participants are shuffled and paired.
+	 */
+	private void formMatchedPairs() throws ProcessException {
+		if( log.isTraceEnabled() ) enterTrace( "formMatchedPairs()" ) ;
+		try {
+			this.matchedPairs = new ArrayList<MatchedPair>( this.participants.size() / 2 ) ;
+			EnumMap<Gender,ArrayList<Participant>> buckets = new EnumMap<Gender,ArrayList<Participant>>( Gender.class ) ;
+			for( Participant p : this.participants ) {
+				ArrayList<Participant> bucket = buckets.get( p.getGender() ) ;
+				if( bucket == null ) {
+					bucket = new ArrayList<Participant>() ;
+					buckets.put( p.getGender(), bucket ) ;
+				}
+				bucket.add( p ) ;
+			}
+			if( this.seed == null ) {
+				this.seed = Long.valueOf( System.currentTimeMillis() ) ;
+			}
+			log.info( "Matched pairs formed with seed: " + this.seed ) ;
+			Random r = new Random( this.seed.longValue() ) ;
+			for( ArrayList<Participant> bucket : buckets.values() ) {
+				if( bucket.size() % 2 != 0 ) {
+					throw new ProcessException( "Odd number of participants of gender " + bucket.get(0).getGender() ) ;
+				}
+				if( this.previousManifest != null ) {
+					bucket = keepPreviousPairs( bucket ) ;
+				}
+				Collections.shuffle( bucket, r ) ;
+				for( int i=0; i<bucket.size(); i+=2 ) {
+					this.matchedPairs.add( new MatchedPair( bucket.get(i).id, bucket.get(i+1).id ) ) ;
+				}
+			}
+		}
+		finally {
+			if( log.isTraceEnabled() ) exitTrace( "formMatchedPairs()" ) ;
+		}
 	}
 	
+	/**
+	 * Keeps the previous composition's pairs within a bucket (of one gender).
+	 * 
+	 * @param bucket
+	 * @return the participants of the bucket left to be paired.
+	 */
+	private ArrayList<Participant> keepPreviousPairs( ArrayList<Participant> bucket ) {
+		HashSet<String> unpaired = new HashSet<String>( bucket.size() * 2 ) ;
+		for( Participant p : bucket ) {
+			unpaired.add( p.id ) ;
+		}
+		int kept = 0 ;
+		for( Participant p : bucket ) {
+			String partner = this.previousManifest.getPartner( p.id ) ;
+			if( partner != null && unpaired.contains( p.id ) && unpaired.contains( partner ) ) {
+				this.matchedPairs.add( new MatchedPair( p.id, partner ) ) ;
+				unpaired.remove( p.id ) ;
+				unpaired.remove( partner ) ;
+				kept++ ;
+			}
+		}
+		ArrayList<Participant> remaining = new ArrayList<Participant>( unpaired.size() ) ;
+		for( Participant p : bucket ) {
+			if( unpaired.contains( p.id ) ) {
+				remaining.add( p ) ;
+			}
+		}
+		log.info( "Kept " + kept + " matched pairs of the previous composition; " 
+				+ remaining.size() + " participants to pair afresh." ) ;
+		return remaining ;
+	}
 	
-	private void processQuestionnaire( File quDirectory, SwapType swapType ) throws ProcessException {
+	/**
+	 * @param selection
+	 * @param pairs the matched pairs to swap (all of them, or those of a shard)
+	 * @return one unit per matched pair, swapping the pair's files within the questionnaire.
+	 */
+	private ArrayList<SwapUnit> processQuestionnaire( final SelectionTable selection, List<MatchedPair> pairs ) throws ProcessException {
 		if (log.isTraceEnabled()) enterTrace("processQuestionnaire()");	
 		
-		HashMap<String,File> participantFiles = getParticipantFiles( quDirectory ) ;
-		Iterator<MatchedPair> it = this.matchedPairs.listIterator() ;
+		final String questionnaire = selection.getQuestionnaire() ;
+		ArrayList<SwapUnit> units = new ArrayList<SwapUnit>( pairs.size() ) ;
+		Iterator<MatchedPair> it = pairs.listIterator() ;
 		while( it.hasNext() ) {
-			MatchedPair mp = it.next() ;
-			File candidateOne = participantFiles.get( mp.fileOneName ) ;
-			File candidateTwo = participantFiles.get( mp.fileTwoName ) ;		
-			SwappablePair sp = new SwappablePair( candidateOne, candidateTwo, swapType ) ;
-			sp.swap() ;
+			final MatchedPair mp = it.next() ;
+			final File candidateOne = this.index.getDataFile( questionnaire, mp.idOne ) ;
+			final File candidateTwo = this.index.getDataFile( questionnaire, mp.idTwo ) ;
+			//
+			// A participant may have no data for this questionnaire,
+			// in which case there is nothing to swap with the partner...
+			if( candidateOne == null || candidateTwo == null ) {
+				if( log.isDebugEnabled() ) {
+					log.debug( questionnaire + ": no data to swap for " + mp.idOne + " / " + mp.idTwo ) ;
+				}
+				continue ;
+			}
+			//
+			// Work completed by an interrupted run is not repeated...
+			if( this.journal.isCommitted( questionnaire, mp.idOne ) ) {
+				continue ;
+			}
+			if( this.journal.isPrepared( questionnaire, mp.idOne ) ) {
+				commitPair( questionnaire, mp, candidateOne, candidateTwo ) ;
+				continue ;
+			}
+			units.add( new SwapUnit( this, this.engine, selection, mp, candidateOne, candidateTwo ) ) ;
 			
 		} // end while
 		
 		if (log.isTraceEnabled()) exitTrace("processQuestionnaire()");
+		return units ;
 	}	
 	
-	private LinkedHashMap<String,File> getParticipantFiles( File quDirectory ) {
-		if (log.isTraceEnabled()) enterTrace("getParticipantFiles()");
-		File[] files = quDirectory.listFiles() ;
-		LinkedHashMap<String,File> participantFiles = new LinkedHashMap<String,File>( files.length ) ;
-		
-		for( File file: files ) {
+	/**
+	 * Swaps the units through a pipeline: one thread reads each pair's files into memory
+	 * (or, with the stax engine, opens them), the worker threads swap them, and one thread
+	 * writes the results and replaces the pair's files. The queues between the stages bound
+	 * the pairs in memory at any time.
+	 */
+	private void swap( List<SwapUnit> units ) throws ProcessException {
+		Pipeline<SwapUnit> pipeline = new Pipeline<SwapUnit>( "swap", this.queueCapacity, this.threads ) ;
+		try {
+			runPipeline( pipeline, units ) ;
+		}
+		finally {
 			//
-			// The participants' files start with numerics (eg: 0000002.xml)
-			// The conditional traps these...
-			if( file.getName().split( "\\." )[0].matches( "\\d+" ) ) {
-				log.debug( "File: " + file.getName() ) ;
-				participantFiles.put( file.getName(), file ) ;
+			// A unit which failed a stage may still hold its files open...
+			for( SwapUnit unit : units ) {
+				unit.close() ;
 			}
 		}
-		if (log.isTraceEnabled()) exitTrace("getParticipantFiles()");
-		return participantFiles ;
+	}
+	
+	private void runPipeline( Pipeline<SwapUnit> pipeline, List<SwapUnit> units ) throws ProcessException {
+		pipeline.run( units
+				    , new Pipeline.Stage<SwapUnit>() {
+				    	public void process( SwapUnit unit ) throws ProcessException {
+				    		unit.read() ;
+				    	}
+				    }
+				    , new Pipeline.Stage<SwapUnit>() {
+				    	public void process( SwapUnit unit ) throws ProcessException {
+				    		unit.swap() ;
+				    	}
+				    }
+				    , new Pipeline.Stage<SwapUnit>() {
+				    	public void process( SwapUnit unit ) throws ProcessException {
+				    		unit.write() ;
+				    	}
+				    } ) ;
 	}
 	
 	/**
-	 * @param valueSet
-	 * @param variableName
-	 * @return The element value of the named variable within the given value set.
+	 * @return the saved offset index of a data file, if indexes are saved and
+	 *         the file is unaltered since its index was saved; otherwise null.
+	 */
+	VariableIndex readIndex( File file, FileChannel channel, Vocabulary vocabulary ) throws IOException {
+		if( !this.saveIndexes ) {
+			return null ;
+		}
+		VariableIndex index = VariableIndex.read( getIndexFile( file ), file, vocabulary ) ;
+		if( index != null && !index.fits( channel ) ) {
+			//
+			// The file was rewritten within the resolution of its time of modification...
+			log.warn( "Ignoring index which no longer fits its file: " + file.getAbsolutePath() ) ;
+			return null ;
+		}
+		return index ;
+	}
+	
+	/**
+	 * Saves the offset index of a data file, if indexes are saved.
+	 */
+	void writeIndex( VariableIndex index, File file ) throws ProcessException {
+		if( this.saveIndexes ) {
+			index.write( getIndexFile( file ), file ) ;
+		}
+	}
+	
+	/**
+	 * @return the sidecar of a data file: eg: .compositor-index/Consent/0000001.xml.idx
+	 */
+	private File getIndexFile( File file ) {
+		File directory = new File( new File( getCompositionDirectory(), INDEX_DIRECTORY_NAME ), file.getParentFile().getName() ) ;
+		return new File( directory, file.getName() + VariableIndex.SIDECAR_SUFFIX ) ;
+	}
+	
+	/**
+	 * Replaces a pair's files with their new versions, as one unit of the journal.
+	 * The new files are forced to disk and the unit recorded as prepared before 
+	 * either original is replaced, so that an interrupted replacement can be 
+	 * completed when the run is resumed.
+	 */
+	void prepareAndCommitPair( String questionnaire
+			                 , MatchedPair mp
+			                 , File candidateOne
+			                 , File candidateTwo ) throws ProcessException {
+		try {
+			IOUtil.sync( IOUtil.getTempFile( candidateOne ) ) ;
+			IOUtil.sync( IOUtil.getTempFile( candidateTwo ) ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write swapped files: " + candidateOne.getAbsolutePath()
+					                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
+		}
+		this.journal.prepared( questionnaire, mp.idOne ) ;
+		commitPair( questionnaire, mp, candidateOne, candidateTwo ) ;
+	}
+	
+	/**
+	 * Records a pair with nothing to swap as complete.
 	 */
-	private String getValue( ValueSetType valueSet, String variableName ) {
-		if( log.isTraceEnabled() ) enterTrace( "getValue()" ) ;
+	void commitUnchangedPair( String questionnaire, MatchedPair mp ) throws ProcessException {
+		this.journal.committed( questionnaire, mp.idOne ) ;
+	}
+	
+	/**
+	 * Replaces a prepared pair's files with whichever of their new versions remain,
+	 * and records the unit as complete.
+	 */
+	private void commitPair( String questionnaire
+			               , MatchedPair mp
+			               , File candidateOne
+			               , File candidateTwo ) throws ProcessException {
+		File tempOne = IOUtil.getTempFile( candidateOne ) ;
+		File tempTwo = IOUtil.getTempFile( candidateTwo ) ;
 		try {
-			ValueType vt = getValueAsXmlObject( valueSet, variableName ) ;
-			if( vt == null ) {
-				return null ;
+			if( tempOne.exists() ) {
+				IOUtil.commit( tempOne, candidateOne ) ;
+			}
+			if( tempTwo.exists() ) {
+				IOUtil.commit( tempTwo, candidateTwo ) ;
 			}
-			return getText( vt ) ;
 		}
-		finally {
-			if( log.isTraceEnabled() ) exitTrace( "getValue()" ) ;
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not replace swapped files: " + candidateOne.getAbsolutePath()
+					                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
 		}
+		this.journal.committed( questionnaire, mp.idOne ) ;
 	}
 	
 	/**
+	 * A scan of the value set: for more than the odd lookup in the same value set,
+	 * use a {@link ValueSetIndex} (see {@link SwappablePair#getIndex(ValueSetDocument)}).
+	 * 
 	 * @param valueSet
 	 * @param variableName
 	 * @return The XML object for the the named value within the given value set.
 	 */
 	protected ValueType getValueAsXmlObject( ValueSetType valueSet, String variableName ) {
-		if( log.isTraceEnabled() ) enterTrace( "getValueAsXmlObject()" ) ;
-		try {
-			VariableValueType[] vvta = valueSet.getVariableValueArray() ;
-			for( int i=0; i<vvta.length; i++ ) {
-				if( vvta[i].getVariable().equals( variableName ) ) {
-					 return vvta[i].getValue() ;
-				}
+		VariableValueType[] vvta = valueSet.getVariableValueArray() ;
+		for( int i=0; i<vvta.length; i++ ) {
+			if( vvta[i].getVariable().equals( variableName ) ) {
+				 return vvta[i].getValue() ;
 			}
-			return null ;
-		}
-		finally {
-			if( log.isTraceEnabled() ) exitTrace( "getValueAsXmlObject()" ) ;
 		}
+		return null ;
 	}
 	
 	
 	/**
-	 * @param xo
-	 * @return the text value of the given XML element 
+	 * Swaps a pair with the xmlbeans engine: both value sets are loaded, swapped and saved.
+	 * 
+	 * @return false if neither value set holds a selected variable, in which case
+	 *         nothing is written.
 	 */
-	private String getText( XmlObject xo ) {
-		XmlCursor cursor = xo.newCursor() ;
-		try {
-			return cursor.getTextValue().trim() ;
-		}
-		finally {
-			cursor.dispose() ;
+	boolean swapValueSets( InputStream inOne
+			             , InputStream inTwo
+			             , OutputStream outOne
+			             , OutputStream outTwo
+			             , SelectionTable selection
+			             , String pathOne
+			             , String pathTwo ) throws ProcessException {
+		String questionnaire = selection.getQuestionnaire() ;
+		SwappablePair sp = new SwappablePair( getValueSet( inOne, questionnaire, pathOne )
+				                            , getValueSet( inTwo, questionnaire, pathTwo )
+				                            , selection ) ;
+		if( !sp.apply() ) {
+			return false ;
 		}
+		sp.saveValueSetDoc( sp.pOneValuesSetDoc, outOne, pathOne ) ;
+		sp.saveValueSetDoc( sp.pTwoValuesSetDoc, outTwo, pathTwo ) ;
+		return true ;
 	}
 	
-	private static ValueSetDocument getValueSet( File file ) throws ProcessException {
-		if (log.isTraceEnabled()) enterTrace("getValueSet()");
+	private ValueSetDocument getValueSet( InputStream in, String questionnaire, String path ) throws ProcessException {
 		try {
-			return ValueSetDocument.Factory.parse( file ) ;
+			return this.parser.parseValueSet( in, questionnaire ) ;
 		}
 		catch( IOException iox ) {
-			throw new ProcessException( "Something wrong with data file", iox ) ;
+			throw new ProcessException( "Something wrong with data file: " + path, iox ) ;
 		}
 		catch( XmlException xmlx ) {
-			throw new ProcessException( "Could not parse data file.", xmlx ) ;   			
-		}
-		finally {
-			if (log.isTraceEnabled()) exitTrace("getValueSet()");
+			throw new ProcessException( "Could not parse data file: " + path, xmlx ) ;   			
 		}
 	}
 	
-	private static EntitiesDocument getEntity( File file ) throws ProcessException {
+	EntitiesDocument getEntity( String questionnaire ) throws ProcessException {
 		if (log.isTraceEnabled()) enterTrace("getEntity()");
+		String path = questionnaire + "/" + ExportIndex.ENTITIES_FILE_NAME ;
+		InputStream in = null ;
 		try {
-			return EntitiesDocument.Factory.parse( file ) ;
+			in = this.index.open( questionnaire, ExportIndex.ENTITIES_FILE_NAME ) ;
+			return this.parser.parseEntities( in, questionnaire ) ;
 		}
 		catch( IOException iox ) {
-			throw new ProcessException( "Something wrong with entities file", iox ) ;
+			throw new ProcessException( "Something wrong with entities file: " + path, iox ) ;
 		}
 		catch( XmlException xmlx ) {
-			throw new ProcessException( "Could not parse entities file.", xmlx ) ;   			
+			throw new ProcessException( "Could not parse entities file: " + path, xmlx ) ;   			
 		}
 		finally {
+			IOUtil.closeQuietly( in ) ;
 			if (log.isTraceEnabled()) exitTrace("getEntity()");
 		}
 	}
 	
 
 	
-	private class SwappablePair {
+	/**
+	 * A matched pair's value set documents, swapped through XMLBeans.
+	 * The stages of the swap are package visible so that they can be measured 
+	 * individually by the benchmarks module.
+	 */
+	class SwappablePair {
 		
-		private File partnerOne ;
-		private File partnerTwo ;
 		private ValueSetDocument pOneValuesSetDoc ;
 		private ValueSetDocument pTwoValuesSetDoc ;
-		private SwapType swap ;
+		private SelectionTable selection ;
+		//
+		// Each document's variables by name, built by the first scan 
+		// and kept in step by the deletes and updates of the swap...
+		private ValueSetIndex pOneIndex ;
+		private ValueSetIndex pTwoIndex ;
 		
-		private SwappablePair( File candidateOne, File candidateTwo, SwapType swap ) throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair()");
-			if( log.isDebugEnabled() ) {
-				log.debug( "candidateOne: " + candidateOne.getName() ) ;
-				log.debug( "candidateTwo: " + candidateTwo.getName() ) ;
-			}
-			this.partnerOne = candidateOne ;
-			this.partnerTwo = candidateTwo ;
-			this.pOneValuesSetDoc = getValueSet( candidateOne ) ;
-			this.pTwoValuesSetDoc = getValueSet( candidateTwo ) ;
-			this.swap = swap ;
-			if (log.isTraceEnabled()) exitTrace("SwappablePair()");
+		SwappablePair( ValueSetDocument candidateOne, ValueSetDocument candidateTwo, SelectionTable selection ) {
+			this.pOneValuesSetDoc = candidateOne ;
+			this.pTwoValuesSetDoc = candidateTwo ;
+			this.selection = selection ;
 		}
 		
-		private void swap() throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.swap()");
+		/**
+		 * Swaps the selected variables between the two documents.
+		 * 
+		 * @return false if neither document held a selected variable, 
+		 *         in which case neither has been altered.
+		 */
+		boolean apply() throws ProcessException {
 			//
-			// Process all the selects...
-			SelectType[] sta = swap.getSelectArray() ;
-			for( int i=0; i<sta.length; i++ ) {
-				processSelect( sta[i] ) ;
+			// One scan of each document, sorting its selected variables by select...
+			ArrayList<ArrayList<VariableValueType>> p1vars = getSwappableVars( pOneValuesSetDoc ) ;
+			ArrayList<ArrayList<VariableValueType>> p2vars = getSwappableVars( pTwoValuesSetDoc ) ;
+			int count = count( p1vars ) + count( p2vars ) ;
+			if( count == 0 ) {
+				Metrics.pairUnchanged() ;
+				return false ;
 			}
 			//
-			// Update the files...
-			saveValueSetDoc(pOneValuesSetDoc, partnerOne ) ;
-			saveValueSetDoc(pTwoValuesSetDoc, partnerTwo ) ;
-			
-			if (log.isTraceEnabled()) exitTrace("SwappablePair.swap()");
+			// Process all the selects...
+			for( int i=0; i<selection.size(); i++ ) {
+				processSelect( p1vars.get(i), p2vars.get(i) ) ;
+			}
+			Metrics.pairSwapped( selection.getQuestionnaire(), count ) ;
+			return true ;
 		}
 		
-		public void saveValueSetDoc( ValueSetDocument vsd, File file ) throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.saveValueSetDoc()");
+		public void saveValueSetDoc( ValueSetDocument vsd, OutputStream out, String path ) throws ProcessException {
 			try {		
-				XmlOptions opts = getSaveOptions() ;
-				vsd.save( file, opts ) ;
+				vsd.save( out, getSaveOptions() ) ;
 			}
 			catch( Exception iox ) {
-				String message = "Save value sets file failed: " + file.getAbsolutePath() ;
+				String message = "Save value sets file failed: " + path ;
 				throw new ProcessException( message, iox ) ;			
 			}
-			finally { 
-				if( log.isTraceEnabled() ) exitTrace( "SwappablePair.saveValueSetDoc()" ) ;
-			}
 		}
 		
 	    private XmlOptions getSaveOptions() {
-	        XmlOptions opts = new XmlOptions();
-	        opts.setSaveOuter() ;
-	        opts.setSaveNamespacesFirst() ;
-	        opts.setSaveAggressiveNamespaces() ;  
-	             
-	        opts.setSavePrettyPrint() ;
-	        opts.setSavePrettyPrintIndent( 3 ) ; 
-	        return opts ;
+	        return format == Format.COMPACT ? COMPACT_VALUE_SET_SAVE_OPTIONS : PRETTY_VALUE_SET_SAVE_OPTIONS ;
 	    }
 		
-		private void processSelect( SelectType select ) throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.processSelect()");
-			
-			ArrayList<VariableValueType> p1vars = getSwappableVars( pOneValuesSetDoc, select ) ;
-			ArrayList<VariableValueType> p2vars = getSwappableVars( pTwoValuesSetDoc, select ) ;			
+		void processSelect( ArrayList<VariableValueType> p1vars
+				          , ArrayList<VariableValueType> p2vars ) throws ProcessException {
 			//
 			// First, delete the variables from the respective participants,
 			// but return clones of the variables...
-			p1vars = deleteVars( p1vars ) ;
-			p2vars = deleteVars( p2vars ) ;
+			p1vars = deleteVars( pOneValuesSetDoc, p1vars ) ;
+			p2vars = deleteVars( pTwoValuesSetDoc, p2vars ) ;
 			//
 			// Second, update the opposite participant with inserts of the partner variables...
-			updateVars( pOneValuesSetDoc.getValueSet(), p2vars ) ;
-			updateVars( pTwoValuesSetDoc.getValueSet(), p1vars ) ;
-			
-			if (log.isTraceEnabled()) exitTrace("SwappablePair.processSelect()");
+			updateVars( pOneValuesSetDoc, p2vars ) ;
+			updateVars( pTwoValuesSetDoc, p1vars ) ;
 		}
 		
-		private ArrayList<VariableValueType> deleteVars( ArrayList<VariableValueType> vars ) {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.deleteVars()");
+		ArrayList<VariableValueType> deleteVars( ValueSetDocument valueSetDoc, ArrayList<VariableValueType> vars ) {
+			ValueSetIndex index = getIndex( valueSetDoc ) ;
 			ArrayList<VariableValueType> clones = new ArrayList<VariableValueType>( vars.size() ) ; 
 			Iterator<VariableValueType> it = vars.listIterator() ;
 			while( it.hasNext() ) {
 				VariableValueType vvt = it.next() ;
 				clones.add( (VariableValueType)vvt.copy() ) ;
+				index.remove( vvt ) ;
 				XmlCursor cursor = vvt.newCursor() ;
 				try {
 					cursor.removeXml() ;
@@ -469,228 +1432,239 @@ public class ParticipantCompositor {
 					cursor.dispose() ;
 				}				
 			}
-			if (log.isTraceEnabled()) exitTrace("SwappablePair.deleteVars()");
 			return clones ;
 		}
 		
-		private void updateVars( ValueSetType valueSetType, ArrayList<VariableValueType> clones ) {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.updateVars()");
-			
+		void updateVars( ValueSetDocument valueSetDoc, ArrayList<VariableValueType> clones ) {
+			ValueSetIndex index = getIndex( valueSetDoc ) ;
+			ValueSetType valueSetType = valueSetDoc.getValueSet() ;
 			Iterator<VariableValueType> it = clones.listIterator() ;
 			while( it.hasNext() ) {
 				VariableValueType vvt = it.next() ;
 				VariableValueType nvvt = valueSetType.addNewVariableValue() ;
 				nvvt.set( vvt ) ;
+				index.add( nvvt ) ;
 			}
 			
-			if (log.isTraceEnabled()) exitTrace("SwappablePair.updateVars()");
+		}
+		
+		/**
+		 * @param valueSetDoc either document of the pair
+		 * @return the document's variables by name, indexed in one scan on first call.
+		 */
+		ValueSetIndex getIndex( ValueSetDocument valueSetDoc ) {
+			ValueSetIndex index = valueSetDoc == pOneValuesSetDoc ? pOneIndex : pTwoIndex ;
+			if( index == null ) {
+				index = newIndex( valueSetDoc, valueSetDoc.getValueSet().getVariableValueArray() ) ;
+			}
+			return index ;
+		}
+		
+		private ValueSetIndex newIndex( ValueSetDocument valueSetDoc, VariableValueType[] vvta ) {
+			ValueSetIndex index = ValueSetIndex.newInstance( vvta ) ;
+			if( valueSetDoc == pOneValuesSetDoc ) {
+				pOneIndex = index ;
+			}
+			else {
+				pTwoIndex = index ;
+			}
+			return index ;
 		}
 		
 		
 		
-		private ArrayList<VariableValueType> getSwappableVars( ValueSetDocument valueSetDoc
-				                                             , SelectType select ) throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.getSwappableVars()");
-			ArrayList<VariableValueType> vars = new ArrayList<VariableValueType>();
+		/**
+		 * The document's one scan also builds its index, if not already built.
+		 * 
+		 * @param valueSetDoc
+		 * @return the selected variables of the document, one list per select.
+		 */
+		ArrayList<ArrayList<VariableValueType>> getSwappableVars( ValueSetDocument valueSetDoc ) throws ProcessException {
+			ArrayList<ArrayList<VariableValueType>> vars = new ArrayList<ArrayList<VariableValueType>>( selection.size() ) ;
+			for( int i=0; i<selection.size(); i++ ) {
+				vars.add( new ArrayList<VariableValueType>() ) ;
+			}
 			VariableValueType[] vvta = valueSetDoc.getValueSet().getVariableValueArray() ;
+			if( ( valueSetDoc == pOneValuesSetDoc ? pOneIndex : pTwoIndex ) == null ) {
+				newIndex( valueSetDoc, vvta ) ;
+			}
 			for( VariableValueType vvt : vvta) {
-				String varName = vvt.getVariable() ;
-				if( isSwappable( varName, select ) ) {
-					vars.add( vvt ) ;
+				int selectIndex = selection.getSelectIndex( vvt.getVariable() ) ;
+				if( selectIndex != SelectionTable.NOT_SELECTED ) {
+					vars.get( selectIndex ).add( vvt ) ;
 				}
 			}
-			if (log.isTraceEnabled()) exitTrace("SwappablePair.getSwappableVars()");
 			return vars ;
 		}
 		
-		private boolean isSwappable( String varName, SelectType select ) {
-			if (log.isTraceEnabled()) enterTrace("SwappablePair.isSwappable()");
-			if( log.isDebugEnabled() ) {
-				log.debug( "varName: " + varName ) ;
-			}
-			String[] hints = select.getHintArray() ;
-			String[] excludes = select.getExcludeArray() ;
-			String[] explicitIncludes = select.getExplicitArray() ;
-			try {
-				//
-				// Check for explicit inclusion first
-				// If allowed, this will override hints and excludes...
-				for( int i=0; i<explicitIncludes.length; i++ ) {
-					if( varName.equals( explicitIncludes[i] ) ) {
-						if( log.isDebugEnabled() ) {
-							log.debug( "returned true" ) ;
-						}
-						return true ;
-					}
-				}
-				//
-				// Hints and excludes work in tandem...
-				outerLoop: for( int i=0; i<hints.length; i++ ) {
-					if( varName.contains( hints[i] ) ) {
-						for( int j=0; j<excludes.length; j++ ) {
-							if( varName.contains( excludes[j] ) ) {
-								continue outerLoop ;
-							}
-						}
-						if( log.isDebugEnabled() ) {
-							log.debug( "returned true" ) ;
-						}
-						return true ;
-					}
-				}
-				if( log.isDebugEnabled() ) {
-					log.debug( "returned false" ) ;
-				}
-				return false ;				
+		private int count( ArrayList<ArrayList<VariableValueType>> vars ) {
+			int count = 0 ;
+			for( ArrayList<VariableValueType> list : vars ) {
+				count += list.size() ;
 			}
-			finally {
-				if (log.isTraceEnabled()) exitTrace("SwappablePair.isSwappable()");
-			}		
-			
+			return count ;
 		}
 		
 	} // end of class SwappablePair
 	
 	/**
+	 * Compact registry entry for a participant: the entity id, data file name and gender code.
+	 * The participant's value set is only streamed as far as the gender variable
+	 * and is never held in memory.
+	 * 
 	 * @author jeff
 	 *
 	 */
 	public class Participant {
 		
 		public String id ;
-		public String gender ;
-		public File dataFile ;
-		public ValueSetType valueSet ;
+		public Gender gender ;
+		public String fileName ;
 		
-		public Participant( String id, File dataFile ) throws ProcessException {
+		public Participant( String id, String fileName ) throws ProcessException {
 			this.id = id ;
-			this.dataFile = dataFile ;
-			this.valueSet = getValueSet( dataFile ).getValueSet() ;
+			this.fileName = fileName ;
+			this.gender = Gender.fromValue( scanGender() ) ;
 		}
 		
-		public String getGender() {
-			if( gender == null ) {
-				gender = getValue( valueSet, "Admin.Participant.gender" ) ;
+		private String scanGender() throws ProcessException {
+			InputStream in = index.open( ExportIndex.PARTICIPANTS, fileName ) ;
+			try {
+				return ValueSetScanner.scanValues( in, Collections.singleton( GENDER_VARIABLE ) ).get( GENDER_VARIABLE ) ;
+			}
+			catch( XMLStreamException xsx ) {
+				throw new ProcessException( "Could not scan data file: " + ExportIndex.PARTICIPANTS + "/" + fileName, xsx ) ;
+			}
+			finally {
+				IOUtil.closeQuietly( in ) ;
 			}
+		}
+		
+		public Gender getGender() {
 			return gender ;
 		}
 		
-		public File getDataFile() {
-			return dataFile;
+		public String getFileName() {
+			return fileName;
 		}
 		
-		/**
-		 * We need to remove all files and references to this participant.
-		 */
-		public void delete() throws ProcessException {
-			if (log.isTraceEnabled()) enterTrace("Participant.delete()");
-			try {
-				File[] directories = exportDirectory.listFiles() ;
-				//
-				// For all questionnaire directories within the export directory...
-				for (File directory : directories) {
-					if( !directory.isDirectory() ) {
-						continue ;
-					}
-					if( log.isDebugEnabled() ) {
-						log.debug( "file: " + directory.getName() ) ;
-					}
-					File[] files = directory.listFiles();
-					//
-					// For all "ordinary" files within a questionnaire directory...
-					for( int j=0; j<files.length; j++ ) {
-//						if( log.isDebugEnabled() ) {
-//							log.debug( "file: " + j ) ;
-//						}
-						//
-						// The entities.xml file.
-						// We remove the relevant entry and update the file...
-						if( files[j].getName().equals( "entities.xml" ) ) {
-							EntitiesDocument ed = getEntity( files[j] ) ;
-							EntryType[] eta = ed.getEntities().getMap().getEntryArray() ;
-							for( int i=0; i<eta.length; i++ ) {
-								if( eta[i].getStringArray(0).equals(id) ) {
-									if( eta[i].getStringArray(1).equals( dataFile.getName() ) ) {
-										ed.getEntities().getMap().removeEntry(i) ;
-										// need to write out the file here!
-										saveEntitiesDoc( ed, files[j] ) ;
-									}
-									else {
-										// throw an exception here!
-										log.error( "Integrity issue with entities.xml file" ) ;
-									}
-								}
-							}
-						}
-						//
-						// A data file (eg: 0000001.xml).
-						// When we find the correct one, we delete it...
-						else if( files[j].getName().equals( dataFile.getName() ) ) {
-							files[j].delete() ;
-						}
-					}
+	} // end of class Participant
+
+	/**
+	 * Gender codes as recorded against Admin.Participant.gender.
+	 */
+	public enum Gender {
+		
+		MALE, FEMALE, UNKNOWN ;
+		
+		public static Gender fromValue( String value ) {
+			if( value != null ) {
+				if( value.equalsIgnoreCase( "MALE" ) ) {
+					return MALE ;
+				}
+				else if( value.equalsIgnoreCase( "FEMALE" ) ) {
+					return FEMALE ;
 				}
-				dataFile = null ;
 			}
-			finally {
-				if (log.isTraceEnabled()) exitTrace("Participant.delete()");
-			}			
+			return UNKNOWN ;
 		}
 		
-		public void saveEntitiesDoc( EntitiesDocument ed, File file ) throws ProcessException {
-			if (log.isTraceEnabled()) exitTrace("Participant.saveEntitiesDoc()");
-			try {		
-				XmlOptions opts = getEntitySaveOptions() ;
-				ed.save( file, opts ) ;
-			}
-			catch( Exception iox ) {
-				String message = "Save entities file failed: " + file.getAbsolutePath() ;
-				throw new ProcessException( message, iox ) ;			
-			}
-			finally { 
-				if( log.isTraceEnabled() ) exitTrace( "Participant.saveEntitiesDoc()" ) ;
-			}
-		}
-		
-	    /**
-	     * Returns the <code>XmlOptions</code> required to produce
-	     * a text representation of the emitted XML.
-	     * 
-	     * @return XmlOptions
-	     */
-	    private XmlOptions getEntitySaveOptions() {
-	        XmlOptions opts = new XmlOptions();
-	        opts.setSaveOuter() ;
-	        opts.setSaveNamespacesFirst() ;
-	        opts.setSaveAggressiveNamespaces() ;  
-	        
-	        HashMap<String, String> suggestedPrefixes = new HashMap<String, String>();
-	        suggestedPrefixes.put("http://brisskit.org/xml/onyx-entities/v1.0/oe", "oe");
-	        opts.setSaveSuggestedPrefixes(suggestedPrefixes);
-	              
-	        opts.setSavePrettyPrint() ;
-	        opts.setSavePrettyPrintIndent( 3 ) ; 
-	        return opts ;
-	    }
-		
-	} // end of class Participant
+	}
+
+	/**
+	 * The available means of swapping the variables of a matched pair.
+	 * XMLBEANS loads both files as documents; STAX streams them; 
+	 * SPLICE cuts and splices their bytes.
+	 */
+	public enum Engine {
+		XMLBEANS, STAX, SPLICE ;
+	}
 
+	/**
+	 * The available layouts of saved documents. PRETTY indents each element
+	 * on its own line; COMPACT saves without any added whitespace.
+	 */
+	public enum Format {
+		PRETTY, COMPACT ;
+	}
+
+	/**
+	 * The available parsers of the documents loaded through XMLBeans (see {@link DocumentParser}).
+	 * XMLBEANS is the parser built into XMLBeans; SAX and STAX the platform's.
+	 */
+	public enum Parser {
+		XMLBEANS, SAX, STAX ;
+	}
+
+	/**
+	 * The duration of one phase of a run and the number of items it dealt with.
+	 */
+	public static class Phase {
+		
+		private final String name ;
+		private final long elapsed ;
+		private final long count ;
+		private final String unit ;
+		
+		public Phase( String name, long elapsed, long count, String unit ) {
+			this.name = name ;
+			this.elapsed = elapsed ;
+			this.count = count ;
+			this.unit = unit ;
+		}
+		
+		public String getName() {
+			return name ;
+		}
+		
+		/**
+		 * @return milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed ;
+		}
+		
+		public long getCount() {
+			return count ;
+		}
+		
+		public String getUnit() {
+			return unit ;
+		}
+		
+		/**
+		 * @return items per second
+		 */
+		public double getRate() {
+			return count / ( Math.max( elapsed, 1 ) / 1000.0 ) ;
+		}
+		
+		public String toString() {
+			return String.format( "%s: %d %s in %.3fs (%.1f %s/s)", name, count, unit, elapsed / 1000.0, getRate(), unit ) ;
+		}
+		
+	}
+	
+	/**
+	 * Two participants, identified by entity id, whose data is swapped
+	 * in every questionnaire.
+	 */
 	public class MatchedPair {
 		
-		protected String fileOneName ;
-		protected String fileTwoName ;
+		protected String idOne ;
+		protected String idTwo ;
 		
-		public MatchedPair( File fileOne, File fileTwo ) {
-			this.fileOneName = fileOne.getName() ;
-			this.fileTwoName = fileTwo.getName() ;
+		public MatchedPair( String idOne, String idTwo ) {
+			this.idOne = idOne ;
+			this.idTwo = idTwo ;
 		}
 		
-		public String getPartnerFileName( File key ) throws ProcessException {
-			if( fileOneName.equals( key.getName() ) ) {
-				return fileTwoName ;
+		public String getPartnerId( String id ) throws ProcessException {
+			if( idOne.equals( id ) ) {
+				return idTwo ;
 			}
-			else if( fileTwoName.equals( key.getName() ) ) {
-				return fileOneName ;
+			else if( idTwo.equals( id ) ) {
+				return idOne ;
 			}
 			throw new ProcessException( "Integrity issues with MatchedPair" ) ;
 		}
@@ -708,6 +1682,8 @@ public class ParticipantCompositor {
 		 * 
 		 */
 		private static final long serialVersionUID = 1L;
+		
+		private List<Throwable> failures = Collections.emptyList() ;
 
 		public ProcessException( String message ) {
     		super( message ) ;
@@ -717,6 +1693,18 @@ public class ParticipantCompositor {
     		super( message, cause ) ;
     	}
     	
+    	/**
+    	 * Aggregates a number of independent failures. The first becomes the cause.
+    	 */
+    	public ProcessException( String message, List<Throwable> failures ) {
+    		super( message, failures.isEmpty() ? null : failures.get(0) ) ;
+    		this.failures = failures ;
+    	}
+    	
+    	public List<Throwable> getFailures() {
+    		return failures ;
+    	}
+    	
     }
 	
 	public static class Factory {
@@ -724,17 +1712,47 @@ public class ParticipantCompositor {
 		public static ParticipantCompositor newInstance( String[] args ) throws FactoryException {
 			
 			File exportDirectory = null ;
+			ArrayList<File> exports = new ArrayList<File>() ;
+			File inbox = null ;
+			File output = null ;
+			File outputArchive = null ;
+			File outputDirectory = null ;
 			OnyxExportConfigDocument config = null ;
+			int threads = 1 ;
+			File cacheDirectory = null ;
+			Engine engine = Engine.XMLBEANS ;
+			Format format = Format.PRETTY ;
+			Parser parser = Parser.XMLBEANS ;
+			Long seed = null ;
+			boolean resume = false ;
+			File metricsFile = null ;
+			File planFile = null ;
+			File applyFile = null ;
+			File manifestFile = null ;
+			int queueCapacity = Pipeline.DEFAULT_CAPACITY ;
+			Shard shard = null ;
+			boolean saveIndexes = false ;
+			File verifyExport = null ;
+			boolean threadsGiven = false ;
 
 			if( args != null && args.length > 0 ) {
 
 				for( int i=0; i<args.length; i++ ) {
 
-					if( args[i].startsWith( "-export=" ) && exportDirectory == null ) { 
-						exportDirectory = newExportDirectory( args[i].substring(8) ) ;
+					if( args[i].startsWith( "-export=" ) ) { 
+						exports.add( newExportDirectory( args[i].substring(8) ) ) ;
 					}
-					else if( args[i].startsWith( "-e=" ) && exportDirectory == null ) { 
-						exportDirectory = newExportDirectory( args[i].substring(3) ) ;
+					else if( args[i].startsWith( "-e=" ) ) { 
+						exports.add( newExportDirectory( args[i].substring(3) ) ) ;
+					}
+					else if( args[i].startsWith( "-inbox=" ) && inbox == null ) { 
+						inbox = newInbox( args[i].substring(7) ) ;
+					}
+					else if( args[i].startsWith( "-output=" ) && output == null ) { 
+						output = new File( args[i].substring(8) ) ;
+					}
+					else if( args[i].startsWith( "-o=" ) && output == null ) { 
+						output = new File( args[i].substring(3) ) ;
 					}
 					else if( args[i].startsWith( "-config=" ) && config == null ) { 
 						config = newConfiguration( args[i].substring(8) ) ;
@@ -742,29 +1760,388 @@ public class ParticipantCompositor {
 					else if( args[i].startsWith( "-c=" ) && config == null ) { 
 						config = newConfiguration( args[i].substring(3) ) ;
 					}
+					else if( args[i].startsWith( "-threads=" ) ) { 
+						threads = newThreads( args[i].substring(9) ) ;
+						threadsGiven = true ;
+					}
+					else if( args[i].startsWith( "-t=" ) ) { 
+						threads = newThreads( args[i].substring(3) ) ;
+						threadsGiven = true ;
+					}
+					else if( args[i].startsWith( "-queue=" ) ) { 
+						queueCapacity = newQueueCapacity( args[i].substring(7) ) ;
+					}
+					else if( args[i].startsWith( "-q=" ) ) { 
+						queueCapacity = newQueueCapacity( args[i].substring(3) ) ;
+					}
+					else if( args[i].startsWith( "-cache=" ) && cacheDirectory == null ) { 
+						cacheDirectory = newCacheDirectory( args[i].substring(7) ) ;
+					}
+					else if( args[i].startsWith( "-engine=" ) ) { 
+						engine = newEngine( args[i].substring(8) ) ;
+					}
+					else if( args[i].startsWith( "-format=" ) ) { 
+						format = newFormat( args[i].substring(8) ) ;
+					}
+					else if( args[i].startsWith( "-f=" ) ) { 
+						format = newFormat( args[i].substring(3) ) ;
+					}
+					else if( args[i].startsWith( "-parser=" ) ) { 
+						parser = newParser( args[i].substring(8) ) ;
+					}
+					else if( args[i].startsWith( "-seed=" ) ) { 
+						seed = newSeed( args[i].substring(6) ) ;
+					}
+					else if( args[i].startsWith( "-s=" ) ) { 
+						seed = newSeed( args[i].substring(3) ) ;
+					}
+					else if( args[i].equals( "-resume" ) || args[i].equals( "-r" ) ) { 
+						resume = true ;
+					}
+					else if( args[i].startsWith( "-metrics=" ) ) { 
+						metricsFile = new File( args[i].substring(9) ) ;
+					}
+					else if( args[i].startsWith( "-m=" ) ) { 
+						metricsFile = new File( args[i].substring(3) ) ;
+					}
+					else if( args[i].equals( "-index" ) ) { 
+						saveIndexes = true ;
+					}
+					else if( args[i].startsWith( "-shard=" ) && shard == null ) { 
+						shard = newShard( args[i].substring(7) ) ;
+					}
+					else if( args[i].startsWith( "-verify=" ) && verifyExport == null ) { 
+						verifyExport = newVerifyExport( args[i].substring(8) ) ;
+					}
+					else if( args[i].startsWith( "-manifest=" ) && manifestFile == null ) { 
+						manifestFile = newManifestFile( args[i].substring(10) ) ;
+					}
+					else if( args[i].startsWith( "-plan=" ) && planFile == null ) { 
+						planFile = newPlanFile( args[i].substring(6) ) ;
+					}
+					else if( args[i].startsWith( "-p=" ) && planFile == null ) { 
+						planFile = newPlanFile( args[i].substring(3) ) ;
+					}
+					else if( args[i].startsWith( "-apply=" ) && applyFile == null ) { 
+						applyFile = newApplyFile( args[i].substring(7) ) ;
+					}
+					else if( args[i].startsWith( "-a=" ) && applyFile == null ) { 
+						applyFile = newApplyFile( args[i].substring(3) ) ;
+					}
 				}
 			}
 			
-			if( exportDirectory == null ) {
+			Batch batch = null ;
+			if( exports.size() == 1 ) {
+				exportDirectory = exports.get( 0 ) ;
+			}
+			if( inbox != null || exports.size() > 1 ) {
+				batch = newBatch( exports
+						        , inbox
+						        , output
+						        , config
+						        , planFile != null || applyFile != null || verifyExport != null || manifestFile != null 
+						          || shard != null || resume || saveIndexes || metricsFile != null ) ;
+				exportDirectory = null ;
+				output = null ;
+			}
+			else if( exportDirectory == null ) {
 				throw new FactoryException( "Export directory path missing." ) ;
 			}
-			else if( config == null ) {
+			else if( config == null && applyFile == null ) {
 				throw new FactoryException( "Configuration path missing." ) ;
 			}
+			else if( planFile != null && applyFile != null ) {
+				throw new FactoryException( "Plan and apply parameters are alternatives; give one or the other." ) ;
+			}
+			else if( planFile != null && ( resume || output != null ) ) {
+				throw new FactoryException( "Resume and output parameters do not apply to planning." ) ;
+			}
+			else if( verifyExport != null && ( planFile != null || shard != null || resume || manifestFile != null || saveIndexes || output != null ) ) {
+				throw new FactoryException( "Plan, shard, resume, manifest, index and output parameters do not apply to verification." ) ;
+			}
+			else if( verifyExport != null && seed == null && applyFile == null ) {
+				throw new FactoryException( "Verify parameter requires the plan applied, or the seed used, so that the pairs composed can be formed again." ) ;
+			}
+			else if( verifyExport != null && verifyExport.getAbsoluteFile().equals( exportDirectory.getAbsoluteFile() ) ) {
+				throw new FactoryException( "Verify path must not be the export itself." ) ;
+			}
+			else if( exportDirectory.isFile() && output == null && planFile == null && verifyExport == null ) {
+				throw new FactoryException( "Output path missing. An export zip file requires an output zip file." ) ;
+			}
+			else if( exportDirectory.isFile() && resume ) {
+				throw new FactoryException( "Resume parameter only applies to an expanded export." ) ;
+			}
+			else if( output != null && output.getAbsoluteFile().equals( exportDirectory.getAbsoluteFile() ) ) {
+				throw new FactoryException( "Output path must not be the export itself." ) ;
+			}
+			else if( manifestFile != null && ( !exportDirectory.isFile() || planFile != null ) ) {
+				throw new FactoryException( "Manifest parameter only applies to composing an export zip file." ) ;
+			}
+			else if( shard != null && ( !exportDirectory.isDirectory() || planFile != null || output != null ) ) {
+				throw new FactoryException( "Shard parameter only applies to composing an expanded export in place." ) ;
+			}
+			else if( saveIndexes && ( engine != Engine.SPLICE || !exportDirectory.isDirectory() || planFile != null ) ) {
+				throw new FactoryException( "Index parameter only applies to the splice engine, composing an expanded export." ) ;
+			}
+			else if( shard != null && seed == null && applyFile == null ) {
+				throw new FactoryException( "Shard parameter requires a plan to apply, or a seed, so that every shard forms the same pairs." ) ;
+			}
+			//
+			// The output is a zip file or a directory, as the export is...
+			if( output != null && exportDirectory.isFile() ) {
+				outputArchive = newOutputArchive( output ) ;
+			}
+			else if( output != null ) {
+				outputDirectory = newOutputDirectory( output, exportDirectory, resume ) ;
+			}
+
+			if( ( applyFile != null || verifyExport != null ) && !threadsGiven ) {
+				//
+				// Applying a plan is I/O bound, and verifying is hashing,
+				// so by default each uses all the processors...
+				threads = Runtime.getRuntime().availableProcessors() ;
+			}
 
 			ParticipantCompositor pc = new ParticipantCompositor() ;
 			pc.setExportDirectory( exportDirectory ) ;
+			pc.setOutputArchive( outputArchive ) ;
+			pc.setOutputDirectory( outputDirectory ) ;
 			pc.setConfig( config ) ;
+			pc.setThreads( threads ) ;
+			pc.setCacheDirectory( cacheDirectory ) ;
+			pc.setEngine( engine ) ;
+			pc.setFormat( format ) ;
+			pc.setParser( parser ) ;
+			pc.setSeed( seed ) ;
+			pc.setResume( resume ) ;
+			pc.setMetricsFile( metricsFile ) ;
+			pc.setPlanFile( planFile ) ;
+			pc.setApplyFile( applyFile ) ;
+			pc.setManifestFile( manifestFile ) ;
+			pc.setQueueCapacity( queueCapacity ) ;
+			pc.setShard( shard ) ;
+			pc.setSaveIndexes( saveIndexes ) ;
+			pc.setVerifyExport( verifyExport ) ;
+			pc.setBatch( batch ) ;
 			return pc ;
 		}
 		
+		private static Batch newBatch( List<File> exports
+				                     , File inbox
+				                     , File output
+				                     , OnyxExportConfigDocument config
+				                     , boolean singleExportOptions ) throws FactoryException {
+			if( inbox != null && !exports.isEmpty() ) {
+				throw new FactoryException( "Inbox and export parameters are alternatives; give one or the other." ) ;
+			}
+			else if( config == null ) {
+				throw new FactoryException( "Configuration path missing." ) ;
+			}
+			else if( singleExportOptions ) {
+				throw new FactoryException( "Plan, apply, verify, manifest, shard, resume, index and metrics parameters do not apply to a batch of exports." ) ;
+			}
+			else if( inbox != null && output == null ) {
+				throw new FactoryException( "Output path missing. An inbox requires an output directory." ) ;
+			}
+			else if( output != null && output.isFile() ) {
+				throw new FactoryException( "Output parameter refers to a file. A batch of exports requires an output directory." ) ;
+			}
+			else if( inbox != null 
+					 && ( output.getAbsoluteFile().equals( inbox.getAbsoluteFile() )
+					      || output.getAbsolutePath().startsWith( inbox.getAbsolutePath() + File.separator ) ) ) {
+				throw new FactoryException( "Output directory must not be the inbox, nor within it." ) ;
+			}
+			HashSet<String> names = new HashSet<String>() ;
+			for( File export : exports ) {
+				String path = export.getAbsolutePath() ;
+				if( export.isFile() && output == null ) {
+					throw new FactoryException( "Output path missing. An export zip file in a batch requires an output directory: " + path ) ;
+				}
+				if( !names.add( output == null ? path : export.getName() ) ) {
+					throw new FactoryException( "Exports in a batch must be distinct, and composed into an output directory must be differently named: " + path ) ;
+				}
+				if( output != null ) {
+					if( output.getAbsolutePath().startsWith( path + File.separator ) || output.getAbsoluteFile().equals( export.getAbsoluteFile() ) ) {
+						throw new FactoryException( "Output directory must not be within an export: " + path ) ;
+					}
+					if( Batch.getOutput( export, output ).exists() ) {
+						throw new FactoryException( "Output of an export already exists: " + Batch.getOutput( export, output ).getAbsolutePath() ) ;
+					}
+				}
+			}
+			if( output != null && !output.exists() && !output.mkdirs() ) {
+				throw new FactoryException( "Output directory could not be created." ) ;
+			}
+			return inbox != null ? Batch.newInbox( inbox, output ) : Batch.newInstance( exports, output ) ;
+		}
+		
+		private static File newInbox( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( !file.isDirectory() ) {
+				throw new FactoryException( "Inbox parameter does not refer to a directory." ) ;
+			}
+			return file ;
+		}
+		
+		private static Shard newShard( String value ) throws FactoryException {
+			try {
+				return Shard.valueOf( value ) ;
+			}
+			catch( IllegalArgumentException iax ) {
+				throw new FactoryException( "Shard parameter must be of the form i/n, with i from 0 to n: " + value, iax ) ;
+			}
+		}
+		
+		private static int newQueueCapacity( String value ) throws FactoryException {
+			try {
+				int capacity = Integer.parseInt( value ) ;
+				if( capacity < 1 ) {
+					throw new FactoryException( "Queue parameter must be at least 1." ) ;
+				}
+				return capacity ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Queue parameter is not a number.", nfx ) ;
+			}
+		}
+		
+		private static File newManifestFile( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( file.isDirectory() ) {
+				throw new FactoryException( "Manifest parameter refers to a directory." ) ;
+			}
+			if( !file.getAbsoluteFile().getParentFile().isDirectory() ) {
+				throw new FactoryException( "Manifest directory does not exist." ) ;
+			}
+			return file ;
+		}
+		
+		private static File newPlanFile( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( file.isDirectory() ) {
+				throw new FactoryException( "Plan parameter refers to a directory." ) ;
+			}
+			if( !file.getAbsoluteFile().getParentFile().isDirectory() ) {
+				throw new FactoryException( "Plan directory does not exist." ) ;
+			}
+			return file ;
+		}
+		
+		private static File newVerifyExport( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( !file.exists() ) {
+				throw new FactoryException( "Verify parameter does not refer to a composed export." ) ;
+			}
+			return file ;
+		}
+		
+		private static File newApplyFile( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( !file.isFile() ) {
+				throw new FactoryException( "Apply parameter does not refer to a plan file." ) ;
+			}
+			return file ;
+		}
+		
+		private static Long newSeed( String value ) throws FactoryException {
+			try {
+				return Long.valueOf( value ) ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Seed parameter is not a number.", nfx ) ;
+			}
+		}
+		
+		private static Engine newEngine( String value ) throws FactoryException {
+			try {
+				return Engine.valueOf( value.toUpperCase() ) ;
+			}
+			catch( IllegalArgumentException iax ) {
+				throw new FactoryException( "Engine parameter not recognised: " + value, iax ) ;
+			}
+		}
+		
+		private static Format newFormat( String value ) throws FactoryException {
+			try {
+				return Format.valueOf( value.toUpperCase() ) ;
+			}
+			catch( IllegalArgumentException iax ) {
+				throw new FactoryException( "Format parameter not recognised: " + value, iax ) ;
+			}
+		}
+		
+		private static Parser newParser( String value ) throws FactoryException {
+			try {
+				return Parser.valueOf( value.toUpperCase() ) ;
+			}
+			catch( IllegalArgumentException iax ) {
+				throw new FactoryException( "Parser parameter not recognised: " + value, iax ) ;
+			}
+		}
+		
+		private static File newCacheDirectory( String path ) throws FactoryException {
+			File file = new File( path ) ;
+			if( !file.exists() && !file.mkdirs() ) {
+				throw new FactoryException( "Cache directory could not be created." ) ;
+			}
+			if( !file.isDirectory() ) {
+				throw new FactoryException( "Cache parameter does not refer to a directory" ) ;
+			}
+			return file ;
+		}
+		
+		private static int newThreads( String value ) throws FactoryException {
+			try {
+				int threads = Integer.parseInt( value ) ;
+				if( threads < 1 ) {
+					throw new FactoryException( "Threads parameter must be at least 1." ) ;
+				}
+				return threads ;
+			}
+			catch( NumberFormatException nfx ) {
+				throw new FactoryException( "Threads parameter is not a number.", nfx ) ;
+			}
+		}
+		
 		private static File newExportDirectory( String path ) throws FactoryException {
 			File file = new File( path ) ;
 			if( !file.exists() ) {
 				throw new FactoryException( "Export directory does not exist." ) ;
 			}
-			if( !file.isDirectory() ) {
-				throw new FactoryException( "Export parameter does not refer to a directory" ) ;
+			if( !file.isDirectory() 
+				&&
+				!( file.isFile() && file.getName().toLowerCase().endsWith( ".zip" ) ) ) {
+				throw new FactoryException( "Export parameter does not refer to a directory or zip file" ) ;
+			}
+			return file ;
+		}
+		
+		private static File newOutputArchive( File file ) throws FactoryException {
+			if( file.isDirectory() ) {
+				throw new FactoryException( "Output parameter refers to a directory." ) ;
+			}
+			if( !file.getAbsoluteFile().getParentFile().isDirectory() ) {
+				throw new FactoryException( "Output directory does not exist." ) ;
+			}
+			return file ;
+		}
+		
+		private static File newOutputDirectory( File file, File exportDirectory, boolean resume ) throws FactoryException {
+			if( file.isFile() ) {
+				throw new FactoryException( "Output parameter refers to a file. An expanded export requires an output directory." ) ;
+			}
+			if( file.exists() && !resume ) {
+				throw new FactoryException( "Output directory already exists. (Give the resume parameter to complete a composition into it.)" ) ;
+			}
+			if( !file.exists() && resume ) {
+				throw new FactoryException( "Output directory does not exist, so there is no composition to resume." ) ;
+			}
+			if( !file.getAbsoluteFile().getParentFile().isDirectory() ) {
+				throw new FactoryException( "Output parent directory does not exist." ) ;
+			}
+			if( file.getAbsolutePath().startsWith( exportDirectory.getAbsolutePath() + File.separator ) ) {
+				throw new FactoryException( "Output directory must not be within the export." ) ;
 			}
 			return file ;
 		}
@@ -841,8 +2218,9 @@ public class ParticipantCompositor {
      * Utility method used to maintain the structured trace log.
      */
     public static void indentMinus() {
-        if( logIndent.length() > 0 ) {
-            getIndent().deleteCharAt( logIndent.length()-1 ) ;
+    	StringBuffer indent = getIndent() ;
+        if( indent.length() > 0 ) {
+            indent.deleteCharAt( indent.length()-1 ) ;
         }
 	}
 	
@@ -850,19 +2228,15 @@ public class ParticipantCompositor {
      * Utility method used for indenting the structured trace log.
      */
     public static StringBuffer getIndent() {
-	    if( logIndent == null ) {
-	       logIndent = new StringBuffer() ;	
-	    }
-	    return logIndent ;	
+	    return logIndent.get() ;	
 	}
     
     @SuppressWarnings("unused")
 	private static void resetIndent() {
-        if( logIndent != null ) { 
-            if( logIndent.length() > 0 ) {
-               logIndent.delete( 0, logIndent.length() )  ;
-            }
-        }   
+    	StringBuffer indent = getIndent() ;
+        if( indent.length() > 0 ) {
+           indent.delete( 0, indent.length() )  ;
+        }
     }
 
 }
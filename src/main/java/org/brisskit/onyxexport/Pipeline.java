@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Takes items through three stages connected by bounded queues: a read stage,
+ * a work stage run by a number of threads, and a write stage. Reading, working
+ * and writing therefore overlap rather than take turns, even with one worker.
+ * <p/>
+ * The capacity of the queues bounds the items held between stages, and so the memory
+ * held by items in flight: at most the capacity in each of the two queues, plus one item
+ * in the reader, one in the writer and one in each worker.
+ * <p/>
+ * As with the compositor's other parallel work, every item is taken through. An item
+ * which fails a stage is dropped from the later stages; the failures are logged and then
+ * aggregated into one ProcessException once all the items have been through.
+ *
+ */
+public class Pipeline<T> {
+
+	private static Log log = LogFactory.getLog( Pipeline.class ) ;
+
+	public static final int DEFAULT_CAPACITY = 8 ;
+
+	/**
+	 * One stage's processing of an item.
+	 */
+	public interface Stage<T> {
+		public void process( T item ) throws Exception ;
+	}
+
+	//
+	// Follows the last item into a queue...
+	private static final Object END = new Object() ;
+
+	private final String description ;
+	private final int capacity ;
+	private final int workers ;
+	private final List<Throwable> failures = new ArrayList<Throwable>() ;
+
+	/**
+	 * @param description used in messages
+	 * @param capacity of each of the two queues
+	 * @param workers the number of threads of the work stage
+	 */
+	public Pipeline( String description, int capacity, int workers ) {
+		this.description = description ;
+		this.capacity = Math.max( 1, capacity ) ;
+		this.workers = Math.max( 1, workers ) ;
+	}
+
+	/**
+	 * Takes the items through the stages, returning once all have been through.
+	 *
+	 * @throws ProcessException if any item failed any stage, or if interrupted.
+	 */
+	public void run( final List<T> items
+			       , final Stage<T> read
+			       , final Stage<T> work
+			       , final Stage<T> write ) throws ProcessException {
+		if( items.isEmpty() ) {
+			return ;
+		}
+		final BlockingQueue<Object> read2work = new ArrayBlockingQueue<Object>( capacity ) ;
+		final BlockingQueue<Object> work2write = new ArrayBlockingQueue<Object>( capacity ) ;
+		final AtomicInteger working = new AtomicInteger( workers ) ;
+		ExecutorService pool = Executors.newFixedThreadPool( workers + 2 ) ;
+		CompletionService<Void> stages = new ExecutorCompletionService<Void>( pool ) ;
+		try {
+			stages.submit( new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					try {
+						for( T item : items ) {
+							if( process( read, item ) ) {
+								read2work.put( item ) ;
+							}
+						}
+					}
+					finally {
+						for( int i=0; i<workers; i++ ) {
+							read2work.put( END ) ;
+						}
+					}
+					return null ;
+				}
+			} ) ;
+			for( int i=0; i<workers; i++ ) {
+				stages.submit( new Callable<Void>() {
+					public Void call() throws InterruptedException {
+						try {
+							Object item ;
+							while( ( item = read2work.take() ) != END ) {
+								if( process( work, cast( item ) ) ) {
+									work2write.put( item ) ;
+								}
+							}
+						}
+						finally {
+							if( working.decrementAndGet() == 0 ) {
+								work2write.put( END ) ;
+							}
+						}
+						return null ;
+					}
+				} ) ;
+			}
+			stages.submit( new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					Object item ;
+					while( ( item = work2write.take() ) != END ) {
+						process( write, cast( item ) ) ;
+					}
+					return null ;
+				}
+			} ) ;
+			//
+			// A stage which dies (rather than an item which fails) would leave
+			// the others blocked on its queue, so all are stopped...
+			for( int i=0; i<workers+2; i++ ) {
+				try {
+					stages.take().get() ;
+				}
+				catch( ExecutionException eex ) {
+					pool.shutdownNow() ;
+					throw new ProcessException( "Failure during " + description, eex.getCause() ) ;
+				}
+			}
+		}
+		catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt() ;
+			throw new ProcessException( "Interrupted during " + description, iex ) ;
+		}
+		finally {
+			pool.shutdownNow() ;
+		}
+		if( !failures.isEmpty() ) {
+			for( Throwable t : failures ) {
+				log.error( "Failure during " + description + ": " + t.getMessage(), t ) ;
+			}
+			throw new ProcessException( failures.size() + " of " + items.size() + " items failed during " + description, failures ) ;
+		}
+	}
+
+	/**
+	 * @return true if the stage processed the item; false if it failed.
+	 */
+	private boolean process( Stage<T> stage, T item ) {
+		try {
+			stage.process( item ) ;
+			return true ;
+		}
+		catch( Exception ex ) {
+			synchronized( failures ) {
+				failures.add( ex ) ;
+			}
+			return false ;
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private T cast( Object item ) {
+		return (T)item ;
+	}
+
+}
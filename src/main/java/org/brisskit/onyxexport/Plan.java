@@ -0,0 +1,320 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * The swap plan of a run, formed once over an export and applied later (see -plan and -apply).
+ * <p/>
+ * A plan holds everything decided before the export is altered: the seed, the participants
+ * to be deleted, the matched pairs, and for each questionnaire with a swap section its
+ * select constructs together with the variables already resolved as selected. Applying a plan
+ * therefore needs neither the config file nor a second pass over each questionnaire's variables.
+ * Any variable the plan does not list is resolved against the recorded selects, as it would
+ * have been when planning.
+ * <p/>
+ * Lines are tab separated, in the manner of the journal:
+ * <pre>
+ * F  format-version
+ * S  seed
+ * D  participant-id
+ * M  participant-id  participant-id
+ * Q  questionnaire  number-of-selects
+ * H  select-index  hint            (of the questionnaire above)
+ * X  select-index  exclude
+ * E  select-index  explicit
+ * V  select-index  variable-name   (a selected variable)
+ * </pre>
+ *
+ */
+public class Plan {
+
+	public static final int FORMAT_VERSION = 1 ;
+
+	private static final String FORMAT = "F" ;
+	private static final String SEED = "S" ;
+	private static final String DELETION = "D" ;
+	private static final String MATCHED_PAIR = "M" ;
+	private static final String QUESTIONNAIRE = "Q" ;
+	private static final String HINT = "H" ;
+	private static final String EXCLUDE = "X" ;
+	private static final String EXPLICIT = "E" ;
+	private static final String VARIABLE = "V" ;
+
+	private final long seed ;
+	private final LinkedHashSet<String> deletions ;
+	private final List<String[]> pairs ;
+	private final LinkedHashMap<String,SelectionTable> selections ;
+
+	private Plan( long seed
+			    , LinkedHashSet<String> deletions
+			    , List<String[]> pairs
+			    , LinkedHashMap<String,SelectionTable> selections ) {
+		this.seed = seed ;
+		this.deletions = deletions ;
+		this.pairs = pairs ;
+		this.selections = selections ;
+	}
+
+	/**
+	 * @param seed the seed with which the pairs were formed
+	 * @param deletions ids of the participants to be deleted
+	 * @param matchedPairs the matched pairs
+	 * @param selections selection table by questionnaire
+	 * @return the plan
+	 */
+	public static Plan newInstance( long seed
+			                      , Collection<String> deletions
+			                      , Collection<MatchedPair> matchedPairs
+			                      , LinkedHashMap<String,SelectionTable> selections ) {
+		ArrayList<String[]> pairs = new ArrayList<String[]>( matchedPairs.size() ) ;
+		for( MatchedPair mp : matchedPairs ) {
+			pairs.add( new String[] { mp.idOne, mp.idTwo } ) ;
+		}
+		return new Plan( seed, new LinkedHashSet<String>( deletions ), pairs, selections ) ;
+	}
+
+	public long getSeed() {
+		return seed ;
+	}
+
+	/**
+	 * @return the ids of the participants to be deleted.
+	 */
+	public LinkedHashSet<String> getDeletions() {
+		return deletions ;
+	}
+
+	/**
+	 * @return the matched pairs, each as an array of the two participant ids.
+	 */
+	public List<String[]> getPairs() {
+		return pairs ;
+	}
+
+	/**
+	 * @return selection table by questionnaire, in the order planned.
+	 */
+	public LinkedHashMap<String,SelectionTable> getSelections() {
+		return selections ;
+	}
+
+	/**
+	 * @return the number of variables listed as selected, over all questionnaires.
+	 */
+	public int countSelected() {
+		int count = 0 ;
+		for( SelectionTable selection : selections.values() ) {
+			count += selection.getSelected().size() ;
+		}
+		return count ;
+	}
+
+	/**
+	 * Writes the plan. The file is written alongside and renamed into place,
+	 * so that a plan file is always whole.
+	 */
+	public void write( File file ) throws ProcessException {
+		File temp = IOUtil.getTempFile( file ) ;
+		PrintWriter writer = null ;
+		try {
+			writer = new PrintWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ) ) ;
+			line( writer, FORMAT, String.valueOf( FORMAT_VERSION ) ) ;
+			line( writer, SEED, String.valueOf( seed ) ) ;
+			for( String id : deletions ) {
+				line( writer, DELETION, id ) ;
+			}
+			for( String[] pair : pairs ) {
+				line( writer, MATCHED_PAIR, pair[0], pair[1] ) ;
+			}
+			for( SelectionTable selection : selections.values() ) {
+				SelectionMatcher[] matchers = selection.getMatchers() ;
+				line( writer, QUESTIONNAIRE, selection.getQuestionnaire(), String.valueOf( matchers.length ) ) ;
+				for( int i=0; i<matchers.length; i++ ) {
+					String index = String.valueOf( i ) ;
+					for( String hint : matchers[i].getHints() ) {
+						line( writer, HINT, index, hint ) ;
+					}
+					for( String exclude : matchers[i].getExcludes() ) {
+						line( writer, EXCLUDE, index, exclude ) ;
+					}
+					for( String explicit : matchers[i].getExplicits() ) {
+						line( writer, EXPLICIT, index, explicit ) ;
+					}
+				}
+				for( Map.Entry<String,Integer> e : selection.getSelected().entrySet() ) {
+					line( writer, VARIABLE, e.getValue().toString(), e.getKey() ) ;
+				}
+			}
+			writer.close() ;
+			if( writer.checkError() ) {
+				throw new IOException( "Write failed" ) ;
+			}
+			writer = null ;
+			IOUtil.commit( temp, file ) ;
+		}
+		catch( IOException iox ) {
+			IOUtil.closeQuietly( writer ) ;
+			IOUtil.discard( temp ) ;
+			throw new ProcessException( "Could not write plan: " + file.getAbsolutePath(), iox ) ;
+		}
+		catch( ProcessException px ) {
+			IOUtil.closeQuietly( writer ) ;
+			IOUtil.discard( temp ) ;
+			throw px ;
+		}
+	}
+
+	/**
+	 * Reads a plan written by {@link #write(File)}.
+	 */
+	public static Plan read( File file ) throws ProcessException {
+		BufferedReader reader = null ;
+		try {
+			reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) ) ;
+			Long seed = null ;
+			LinkedHashSet<String> deletions = new LinkedHashSet<String>() ;
+			ArrayList<String[]> pairs = new ArrayList<String[]>() ;
+			LinkedHashMap<String,SelectionTable> selections = new LinkedHashMap<String,SelectionTable>() ;
+			SelectsBuilder selects = null ;
+			String line = reader.readLine() ;
+			if( line == null || !line.equals( FORMAT + '\t' + FORMAT_VERSION ) ) {
+				throw new ProcessException( "Not a plan file (or not of format version " + FORMAT_VERSION + "): "
+						                  + file.getAbsolutePath() ) ;
+			}
+			while( ( line = reader.readLine() ) != null ) {
+				if( line.length() == 0 ) {
+					continue ;
+				}
+				String[] fields = line.split( "\t", -1 ) ;
+				String type = fields[0] ;
+				if( SEED.equals( type ) ) {
+					seed = Long.valueOf( fields[1] ) ;
+				}
+				else if( DELETION.equals( type ) ) {
+					deletions.add( fields[1] ) ;
+				}
+				else if( MATCHED_PAIR.equals( type ) ) {
+					pairs.add( new String[] { fields[1], fields[2] } ) ;
+				}
+				else if( QUESTIONNAIRE.equals( type ) ) {
+					if( selects != null ) {
+						selections.put( selects.questionnaire, selects.build() ) ;
+					}
+					selects = new SelectsBuilder( fields[1], Integer.parseInt( fields[2] ) ) ;
+				}
+				else if( selects == null ) {
+					throw new ProcessException( "Plan entry outside a questionnaire: " + line ) ;
+				}
+				else {
+					int index = Integer.parseInt( fields[1] ) ;
+					if( HINT.equals( type ) ) {
+						selects.hints.get( index ).add( fields[2] ) ;
+					}
+					else if( EXCLUDE.equals( type ) ) {
+						selects.excludes.get( index ).add( fields[2] ) ;
+					}
+					else if( EXPLICIT.equals( type ) ) {
+						selects.explicits.get( index ).add( fields[2] ) ;
+					}
+					else if( VARIABLE.equals( type ) ) {
+						selects.selected.put( fields[2], Integer.valueOf( index ) ) ;
+					}
+					else {
+						throw new ProcessException( "Unrecognised plan entry: " + line ) ;
+					}
+				}
+			}
+			if( selects != null ) {
+				selections.put( selects.questionnaire, selects.build() ) ;
+			}
+			if( seed == null ) {
+				throw new ProcessException( "Plan has no seed: " + file.getAbsolutePath() ) ;
+			}
+			return new Plan( seed.longValue(), deletions, pairs, selections ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not read plan: " + file.getAbsolutePath(), iox ) ;
+		}
+		catch( RuntimeException rx ) {
+			throw new ProcessException( "Corrupt plan: " + file.getAbsolutePath(), rx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+		}
+	}
+
+	private static void line( PrintWriter writer, String type, String... fields ) throws ProcessException {
+		writer.print( type ) ;
+		for( String field : fields ) {
+			if( field.indexOf( '\t' ) != -1 || field.indexOf( '\n' ) != -1 || field.indexOf( '\r' ) != -1 ) {
+				throw new ProcessException( "Cannot record a tab or line end in a plan: [" + field + "]" ) ;
+			}
+			writer.print( '\t' ) ;
+			writer.print( field ) ;
+		}
+		writer.print( '\n' ) ;
+	}
+
+	/**
+	 * Gathers the lines of one questionnaire while reading.
+	 */
+	private static class SelectsBuilder {
+
+		final String questionnaire ;
+		final List<List<String>> hints ;
+		final List<List<String>> excludes ;
+		final List<List<String>> explicits ;
+		final TreeMap<String,Integer> selected = new TreeMap<String,Integer>() ;
+
+		SelectsBuilder( String questionnaire, int selectCount ) {
+			this.questionnaire = questionnaire ;
+			this.hints = lists( selectCount ) ;
+			this.excludes = lists( selectCount ) ;
+			this.explicits = lists( selectCount ) ;
+		}
+
+		SelectionTable build() {
+			SelectionMatcher[] matchers = new SelectionMatcher[ hints.size() ] ;
+			for( int i=0; i<matchers.length; i++ ) {
+				matchers[i] = new SelectionMatcher( array( hints.get(i) )
+						                          , array( excludes.get(i) )
+						                          , array( explicits.get(i) ) ) ;
+			}
+			return SelectionTable.newInstance( questionnaire, matchers, selected ) ;
+		}
+
+		private static List<List<String>> lists( int count ) {
+			List<List<String>> lists = new ArrayList<List<String>>( count ) ;
+			for( int i=0; i<count; i++ ) {
+				lists.add( new ArrayList<String>() ) ;
+			}
+			return lists ;
+		}
+
+		private static String[] array( List<String> list ) {
+			return list.toArray( new String[ list.size() ] ) ;
+		}
+
+	}
+
+}
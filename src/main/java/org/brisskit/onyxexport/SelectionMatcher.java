@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.brisskit.export.metadata.config.beans.SelectType;
+
+/**
+ * A select construct from the configuration, compiled once so that variable names
+ * can be tested against it cheaply.
+ * <p/>
+ * Explicit names are held in a hash set. Hints and excludes are each compiled into
+ * a multi-pattern (Aho-Corasick) automaton, so that a variable name is scanned once
+ * for all hints and once for all excludes however many there are.
+ * <p/>
+ * A variable is selected if it is named explicitly, or if it contains
+ * at least one hint and no exclude.
+ *
+ */
+public class SelectionMatcher {
+
+	private final String[] hintArray ;
+	private final String[] excludeArray ;
+	private final String[] explicitArray ;
+	private final HashSet<String> explicits ;
+	private final Automaton hints ;
+	private final Automaton excludes ;
+
+	public SelectionMatcher( SelectType select ) {
+		this( select.getHintArray(), select.getExcludeArray(), select.getExplicitArray() ) ;
+	}
+
+	/**
+	 * @param hints
+	 * @param excludes
+	 * @param explicits
+	 */
+	public SelectionMatcher( String[] hints, String[] excludes, String[] explicits ) {
+		this.hintArray = hints ;
+		this.excludeArray = excludes ;
+		this.explicitArray = explicits ;
+		this.explicits = new HashSet<String>( Arrays.asList( explicits ) ) ;
+		this.hints = new Automaton( hints ) ;
+		this.excludes = new Automaton( excludes ) ;
+	}
+
+	public String[] getHints() {
+		return hintArray ;
+	}
+
+	public String[] getExcludes() {
+		return excludeArray ;
+	}
+
+	public String[] getExplicits() {
+		return explicitArray ;
+	}
+
+	public boolean matches( String variableName ) {
+		//
+		// Check for explicit inclusion first
+		// If allowed, this will override hints and excludes...
+		if( explicits.contains( variableName ) ) {
+			return true ;
+		}
+		//
+		// Hints and excludes work in tandem...
+		return hints.occursIn( variableName ) && !excludes.occursIn( variableName ) ;
+	}
+
+	/**
+	 * Aho-Corasick automaton answering whether any of a set of patterns
+	 * occurs as a substring of a given text.
+	 */
+	static class Automaton {
+
+		private final ArrayList<HashMap<Character,Integer>> transitions = new ArrayList<HashMap<Character,Integer>>() ;
+		private final int[] fail ;
+		private final boolean[] output ;
+
+		Automaton( String[] patterns ) {
+			transitions.add( new HashMap<Character,Integer>() ) ;
+			HashSet<Integer> terminals = new HashSet<Integer>() ;
+			//
+			// Build the trie of patterns...
+			for( String pattern : patterns ) {
+				int state = 0 ;
+				for( int i=0; i<pattern.length(); i++ ) {
+					Character c = Character.valueOf( pattern.charAt(i) ) ;
+					Integer next = transitions.get( state ).get( c ) ;
+					if( next == null ) {
+						next = Integer.valueOf( transitions.size() ) ;
+						transitions.add( new HashMap<Character,Integer>() ) ;
+						transitions.get( state ).put( c, next ) ;
+					}
+					state = next.intValue() ;
+				}
+				terminals.add( Integer.valueOf( state ) ) ;
+			}
+			this.fail = new int[ transitions.size() ] ;
+			this.output = new boolean[ transitions.size() ] ;
+			for( Integer terminal : terminals ) {
+				output[ terminal.intValue() ] = true ;
+			}
+			//
+			// Breadth first, link each state to the longest proper suffix
+			// which is also a trie state, and inherit its output...
+			LinkedList<Integer> queue = new LinkedList<Integer>( transitions.get(0).values() ) ;
+			while( !queue.isEmpty() ) {
+				int state = queue.removeFirst().intValue() ;
+				for( Map.Entry<Character,Integer> e : transitions.get( state ).entrySet() ) {
+					int child = e.getValue().intValue() ;
+					int f = fail[ state ] ;
+					while( f != 0 && !transitions.get( f ).containsKey( e.getKey() ) ) {
+						f = fail[ f ] ;
+					}
+					Integer target = transitions.get( f ).get( e.getKey() ) ;
+					fail[ child ] = ( target == null || target.intValue() == child ) ? 0 : target.intValue() ;
+					output[ child ] = output[ child ] || output[ fail[ child ] ] ;
+					queue.addLast( e.getValue() ) ;
+				}
+			}
+		}
+
+		boolean occursIn( String text ) {
+			//
+			// An empty pattern occurs in everything...
+			if( output[0] ) {
+				return true ;
+			}
+			if( transitions.size() == 1 ) {
+				return false ;
+			}
+			int state = 0 ;
+			for( int i=0; i<text.length(); i++ ) {
+				Character c = Character.valueOf( text.charAt(i) ) ;
+				while( state != 0 && !transitions.get( state ).containsKey( c ) ) {
+					state = fail[ state ] ;
+				}
+				Integer next = transitions.get( state ).get( c ) ;
+				state = ( next == null ) ? 0 : next.intValue() ;
+				if( output[ state ] ) {
+					return true ;
+				}
+			}
+			return false ;
+		}
+
+	}
+
+}
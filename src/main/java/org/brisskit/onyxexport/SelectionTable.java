@@ -0,0 +1,413 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.export.metadata.config.beans.SelectType;
+import org.brisskit.onyxexport.Metrics.Counter;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * The selection constructs of a questionnaire, resolved against the questionnaire's
+ * variables into a table of variable to select index.
+ * <p/>
+ * The table is resolved once per questionnaire from its variables.xml file, so that
+ * selecting the variables of a participant file is one hash lookup per variableValue.
+ * Variables not declared in variables.xml are resolved (and remembered) on first sight.
+ * <p/>
+ * Variables are numbered by the questionnaire's {@link Vocabulary}, and the table is
+ * an array of select index by variable id. A caller holding ids need not look names up.
+ * <p/>
+ * Where a cache directory is given, the resolved table is saved there under a key formed
+ * from the hash of the select constructs and of the variables.xml file, so that later runs
+ * with the same configuration and export can load the table rather than resolve it again.
+ *
+ */
+public class SelectionTable {
+
+	private static Log log = LogFactory.getLog( SelectionTable.class ) ;
+
+	public static final int NOT_SELECTED = -1 ;
+
+	private static final String CACHE_VERSION = "selection-table-1" ;
+	private static final String CACHE_SUFFIX = ".sel" ;
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance() ;
+
+	//
+	// Marks a variable numbered by the vocabulary but not yet resolved...
+	private static final int UNRESOLVED = -2 ;
+	//
+	// The number of variables expected where variables.xml has not been read (eg: the table
+	// was loaded from the cache). Both the vocabulary and the table grow as need be; this
+	// holds the largest questionnaire of the bundled export (1121 variables) without growing...
+	private static final int EXPECTED_VARIABLES = 2048 ;
+
+	private final String questionnaire ;
+	private final SelectionMatcher[] matchers ;
+	private final Vocabulary vocabulary ;
+	//
+	// Written only under the table's lock, and republished on each write,
+	// so that readers need no lock...
+	private volatile int[] selectIndexes ;
+
+	private SelectionTable( String questionnaire, SelectionMatcher[] matchers, int expectedVariables ) {
+		this.questionnaire = questionnaire ;
+		this.matchers = matchers ;
+		this.vocabulary = new Vocabulary( expectedVariables ) ;
+		this.selectIndexes = newSelectIndexes( Math.max( 16, expectedVariables ) ) ;
+	}
+
+	/**
+	 * Rebuilds a table already resolved (eg: as recorded in a plan). Variables not
+	 * among those given are resolved against the matchers on first sight, as usual.
+	 *
+	 * @param questionnaire name of the questionnaire
+	 * @param matchers the compiled select constructs, in order
+	 * @param selected variable name to select index, for the selected variables
+	 * @return the table
+	 */
+	public static SelectionTable newInstance( String questionnaire
+			                                , SelectionMatcher[] matchers
+			                                , Map<String,Integer> selected ) {
+		SelectionTable st = new SelectionTable( questionnaire, matchers, EXPECTED_VARIABLES ) ;
+		for( Map.Entry<String,Integer> e : selected.entrySet() ) {
+			st.put( st.vocabulary.getId( e.getKey() ), e.getValue().intValue() ) ;
+		}
+		Metrics.add( Counter.VARIABLES_MATCHED, selected.size() ) ;
+		return st ;
+	}
+
+	/**
+	 * @param questionnaire name of the questionnaire
+	 * @param selects the select constructs, in order, which apply to the questionnaire
+	 * @param index the export, from which the questionnaire's variables.xml is read
+	 * @param cacheDirectory directory of saved tables; may be null
+	 * @return the resolved table
+	 * @throws ProcessException
+	 */
+	public static SelectionTable newInstance( String questionnaire
+			                                , List<SelectType> selects
+			                                , ExportIndex index
+			                                , File cacheDirectory ) throws ProcessException {
+		return newInstance( questionnaire, selects, compile( selects ), index, cacheDirectory ) ;
+	}
+
+	/**
+	 * As {@link #newInstance(String, List, ExportIndex, File)}, with the select constructs
+	 * already compiled (eg: once for a batch of exports with the same configuration).
+	 *
+	 * @param questionnaire name of the questionnaire
+	 * @param selects the select constructs, in order, which apply to the questionnaire
+	 * @param matchers the select constructs compiled, as by {@link #compile(List)}
+	 * @param index the export, from which the questionnaire's variables.xml is read
+	 * @param cacheDirectory directory of saved tables; may be null
+	 * @return the resolved table
+	 * @throws ProcessException
+	 */
+	public static SelectionTable newInstance( String questionnaire
+			                                , List<SelectType> selects
+			                                , SelectionMatcher[] matchers
+			                                , ExportIndex index
+			                                , File cacheDirectory ) throws ProcessException {
+		if( log.isTraceEnabled() ) ParticipantCompositor.enterTrace( "SelectionTable.newInstance()" ) ;
+		try {
+			if( !index.exists( questionnaire, ExportIndex.VARIABLES_FILE_NAME ) ) {
+				log.info( "No variables.xml for " + questionnaire + "; variables will be resolved as they are met." ) ;
+				return new SelectionTable( questionnaire, matchers, EXPECTED_VARIABLES ) ;
+			}
+			File cacheFile = null ;
+			if( cacheDirectory != null ) {
+				cacheFile = new File( cacheDirectory, questionnaire + "-" + cacheKey( selects, index, questionnaire ) + CACHE_SUFFIX ) ;
+				if( cacheFile.isFile() ) {
+					SelectionTable st = new SelectionTable( questionnaire, matchers, EXPECTED_VARIABLES ) ;
+					if( st.load( cacheFile ) ) {
+						return st ;
+					}
+				}
+			}
+			//
+			// Numbered in declared order, sized to the declared count...
+			ArrayList<String> variableNames = readVariableNames( index, questionnaire ) ;
+			SelectionTable st = new SelectionTable( questionnaire, matchers, variableNames.size() ) ;
+			for( String variableName : variableNames ) {
+				st.getSelectIndex( variableName ) ;
+			}
+			if( cacheFile != null ) {
+				st.save( cacheFile ) ;
+			}
+			return st ;
+		}
+		finally {
+			if( log.isTraceEnabled() ) ParticipantCompositor.exitTrace( "SelectionTable.newInstance()" ) ;
+		}
+	}
+
+	/**
+	 * @param selects the select constructs of a questionnaire, in order
+	 * @return the constructs compiled, in the same order.
+	 */
+	public static SelectionMatcher[] compile( List<SelectType> selects ) {
+		SelectionMatcher[] matchers = new SelectionMatcher[ selects.size() ] ;
+		for( int i=0; i<matchers.length; i++ ) {
+			matchers[i] = new SelectionMatcher( selects.get(i) ) ;
+		}
+		return matchers ;
+	}
+
+	public String getQuestionnaire() {
+		return questionnaire ;
+	}
+
+	/**
+	 * @return the compiled select constructs, in order.
+	 */
+	public SelectionMatcher[] getMatchers() {
+		return matchers ;
+	}
+
+	/**
+	 * @return the numbering of the questionnaire's variables.
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary ;
+	}
+
+	/**
+	 * @return variable name to select index for the variables resolved so far
+	 *         which are selected, in name order.
+	 */
+	public TreeMap<String,Integer> getSelected() {
+		TreeMap<String,Integer> selected = new TreeMap<String,Integer>() ;
+		int[] indexes = selectIndexes ;
+		int size = Math.min( vocabulary.size(), indexes.length ) ;
+		for( int id=0; id<size; id++ ) {
+			if( indexes[id] >= 0 ) {
+				selected.put( vocabulary.getName( id ), Integer.valueOf( indexes[id] ) ) ;
+			}
+		}
+		return selected ;
+	}
+
+	/**
+	 * @return the number of select constructs.
+	 */
+	public int size() {
+		return matchers.length ;
+	}
+
+	/**
+	 * @param variableName
+	 * @return the index of the first select construct which selects the variable,
+	 *         or NOT_SELECTED.
+	 */
+	public int getSelectIndex( String variableName ) {
+		return getSelectIndex( vocabulary.getId( variableName ) ) ;
+	}
+
+	/**
+	 * @param variableId the variable's id within the questionnaire's vocabulary
+	 * @return the index of the first select construct which selects the variable,
+	 *         or NOT_SELECTED.
+	 */
+	public int getSelectIndex( int variableId ) {
+		int[] indexes = selectIndexes ;
+		if( variableId < indexes.length ) {
+			int index = indexes[ variableId ] ;
+			if( index != UNRESOLVED ) {
+				return index ;
+			}
+		}
+		return resolve( variableId ) ;
+	}
+
+	private synchronized int resolve( int variableId ) {
+		int[] indexes = selectIndexes ;
+		if( variableId < indexes.length && indexes[ variableId ] != UNRESOLVED ) {
+			return indexes[ variableId ] ;
+		}
+		String variableName = vocabulary.getName( variableId ) ;
+		int index = NOT_SELECTED ;
+		for( int i=0; i<matchers.length; i++ ) {
+			if( matchers[i].matches( variableName ) ) {
+				index = i ;
+				break ;
+			}
+		}
+		put( variableId, index ) ;
+		if( index != NOT_SELECTED ) {
+			Metrics.increment( Counter.VARIABLES_MATCHED ) ;
+		}
+		return index ;
+	}
+
+	private synchronized void put( int variableId, int index ) {
+		int[] indexes = selectIndexes ;
+		if( variableId >= indexes.length ) {
+			int[] grown = newSelectIndexes( Math.max( variableId + 1, indexes.length * 2 ) ) ;
+			System.arraycopy( indexes, 0, grown, 0, indexes.length ) ;
+			indexes = grown ;
+		}
+		indexes[ variableId ] = index ;
+		selectIndexes = indexes ;
+	}
+
+	private static int[] newSelectIndexes( int length ) {
+		int[] indexes = new int[ length ] ;
+		Arrays.fill( indexes, UNRESOLVED ) ;
+		return indexes ;
+	}
+
+	private boolean load( File cacheFile ) {
+		BufferedReader reader = null ;
+		long matched = 0 ;
+		try {
+			reader = new BufferedReader( new InputStreamReader( new FileInputStream( cacheFile ), "UTF-8" ) ) ;
+			if( !CACHE_VERSION.equals( reader.readLine() ) ) {
+				return false ;
+			}
+			String line ;
+			while( ( line = reader.readLine() ) != null ) {
+				int tab = line.indexOf( '\t' ) ;
+				int index = Integer.parseInt( line.substring( 0, tab ) ) ;
+				put( vocabulary.getId( line.substring( tab+1 ) ), index ) ;
+				if( index != NOT_SELECTED ) {
+					matched++ ;
+				}
+			}
+			Metrics.add( Counter.VARIABLES_MATCHED, matched ) ;
+			if( log.isDebugEnabled() ) {
+				log.debug( "Loaded selection table: " + cacheFile.getAbsolutePath() ) ;
+			}
+			return true ;
+		}
+		catch( Exception ex ) {
+			log.warn( "Ignoring unreadable selection table: " + cacheFile.getAbsolutePath(), ex ) ;
+			selectIndexes = newSelectIndexes( selectIndexes.length ) ;
+			return false ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+		}
+	}
+
+	private void save( File cacheFile ) {
+		File temp = new File( cacheFile.getParentFile(), cacheFile.getName() + ".tmp" ) ;
+		PrintWriter writer = null ;
+		try {
+			writer = new PrintWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ) ) ;
+			writer.print( CACHE_VERSION + "\n" ) ;
+			int[] indexes = selectIndexes ;
+			int size = Math.min( vocabulary.size(), indexes.length ) ;
+			for( int id=0; id<size; id++ ) {
+				if( indexes[id] != UNRESOLVED ) {
+					writer.print( indexes[id] + "\t" + vocabulary.getName( id ) + "\n" ) ;
+				}
+			}
+			writer.close() ;
+			writer = null ;
+			if( !temp.renameTo( cacheFile ) ) {
+				log.warn( "Could not save selection table: " + cacheFile.getAbsolutePath() ) ;
+				temp.delete() ;
+			}
+		}
+		catch( IOException iox ) {
+			log.warn( "Could not save selection table: " + cacheFile.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			if( writer != null ) {
+				writer.close() ;
+				temp.delete() ;
+			}
+		}
+	}
+
+	/**
+	 * @return hex SHA-1 over the select constructs and the content of the variables file.
+	 */
+	private static String cacheKey( List<SelectType> selects, ExportIndex index, String questionnaire ) throws ProcessException {
+		InputStream in = null ;
+		try {
+			MessageDigest md = MessageDigest.getInstance( "SHA-1" ) ;
+			md.update( CACHE_VERSION.getBytes( "UTF-8" ) ) ;
+			for( SelectType select : selects ) {
+				md.update( select.xmlText().getBytes( "UTF-8" ) ) ;
+			}
+			in = index.open( questionnaire, ExportIndex.VARIABLES_FILE_NAME ) ;
+			byte[] buffer = new byte[ 64*1024 ] ;
+			int n ;
+			while( ( n = in.read( buffer ) ) != -1 ) {
+				md.update( buffer, 0, n ) ;
+			}
+			return IOUtil.toHex( md.digest() ) ;
+		}
+		catch( NoSuchAlgorithmException nsax ) {
+			throw new ProcessException( "SHA-1 not available.", nsax ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Something wrong with variables file: " + questionnaire + "/" + ExportIndex.VARIABLES_FILE_NAME, iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+	/**
+	 * @param index the export
+	 * @param questionnaire the questionnaire whose variables.xml file is read
+	 * @return the names of the declared variables, in document order.
+	 */
+	static ArrayList<String> readVariableNames( ExportIndex index, String questionnaire ) throws ProcessException {
+		ArrayList<String> names = new ArrayList<String>() ;
+		InputStream in = null ;
+		XMLStreamReader reader = null ;
+		try {
+			in = index.open( questionnaire, ExportIndex.VARIABLES_FILE_NAME ) ;
+			reader = inputFactory.createXMLStreamReader( in ) ;
+			while( reader.hasNext() ) {
+				if( reader.next() == XMLStreamConstants.START_ELEMENT
+					&&
+					"variable".equals( reader.getLocalName() ) ) {
+					String name = reader.getAttributeValue( null, "name" ) ;
+					if( name != null ) {
+						names.add( name ) ;
+					}
+				}
+			}
+			return names ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Could not parse variables file: " + questionnaire + "/" + ExportIndex.VARIABLES_FILE_NAME, xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+			IOUtil.closeQuietly( in ) ;
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+
+/**
+ * One of a number of shards of a composition of an expanded export (see -shard).
+ * <p/>
+ * The matched pairs are dealt out in turn to shards 1 to n, so that every pair belongs to
+ * exactly one shard. Pairs never share a participant, and so shards never share a file:
+ * separate processes (or machines sharing the export) may each swap their own shard
+ * at the same time. Shard 0 is the final step, run once all of shards 1 to n have
+ * completed: it deletes the participants left out of the pairing, which is the only
+ * work touching the entities.xml files.
+ *
+ */
+public final class Shard {
+
+	private final int index ;
+	private final int count ;
+
+	public Shard( int index, int count ) {
+		if( count < 1 || index < 0 || index > count ) {
+			throw new IllegalArgumentException( "No shard " + index + " of " + count ) ;
+		}
+		this.index = index ;
+		this.count = count ;
+	}
+
+	/**
+	 * @param value of the form i/n
+	 * @return the shard
+	 * @throws IllegalArgumentException if the value is not of that form, or i is not 0 to n.
+	 */
+	public static Shard valueOf( String value ) {
+		int slash = value.indexOf( '/' ) ;
+		if( slash == -1 ) {
+			throw new IllegalArgumentException( "Shard is not of the form i/n: " + value ) ;
+		}
+		return new Shard( Integer.parseInt( value.substring( 0, slash ).trim() )
+				        , Integer.parseInt( value.substring( slash+1 ).trim() ) ) ;
+	}
+
+	public int getIndex() {
+		return index ;
+	}
+
+	public int getCount() {
+		return count ;
+	}
+
+	/**
+	 * @return true if this is the final step rather than a shard of the pairs.
+	 */
+	public boolean isFinal() {
+		return index == 0 ;
+	}
+
+	/**
+	 * @param pairs all the matched pairs, in the order planned
+	 * @return the pairs of this shard; none for the final step.
+	 */
+	public List<MatchedPair> select( List<MatchedPair> pairs ) {
+		ArrayList<MatchedPair> selected = new ArrayList<MatchedPair>( pairs.size() / count + 1 ) ;
+		if( isFinal() ) {
+			return selected ;
+		}
+		for( int i=index-1; i<pairs.size(); i+=count ) {
+			selected.add( pairs.get(i) ) ;
+		}
+		return selected ;
+	}
+
+	public String toString() {
+		return index + "/" + count ;
+	}
+
+}
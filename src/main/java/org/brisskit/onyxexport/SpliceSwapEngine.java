@@ -0,0 +1,334 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Swaps the selected variables of a matched pair of participant files by splicing byte
+ * ranges, as an alternative to parsing them. Each file is scanned once into a
+ * {@link VariableIndex}; each output is then the file's own bytes with its selected
+ * variableValue elements cut out, and the partner's spliced in.
+ * <p/>
+ * The result is that of the stax engine: selected variables are removed from each file
+ * and the partner's are appended, in select order, at the end of the value set, each
+ * preceded by the partner's indentation. Everything else, including the XML declaration
+ * and the quoting of attributes, is kept byte for byte.
+ * <p/>
+ * Files are written from their channels with {@link FileChannel#transferTo}, so that the
+ * bytes kept need not be copied through the heap. Value sets already in memory (eg: entries
+ * of an export zip file) are written from their buffers.
+ *
+ */
+public class SpliceSwapEngine {
+
+	//
+	// The indentation of an element which has none of its own
+	// (as the stax engine assumes)...
+	private static final byte[] NEWLINE = { '\n' } ;
+	private static final int NONE = -1 ;
+
+	/**
+	 * Plans the swap of a pair.
+	 *
+	 * @param one partner one's index
+	 * @param two partner two's index
+	 * @param selection the questionnaire's resolved selects
+	 * @return the splice, or null if neither value set holds a selected variable.
+	 */
+	public static Splice plan( VariableIndex one, VariableIndex two, SelectionTable selection ) {
+		int[] selectsOne = getSelectIndexes( one, selection ) ;
+		int[] selectsTwo = getSelectIndexes( two, selection ) ;
+		int count = count( selectsOne ) + count( selectsTwo ) ;
+		if( count == 0 ) {
+			Metrics.pairUnchanged() ;
+			return null ;
+		}
+		Metrics.pairSwapped( selection.getQuestionnaire(), count ) ;
+		return new Splice( new Side( one, two, selectsOne, selectsTwo, selection.size() )
+				         , new Side( two, one, selectsTwo, selectsOne, selection.size() ) ) ;
+	}
+
+	/**
+	 * Swaps a pair held in memory, from one pair of buffers to a pair of streams.
+	 * No stream is closed. A pair either of which cannot be indexed is swapped by
+	 * the stax engine instead.
+	 *
+	 * @return false if neither value set held a selected variable, in which case
+	 *         the outputs should be discarded.
+	 */
+	public static boolean swap( ByteBuffer inOne
+			                  , ByteBuffer inTwo
+			                  , OutputStream outOne
+			                  , OutputStream outTwo
+			                  , SelectionTable selection ) throws ProcessException, IOException, XMLStreamException {
+		VariableIndex one = VariableIndex.scan( inOne, selection.getVocabulary() ) ;
+		VariableIndex two = VariableIndex.scan( inTwo, selection.getVocabulary() ) ;
+		if( one == null || two == null ) {
+			return StreamingSwapEngine.swap( new ByteArrayInputStream( toArray( inOne ) )
+					                       , new ByteArrayInputStream( toArray( inTwo ) )
+					                       , outOne
+					                       , outTwo
+					                       , selection ) ;
+		}
+		Splice splice = plan( one, two, selection ) ;
+		if( splice == null ) {
+			return false ;
+		}
+		ByteBuffer[] sources = { inOne.slice(), inTwo.slice() } ;
+		splice.one.write( sources, Channels.newChannel( outOne ) ) ;
+		splice.two.write( new ByteBuffer[] { sources[1], sources[0] }, Channels.newChannel( outTwo ) ) ;
+		return true ;
+	}
+
+	/**
+	 * @return the bytes between the buffer's position and limit.
+	 */
+	static byte[] toArray( ByteBuffer buffer ) {
+		byte[] bytes = new byte[ buffer.remaining() ] ;
+		buffer.duplicate().get( bytes ) ;
+		return bytes ;
+	}
+	
+	/**
+	 * @return the select index of each element of the value set, NONE where it is not selected.
+	 */
+	private static int[] getSelectIndexes( VariableIndex index, SelectionTable selection ) {
+		//
+		// Ids are only those of the selection where the index was numbered by its vocabulary...
+		boolean numbered = index.getVocabulary() == selection.getVocabulary() ;
+		int[] selects = new int[ index.size() ] ;
+		for( int i=0; i<selects.length; i++ ) {
+			int select = numbered
+					   ? selection.getSelectIndex( index.getVariableId(i) )
+					   : selection.getSelectIndex( index.getVariable(i) ) ;
+			selects[i] = select == SelectionTable.NOT_SELECTED ? NONE : select ;
+		}
+		return selects ;
+	}
+
+	private static int count( int[] selects ) {
+		int count = 0 ;
+		for( int select : selects ) {
+			if( select != NONE ) {
+				count++ ;
+			}
+		}
+		return count ;
+	}
+
+	/**
+	 * The swap of a pair, as the byte ranges making up each output.
+	 */
+	public static class Splice {
+
+		private final Side one ;
+		private final Side two ;
+
+		private Splice( Side one, Side two ) {
+			this.one = one ;
+			this.two = two ;
+		}
+
+		/**
+		 * Writes partner one's output, from the pair's files.
+		 */
+		public void transferOne( FileChannel inOne, FileChannel inTwo, FileChannel out ) throws IOException {
+			one.transfer( new FileChannel[] { inOne, inTwo }, out ) ;
+		}
+
+		/**
+		 * Writes partner two's output, from the pair's files.
+		 */
+		public void transferTwo( FileChannel inOne, FileChannel inTwo, FileChannel out ) throws IOException {
+			two.transfer( new FileChannel[] { inTwo, inOne }, out ) ;
+		}
+
+		/**
+		 * @return the index of partner one's output, without scanning it.
+		 */
+		public VariableIndex getIndexOne() {
+			return one.index ;
+		}
+
+		/**
+		 * @return the index of partner two's output, without scanning it.
+		 */
+		public VariableIndex getIndexTwo() {
+			return two.index ;
+		}
+
+	}
+
+	/**
+	 * One output of a pair: a list of byte ranges, each of the partner's own file (OWN),
+	 * of its partner's (PARTNER), or the assumed indentation (INDENT).
+	 */
+	private static class Side {
+
+		private static final int OWN = 0 ;
+		private static final int PARTNER = 1 ;
+		private static final int INDENT = 2 ;
+
+		private int[] ranges = new int[ 3 * 16 ] ;
+		private int size = 0 ;
+		private final VariableIndex index ;
+
+		/**
+		 * @param own the index of this partner's file
+		 * @param partner the index of the partner's file
+		 * @param ownSelects select index of each of own's elements
+		 * @param partnerSelects select index of each of partner's elements
+		 * @param selectCount
+		 */
+		private Side( VariableIndex own
+				    , VariableIndex partner
+				    , int[] ownSelects
+				    , int[] partnerSelects
+				    , int selectCount ) {
+			VariableIndex.Builder b = new VariableIndex.Builder( own.getVocabulary() ) ;
+			//
+			// Own content, less the selected elements and the whitespace leading up to each.
+			// Every byte cut so far shifts the elements kept...
+			int from = 0 ;
+			int shift = 0 ;
+			for( int i=0; i<own.size(); i++ ) {
+				if( ownSelects[i] == NONE ) {
+					b.add( own, i, own.getLead(i) - shift, own.getStart(i) - shift, own.getEnd(i) - shift ) ;
+				}
+				else {
+					add( OWN, from, own.getLead(i) ) ;
+					from = own.getEnd(i) ;
+					shift += own.getEnd(i) - own.getLead(i) ;
+				}
+			}
+			add( OWN, from, own.getTrailing() ) ;
+			int position = own.getTrailing() - shift ;
+			//
+			// The partner's selected elements, in select order, each with its indentation...
+			for( int select=0; select<selectCount; select++ ) {
+				for( int i=0; i<partner.size(); i++ ) {
+					if( partnerSelects[i] != select ) {
+						continue ;
+					}
+					int lead = position ;
+					int indent = getIndent( partner, i ) ;
+					if( indent == NONE ) {
+						add( INDENT, 0, NEWLINE.length ) ;
+						position += NEWLINE.length ;
+					}
+					else {
+						add( PARTNER, partner.getLead( indent ), partner.getStart( indent ) ) ;
+						position += partner.getStart( indent ) - partner.getLead( indent ) ;
+					}
+					add( PARTNER, partner.getStart(i), partner.getEnd(i) ) ;
+					b.add( partner, i, lead, position, position + partner.getEnd(i) - partner.getStart(i) ) ;
+					position += partner.getEnd(i) - partner.getStart(i) ;
+				}
+			}
+			//
+			// Own trailing whitespace, end tag and anything after...
+			add( OWN, own.getTrailing(), own.getLength() ) ;
+			this.index = b.build( position
+					            , position + own.getRootEnd() - own.getTrailing()
+					            , position + own.getLength() - own.getTrailing() ) ;
+		}
+
+		/**
+		 * @return the element whose leading whitespace serves as the indentation of the i'th:
+		 *         itself, or else the nearest before it with any; NONE if there is none.
+		 */
+		private static int getIndent( VariableIndex index, int i ) {
+			for( int j=i; j>=0; j-- ) {
+				if( index.getLead(j) < index.getStart(j) ) {
+					return j ;
+				}
+			}
+			return NONE ;
+		}
+
+		private void add( int source, int from, int to ) {
+			if( from >= to ) {
+				return ;
+			}
+			//
+			// Adjacent ranges of the same source are one range...
+			if( size > 0 && ranges[ size-3 ] == source && ranges[ size-1 ] == from && source != INDENT ) {
+				ranges[ size-1 ] = to ;
+				return ;
+			}
+			if( size == ranges.length ) {
+				int[] grown = new int[ size * 2 ] ;
+				System.arraycopy( ranges, 0, grown, 0, size ) ;
+				ranges = grown ;
+			}
+			ranges[ size++ ] = source ;
+			ranges[ size++ ] = from ;
+			ranges[ size++ ] = to ;
+		}
+
+		/**
+		 * Writes the output from the files: own (0) and partner (1).
+		 */
+		private void transfer( FileChannel[] sources, FileChannel out ) throws IOException {
+			long written = 0 ;
+			for( int r=0; r<size; r+=3 ) {
+				int source = ranges[r] ;
+				long position = ranges[r+1] ;
+				long end = ranges[r+2] ;
+				if( source == INDENT ) {
+					written += write( ByteBuffer.wrap( NEWLINE, (int)position, (int)( end - position ) ), out ) ;
+					continue ;
+				}
+				while( position < end ) {
+					long n = sources[ source ].transferTo( position, end - position, out ) ;
+					if( n <= 0 ) {
+						throw new IOException( "Could not transfer bytes " + position + " to " + end ) ;
+					}
+					position += n ;
+					written += n ;
+				}
+			}
+			IOUtil.countOutput( written ) ;
+		}
+
+		/**
+		 * Writes the output from buffers: own (0) and partner (1).
+		 */
+		private void write( ByteBuffer[] sources, WritableByteChannel out ) throws IOException {
+			for( int r=0; r<size; r+=3 ) {
+				int source = ranges[r] ;
+				ByteBuffer range ;
+				if( source == INDENT ) {
+					range = ByteBuffer.wrap( NEWLINE, ranges[r+1], ranges[r+2] - ranges[r+1] ) ;
+				}
+				else {
+					range = sources[ source ].duplicate() ;
+					range.limit( ranges[r+2] ).position( ranges[r+1] ) ;
+				}
+				write( range, out ) ;
+			}
+		}
+
+		private static int write( ByteBuffer range, WritableByteChannel out ) throws IOException {
+			int n = range.remaining() ;
+			while( range.hasRemaining() ) {
+				out.write( range ) ;
+			}
+			return n ;
+		}
+
+	}
+
+}
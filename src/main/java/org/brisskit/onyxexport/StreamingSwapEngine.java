@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Swaps the selected variables of a matched pair of participant files by streaming
+ * both files with StAX, as an alternative to loading them as XMLBeans documents.
+ * <p/>
+ * Each input is read forward once. Unselected content is written straight through to
+ * the corresponding output; only the selected variableValue fragments are buffered.
+ * Once both inputs have been read, each output is completed with its partner's fragments
+ * (in select order) and the closing valueSet tag. Memory per pair is therefore bounded
+ * by the size of the swapped fragments rather than of the documents.
+ * <p/>
+ * The result is the same as the XMLBeans path: selected variables are removed from each
+ * file and the partner's are appended, in select order, at the end of the value set.
+ * Where neither file holds a selected variable, neither is rewritten.
+ * <p/>
+ * Streams are swapped, so that the caller chooses where they come from and go to
+ * (eg: files and the new files alongside them, or entries of an export zip file).
+ *
+ */
+public class StreamingSwapEngine {
+
+	private static Log log = LogFactory.getLog( StreamingSwapEngine.class ) ;
+
+	private static final QName VARIABLE_QNAME = new QName( ValueSetScanner.VARIABLE_ATTRIBUTE ) ;
+
+	private static final XMLInputFactory inputFactory = newInputFactory() ;
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance() ;
+	private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance() ;
+
+	/**
+	 * Swaps the pair from one pair of streams to another. No stream is closed.
+	 *
+	 * @param inOne partner one's value set
+	 * @param inTwo partner two's value set
+	 * @param outOne receives partner one's swapped value set
+	 * @param outTwo receives partner two's swapped value set
+	 * @param selection the questionnaire's resolved selects
+	 * @return false if neither value set held a selected variable, in which case
+	 *         the outputs are incomplete and should be discarded.
+	 * @throws XMLStreamException
+	 */
+	public static boolean swap( InputStream inOne
+			                  , InputStream inTwo
+			                  , OutputStream outOne
+			                  , OutputStream outTwo
+			                  , SelectionTable selection ) throws XMLStreamException {
+		Side one = new Side( inOne, outOne, selection.size() ) ;
+		Side two = new Side( inTwo, outTwo, selection.size() ) ;
+		try {
+			one.stream( selection ) ;
+			two.stream( selection ) ;
+			if( one.isEmpty() && two.isEmpty() ) {
+				Metrics.pairUnchanged() ;
+				return false ;
+			}
+			one.finish( two ) ;
+			two.finish( one ) ;
+			Metrics.pairSwapped( selection.getQuestionnaire(), one.selected + two.selected ) ;
+			return true ;
+		}
+		finally {
+			one.close() ;
+			two.close() ;
+		}
+	}
+
+	/**
+	 * One partner of the pair: its input, its output
+	 * and the fragments selected from it.
+	 */
+	private static class Side {
+
+		private final ArrayList<ArrayList<XMLEvent>> fragments ;
+		private final ArrayList<XMLEvent> trailing = new ArrayList<XMLEvent>() ;
+		private XMLEventReader reader ;
+		private XMLEventWriter writer ;
+		private XMLEvent rootEnd ;
+		private int selected = 0 ;
+
+		private Side( InputStream in, OutputStream out, int selectCount ) throws XMLStreamException {
+			this.fragments = new ArrayList<ArrayList<XMLEvent>>( selectCount ) ;
+			for( int i=0; i<selectCount; i++ ) {
+				fragments.add( new ArrayList<XMLEvent>() ) ;
+			}
+			this.reader = inputFactory.createXMLEventReader( in ) ;
+			this.writer = outputFactory.createXMLEventWriter( out, "UTF-8" ) ;
+		}
+
+		/**
+		 * Copies the input to the output up to (but not including) the closing tag
+		 * of the value set, setting aside the selected variableValue elements.
+		 * Whitespace between the value set's children is held back until the next
+		 * child is known to be kept, so removed elements leave no blank lines.
+		 */
+		private void stream( SelectionTable selection ) throws XMLStreamException {
+			ArrayList<XMLEvent> pending = new ArrayList<XMLEvent>() ;
+			String indent = "\n" ;
+			int depth = 0 ;
+			while( reader.hasNext() ) {
+				XMLEvent event = reader.nextEvent() ;
+				switch( event.getEventType() ) {
+					case XMLEvent.START_DOCUMENT:
+						writer.add( eventFactory.createStartDocument( "UTF-8", "1.0" ) ) ;
+						writer.add( eventFactory.createCharacters( "\n" ) ) ;
+						break ;
+					case XMLEvent.START_ELEMENT:
+						if( depth == 1 ) {
+							int index = getSelectIndex( event.asStartElement(), selection ) ;
+							if( index != SelectionTable.NOT_SELECTED ) {
+								pending.clear() ;
+								ArrayList<XMLEvent> fragment = fragments.get( index ) ;
+								fragment.add( eventFactory.createCharacters( indent ) ) ;
+								fragment.add( event ) ;
+								readElement( fragment ) ;
+								selected++ ;
+								break ;
+							}
+							flush( pending ) ;
+						}
+						depth++ ;
+						writer.add( event ) ;
+						break ;
+					case XMLEvent.END_ELEMENT:
+						depth-- ;
+						if( depth == 0 ) {
+							trailing.addAll( pending ) ;
+							rootEnd = event ;
+							return ;
+						}
+						writer.add( event ) ;
+						break ;
+					case XMLEvent.CHARACTERS:
+					case XMLEvent.SPACE:
+						if( depth == 1 && event.asCharacters().isWhiteSpace() ) {
+							indent = event.asCharacters().getData() ;
+							pending.add( event ) ;
+							break ;
+						}
+						flush( pending ) ;
+						writer.add( event ) ;
+						break ;
+					default:
+						flush( pending ) ;
+						writer.add( event ) ;
+						break ;
+				}
+			}
+			throw new XMLStreamException( "Premature end of value set." ) ;
+		}
+
+		private int getSelectIndex( StartElement element, SelectionTable selection ) {
+			if( !ValueSetScanner.VARIABLE_VALUE_ELEMENT.equals( element.getName().getLocalPart() ) ) {
+				return SelectionTable.NOT_SELECTED ;
+			}
+			Attribute variable = element.getAttributeByName( VARIABLE_QNAME ) ;
+			if( variable == null ) {
+				return SelectionTable.NOT_SELECTED ;
+			}
+			return selection.getSelectIndex( variable.getValue() ) ;
+		}
+
+		/**
+		 * Reads the remainder of the current element into the fragment.
+		 */
+		private void readElement( ArrayList<XMLEvent> fragment ) throws XMLStreamException {
+			int depth = 1 ;
+			while( depth > 0 ) {
+				XMLEvent event = reader.nextEvent() ;
+				if( event.isStartElement() ) {
+					depth++ ;
+				}
+				else if( event.isEndElement() ) {
+					depth-- ;
+				}
+				fragment.add( event ) ;
+			}
+		}
+
+		private boolean isEmpty() {
+			for( ArrayList<XMLEvent> fragment : fragments ) {
+				if( !fragment.isEmpty() ) {
+					return false ;
+				}
+			}
+			return true ;
+		}
+
+		private void flush( ArrayList<XMLEvent> pending ) throws XMLStreamException {
+			for( XMLEvent event : pending ) {
+				writer.add( event ) ;
+			}
+			pending.clear() ;
+		}
+
+		/**
+		 * Completes the output with the partner's fragments, in select order.
+		 */
+		private void finish( Side partner ) throws XMLStreamException {
+			for( ArrayList<XMLEvent> fragment : partner.fragments ) {
+				for( XMLEvent event : fragment ) {
+					writer.add( event ) ;
+				}
+			}
+			for( XMLEvent event : trailing ) {
+				writer.add( event ) ;
+			}
+			writer.add( rootEnd ) ;
+			writer.add( eventFactory.createEndDocument() ) ;
+			writer.flush() ;
+			writer.close() ;
+			writer = null ;
+		}
+
+		private void close() {
+			if( reader != null ) {
+				try {
+					reader.close() ;
+				}
+				catch( XMLStreamException xsx ) {
+					log.debug( "Failed to close reader.", xsx ) ;
+				}
+			}
+			if( writer != null ) {
+				try {
+					writer.close() ;
+				}
+				catch( XMLStreamException xsx ) {
+					log.debug( "Failed to close writer.", xsx ) ;
+				}
+			}
+		}
+
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE ) ;
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE ) ;
+		return factory ;
+	}
+
+}
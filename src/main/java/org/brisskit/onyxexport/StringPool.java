@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of strings which repeat across the files of an export
+ * (eg: participant ids, data file names), so that each is held once however
+ * many times it is read. Safe for concurrent use.
+ *
+ */
+public final class StringPool {
+
+	private final ConcurrentHashMap<String,String> pool ;
+
+	public StringPool() {
+		this( 1024 ) ;
+	}
+
+	public StringPool( int initialCapacity ) {
+		this.pool = new ConcurrentHashMap<String,String>( initialCapacity ) ;
+	}
+
+	/**
+	 * @param s
+	 * @return the pooled instance equal to s, which is s itself if none was pooled before.
+	 */
+	public String intern( String s ) {
+		if( s == null ) {
+			return null ;
+		}
+		String shared = pool.get( s ) ;
+		if( shared != null ) {
+			return shared ;
+		}
+		shared = pool.putIfAbsent( s, s ) ;
+		return shared == null ? s : shared ;
+	}
+
+	/**
+	 * @return the number of distinct strings pooled.
+	 */
+	public int size() {
+		return pool.size() ;
+	}
+
+}
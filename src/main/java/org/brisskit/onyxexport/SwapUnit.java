@@ -0,0 +1,359 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.Engine;
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * A matched pair's files within a questionnaire, taken through the stages of the swap.
+ * The content is held in memory only between reading and writing.
+ * <p/>
+ * With the stax engine, the content is never held: the files are opened when read,
+ * and streamed through the swap into the new files alongside them when swapped,
+ * which replace them when written.
+ * <p/>
+ * With the splice engine, the files are instead mapped (and their pages loaded) when read,
+ * scanned into offset indexes when swapped, and spliced from their channels when written.
+ * <p/>
+ * The pair is journalled, and its indexes saved, by the compositor.
+ *
+ */
+final class SwapUnit {
+	
+	private static Log log = LogFactory.getLog( SwapUnit.class ) ;
+	
+	private final ParticipantCompositor compositor ;
+	private final Engine engine ;
+	private final SelectionTable selection ;
+	private final MatchedPair mp ;
+	private final File candidateOne ;
+	private final File candidateTwo ;
+	private byte[] inOne ;
+	private byte[] inTwo ;
+	private InputStream streamOne ;
+	private InputStream streamTwo ;
+	private boolean streamed ;
+	private ByteArrayOutputStream outOne ;
+	private ByteArrayOutputStream outTwo ;
+	private FileChannel channelOne ;
+	private FileChannel channelTwo ;
+	private MappedByteBuffer mapOne ;
+	private MappedByteBuffer mapTwo ;
+	private VariableIndex indexOne ;
+	private VariableIndex indexTwo ;
+	private boolean indexedBefore ;
+	private SpliceSwapEngine.Splice splice ;
+	
+	SwapUnit( ParticipantCompositor compositor
+			, Engine engine
+			, SelectionTable selection
+			, MatchedPair mp
+			, File candidateOne
+			, File candidateTwo ) {
+		this.compositor = compositor ;
+		this.engine = engine ;
+		this.selection = selection ;
+		this.mp = mp ;
+		this.candidateOne = candidateOne ;
+		this.candidateTwo = candidateTwo ;
+	}
+	
+	void read() throws ProcessException {
+		try {
+			if( engine == Engine.SPLICE ) {
+				map() ;
+				return ;
+			}
+			if( engine == Engine.STAX ) {
+				streamOne = IOUtil.newInputStream( candidateOne ) ;
+				streamTwo = IOUtil.newInputStream( candidateTwo ) ;
+				return ;
+			}
+			inOne = IOUtil.readFile( candidateOne ) ;
+			inTwo = IOUtil.readFile( candidateTwo ) ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Something wrong with data files: " + candidateOne.getAbsolutePath()
+					                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
+		}
+	}
+	
+	/**
+	 * Opens the files, and maps and loads any without a saved index.
+	 * The files are closed again should either fail.
+	 */
+	private void map() throws IOException {
+		boolean mapped = false ;
+		try {
+			channelOne = new RandomAccessFile( candidateOne, "r" ).getChannel() ;
+			channelTwo = new RandomAccessFile( candidateTwo, "r" ).getChannel() ;
+			indexOne = compositor.readIndex( candidateOne, channelOne, selection.getVocabulary() ) ;
+			indexTwo = compositor.readIndex( candidateTwo, channelTwo, selection.getVocabulary() ) ;
+			indexedBefore = indexOne != null && indexTwo != null ;
+			if( !indexedBefore ) {
+				mapOne = channelOne.map( FileChannel.MapMode.READ_ONLY, 0, channelOne.size() ) ;
+				mapTwo = channelTwo.map( FileChannel.MapMode.READ_ONLY, 0, channelTwo.size() ) ;
+				mapOne.load() ;
+				mapTwo.load() ;
+			}
+			mapped = true ;
+		}
+		finally {
+			if( !mapped ) {
+				mapOne = null ;
+				mapTwo = null ;
+				close() ;
+			}
+		}
+		IOUtil.countSpliced( mapOne == null ? 0 : mapOne.capacity() ) ;
+		IOUtil.countSpliced( mapTwo == null ? 0 : mapTwo.capacity() ) ;
+	}
+	
+	/**
+	 * Plans the splice of the files mapped. A pair either of which cannot be indexed 
+	 * is left to the stax engine.
+	 * 
+	 * @return true if the pair is spliced, or has nothing to swap.
+	 */
+	private boolean splice() throws ProcessException {
+		boolean scanned = false ;
+		try {
+			if( !indexedBefore ) {
+				indexOne = VariableIndex.scan( mapOne, selection.getVocabulary() ) ;
+				indexTwo = VariableIndex.scan( mapTwo, selection.getVocabulary() ) ;
+				if( indexOne == null || indexTwo == null ) {
+					inOne = SpliceSwapEngine.toArray( mapOne ) ;
+					inTwo = SpliceSwapEngine.toArray( mapTwo ) ;
+					IOUtil.countInput( inOne.length ) ;
+					IOUtil.countInput( inTwo.length ) ;
+					return false ;
+				}
+			}
+			scanned = true ;
+		}
+		finally {
+			mapOne = null ;
+			mapTwo = null ;
+			if( !scanned ) {
+				//
+				// The files are kept open only to splice from: not where the pair is
+				// left to the stax engine, nor where a file is not well formed...
+				close() ;
+			}
+		}
+		splice = SpliceSwapEngine.plan( indexOne, indexTwo, selection ) ;
+		if( splice == null && log.isDebugEnabled() ) {
+			log.debug( "Nothing to swap: " + candidateOne.getName() + " / " + candidateTwo.getName() ) ;
+		}
+		return true ;
+	}
+	
+	/**
+	 * Swaps the content read. Where neither file holds a selected variable,
+	 * there is no output.
+	 */
+	void swap() throws ProcessException {
+		if( engine == Engine.SPLICE && splice() ) {
+			return ;
+		}
+		if( engine == Engine.STAX ) {
+			stream() ;
+			return ;
+		}
+		String pathOne = candidateOne.getAbsolutePath() ;
+		String pathTwo = candidateTwo.getAbsolutePath() ;
+		ByteArrayOutputStream one = new ByteArrayOutputStream( inOne.length + 1024 ) ;
+		ByteArrayOutputStream two = new ByteArrayOutputStream( inTwo.length + 1024 ) ;
+		boolean changed ;
+		try {
+			if( engine != Engine.XMLBEANS ) {
+				changed = StreamingSwapEngine.swap( new ByteArrayInputStream( inOne )
+						                          , new ByteArrayInputStream( inTwo )
+						                          , one
+						                          , two
+						                          , selection ) ;
+			}
+			else {
+				changed = compositor.swapValueSets( new ByteArrayInputStream( inOne )
+						                          , new ByteArrayInputStream( inTwo )
+						                          , one
+						                          , two
+						                          , selection
+						                          , pathOne
+						                          , pathTwo ) ;
+			}
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Streaming swap failed: " + pathOne + " / " + pathTwo, xsx ) ;
+		}
+		finally {
+			inOne = null ;
+			inTwo = null ;
+		}
+		if( changed ) {
+			outOne = one ;
+			outTwo = two ;
+		}
+		else if( log.isDebugEnabled() ) {
+			log.debug( "Nothing to swap: " + candidateOne.getName() + " / " + candidateTwo.getName() ) ;
+		}
+	}
+	
+	/**
+	 * Streams the files opened into their new files. Where neither file
+	 * holds a selected variable, no new file is left behind.
+	 */
+	private void stream() throws ProcessException {
+		File tempOne = IOUtil.getTempFile( candidateOne ) ;
+		File tempTwo = IOUtil.getTempFile( candidateTwo ) ;
+		OutputStream one = null ;
+		OutputStream two = null ;
+		boolean changed = false ;
+		try {
+			one = IOUtil.newOutputStream( tempOne ) ;
+			two = IOUtil.newOutputStream( tempTwo ) ;
+			if( StreamingSwapEngine.swap( streamOne, streamTwo, one, two, selection ) ) {
+				one.close() ;
+				one = null ;
+				two.close() ;
+				two = null ;
+				changed = true ;
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Streaming swap failed: " + candidateOne.getAbsolutePath()
+					                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
+		}
+		catch( XMLStreamException xsx ) {
+			throw new ProcessException( "Streaming swap failed: " + candidateOne.getAbsolutePath()
+					                  + " / " + candidateTwo.getAbsolutePath(), xsx ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( one ) ;
+			IOUtil.closeQuietly( two ) ;
+			close() ;
+			if( !changed ) {
+				IOUtil.discard( tempOne ) ;
+				IOUtil.discard( tempTwo ) ;
+			}
+		}
+		streamed = changed ;
+		if( !changed && log.isDebugEnabled() ) {
+			log.debug( "Nothing to swap: " + candidateOne.getName() + " / " + candidateTwo.getName() ) ;
+		}
+	}
+	
+	/**
+	 * Writes the new files and replaces the pair's files with them,
+	 * as one unit of the journal.
+	 */
+	void write() throws ProcessException {
+		String questionnaire = selection.getQuestionnaire() ;
+		if( splice != null ) {
+			transfer() ;
+			return ;
+		}
+		if( streamed ) {
+			streamed = false ;
+			compositor.prepareAndCommitPair( questionnaire, mp, candidateOne, candidateTwo ) ;
+			return ;
+		}
+		if( outOne == null ) {
+			close() ;
+			//
+			// Where the pair fell back to the stax engine, one file may have been indexed
+			// and the other not...
+			if( !indexedBefore ) {
+				if( indexOne != null ) {
+					compositor.writeIndex( indexOne, candidateOne ) ;
+				}
+				if( indexTwo != null ) {
+					compositor.writeIndex( indexTwo, candidateTwo ) ;
+				}
+			}
+			compositor.commitUnchangedPair( questionnaire, mp ) ;
+			return ;
+		}
+		File tempOne = IOUtil.getTempFile( candidateOne ) ;
+		File tempTwo = IOUtil.getTempFile( candidateTwo ) ;
+		try {
+			IOUtil.writeFile( tempOne, outOne ) ;
+			IOUtil.writeFile( tempTwo, outTwo ) ;
+		}
+		catch( IOException iox ) {
+			IOUtil.discard( tempOne ) ;
+			IOUtil.discard( tempTwo ) ;
+			throw new ProcessException( "Could not write swapped files: " + candidateOne.getAbsolutePath()
+	                                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			outOne = null ;
+			outTwo = null ;
+		}
+		compositor.prepareAndCommitPair( questionnaire, mp, candidateOne, candidateTwo ) ;
+	}
+	
+	/**
+	 * Writes the new files by splicing from the pair's files,
+	 * and replaces the pair's files with them.
+	 */
+	private void transfer() throws ProcessException {
+		File tempOne = IOUtil.getTempFile( candidateOne ) ;
+		File tempTwo = IOUtil.getTempFile( candidateTwo ) ;
+		FileChannel out = null ;
+		try {
+			out = new FileOutputStream( tempOne ).getChannel() ;
+			splice.transferOne( channelOne, channelTwo, out ) ;
+			out.close() ;
+			out = new FileOutputStream( tempTwo ).getChannel() ;
+			splice.transferTwo( channelOne, channelTwo, out ) ;
+			out.close() ;
+			out = null ;
+		}
+		catch( IOException iox ) {
+			IOUtil.closeQuietly( out ) ;
+			IOUtil.discard( tempOne ) ;
+			IOUtil.discard( tempTwo ) ;
+			throw new ProcessException( "Could not write swapped files: " + candidateOne.getAbsolutePath()
+	                                  + " / " + candidateTwo.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			close() ;
+		}
+		compositor.prepareAndCommitPair( selection.getQuestionnaire(), mp, candidateOne, candidateTwo ) ;
+		compositor.writeIndex( splice.getIndexOne(), candidateOne ) ;
+		compositor.writeIndex( splice.getIndexTwo(), candidateTwo ) ;
+		splice = null ;
+	}
+	
+	void close() {
+		IOUtil.closeQuietly( streamOne ) ;
+		IOUtil.closeQuietly( streamTwo ) ;
+		IOUtil.closeQuietly( channelOne ) ;
+		IOUtil.closeQuietly( channelTwo ) ;
+		streamOne = null ;
+		streamTwo = null ;
+		channelOne = null ;
+		channelTwo = null ;
+	}
+	
+}
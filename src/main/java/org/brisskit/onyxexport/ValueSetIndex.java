@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.brisskit.onyxdata.beans.ValueType;
+import org.brisskit.onyxdata.beans.VariableValueType;
+
+/**
+ * The variableValue elements of a loaded value set document by variable name, built in one
+ * pass over the document, so that a variable is looked up in constant time rather than by
+ * a scan of the whole value set (which XMLBeans materializes afresh as an array on each call).
+ * <p/>
+ * The index is not kept in step with the document by XMLBeans: whatever removes or adds
+ * variables (eg: the swap of a {@link ParticipantCompositor.SwappablePair}) must tell the index.
+ * <p/>
+ * As with a scan, where a variable occurs more than once the first occurrence is found.
+ * Not safe for concurrent use.
+ *
+ */
+public final class ValueSetIndex {
+
+	private final HashMap<String,VariableValueType> first ;
+	//
+	// Later occurrences of a variable, where there are any (there should not be)...
+	private HashMap<String,ArrayList<VariableValueType>> more ;
+
+	private ValueSetIndex( int expectedSize ) {
+		this.first = new HashMap<String,VariableValueType>( expectedSize * 4 / 3 + 1 ) ;
+	}
+
+	/**
+	 * @param variables the variableValue elements of a value set, in document order
+	 * @return the index
+	 */
+	public static ValueSetIndex newInstance( VariableValueType[] variables ) {
+		ValueSetIndex index = new ValueSetIndex( variables.length ) ;
+		for( VariableValueType vvt : variables ) {
+			index.add( vvt ) ;
+		}
+		return index ;
+	}
+
+	/**
+	 * @param variableName
+	 * @return the variable's element, or null if the value set has none.
+	 */
+	public VariableValueType get( String variableName ) {
+		return first.get( variableName ) ;
+	}
+
+	/**
+	 * @param variableName
+	 * @return the value of the variable, or null if the value set has none.
+	 */
+	public ValueType getValue( String variableName ) {
+		VariableValueType vvt = first.get( variableName ) ;
+		return vvt == null ? null : vvt.getValue() ;
+	}
+
+	/**
+	 * @return the number of variables indexed.
+	 */
+	public int size() {
+		int size = first.size() ;
+		if( more != null ) {
+			for( ArrayList<VariableValueType> list : more.values() ) {
+				size += list.size() ;
+			}
+		}
+		return size ;
+	}
+
+	/**
+	 * Records an element added to the end of the value set.
+	 */
+	public void add( VariableValueType vvt ) {
+		String name = vvt.getVariable() ;
+		if( !first.containsKey( name ) ) {
+			first.put( name, vvt ) ;
+			return ;
+		}
+		if( more == null ) {
+			more = new HashMap<String,ArrayList<VariableValueType>>() ;
+		}
+		ArrayList<VariableValueType> list = more.get( name ) ;
+		if( list == null ) {
+			list = new ArrayList<VariableValueType>( 1 ) ;
+			more.put( name, list ) ;
+		}
+		list.add( vvt ) ;
+	}
+
+	/**
+	 * Records an element removed from the value set. This must be called before the
+	 * element is removed from its document, whilst its variable name can still be read.
+	 *
+	 * @return true if the element was indexed.
+	 */
+	public boolean remove( VariableValueType vvt ) {
+		String name = vvt.getVariable() ;
+		ArrayList<VariableValueType> list = more == null ? null : more.get( name ) ;
+		if( first.get( name ) == vvt ) {
+			if( list == null ) {
+				first.remove( name ) ;
+			}
+			else {
+				first.put( name, list.remove( 0 ) ) ;
+				if( list.isEmpty() ) {
+					more.remove( name ) ;
+				}
+			}
+			return true ;
+		}
+		if( list != null && list.remove( vvt ) ) {
+			if( list.isEmpty() ) {
+				more.remove( name ) ;
+			}
+			return true ;
+		}
+		return false ;
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Forward-only (StAX) reader of Onyx value set files.
+ * <p/>
+ * Only reads as far into a file as is needed to find the requested variables,
+ * so that a single value (eg: a participant's gender) can be extracted without
+ * loading the whole document into memory.
+ *
+ */
+public class ValueSetScanner {
+
+	public static final String VARIABLE_VALUE_ELEMENT = "variableValue" ;
+	public static final String VALUE_ELEMENT = "value" ;
+	public static final String VARIABLE_ATTRIBUTE = "variable" ;
+
+	private static final XMLInputFactory inputFactory = newInputFactory() ;
+
+	/**
+	 * @param in
+	 * @param variableNames
+	 * @return A map of variable name to trimmed text value for those of the named
+	 *         variables found within the stream. The scan stops as soon as all have been found.
+	 *         The stream is not closed.
+	 * @throws XMLStreamException
+	 */
+	public static HashMap<String,String> scanValues( InputStream in, Set<String> variableNames ) throws XMLStreamException {
+		HashMap<String,String> values = new HashMap<String,String>( variableNames.size() * 2 ) ;
+		XMLStreamReader reader = inputFactory.createXMLStreamReader( in ) ;
+		try {
+			int remaining = variableNames.size() ;
+			while( remaining > 0 && reader.hasNext() ) {
+				if( reader.next() != XMLStreamConstants.START_ELEMENT
+					||
+					!VARIABLE_VALUE_ELEMENT.equals( reader.getLocalName() ) ) {
+					continue ;
+				}
+				String variableName = reader.getAttributeValue( null, VARIABLE_ATTRIBUTE ) ;
+				if( variableName == null
+					||
+					!variableNames.contains( variableName )
+					||
+					values.containsKey( variableName ) ) {
+					continue ;
+				}
+				String value = readValueText( reader ) ;
+				if( value != null ) {
+					values.put( variableName, value ) ;
+				}
+				remaining-- ;
+			}
+			return values ;
+		}
+		finally {
+			reader.close() ;
+		}
+	}
+
+	/**
+	 * Positioned on a variableValue start element, reads the text content of its
+	 * value element (including any nested values), leaving the reader positioned
+	 * at the end of the variableValue.
+	 *
+	 * @param reader
+	 * @return the trimmed text, or null if there is no value element.
+	 * @throws XMLStreamException
+	 */
+	private static String readValueText( XMLStreamReader reader ) throws XMLStreamException {
+		StringBuilder text = null ;
+		int depth = 1 ;
+		int valueDepth = -1 ;
+		while( depth > 0 && reader.hasNext() ) {
+			switch( reader.next() ) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++ ;
+					if( text == null && VALUE_ELEMENT.equals( reader.getLocalName() ) ) {
+						text = new StringBuilder() ;
+						valueDepth = depth ;
+					}
+					break ;
+				case XMLStreamConstants.END_ELEMENT:
+					if( depth == valueDepth ) {
+						valueDepth = 0 ;
+					}
+					depth-- ;
+					break ;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if( valueDepth > 0 && depth >= valueDepth ) {
+						text.append( reader.getText() ) ;
+					}
+					break ;
+				default:
+					break ;
+			}
+		}
+		return text == null ? null : text.toString().trim() ;
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.FALSE ) ;
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE ) ;
+		factory.setProperty( XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE ) ;
+		return factory ;
+	}
+
+}
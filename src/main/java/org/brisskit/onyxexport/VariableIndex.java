@@ -0,0 +1,712 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Where each variableValue element of a participant's value set lies within its file:
+ * the byte offsets of the element, and of the whitespace leading up to it. The index is
+ * built by one forward scan over the bytes, without parsing them as XML, and allows the
+ * elements of a value set to be cut and spliced as byte ranges (see {@link SpliceSwapEngine}).
+ * <p/>
+ * Each variable name is numbered by the questionnaire's {@link Vocabulary} as it is indexed,
+ * and the index holds the vocabulary's own copy of the name, so that the variables
+ * of a value set are looked up by id thereafter (see {@link SelectionTable#getSelectIndex(int)}).
+ * <p/>
+ * Only UTF-8 (or ASCII) value sets without a document type declaration are indexed;
+ * {@link #scan(ByteBuffer, Vocabulary)} returns null for any other, which is then swapped by streaming.
+ * <p/>
+ * An index may be saved as a sidecar of its file, and read back later without scanning,
+ * so long as the file's length and time of modification are as they were when indexed.
+ * As a file may be rewritten within the resolution of its time of modification, an index
+ * read back should also be checked against the file's markup before use (see {@link #fits(FileChannel)}).
+ * The lines of a sidecar are tab separated, in the manner of the journal:
+ * <pre>
+ * F  format-version
+ * L  file-length  file-modified
+ * R  trailing-whitespace  root-end-tag
+ * V  lead  start  end  variable-name
+ * </pre>
+ *
+ */
+public final class VariableIndex {
+
+	private static Log log = LogFactory.getLog( VariableIndex.class ) ;
+
+	public static final int FORMAT_VERSION = 1 ;
+	public static final String SIDECAR_SUFFIX = ".idx" ;
+
+	private static final String FORMAT = "F" ;
+	private static final String LENGTH = "L" ;
+	private static final String ROOT = "R" ;
+	private static final String VARIABLE = "V" ;
+
+	private static final byte[] VARIABLE_VALUE = ascii( ValueSetScanner.VARIABLE_VALUE_ELEMENT ) ;
+	private static final byte[] VARIABLE_ATTRIBUTE = ascii( ValueSetScanner.VARIABLE_ATTRIBUTE ) ;
+
+	private final Vocabulary vocabulary ;
+	private final int[] ids ;
+	private final String[] names ;
+	private final int[] leads ;
+	private final int[] starts ;
+	private final int[] ends ;
+	private final int trailing ;
+	private final int rootEnd ;
+	private final int length ;
+	private HashMap<String,Integer> positions ;
+
+	VariableIndex( Vocabulary vocabulary, int[] ids, String[] names, int[] leads, int[] starts, int[] ends, int trailing, int rootEnd, int length ) {
+		this.vocabulary = vocabulary ;
+		this.ids = ids ;
+		this.names = names ;
+		this.leads = leads ;
+		this.starts = starts ;
+		this.ends = ends ;
+		this.trailing = trailing ;
+		this.rootEnd = rootEnd ;
+		this.length = length ;
+	}
+
+	/**
+	 * @return the number of variableValue elements.
+	 */
+	public int size() {
+		return names.length ;
+	}
+
+	/**
+	 * @param i
+	 * @return the variable name of the i'th element, in document order.
+	 */
+	public String getVariable( int i ) {
+		return names[i] ;
+	}
+
+	/**
+	 * @param i
+	 * @return the vocabulary id of the i'th element's variable.
+	 */
+	public int getVariableId( int i ) {
+		return ids[i] ;
+	}
+
+	/**
+	 * @return the vocabulary by which the variables are numbered.
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary ;
+	}
+
+	/**
+	 * @return the offset of the whitespace leading up to the i'th element;
+	 *         its start if there is none.
+	 */
+	public int getLead( int i ) {
+		return leads[i] ;
+	}
+
+	/**
+	 * @return the offset of the i'th element's start tag.
+	 */
+	public int getStart( int i ) {
+		return starts[i] ;
+	}
+
+	/**
+	 * @return the offset just past the i'th element's end tag.
+	 */
+	public int getEnd( int i ) {
+		return ends[i] ;
+	}
+
+	/**
+	 * @return the offset of the whitespace leading up to the value set's end tag;
+	 *         the end tag itself if there is none.
+	 */
+	public int getTrailing() {
+		return trailing ;
+	}
+
+	/**
+	 * @return the offset of the value set's end tag.
+	 */
+	public int getRootEnd() {
+		return rootEnd ;
+	}
+
+	/**
+	 * @return the length of the file indexed.
+	 */
+	public int getLength() {
+		return length ;
+	}
+
+	/**
+	 * @param variable
+	 * @return the position (in document order) of the variable's element, or -1 if it has none.
+	 */
+	public synchronized int find( String variable ) {
+		if( positions == null ) {
+			positions = new HashMap<String,Integer>( names.length * 4 / 3 + 1 ) ;
+			for( int i=names.length-1; i>=0; i-- ) {
+				positions.put( names[i], Integer.valueOf( i ) ) ;
+			}
+		}
+		Integer i = positions.get( variable ) ;
+		return i == null ? -1 : i.intValue() ;
+	}
+
+	/**
+	 * Checks, without scanning, that the index still fits its file: that the file is of the
+	 * length indexed, that each element's start tag and end are where indexed, and that the
+	 * value set's end tag is. The file is mapped but only the pages holding those offsets
+	 * are touched.
+	 *
+	 * @param channel the file indexed, open for reading
+	 * @return true if the file's markup is where the index has it.
+	 */
+	public boolean fits( FileChannel channel ) throws IOException {
+		if( channel.size() != length ) {
+			return false ;
+		}
+		return fits( channel.map( FileChannel.MapMode.READ_ONLY, 0, length ) ) ;
+	}
+
+	/**
+	 * As {@link #fits(FileChannel)}, for a value set held in a buffer
+	 * (between its position and limit).
+	 */
+	public boolean fits( ByteBuffer content ) {
+		return new Scanner( content.slice(), vocabulary ).fits( this ) ;
+	}
+
+	/**
+	 * Indexes a value set from its bytes (between the buffer's position and limit,
+	 * which are left as they are). Offsets are relative to the buffer's position.
+	 *
+	 * @param content
+	 * @param vocabulary the vocabulary of the value set's questionnaire
+	 * @return the index, or null if the value set is not of a form which can be indexed.
+	 * @throws ProcessException if the content is not a well formed value set.
+	 */
+	public static VariableIndex scan( ByteBuffer content, Vocabulary vocabulary ) throws ProcessException {
+		return new Scanner( content.slice(), vocabulary ).scan() ;
+	}
+
+	/**
+	 * @param sidecar
+	 * @param file the file indexed
+	 * @param vocabulary the vocabulary of the file's questionnaire
+	 * @return the index saved in the sidecar, or null if there is none or if the
+	 *         file has been altered since.
+	 */
+	public static VariableIndex read( File sidecar, File file, Vocabulary vocabulary ) {
+		if( !sidecar.isFile() ) {
+			return null ;
+		}
+		BufferedReader reader = null ;
+		try {
+			reader = new BufferedReader( new InputStreamReader( new FileInputStream( sidecar ), "UTF-8" ) ) ;
+			String line = reader.readLine() ;
+			if( line == null || !line.equals( FORMAT + '\t' + FORMAT_VERSION ) ) {
+				return null ;
+			}
+			String[] fields = reader.readLine().split( "\t" ) ;
+			if( !LENGTH.equals( fields[0] )
+				||
+				Long.parseLong( fields[1] ) != file.length()
+				||
+				Long.parseLong( fields[2] ) != file.lastModified() ) {
+				return null ;
+			}
+			int length = Integer.parseInt( fields[1] ) ;
+			fields = reader.readLine().split( "\t" ) ;
+			if( !ROOT.equals( fields[0] ) ) {
+				throw new IOException( "Root entry missing" ) ;
+			}
+			int trailing = Integer.parseInt( fields[1] ) ;
+			int rootEnd = Integer.parseInt( fields[2] ) ;
+			Builder b = new Builder( vocabulary ) ;
+			while( ( line = reader.readLine() ) != null ) {
+				fields = line.split( "\t", 5 ) ;
+				if( !VARIABLE.equals( fields[0] ) ) {
+					throw new IOException( "Unrecognised sidecar entry: " + line ) ;
+				}
+				b.add( fields[4], Integer.parseInt( fields[1] ), Integer.parseInt( fields[2] ), Integer.parseInt( fields[3] ) ) ;
+			}
+			return b.build( trailing, rootEnd, length ) ;
+		}
+		catch( Exception ex ) {
+			log.warn( "Ignoring unreadable index: " + sidecar.getAbsolutePath(), ex ) ;
+			return null ;
+		}
+		finally {
+			IOUtil.closeQuietly( reader ) ;
+		}
+	}
+
+	/**
+	 * Saves the index as the sidecar of its file. The sidecar is written alongside
+	 * and renamed into place, so that it is always whole.
+	 *
+	 * @param sidecar
+	 * @param file the file indexed, as it now is
+	 */
+	public void write( File sidecar, File file ) throws ProcessException {
+		for( String name : names ) {
+			if( name.indexOf( '\n' ) != -1 || name.indexOf( '\r' ) != -1 ) {
+				log.debug( "Index not saved; a variable name holds a line end: " + file.getAbsolutePath() ) ;
+				return ;
+			}
+		}
+		File directory = sidecar.getParentFile() ;
+		if( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+			throw new ProcessException( "Could not create index directory: " + directory.getAbsolutePath() ) ;
+		}
+		File temp = IOUtil.getTempFile( sidecar ) ;
+		PrintWriter writer = null ;
+		boolean written = false ;
+		try {
+			writer = new PrintWriter( new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" ) ) ;
+			writer.print( FORMAT + '\t' + FORMAT_VERSION + '\n' ) ;
+			writer.print( LENGTH + '\t' + file.length() + '\t' + file.lastModified() + '\n' ) ;
+			writer.print( ROOT + '\t' + trailing + '\t' + rootEnd + '\n' ) ;
+			for( int i=0; i<names.length; i++ ) {
+				writer.print( VARIABLE + '\t' + leads[i] + '\t' + starts[i] + '\t' + ends[i] + '\t' + names[i] + '\n' ) ;
+			}
+			writer.close() ;
+			if( writer.checkError() ) {
+				throw new IOException( "Write failed" ) ;
+			}
+			writer = null ;
+			IOUtil.commit( temp, sidecar ) ;
+			written = true ;
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not write index: " + sidecar.getAbsolutePath(), iox ) ;
+		}
+		finally {
+			IOUtil.closeQuietly( writer ) ;
+			if( !written ) {
+				IOUtil.discard( temp ) ;
+			}
+		}
+	}
+
+	private static byte[] ascii( String s ) {
+		try {
+			return s.getBytes( "US-ASCII" ) ;
+		}
+		catch( UnsupportedEncodingException uex ) {
+			throw new IllegalStateException( uex ) ;
+		}
+	}
+
+	/**
+	 * Collects the elements of an index, in document order.
+	 */
+	static class Builder {
+
+		private final Vocabulary vocabulary ;
+		private int[] ids = new int[ 64 ] ;
+		private String[] names = new String[ 64 ] ;
+		private int[] leads = new int[ 64 ] ;
+		private int[] starts = new int[ 64 ] ;
+		private int[] ends = new int[ 64 ] ;
+		private int size = 0 ;
+
+		Builder( Vocabulary vocabulary ) {
+			this.vocabulary = vocabulary ;
+		}
+
+		int add( String name, int lead, int start, int end ) {
+			return add( vocabulary.getId( name ), lead, start, end ) ;
+		}
+
+		/**
+		 * Adds the i'th element of another index, at the given offsets.
+		 */
+		int add( VariableIndex from, int i, int lead, int start, int end ) {
+			if( from.vocabulary == vocabulary ) {
+				return add( from.ids[i], lead, start, end ) ;
+			}
+			return add( from.names[i], lead, start, end ) ;
+		}
+
+		private int add( int id, int lead, int start, int end ) {
+			if( size == names.length ) {
+				ids = Arrays.copyOf( ids, size * 2 ) ;
+				names = Arrays.copyOf( names, size * 2 ) ;
+				leads = Arrays.copyOf( leads, size * 2 ) ;
+				starts = Arrays.copyOf( starts, size * 2 ) ;
+				ends = Arrays.copyOf( ends, size * 2 ) ;
+			}
+			ids[ size ] = id ;
+			names[ size ] = vocabulary.getName( id ) ;
+			leads[ size ] = lead ;
+			starts[ size ] = start ;
+			ends[ size ] = end ;
+			return size++ ;
+		}
+
+		void setEnd( int i, int end ) {
+			ends[i] = end ;
+		}
+
+		VariableIndex build( int trailing, int rootEnd, int length ) {
+			return new VariableIndex( vocabulary
+					                , Arrays.copyOf( ids, size )
+					                , Arrays.copyOf( names, size )
+					                , Arrays.copyOf( leads, size )
+					                , Arrays.copyOf( starts, size )
+					                , Arrays.copyOf( ends, size )
+					                , trailing
+					                , rootEnd
+					                , length ) ;
+		}
+
+	}
+
+	/**
+	 * One forward pass over the bytes of a value set. Only markup is examined:
+	 * the text within elements is skipped to the next '<'.
+	 */
+	private static class Scanner {
+
+		private final ByteBuffer b ;
+		private final int limit ;
+		private final Builder builder ;
+
+		private Scanner( ByteBuffer b, Vocabulary vocabulary ) {
+			this.b = b ;
+			this.limit = b.limit() ;
+			this.builder = new Builder( vocabulary ) ;
+		}
+
+		private VariableIndex scan() throws ProcessException {
+			int p = 0 ;
+			//
+			// A UTF-8 byte order mark is allowed; any other is not UTF-8...
+			if( limit >= 3 && ( b.get(0) & 0xFF ) == 0xEF && ( b.get(1) & 0xFF ) == 0xBB && ( b.get(2) & 0xFF ) == 0xBF ) {
+				p = 3 ;
+			}
+			else if( limit >= 2 && ( ( b.get(0) & 0xFF ) == 0xFE || ( b.get(0) & 0xFF ) == 0xFF || b.get(0) == 0 || b.get(1) == 0 ) ) {
+				return null ;
+			}
+			int depth = 0 ;
+			int whitespace = -1 ;
+			int open = -1 ;
+			while( p < limit ) {
+				byte c = b.get(p) ;
+				if( c != '<' ) {
+					if( depth == 1 ) {
+						if( isWhitespace( c ) ) {
+							if( whitespace == -1 ) {
+								whitespace = p ;
+							}
+						}
+						else {
+							whitespace = -1 ;
+						}
+						p++ ;
+					}
+					else {
+						p = indexOf( '<', p ) ;
+						if( p == -1 ) {
+							break ;
+						}
+					}
+					continue ;
+				}
+				byte next = p+1 < limit ? b.get(p+1) : 0 ;
+				if( next == '?' ) {
+					int end = indexOf( "?>", p+2 ) ;
+					if( depth == 0 && !isUtf8Declaration( p, end ) ) {
+						return null ;
+					}
+					p = end + 2 ;
+					whitespace = -1 ;
+				}
+				else if( next == '!' ) {
+					if( startsWith( "<!--", p ) ) {
+						p = indexOf( "-->", p+4 ) + 3 ;
+					}
+					else if( startsWith( "<![CDATA[", p ) ) {
+						p = indexOf( "]]>", p+9 ) + 3 ;
+					}
+					else {
+						//
+						// A document type declaration may define entities,
+						// so the value set is left to a parser...
+						return null ;
+					}
+					whitespace = -1 ;
+				}
+				else if( next == '/' ) {
+					int end = indexOf( '>', p ) ;
+					if( end == -1 ) {
+						throw malformed( p ) ;
+					}
+					depth-- ;
+					if( depth == 0 ) {
+						return builder.build( whitespace == -1 ? p : whitespace, p, limit ) ;
+					}
+					if( depth == 1 && open != -1 ) {
+						builder.setEnd( open, end + 1 ) ;
+						open = -1 ;
+					}
+					p = end + 1 ;
+					whitespace = -1 ;
+				}
+				else {
+					int end = endOfTag( p ) ;
+					boolean empty = b.get( end-1 ) == '/' ;
+					if( depth == 1 && isVariableValue( p+1 ) ) {
+						String name = getVariable( p, end ) ;
+						if( name != null ) {
+							int i = builder.add( name, whitespace == -1 ? p : whitespace, p, end + 1 ) ;
+							if( !empty ) {
+								open = i ;
+							}
+						}
+					}
+					if( !empty ) {
+						depth++ ;
+					}
+					p = end + 1 ;
+					whitespace = -1 ;
+				}
+			}
+			throw new ProcessException( "Premature end of value set." ) ;
+		}
+
+		/**
+		 * @return true if each element of the index starts with a variableValue start tag
+		 *         and ends with a '>', and the value set's end tag is where indexed.
+		 */
+		private boolean fits( VariableIndex index ) {
+			if( index.length != limit ) {
+				return false ;
+			}
+			for( int i=0; i<index.size(); i++ ) {
+				int start = index.starts[i] ;
+				int end = index.ends[i] ;
+				if( start < 0 || end <= start || end > limit ) {
+					return false ;
+				}
+				if( b.get( start ) != '<' || !isVariableValue( start+1 ) || b.get( end-1 ) != '>' ) {
+					return false ;
+				}
+			}
+			return index.rootEnd >= 0 && startsWith( "</", index.rootEnd ) ;
+		}
+
+		/**
+		 * @return the offset of the '>' closing the tag starting at p, minding quoted attribute values.
+		 */
+		private int endOfTag( int p ) throws ProcessException {
+			byte quote = 0 ;
+			for( int i=p+1; i<limit; i++ ) {
+				byte c = b.get(i) ;
+				if( quote != 0 ) {
+					if( c == quote ) {
+						quote = 0 ;
+					}
+				}
+				else if( c == '"' || c == '\'' ) {
+					quote = c ;
+				}
+				else if( c == '>' ) {
+					return i ;
+				}
+			}
+			throw malformed( p ) ;
+		}
+
+		/**
+		 * @return true if the element name at p is variableValue, with or without a prefix.
+		 */
+		private boolean isVariableValue( int p ) {
+			int end = p ;
+			while( end < limit && !isWhitespace( b.get(end) ) && b.get(end) != '>' && b.get(end) != '/' ) {
+				end++ ;
+			}
+			int start = end - VARIABLE_VALUE.length ;
+			if( start < p || ( start > p && b.get( start-1 ) != ':' ) ) {
+				return false ;
+			}
+			return matches( VARIABLE_VALUE, start ) ;
+		}
+
+		/**
+		 * @return the value of the (unprefixed) variable attribute of the tag, or null if it has none.
+		 */
+		private String getVariable( int p, int end ) throws ProcessException {
+			int i = p + 1 ;
+			while( i < end && !isWhitespace( b.get(i) ) ) {
+				i++ ;
+			}
+			while( i < end ) {
+				while( i < end && isWhitespace( b.get(i) ) ) {
+					i++ ;
+				}
+				int nameStart = i ;
+				while( i < end && b.get(i) != '=' && !isWhitespace( b.get(i) ) ) {
+					i++ ;
+				}
+				int nameEnd = i ;
+				while( i < end && b.get(i) != '"' && b.get(i) != '\'' ) {
+					i++ ;
+				}
+				if( i >= end ) {
+					return null ;
+				}
+				byte quote = b.get(i) ;
+				int valueStart = ++i ;
+				while( i < end && b.get(i) != quote ) {
+					i++ ;
+				}
+				if( nameEnd - nameStart == VARIABLE_ATTRIBUTE.length && matches( VARIABLE_ATTRIBUTE, nameStart ) ) {
+					return decode( valueStart, i ) ;
+				}
+				i++ ;
+			}
+			return null ;
+		}
+
+		/**
+		 * @return the attribute value, with its references replaced and whitespace normalized.
+		 */
+		private String decode( int start, int end ) throws ProcessException {
+			byte[] bytes = new byte[ end - start ] ;
+			for( int i=0; i<bytes.length; i++ ) {
+				bytes[i] = b.get( start + i ) ;
+			}
+			String value ;
+			try {
+				value = new String( bytes, "UTF-8" ) ;
+			}
+			catch( UnsupportedEncodingException uex ) {
+				throw new IllegalStateException( uex ) ;
+			}
+			if( value.indexOf( '&' ) == -1 && value.indexOf( '\t' ) == -1 && value.indexOf( '\n' ) == -1 && value.indexOf( '\r' ) == -1 ) {
+				return value ;
+			}
+			StringBuilder decoded = new StringBuilder( value.length() ) ;
+			for( int i=0; i<value.length(); i++ ) {
+				char c = value.charAt(i) ;
+				if( c == '\t' || c == '\n' || c == '\r' ) {
+					decoded.append( ' ' ) ;
+				}
+				else if( c != '&' ) {
+					decoded.append( c ) ;
+				}
+				else {
+					int semicolon = value.indexOf( ';', i ) ;
+					if( semicolon == -1 ) {
+						throw malformed( start ) ;
+					}
+					String ref = value.substring( i+1, semicolon ) ;
+					if( ref.equals( "amp" ) ) decoded.append( '&' ) ;
+					else if( ref.equals( "lt" ) ) decoded.append( '<' ) ;
+					else if( ref.equals( "gt" ) ) decoded.append( '>' ) ;
+					else if( ref.equals( "quot" ) ) decoded.append( '"' ) ;
+					else if( ref.equals( "apos" ) ) decoded.append( '\'' ) ;
+					else if( ref.startsWith( "#x" ) ) decoded.appendCodePoint( Integer.parseInt( ref.substring(2), 16 ) ) ;
+					else if( ref.startsWith( "#" ) ) decoded.appendCodePoint( Integer.parseInt( ref.substring(1) ) ) ;
+					else throw malformed( start ) ;
+					i = semicolon ;
+				}
+			}
+			return decoded.toString() ;
+		}
+
+		/**
+		 * @return true if the XML declaration between p and end names no encoding, or UTF-8 or ASCII.
+		 */
+		private boolean isUtf8Declaration( int p, int end ) {
+			StringBuilder declaration = new StringBuilder( end - p ) ;
+			for( int i=p; i<end; i++ ) {
+				declaration.append( (char)( b.get(i) & 0xFF ) ) ;
+			}
+			String d = declaration.toString().toLowerCase() ;
+			int encoding = d.indexOf( "encoding" ) ;
+			if( encoding == -1 ) {
+				return true ;
+			}
+			String rest = d.substring( encoding ) ;
+			return rest.matches( "encoding\\s*=\\s*[\"'](utf-8|utf8|us-ascii|ascii)[\"'].*" ) ;
+		}
+
+		private int indexOf( char c, int from ) {
+			for( int i=from; i<limit; i++ ) {
+				if( b.get(i) == c ) {
+					return i ;
+				}
+			}
+			return -1 ;
+		}
+
+		private int indexOf( String s, int from ) throws ProcessException {
+			for( int i=from; i<=limit-s.length(); i++ ) {
+				if( startsWith( s, i ) ) {
+					return i ;
+				}
+			}
+			throw malformed( from ) ;
+		}
+
+		private boolean startsWith( String s, int p ) {
+			if( p + s.length() > limit ) {
+				return false ;
+			}
+			for( int i=0; i<s.length(); i++ ) {
+				if( b.get( p+i ) != s.charAt(i) ) {
+					return false ;
+				}
+			}
+			return true ;
+		}
+
+		private boolean matches( byte[] s, int p ) {
+			if( p + s.length > limit ) {
+				return false ;
+			}
+			for( int i=0; i<s.length; i++ ) {
+				if( b.get( p+i ) != s[i] ) {
+					return false ;
+				}
+			}
+			return true ;
+		}
+
+		private static boolean isWhitespace( byte c ) {
+			return c == ' ' || c == '\n' || c == '\t' || c == '\r' ;
+		}
+
+		private static ProcessException malformed( int p ) {
+			return new ProcessException( "Value set is not well formed near byte " + p ) ;
+		}
+
+	}
+
+}
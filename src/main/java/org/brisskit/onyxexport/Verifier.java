@@ -0,0 +1,606 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * Verifies a composed export against the original it was composed from, and the plan
+ * it was composed to (deletions, matched pairs and resolved selects). See -verify.
+ * <p/>
+ * Each questionnaire's entities.xml must list exactly the participants not deleted, with
+ * their original data files, and those files must be present; no other file may appear.
+ * Each variableValue of every data file is hashed, as is the rest of the file: within a
+ * matched pair of a questionnaire with selects, each participant must hold its own
+ * unselected variables and its partner's selected variables, exactly as they were in the
+ * originals, and nothing more. Every other data file must hold what it held. Files other
+ * than data files (eg: variables.xml) must be byte for byte as they were.
+ * <p/>
+ * Hashes are taken of the XML (names, sorted attributes and non-whitespace text) rather
+ * than of the bytes, as the engines differ in layout: the xmlbeans engine reformats the
+ * files it rewrites.
+ * <p/>
+ * Files are read through a {@link Pipeline}: one thread reads the original and composed
+ * files of each pair in turn, the worker threads hash and compare them, and one thread
+ * gathers the violations. Directories whose names start with a dot (eg: the compositor's
+ * .compositor-index) are not part of the export, and are ignored.
+ *
+ */
+public class Verifier {
+
+	private static Log log = LogFactory.getLog( Verifier.class ) ;
+
+	//
+	// Violations beyond this number are counted but not kept...
+	public static final int MAX_VIOLATIONS_KEPT = 1000 ;
+
+	private static final XMLInputFactory inputFactory = newInputFactory() ;
+
+	private final ExportIndex original ;
+	private final ExportIndex composed ;
+	private final Set<String> deletions ;
+	private final List<MatchedPair> pairs ;
+	private final Map<String,SelectionTable> selections ;
+	private final int threads ;
+	private final int queueCapacity ;
+	private final ArrayList<String> violations = new ArrayList<String>() ;
+	private long violationCount = 0 ;
+	private long filesVerified = 0 ;
+	private long bytesVerified = 0 ;
+	private long variablesVerified = 0 ;
+
+	/**
+	 * @param original the export composed from
+	 * @param composed the export composed
+	 * @param deletions the participants left out of the composition
+	 * @param pairs the matched pairs
+	 * @param selections questionnaire name to resolved selects
+	 * @param threads number of threads hashing files
+	 * @param queueCapacity number of units queued between stages
+	 */
+	public Verifier( ExportIndex original
+			       , ExportIndex composed
+			       , Set<String> deletions
+			       , List<MatchedPair> pairs
+			       , Map<String,SelectionTable> selections
+			       , int threads
+			       , int queueCapacity ) {
+		this.original = original ;
+		this.composed = composed ;
+		this.deletions = deletions ;
+		this.pairs = pairs ;
+		this.selections = selections ;
+		this.threads = threads ;
+		this.queueCapacity = queueCapacity ;
+	}
+
+	/**
+	 * Verifies the whole of the composed export, logging each violation found.
+	 *
+	 * @throws ProcessException if any violation was found, or a file could not be read.
+	 */
+	public void verify() throws ProcessException {
+		if( log.isTraceEnabled() ) ParticipantCompositor.enterTrace( "Verifier.verify()" ) ;
+		long started = System.currentTimeMillis() ;
+		try {
+			Collection<String> composedNames = composed.getQuestionnaireNames() ;
+			ArrayList<Unit> units = new ArrayList<Unit>() ;
+			for( String questionnaire : original.getQuestionnaireNames() ) {
+				if( !composedNames.contains( questionnaire ) ) {
+					violation( questionnaire + ": questionnaire missing from the composed export" ) ;
+					continue ;
+				}
+				units.addAll( verifyEntities( questionnaire ) ) ;
+			}
+			for( String questionnaire : composedNames ) {
+				if( !original.getQuestionnaireNames().contains( questionnaire ) ) {
+					violation( questionnaire + ": questionnaire not in the original export" ) ;
+				}
+			}
+			new Pipeline<Unit>( "verify", queueCapacity, threads ).run( units
+					, new Pipeline.Stage<Unit>() {
+						public void process( Unit unit ) throws ProcessException {
+							unit.read() ;
+						}
+					}
+					, new Pipeline.Stage<Unit>() {
+						public void process( Unit unit ) {
+							unit.verify() ;
+						}
+					}
+					, new Pipeline.Stage<Unit>() {
+						public void process( Unit unit ) {
+							report( unit ) ;
+						}
+					} ) ;
+			double seconds = Math.max( System.currentTimeMillis() - started, 1 ) / 1000.0 ;
+			log.info( "Verified " + filesVerified + " files, "
+					+ variablesVerified + " variables, "
+					+ bytesVerified + " bytes in "
+					+ String.format( "%.3fs (%.2f MB/s)", seconds, bytesVerified / seconds / ( 1024 * 1024 ) ) ) ;
+			if( violationCount > 0 ) {
+				throw new ProcessException( "Verification failed: " + violationCount + " violations found in "
+						                  + composed.getExport().getAbsolutePath() ) ;
+			}
+			log.info( "Verification passed: " + composed.getExport().getAbsolutePath() ) ;
+		}
+		finally {
+			if( log.isTraceEnabled() ) ParticipantCompositor.exitTrace( "Verifier.verify()" ) ;
+		}
+	}
+
+	/**
+	 * @return the violations found, up to MAX_VIOLATIONS_KEPT.
+	 */
+	public synchronized List<String> getViolations() {
+		return new ArrayList<String>( violations ) ;
+	}
+
+	public synchronized long getViolationCount() {
+		return violationCount ;
+	}
+
+	public synchronized long getFilesVerified() {
+		return filesVerified ;
+	}
+
+	/**
+	 * Checks the composed questionnaire's entities.xml against its files and the original.
+	 *
+	 * @return the units verifying the files of the questionnaire present in both exports.
+	 */
+	private ArrayList<Unit> verifyEntities( String questionnaire ) throws ProcessException {
+		Map<String,String> before = original.getEntities( questionnaire ) ;
+		Map<String,String> after = composed.getEntities( questionnaire ) ;
+		for( Map.Entry<String,String> e : before.entrySet() ) {
+			String id = e.getKey() ;
+			String fileName = after.get( id ) ;
+			if( deletions.contains( id ) ) {
+				if( fileName != null ) {
+					violation( questionnaire, id, "deleted participant is still listed" ) ;
+				}
+			}
+			else if( fileName == null ) {
+				violation( questionnaire, id, "participant is no longer listed" ) ;
+			}
+			else if( !fileName.equals( e.getValue() ) ) {
+				violation( questionnaire, id, "listed with data file " + fileName + " rather than " + e.getValue() ) ;
+			}
+		}
+		HashSet<String> dataFileNames = new HashSet<String>( after.values() ) ;
+		for( Map.Entry<String,String> e : after.entrySet() ) {
+			if( !before.containsKey( e.getKey() ) ) {
+				violation( questionnaire, e.getKey(), "participant not in the original export" ) ;
+			}
+			else if( !composed.exists( questionnaire, e.getValue() ) ) {
+				violation( questionnaire, e.getKey(), "listed data file " + e.getValue() + " is missing" ) ;
+			}
+		}
+		//
+		// Files which are not data files are carried over as they are...
+		HashSet<String> otherFileNames = new HashSet<String>( original.getFileNames( questionnaire ) ) ;
+		otherFileNames.removeAll( before.values() ) ;
+		otherFileNames.remove( ExportIndex.ENTITIES_FILE_NAME ) ;
+		for( String fileName : composed.getFileNames( questionnaire ) ) {
+			if( !dataFileNames.contains( fileName )
+				&&
+				!otherFileNames.contains( fileName )
+				&&
+				!ExportIndex.ENTITIES_FILE_NAME.equals( fileName ) ) {
+				violation( questionnaire + "/" + fileName + ": file is not listed in entities.xml" ) ;
+			}
+		}
+		ArrayList<Unit> units = new ArrayList<Unit>() ;
+		for( String fileName : otherFileNames ) {
+			if( composed.exists( questionnaire, fileName ) ) {
+				units.add( new Unit( questionnaire, fileName ) ) ;
+			}
+			else {
+				violation( questionnaire + "/" + fileName + ": file missing from the composed export" ) ;
+			}
+		}
+		//
+		// Each pair is verified as one, so that the exchange can be checked...
+		HashSet<String> paired = new HashSet<String>() ;
+		SelectionTable selection = selections.get( questionnaire ) ;
+		if( selection != null ) {
+			for( MatchedPair mp : pairs ) {
+				if( isVerifiable( questionnaire, mp.idOne ) && isVerifiable( questionnaire, mp.idTwo ) ) {
+					units.add( new Unit( questionnaire, selection, mp.idOne, mp.idTwo ) ) ;
+					paired.add( mp.idOne ) ;
+					paired.add( mp.idTwo ) ;
+				}
+			}
+		}
+		for( String id : before.keySet() ) {
+			if( !paired.contains( id ) && !deletions.contains( id ) && isVerifiable( questionnaire, id ) ) {
+				units.add( new Unit( questionnaire, null, id, null ) ) ;
+			}
+		}
+		return units ;
+	}
+
+	/**
+	 * @return true if the participant has the same data file in both exports, and it is present.
+	 *         (Otherwise the violation has already been found.)
+	 */
+	private boolean isVerifiable( String questionnaire, String id ) throws ProcessException {
+		String fileName = original.getDataFileName( questionnaire, id ) ;
+		return fileName != null
+			   &&
+			   fileName.equals( composed.getDataFileName( questionnaire, id ) )
+			   &&
+			   composed.exists( questionnaire, fileName ) ;
+	}
+
+	private void violation( String questionnaire, String id, String message ) {
+		violation( questionnaire + " (" + id + "): " + message ) ;
+	}
+
+	private synchronized void violation( String message ) {
+		log.error( "Violation: " + message ) ;
+		violationCount++ ;
+		if( violations.size() < MAX_VIOLATIONS_KEPT ) {
+			violations.add( message ) ;
+		}
+	}
+
+	private synchronized void report( Unit unit ) {
+		for( String message : unit.violations ) {
+			violation( message ) ;
+		}
+		filesVerified += unit.files ;
+		bytesVerified += unit.bytes ;
+		variablesVerified += unit.variables ;
+	}
+
+	/**
+	 * Reads a file of a questionnaire of either export.
+	 */
+	private static byte[] read( ExportIndex index, String questionnaire, String fileName ) throws ProcessException {
+		String path = questionnaire + "/" + fileName ;
+		try {
+			File directory = index.getQuestionnaireDirectory( questionnaire ) ;
+			if( directory != null ) {
+				return IOUtil.readFile( new File( directory, fileName ) ) ;
+			}
+			ZipArchiveEntry entry = index.getEntry( questionnaire, fileName ) ;
+			InputStream in = index.open( questionnaire, fileName ) ;
+			try {
+				return IOUtil.readStream( in, entry.getSize() ) ;
+			}
+			finally {
+				IOUtil.closeQuietly( in ) ;
+			}
+		}
+		catch( IOException iox ) {
+			throw new ProcessException( "Could not read " + path + " of " + index.getExport().getAbsolutePath(), iox ) ;
+		}
+	}
+
+	/**
+	 * The verification of a matched pair's files (or a single participant's, where idTwo is
+	 * null and there is no selection), or of a file other than a data file.
+	 */
+	private class Unit {
+
+		private final String questionnaire ;
+		private final SelectionTable selection ;
+		private final String idOne ;
+		private final String idTwo ;
+		private final String fileName ;
+		private byte[] originalOne ;
+		private byte[] originalTwo ;
+		private byte[] composedOne ;
+		private byte[] composedTwo ;
+		private final ArrayList<String> violations = new ArrayList<String>( 0 ) ;
+		private int files = 0 ;
+		private long bytes = 0 ;
+		private int variables = 0 ;
+
+		private Unit( String questionnaire, SelectionTable selection, String idOne, String idTwo ) {
+			this.questionnaire = questionnaire ;
+			this.selection = selection ;
+			this.idOne = idOne ;
+			this.idTwo = idTwo ;
+			this.fileName = null ;
+		}
+
+		private Unit( String questionnaire, String fileName ) {
+			this.questionnaire = questionnaire ;
+			this.selection = null ;
+			this.idOne = null ;
+			this.idTwo = null ;
+			this.fileName = fileName ;
+		}
+
+		private void read() throws ProcessException {
+			if( fileName != null ) {
+				originalOne = Verifier.read( original, questionnaire, fileName ) ;
+				composedOne = Verifier.read( composed, questionnaire, fileName ) ;
+			}
+			else {
+				originalOne = readDataFile( original, idOne ) ;
+				composedOne = readDataFile( composed, idOne ) ;
+				if( idTwo != null ) {
+					originalTwo = readDataFile( original, idTwo ) ;
+					composedTwo = readDataFile( composed, idTwo ) ;
+				}
+			}
+		}
+
+		private byte[] readDataFile( ExportIndex index, String id ) throws ProcessException {
+			byte[] content = Verifier.read( index, questionnaire, index.getDataFileName( questionnaire, id ) ) ;
+			bytes += content.length ;
+			files++ ;
+			return content ;
+		}
+
+		private void verify() {
+			try {
+				if( fileName != null ) {
+					files++ ;
+					bytes += composedOne.length ;
+					if( !Arrays.equals( originalOne, composedOne ) ) {
+						violations.add( questionnaire + "/" + fileName + ": file differs from the original" ) ;
+					}
+					return ;
+				}
+				Digest one = digest( idOne, originalOne, "original" ) ;
+				Digest newOne = digest( idOne, composedOne, "composed" ) ;
+				if( idTwo == null ) {
+					compare( newOne, idOne, one, null, null ) ;
+					return ;
+				}
+				Digest two = digest( idTwo, originalTwo, "original" ) ;
+				Digest newTwo = digest( idTwo, composedTwo, "composed" ) ;
+				compare( newOne, idOne, one, idTwo, two ) ;
+				compare( newTwo, idTwo, two, idOne, one ) ;
+			}
+			catch( XMLStreamException xsx ) {
+				//
+				// Already recorded as a violation...
+			}
+			finally {
+				originalOne = originalTwo = composedOne = composedTwo = null ;
+			}
+		}
+
+		private Digest digest( String id, byte[] content, String which ) throws XMLStreamException {
+			try {
+				return Digest.newInstance( content ) ;
+			}
+			catch( XMLStreamException xsx ) {
+				violations.add( questionnaire + " (" + id + "): " + which + " data file could not be parsed: " + xsx.getMessage() ) ;
+				throw xsx ;
+			}
+		}
+
+		/**
+		 * @param result the composed file's digest
+		 * @param id the composed file's participant
+		 * @param own the digest of the participant's original file
+		 * @param partnerId the partner, or null if the participant was not swapped
+		 * @param partner the digest of the partner's original file, or null
+		 */
+		private void compare( Digest result, String id, Digest own, String partnerId, Digest partner ) {
+			String prefix = questionnaire + " (" + id + "): " ;
+			if( result.document != own.document ) {
+				violations.add( prefix + "content outside the variables differs from the original" ) ;
+			}
+			for( Map.Entry<String,Long> e : own.variables.entrySet() ) {
+				if( isSelected( e.getKey() ) ) {
+					continue ;
+				}
+				Long hash = result.variables.get( e.getKey() ) ;
+				if( hash == null ) {
+					violations.add( prefix + "variable " + e.getKey() + " is missing" ) ;
+				}
+				else if( !hash.equals( e.getValue() ) ) {
+					violations.add( prefix + "variable " + e.getKey() + " differs from the original" ) ;
+				}
+			}
+			if( partner != null ) {
+				for( Map.Entry<String,Long> e : partner.variables.entrySet() ) {
+					if( !isSelected( e.getKey() ) ) {
+						continue ;
+					}
+					Long hash = result.variables.get( e.getKey() ) ;
+					if( hash == null ) {
+						violations.add( prefix + "variable " + e.getKey() + " of partner " + partnerId + " is missing" ) ;
+					}
+					else if( !hash.equals( e.getValue() ) ) {
+						violations.add( prefix + "variable " + e.getKey() + " differs from that of partner " + partnerId ) ;
+					}
+				}
+			}
+			for( String name : result.variables.keySet() ) {
+				boolean expected = isSelected( name )
+						         ? partner != null && partner.variables.containsKey( name )
+						         : own.variables.containsKey( name ) ;
+				if( !expected ) {
+					violations.add( prefix + "variable " + name + " is not expected" ) ;
+				}
+			}
+			variables += result.variables.size() ;
+		}
+
+		private boolean isSelected( String variableName ) {
+			return selection != null && selection.getSelectIndex( variableName ) != SelectionTable.NOT_SELECTED ;
+		}
+
+	}
+
+	/**
+	 * The hashes of a value set file: one of each variable (the sum, where a variable
+	 * occurs more than once) and one of everything else in the file.
+	 */
+	static class Digest {
+
+		private long document ;
+		private final HashMap<String,Long> variables = new HashMap<String,Long>() ;
+
+		static Digest newInstance( byte[] content ) throws XMLStreamException {
+			Digest digest = new Digest() ;
+			XMLStreamReader reader = inputFactory.createXMLStreamReader( new ByteArrayInputStream( content ) ) ;
+			try {
+				Hash document = new Hash() ;
+				Hash variable = null ;
+				String variableName = null ;
+				int depth = 0 ;
+				int variableDepth = 0 ;
+				while( reader.hasNext() ) {
+					int event = reader.next() ;
+					if( event == XMLStreamConstants.START_ELEMENT ) {
+						depth++ ;
+						if( variable == null && ValueSetScanner.VARIABLE_VALUE_ELEMENT.equals( reader.getLocalName() ) ) {
+							variable = new Hash() ;
+							variableName = reader.getAttributeValue( null, ValueSetScanner.VARIABLE_ATTRIBUTE ) ;
+							variableDepth = depth ;
+						}
+						( variable == null ? document : variable ).start( reader ) ;
+					}
+					else if( event == XMLStreamConstants.END_ELEMENT ) {
+						( variable == null ? document : variable ).mix( '>' ) ;
+						if( variable != null && depth == variableDepth ) {
+							digest.add( String.valueOf( variableName ), variable.value() ) ;
+							variable = null ;
+						}
+						depth-- ;
+					}
+					else if( ( event == XMLStreamConstants.CHARACTERS
+							   || event == XMLStreamConstants.CDATA )
+							 && !reader.isWhiteSpace() ) {
+						( variable == null ? document : variable ).text( reader ) ;
+					}
+				}
+				digest.document = document.value() ;
+				return digest ;
+			}
+			finally {
+				reader.close() ;
+			}
+		}
+
+		private void add( String variableName, long hash ) {
+			Long previous = variables.get( variableName ) ;
+			variables.put( variableName, Long.valueOf( previous == null ? hash : previous.longValue() + hash ) ) ;
+		}
+
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of a sequence of characters, finished with a mixing step
+	 * so that the hashes of variables may be summed.
+	 */
+	private static class Hash {
+
+		private static final long OFFSET_BASIS = 0xcbf29ce484222325L ;
+		private static final long PRIME = 0x100000001b3L ;
+
+		private long h = OFFSET_BASIS ;
+
+		private void mix( char c ) {
+			h ^= c ;
+			h *= PRIME ;
+		}
+
+		private void mix( String s ) {
+			if( s != null ) {
+				for( int i=0; i<s.length(); i++ ) {
+					mix( s.charAt(i) ) ;
+				}
+			}
+			//
+			// A separator, so that adjacent strings cannot run together...
+			mix( '\uffff' ) ;
+		}
+
+		/**
+		 * Mixes in the text the reader is positioned on, without copying it.
+		 */
+		private void text( XMLStreamReader reader ) {
+			mix( '"' ) ;
+			char[] text = reader.getTextCharacters() ;
+			int end = reader.getTextStart() + reader.getTextLength() ;
+			for( int i=reader.getTextStart(); i<end; i++ ) {
+				mix( text[i] ) ;
+			}
+			mix( '\uffff' ) ;
+		}
+
+		/**
+		 * Mixes in a start element: its name and its attributes, in order of name.
+		 */
+		private void start( XMLStreamReader reader ) {
+			mix( '<' ) ;
+			mix( reader.getNamespaceURI() ) ;
+			mix( reader.getLocalName() ) ;
+			int count = reader.getAttributeCount() ;
+			if( count == 0 ) {
+				return ;
+			}
+			if( count == 1 ) {
+				mix( '=' ) ;
+				mix( reader.getAttributeNamespace(0) ) ;
+				mix( reader.getAttributeLocalName(0) ) ;
+				mix( reader.getAttributeValue(0) ) ;
+				return ;
+			}
+			String[] attributes = new String[ count ] ;
+			for( int i=0; i<count; i++ ) {
+				attributes[i] = reader.getAttributeNamespace(i) + '\uffff'
+						      + reader.getAttributeLocalName(i) + '\uffff'
+						      + reader.getAttributeValue(i) ;
+			}
+			Arrays.sort( attributes ) ;
+			for( String attribute : attributes ) {
+				mix( '=' ) ;
+				mix( attribute ) ;
+			}
+		}
+
+		private long value() {
+			long z = h ;
+			z = ( z ^ ( z >>> 33 ) ) * 0xff51afd7ed558ccdL ;
+			z = ( z ^ ( z >>> 33 ) ) * 0xc4ceb9fe1a85ec53L ;
+			return z ^ ( z >>> 33 ) ;
+		}
+
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		//
+		// Text split differently by different writers must hash the same...
+		factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE ) ;
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE ) ;
+		factory.setProperty( XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE ) ;
+		return factory ;
+	}
+
+}
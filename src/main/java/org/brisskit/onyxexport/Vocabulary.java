@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The variable names of a questionnaire, each held once and numbered.
+ * <p/>
+ * Names are numbered from 0 in the order they are first met; for a questionnaire with
+ * a variables.xml file, that is its declared order. A variable is thereafter identified
+ * by its small integer id, so that tables over a questionnaire's variables (eg: its
+ * selection) are arrays indexed by id rather than maps keyed by name, and are compared
+ * as ints rather than as strings.
+ * <p/>
+ * Safe for concurrent use. An id, once given, is never changed.
+ *
+ */
+public final class Vocabulary {
+
+	private final ConcurrentHashMap<String,Integer> ids ;
+	private volatile String[] names ;
+	private int size = 0 ;
+
+	/**
+	 * @param expectedSize the number of variables expected, eg: as declared in variables.xml
+	 */
+	public Vocabulary( int expectedSize ) {
+		int capacity = Math.max( 16, expectedSize ) ;
+		this.ids = new ConcurrentHashMap<String,Integer>( capacity * 4 / 3 + 1 ) ;
+		this.names = new String[ capacity ] ;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the name, which is numbered now if it has not been met before.
+	 */
+	public int getId( String name ) {
+		Integer id = ids.get( name ) ;
+		if( id != null ) {
+			return id.intValue() ;
+		}
+		return add( name ) ;
+	}
+
+	/**
+	 * @param id
+	 * @return the (canonical) name numbered id.
+	 */
+	public String getName( int id ) {
+		return names[ id ] ;
+	}
+
+	/**
+	 * @return the number of names numbered so far.
+	 */
+	public synchronized int size() {
+		return size ;
+	}
+
+	private synchronized int add( String name ) {
+		Integer id = ids.get( name ) ;
+		if( id != null ) {
+			return id.intValue() ;
+		}
+		if( size == names.length ) {
+			names = Arrays.copyOf( names, size * 2 ) ;
+		}
+		names[ size ] = name ;
+		//
+		// The name is in place before its id is published...
+		ids.put( name, Integer.valueOf( size ) ) ;
+		return size++ ;
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * The bundled export, zipped, composed straight into a new zip file: the composition
+ * should be that of the expanded export composed in place with the same seed, and the
+ * export zip file left untouched.
+ *
+ */
+public class ArchiveCompositionTest extends TestCase {
+
+	private File directory ;
+	private File export ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "archive" ) ;
+		export = ExportFixture.zip( ExportFixture.EXPORT, new File( directory, "export.zip" ) ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testArchiveComposedAsExpanded() throws Exception {
+		byte[] original = ExportFixture.read( export ) ;
+		File output = new File( directory, "composed.zip" ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( export, ExportFixture.SEED ) ;
+		pc.setOutputArchive( output ) ;
+		pc.exec() ;
+		assertTrue( Arrays.equals( original, ExportFixture.read( export ) ) ) ;
+		File expanded = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "expanded" ) ) ;
+		ExportFixture.newCompositor( expanded, ExportFixture.SEED ).exec() ;
+		ExportFixture.assertSameContent( ExportFixture.readDirectory( expanded ), ExportFixture.readZip( output ) ) ;
+		//
+		// Nothing is left alongside the output...
+		assertEquals( Arrays.asList( "composed.zip", "expanded", "export.zip" ), sorted( directory.list() ) ) ;
+	}
+
+	public void testArchiveComposedInParallel() throws Exception {
+		File serial = new File( directory, "serial.zip" ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( export, ExportFixture.SEED ) ;
+		pc.setOutputArchive( serial ) ;
+		pc.exec() ;
+		File parallel = new File( directory, "parallel.zip" ) ;
+		pc = ExportFixture.newCompositor( export, ExportFixture.SEED ) ;
+		pc.setOutputArchive( parallel ) ;
+		pc.setThreads( 4 ) ;
+		pc.exec() ;
+		ExportFixture.assertSameContent( ExportFixture.readZip( serial ), ExportFixture.readZip( parallel ) ) ;
+	}
+
+	private static List<String> sorted( String[] names ) {
+		Arrays.sort( names ) ;
+		return Arrays.asList( names ) ;
+	}
+
+}
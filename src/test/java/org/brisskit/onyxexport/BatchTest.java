@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * A batch of exports, one of which cannot be composed: the batch should carry on past
+ * it and compose the rest, each as if composed alone, and only then fail.
+ *
+ */
+public class BatchTest extends TestCase {
+
+	private File directory ;
+	private File output ;
+	private List<File> exports ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "batch" ) ;
+		//
+		// As made by the factory...
+		output = new File( directory, "composed" ) ;
+		output.mkdir() ;
+		File broken = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "broken" ) ) ;
+		ExportFixture.write( new File( new File( broken, ExportIndex.PARTICIPANTS ), ExportIndex.ENTITIES_FILE_NAME )
+				           , "not an entities file".getBytes( "UTF-8" ) ) ;
+		exports = Arrays.asList( ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "first" ) )
+				               , broken
+				               , ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "second" ) ) ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testBatchContinuesPastFailedExport() throws Exception {
+		ParticipantCompositor template = ExportFixture.newCompositor( exports.get(0), ExportFixture.SEED ) ;
+		template.setBatch( Batch.newInstance( exports, output ) ) ;
+		try {
+			template.exec() ;
+			fail( "Batch with a broken export succeeded" ) ;
+		}
+		catch( ProcessException px ) {
+			// expected
+		}
+		File reference = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "reference" ) ) ;
+		ExportFixture.newCompositor( reference, ExportFixture.SEED ).exec() ;
+		ExportFixture.assertSameContent( reference, new File( output, "first" ) ) ;
+		ExportFixture.assertSameContent( reference, new File( output, "second" ) ) ;
+		//
+		// The exports themselves are left as they were...
+		ExportFixture.assertSameContent( ExportFixture.EXPORT, exports.get(0) ) ;
+		ExportFixture.assertSameContent( ExportFixture.EXPORT, exports.get(2) ) ;
+	}
+
+}
@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.brisskit.export.metadata.config.beans.OnyxExportConfigDocument;
+
+/**
+ * The bundled export and its configuration, and what the tests do with them:
+ * copy the export, zip it, compose it and compare compositions.
+ *
+ */
+final class ExportFixture {
+
+	static final File EXPORT = new File( "src/main/test/resources/a-onyx-export" ) ;
+	static final File CONFIG = new File( "src/main/test/resources/export-metadata-config.xml" ) ;
+	static final String QUESTIONNAIRE = "MedicalHistoryInterviewQuestionnaire" ;
+	static final long SEED = 42L ;
+
+	private ExportFixture() {}
+
+	/**
+	 * @return a new, empty, temporary directory.
+	 */
+	static File newDirectory( String prefix ) throws Exception {
+		File directory = File.createTempFile( prefix, "" ) ;
+		directory.delete() ;
+		directory.mkdir() ;
+		return directory ;
+	}
+
+	/**
+	 * @return a compositor of the export, with the bundled configuration and the stax engine.
+	 */
+	static ParticipantCompositor newCompositor( File export, long seed ) throws Exception {
+		ParticipantCompositor pc = new ParticipantCompositor() ;
+		pc.setExportDirectory( export ) ;
+		pc.setConfig( OnyxExportConfigDocument.Factory.parse( CONFIG ) ) ;
+		pc.setEngine( ParticipantCompositor.Engine.STAX ) ;
+		pc.setSeed( Long.valueOf( seed ) ) ;
+		return pc ;
+	}
+
+	/**
+	 * Copies a file, or a directory and all within it.
+	 *
+	 * @return the copy
+	 */
+	static File copy( File from, File to ) throws Exception {
+		if( from.isDirectory() ) {
+			to.mkdir() ;
+			for( File child : from.listFiles() ) {
+				copy( child, new File( to, child.getName() ) ) ;
+			}
+		}
+		else {
+			Files.copy( from.toPath(), to.toPath() ) ;
+		}
+		return to ;
+	}
+
+	/**
+	 * Zips an expanded export, each file named by its path within the export.
+	 *
+	 * @return the zip file, replaced if it exists
+	 */
+	static File zip( File export, File zipFile ) throws Exception {
+		zipFile.delete() ;
+		ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream( zipFile ) ;
+		try {
+			for( Map.Entry<String,byte[]> e : readDirectory( export ).entrySet() ) {
+				zipOut.putArchiveEntry( new ZipArchiveEntry( e.getKey() ) ) ;
+				zipOut.write( e.getValue() ) ;
+				zipOut.closeArchiveEntry() ;
+			}
+		}
+		finally {
+			zipOut.close() ;
+		}
+		return zipFile ;
+	}
+
+	/**
+	 * @return the content of each file of an expanded export by its path within the
+	 *         export, other than the compositor's own (dot-named) files and directories.
+	 */
+	static TreeMap<String,byte[]> readDirectory( File export ) throws Exception {
+		return readDirectory( export, "", new TreeMap<String,byte[]>() ) ;
+	}
+
+	private static TreeMap<String,byte[]> readDirectory( File directory, String path, TreeMap<String,byte[]> content ) throws Exception {
+		for( File file : directory.listFiles() ) {
+			if( file.getName().startsWith( "." ) ) {
+				continue ;
+			}
+			if( file.isDirectory() ) {
+				readDirectory( file, path + file.getName() + "/", content ) ;
+			}
+			else {
+				content.put( path + file.getName(), read( file ) ) ;
+			}
+		}
+		return content ;
+	}
+
+	/**
+	 * @return the content of each file entry of a zip file by its name.
+	 */
+	static TreeMap<String,byte[]> readZip( File zipFile ) throws Exception {
+		TreeMap<String,byte[]> content = new TreeMap<String,byte[]>() ;
+		ZipFile archive = new ZipFile( zipFile ) ;
+		try {
+			Enumeration<ZipArchiveEntry> entries = archive.getEntries() ;
+			while( entries.hasMoreElements() ) {
+				ZipArchiveEntry entry = entries.nextElement() ;
+				if( entry.isDirectory() ) {
+					continue ;
+				}
+				InputStream in = archive.getInputStream( entry ) ;
+				try {
+					content.put( entry.getName(), read( in ) ) ;
+				}
+				finally {
+					in.close() ;
+				}
+			}
+		}
+		finally {
+			archive.close() ;
+		}
+		return content ;
+	}
+
+	/**
+	 * Compares the files of two exports byte for byte, other than the compositor's own.
+	 */
+	static void assertSameContent( File expected, File actual ) throws Exception {
+		assertSameContent( readDirectory( expected ), readDirectory( actual ) ) ;
+	}
+
+	/**
+	 * Compares two exports' files, by path, byte for byte.
+	 */
+	static void assertSameContent( Map<String,byte[]> expected, Map<String,byte[]> actual ) {
+		Assert.assertEquals( expected.keySet(), actual.keySet() ) ;
+		for( Map.Entry<String,byte[]> e : expected.entrySet() ) {
+			Assert.assertTrue( "Differs: " + e.getKey(), Arrays.equals( e.getValue(), actual.get( e.getKey() ) ) ) ;
+		}
+	}
+
+	/**
+	 * @return the content of a file.
+	 */
+	static byte[] read( File file ) throws Exception {
+		InputStream in = new FileInputStream( file ) ;
+		try {
+			return read( in ) ;
+		}
+		finally {
+			in.close() ;
+		}
+	}
+
+	private static byte[] read( InputStream in ) throws Exception {
+		ByteArrayOutputStream content = new ByteArrayOutputStream() ;
+		byte[] buffer = new byte[ 8192 ] ;
+		int n ;
+		while( ( n = in.read( buffer ) ) != -1 ) {
+			content.write( buffer, 0, n ) ;
+		}
+		return content.toByteArray() ;
+	}
+
+	/**
+	 * Deletes a file, or a directory and all within it.
+	 */
+	static void delete( File file ) {
+		File[] files = file.listFiles() ;
+		if( files != null ) {
+			for( File f : files ) {
+				delete( f ) ;
+			}
+		}
+		file.delete() ;
+	}
+
+	/**
+	 * Writes content to a file, replacing any there.
+	 */
+	static void write( File file, byte[] content ) throws Exception {
+		FileOutputStream out = new FileOutputStream( file ) ;
+		try {
+			out.write( content ) ;
+		}
+		finally {
+			out.close() ;
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.ParticipantCompositor.MatchedPair;
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * An expanded export left by a run interrupted part way through replacing a pair's files:
+ * the unit is journalled as prepared but not committed, one partner's new file has replaced
+ * its original and the other's is still alongside its original, as a temporary file.
+ * <p/>
+ * A run with -resume should complete the unit and follow the journalled plan to the end,
+ * whatever its own seed; a run without should refuse to start. The plan is the test's own:
+ * the participants of a questionnaire paired in turn, with no deletions.
+ *
+ */
+public class JournalTest extends TestCase {
+
+	private static final String QUESTIONNAIRE = ExportFixture.QUESTIONNAIRE ;
+	private static final long SEED = ExportFixture.SEED ;
+
+	private File directory ;
+	private File reference ;
+	private File interrupted ;
+	private File originalTwo ;
+	private File dataTwo ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "journal" ) ;
+		//
+		// The export as composed by an uninterrupted run of the plan...
+		reference = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "reference" ) ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( reference, SEED ) ;
+		List<MatchedPair> pairs = new ArrayList<MatchedPair>() ;
+		ExportIndex index = ExportIndex.newInstance( reference ) ;
+		try {
+			Iterator<String> ids = new TreeSet<String>( index.getEntities( QUESTIONNAIRE ).keySet() ).iterator() ;
+			while( ids.hasNext() ) {
+				String idOne = ids.next() ;
+				if( ids.hasNext() ) {
+					pairs.add( pc.new MatchedPair( idOne, ids.next() ) ) ;
+				}
+			}
+		}
+		finally {
+			index.close() ;
+		}
+		writeJournal( reference, pairs, null ) ;
+		pc.setResume( true ) ;
+		pc.exec() ;
+		//
+		// The interrupted run, which had planned and prepared the first pair that it swaps...
+		interrupted = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "interrupted" ) ) ;
+		MatchedPair prepared = null ;
+		index = ExportIndex.newInstance( interrupted ) ;
+		ExportIndex composed = ExportIndex.newInstance( reference ) ;
+		try {
+			for( MatchedPair mp : pairs ) {
+				File data = index.getDataFile( QUESTIONNAIRE, mp.idOne ) ;
+				if( data != null
+					&&
+					!Arrays.equals( ExportFixture.read( data ), ExportFixture.read( composed.getDataFile( QUESTIONNAIRE, mp.idOne ) ) ) ) {
+					prepared = mp ;
+					break ;
+				}
+			}
+			assertNotNull( "No pair is swapped", prepared ) ;
+			File dataOne = index.getDataFile( QUESTIONNAIRE, prepared.idOne ) ;
+			dataTwo = index.getDataFile( QUESTIONNAIRE, prepared.idTwo ) ;
+			Files.copy( composed.getDataFile( QUESTIONNAIRE, prepared.idOne ).toPath(), dataOne.toPath(), StandardCopyOption.REPLACE_EXISTING ) ;
+			Files.copy( composed.getDataFile( QUESTIONNAIRE, prepared.idTwo ).toPath(), IOUtil.getTempFile( dataTwo ).toPath() ) ;
+		}
+		finally {
+			index.close() ;
+			composed.close() ;
+		}
+		originalTwo = new File( directory, "original-two" ) ;
+		Files.copy( dataTwo.toPath(), originalTwo.toPath() ) ;
+		writeJournal( interrupted, pairs, prepared ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testRunWithoutResumeRefuses() throws Exception {
+		try {
+			ExportFixture.newCompositor( interrupted, SEED ).exec() ;
+			fail( "Run started over the journal of an interrupted run" ) ;
+		}
+		catch( ProcessException px ) {
+			// expected
+		}
+		//
+		// Nothing should have been touched...
+		assertTrue( new File( interrupted, Journal.FILE_NAME ).isFile() ) ;
+		assertTrue( IOUtil.getTempFile( dataTwo ).isFile() ) ;
+		assertTrue( Arrays.equals( ExportFixture.read( originalTwo ), ExportFixture.read( dataTwo ) ) ) ;
+	}
+
+	public void testResumeCompletesPreparedUnit() throws Exception {
+		//
+		// A seed other than that of the interrupted run, which should not alter the plan...
+		ParticipantCompositor pc = ExportFixture.newCompositor( interrupted, SEED + 1 ) ;
+		pc.setResume( true ) ;
+		pc.exec() ;
+		assertFalse( new File( interrupted, Journal.FILE_NAME ).exists() ) ;
+		assertFalse( IOUtil.getTempFile( dataTwo ).exists() ) ;
+		assertEquals( new ArrayList<String>(), listTempFiles( interrupted, new ArrayList<String>() ) ) ;
+		ExportFixture.assertSameContent( reference, interrupted ) ;
+	}
+
+	public void testResumeWithoutJournalRefuses() throws Exception {
+		File untouched = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "untouched" ) ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( untouched, SEED ) ;
+		pc.setResume( true ) ;
+		try {
+			pc.exec() ;
+			fail( "Resumed a run which was never started" ) ;
+		}
+		catch( ProcessException px ) {
+			// expected
+		}
+	}
+
+	/**
+	 * Journals the plan, as a run does before altering the export, and the unit prepared if any.
+	 */
+	private static void writeJournal( File export, List<MatchedPair> pairs, MatchedPair prepared ) throws Exception {
+		Journal journal = Journal.create( export ) ;
+		try {
+			journal.plan( SEED, new LinkedHashSet<String>(), pairs ) ;
+			if( prepared != null ) {
+				journal.prepared( QUESTIONNAIRE, prepared.idOne ) ;
+			}
+		}
+		finally {
+			journal.close() ;
+		}
+	}
+
+	private static List<String> listTempFiles( File file, List<String> found ) {
+		if( file.isDirectory() ) {
+			for( File child : file.listFiles() ) {
+				listTempFiles( child, found ) ;
+			}
+		}
+		else if( file.getName().endsWith( ".tmp" ) ) {
+			found.add( file.getPath() ) ;
+		}
+		return found ;
+	}
+
+}
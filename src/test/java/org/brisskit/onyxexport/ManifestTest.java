@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.Metrics.Counter;
+
+/**
+ * A zip file export recomposed with its manifest: the pairs recorded are kept whatever
+ * the seed, the pairs whose input files are unchanged are copied from the previous output
+ * rather than swapped again, and the output is as a fresh composition's.
+ *
+ */
+public class ManifestTest extends TestCase {
+
+	private File directory ;
+	private File expanded ;
+	private File export ;
+	private File output ;
+	private File manifestFile ;
+	private long units ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "manifest" ) ;
+		expanded = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "expanded" ) ) ;
+		export = ExportFixture.zip( expanded, new File( directory, "export.zip" ) ) ;
+		output = new File( directory, "composed.zip" ) ;
+		manifestFile = new File( directory, "manifest" ) ;
+		compose( ExportFixture.SEED ) ;
+		assertEquals( 0, Metrics.get( Counter.PAIRS_REUSED ) ) ;
+		units = Metrics.get( Counter.PAIRS_SWAPPED ) + Metrics.get( Counter.PAIRS_UNCHANGED ) ;
+		assertTrue( "No pairs composed", units > 0 ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testUnchangedPairsReused() throws Exception {
+		TreeMap<String,byte[]> previous = ExportFixture.readZip( output ) ;
+		//
+		// A seed other than the manifest's, which should not alter the pairs...
+		compose( ExportFixture.SEED + 1 ) ;
+		assertEquals( units, Metrics.get( Counter.PAIRS_REUSED ) ) ;
+		assertEquals( 0, Metrics.get( Counter.PAIRS_SWAPPED ) ) ;
+		ExportFixture.assertSameContent( previous, ExportFixture.readZip( output ) ) ;
+	}
+
+	public void testChangedPairSwappedAgain() throws Exception {
+		//
+		// Amend one participant's file of the first pair with data for both partners...
+		Manifest manifest = Manifest.read( manifestFile ) ;
+		ExportIndex index = ExportIndex.newInstance( expanded ) ;
+		try {
+			File amended = null ;
+			for( String[] pair : manifest.getPairs() ) {
+				File one = index.getDataFile( ExportFixture.QUESTIONNAIRE, pair[0] ) ;
+				if( one != null && index.getDataFile( ExportFixture.QUESTIONNAIRE, pair[1] ) != null ) {
+					amended = one ;
+					break ;
+				}
+			}
+			assertNotNull( "No pair to amend", amended ) ;
+			String content = new String( ExportFixture.read( amended ), "UTF-8" ) + "<!-- amended -->\n" ;
+			ExportFixture.write( amended, content.getBytes( "UTF-8" ) ) ;
+		}
+		finally {
+			index.close() ;
+		}
+		ExportFixture.zip( expanded, export ) ;
+		compose( ExportFixture.SEED ) ;
+		assertEquals( units - 1, Metrics.get( Counter.PAIRS_REUSED ) ) ;
+		//
+		// As composed afresh...
+		File fresh = new File( directory, "fresh.zip" ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( export, ExportFixture.SEED ) ;
+		pc.setOutputArchive( fresh ) ;
+		pc.exec() ;
+		ExportFixture.assertSameContent( ExportFixture.readZip( fresh ), ExportFixture.readZip( output ) ) ;
+	}
+
+	private void compose( long seed ) throws Exception {
+		ParticipantCompositor pc = ExportFixture.newCompositor( export, seed ) ;
+		pc.setOutputArchive( output ) ;
+		pc.setManifestFile( manifestFile ) ;
+		pc.exec() ;
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * An expanded export composed into an output directory: the export should be left
+ * byte for byte as it was, with nothing added, and the output should be the export
+ * as composed in place with the same seed.
+ *
+ */
+public class OutputDirectoryTest extends TestCase {
+
+	private File directory ;
+	private File export ;
+	private File output ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "output" ) ;
+		export = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "export" ) ) ;
+		output = new File( directory, "composed" ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testExportLeftUntouched() throws Exception {
+		TreeMap<String,byte[]> before = ExportFixture.readDirectory( export ) ;
+		List<String> paths = list( export, "", new ArrayList<String>() ) ;
+		compose() ;
+		ExportFixture.assertSameContent( before, ExportFixture.readDirectory( export ) ) ;
+		//
+		// Including the compositor's own files...
+		assertEquals( paths, list( export, "", new ArrayList<String>() ) ) ;
+	}
+
+	public void testOutputComposedAsInPlace() throws Exception {
+		compose() ;
+		File reference = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "reference" ) ) ;
+		ExportFixture.newCompositor( reference, ExportFixture.SEED ).exec() ;
+		ExportFixture.assertSameContent( reference, output ) ;
+		assertFalse( new File( output, Journal.FILE_NAME ).exists() ) ;
+	}
+
+	/**
+	 * @return the paths of all the files and directories within the directory, in order.
+	 */
+	private static List<String> list( File directory, String path, List<String> found ) {
+		String[] names = directory.list() ;
+		Arrays.sort( names ) ;
+		for( String name : names ) {
+			found.add( path + name ) ;
+			File file = new File( directory, name ) ;
+			if( file.isDirectory() ) {
+				list( file, path + name + "/", found ) ;
+			}
+		}
+		return found ;
+	}
+
+	private void compose() throws Exception {
+		ParticipantCompositor pc = ExportFixture.newCompositor( export, ExportFixture.SEED ) ;
+		pc.setOutputDirectory( output ) ;
+		pc.exec() ;
+	}
+
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Planning alone leaves the export untouched, the plan reads back as written, and
+ * applying it composes the export just as a run which plans for itself with the same seed.
+ *
+ */
+public class PlanTest extends TestCase {
+
+	private File directory ;
+	private File planFile ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "plan" ) ;
+		planFile = new File( directory, "plan" ) ;
+		File planned = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "planned" ) ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( planned, ExportFixture.SEED ) ;
+		pc.setPlanFile( planFile ) ;
+		pc.exec() ;
+		ExportFixture.assertSameContent( ExportFixture.EXPORT, planned ) ;
+		assertFalse( new File( planned, Journal.FILE_NAME ).exists() ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testPlanReadBack() throws Exception {
+		Plan plan = Plan.read( planFile ) ;
+		assertEquals( ExportFixture.SEED, plan.getSeed() ) ;
+		assertFalse( plan.getPairs().isEmpty() ) ;
+		assertTrue( plan.getSelections().containsKey( ExportFixture.QUESTIONNAIRE ) ) ;
+		File rewritten = new File( directory, "rewritten" ) ;
+		plan.write( rewritten ) ;
+		assertTrue( Arrays.equals( ExportFixture.read( planFile ), ExportFixture.read( rewritten ) ) ) ;
+	}
+
+	public void testApplyComposesAsDirectRun() throws Exception {
+		File direct = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "direct" ) ) ;
+		ExportFixture.newCompositor( direct, ExportFixture.SEED ).exec() ;
+		//
+		// A seed other than the plan's, which the plan's should override...
+		File applied = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "applied" ) ) ;
+		ParticipantCompositor pc = ExportFixture.newCompositor( applied, ExportFixture.SEED + 1 ) ;
+		pc.setApplyFile( planFile ) ;
+		pc.exec() ;
+		ExportFixture.assertSameContent( direct, applied ) ;
+	}
+
+}
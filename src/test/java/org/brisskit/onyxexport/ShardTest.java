@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * An expanded export composed shard by shard, then by the final step, with the same seed:
+ * the composition should be that of an unsharded run.
+ *
+ */
+public class ShardTest extends TestCase {
+
+	private static final int SHARDS = 3 ;
+
+	private File directory ;
+	private File reference ;
+	private File sharded ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "shard" ) ;
+		reference = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "reference" ) ) ;
+		ExportFixture.newCompositor( reference, ExportFixture.SEED ).exec() ;
+		sharded = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "sharded" ) ) ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testShardsComposeAsUnsharded() throws Exception {
+		//
+		// In reverse, as shards may complete in any order...
+		for( int i=SHARDS; i>0; i-- ) {
+			compose( new Shard( i, SHARDS ) ) ;
+			assertTrue( new File( sharded, Journal.getFileName( new Shard( i, SHARDS ) ) ).isFile() ) ;
+		}
+		compose( new Shard( 0, SHARDS ) ) ;
+		for( int i=0; i<=SHARDS; i++ ) {
+			assertFalse( new File( sharded, Journal.getFileName( new Shard( i, SHARDS ) ) ).exists() ) ;
+		}
+		ExportFixture.assertSameContent( reference, sharded ) ;
+	}
+
+	public void testFinalStepWaitsForShards() throws Exception {
+		compose( new Shard( 1, SHARDS ) ) ;
+		try {
+			compose( new Shard( 0, SHARDS ) ) ;
+			fail( "Final step ran before all the shards had completed" ) ;
+		}
+		catch( ProcessException px ) {
+			// expected
+		}
+	}
+
+	private void compose( Shard shard ) throws Exception {
+		ParticipantCompositor pc = ExportFixture.newCompositor( sharded, ExportFixture.SEED ) ;
+		pc.setShard( shard ) ;
+		pc.exec() ;
+	}
+
+}
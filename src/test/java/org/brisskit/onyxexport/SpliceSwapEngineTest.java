@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import junit.framework.TestCase;
+
+/**
+ * The splice engine should swap a pair as the stax engine does, whether the pair
+ * is held in memory or spliced from its files. Outputs are compared by their content
+ * (see {@link #canonical(byte[])}), as the engines need not agree byte for byte.
+ * <p/>
+ * The pair is one of the bundled export whose selected variables differ.
+ *
+ */
+public class SpliceSwapEngineTest extends TestCase {
+
+	private static final File QUESTIONNAIRE = new File( "src/main/test/resources/a-onyx-export/MedicalHistoryInterviewQuestionnaire" ) ;
+
+	private byte[] one ;
+	private byte[] two ;
+	private List<String> staxOne ;
+	private List<String> staxTwo ;
+	private File directory ;
+
+	protected void setUp() throws Exception {
+		one = ExportFixture.read( new File( QUESTIONNAIRE, "0000001.xml" ) ) ;
+		two = ExportFixture.read( new File( QUESTIONNAIRE, "0000003.xml" ) ) ;
+		ByteArrayOutputStream outOne = new ByteArrayOutputStream() ;
+		ByteArrayOutputStream outTwo = new ByteArrayOutputStream() ;
+		assertTrue( "Nothing swapped by stax"
+				  , StreamingSwapEngine.swap( new ByteArrayInputStream( one )
+						                    , new ByteArrayInputStream( two )
+						                    , outOne
+						                    , outTwo
+						                    , newSelection() ) ) ;
+		staxOne = canonical( outOne.toByteArray() ) ;
+		staxTwo = canonical( outTwo.toByteArray() ) ;
+		assertFalse( "Partner one unaltered by stax", staxOne.equals( canonical( one ) ) ) ;
+		assertFalse( "Partner two unaltered by stax", staxTwo.equals( canonical( two ) ) ) ;
+		directory = File.createTempFile( "splice", "" ) ;
+		directory.delete() ;
+		directory.mkdir() ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testSpliceFromBuffers() throws Exception {
+		ByteArrayOutputStream outOne = new ByteArrayOutputStream() ;
+		ByteArrayOutputStream outTwo = new ByteArrayOutputStream() ;
+		assertTrue( SpliceSwapEngine.swap( ByteBuffer.wrap( one ), ByteBuffer.wrap( two ), outOne, outTwo, newSelection() ) ) ;
+		assertEquals( staxOne, canonical( outOne.toByteArray() ) ) ;
+		assertEquals( staxTwo, canonical( outTwo.toByteArray() ) ) ;
+	}
+
+	public void testSpliceFromFiles() throws Exception {
+		SelectionTable selection = newSelection() ;
+		File fileOne = write( "0000001.xml", one ) ;
+		File fileTwo = write( "0000003.xml", two ) ;
+		File newOne = new File( directory, "new-0000001.xml" ) ;
+		File newTwo = new File( directory, "new-0000003.xml" ) ;
+		FileChannel inOne = new RandomAccessFile( fileOne, "r" ).getChannel() ;
+		FileChannel inTwo = new RandomAccessFile( fileTwo, "r" ).getChannel() ;
+		SpliceSwapEngine.Splice splice ;
+		try {
+			VariableIndex indexOne = VariableIndex.scan( inOne.map( FileChannel.MapMode.READ_ONLY, 0, inOne.size() ), selection.getVocabulary() ) ;
+			VariableIndex indexTwo = VariableIndex.scan( inTwo.map( FileChannel.MapMode.READ_ONLY, 0, inTwo.size() ), selection.getVocabulary() ) ;
+			splice = SpliceSwapEngine.plan( indexOne, indexTwo, selection ) ;
+			assertNotNull( "Nothing swapped by splice", splice ) ;
+			FileChannel out = new FileOutputStream( newOne ).getChannel() ;
+			try {
+				splice.transferOne( inOne, inTwo, out ) ;
+			}
+			finally {
+				out.close() ;
+			}
+			out = new FileOutputStream( newTwo ).getChannel() ;
+			try {
+				splice.transferTwo( inOne, inTwo, out ) ;
+			}
+			finally {
+				out.close() ;
+			}
+		}
+		finally {
+			inOne.close() ;
+			inTwo.close() ;
+		}
+		byte[] splicedOne = ExportFixture.read( newOne ) ;
+		byte[] splicedTwo = ExportFixture.read( newTwo ) ;
+		assertEquals( staxOne, canonical( splicedOne ) ) ;
+		assertEquals( staxTwo, canonical( splicedTwo ) ) ;
+		//
+		// The indexes of the outputs, made without scanning them, should fit them...
+		assertTrue( splice.getIndexOne().fits( ByteBuffer.wrap( splicedOne ) ) ) ;
+		assertTrue( splice.getIndexTwo().fits( ByteBuffer.wrap( splicedTwo ) ) ) ;
+	}
+
+	/**
+	 * @return the selection of the export's configuration for the questionnaire.
+	 */
+	private static SelectionTable newSelection() {
+		SelectionMatcher[] matchers = {
+			new SelectionMatcher( new String[] { "part_hist_highbp" }, new String[0], new String[0] ) ,
+			new SelectionMatcher( new String[] { "part_hist_mi", "mi_year" }, new String[0], new String[0] )
+		} ;
+		return SelectionTable.newInstance( QUESTIONNAIRE.getName(), matchers, new HashMap<String,Integer>() ) ;
+	}
+
+	/**
+	 * @return the value set's elements, attributes (in order of name) and non-blank text:
+	 *         first for the document outside its variables, then for each variable, in order
+	 *         of content. That is, the content of the value set whatever its layout and the
+	 *         order of its variables.
+	 */
+	private static List<String> canonical( byte[] content ) throws Exception {
+		XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader( new ByteArrayInputStream( content ) ) ;
+		StringBuilder document = new StringBuilder() ;
+		StringBuilder variable = null ;
+		List<String> variables = new ArrayList<String>() ;
+		int depth = 0 ;
+		int variableDepth = 0 ;
+		try {
+			while( reader.hasNext() ) {
+				int event = reader.next() ;
+				if( event == XMLStreamConstants.START_ELEMENT ) {
+					depth++ ;
+					if( variable == null && ValueSetScanner.VARIABLE_VALUE_ELEMENT.equals( reader.getLocalName() ) ) {
+						variable = new StringBuilder() ;
+						variableDepth = depth ;
+					}
+					TreeMap<String,String> attributes = new TreeMap<String,String>() ;
+					for( int i=0; i<reader.getAttributeCount(); i++ ) {
+						attributes.put( reader.getAttributeName(i).toString(), reader.getAttributeValue(i) ) ;
+					}
+					( variable == null ? document : variable ).append( '<' ).append( reader.getName() ).append( attributes ) ;
+				}
+				else if( event == XMLStreamConstants.END_ELEMENT ) {
+					( variable == null ? document : variable ).append( "</>" ) ;
+					if( variable != null && depth == variableDepth ) {
+						variables.add( variable.toString() ) ;
+						variable = null ;
+					}
+					depth-- ;
+				}
+				else if( ( event == XMLStreamConstants.CHARACTERS
+						   || event == XMLStreamConstants.CDATA )
+						 && !reader.isWhiteSpace() ) {
+					( variable == null ? document : variable ).append( '"' ).append( reader.getText() ) ;
+				}
+			}
+		}
+		finally {
+			reader.close() ;
+		}
+		Collections.sort( variables ) ;
+		variables.add( 0, document.toString() ) ;
+		return variables ;
+	}
+
+	private File write( String name, byte[] content ) throws Exception {
+		File file = new File( directory, name ) ;
+		FileOutputStream out = new FileOutputStream( file ) ;
+		try {
+			out.write( content ) ;
+		}
+		finally {
+			out.close() ;
+		}
+		return file ;
+	}
+
+}
@@ -0,0 +1,191 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Scanning value sets into offset indexes, and saving and reading back indexes as sidecars.
+ *
+ */
+public class VariableIndexTest extends TestCase {
+
+	private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" ;
+
+	private static final String PREFIXED =
+		DECLARATION +
+		"<od:valueSet xmlns:od='http://brisskit.org/xml/onyxdata/v1.0/od' valueTable=\"Q\">\n" +
+		"  <od:variableValue variable=\"first\">\n" +
+		"    <od:value valueType=\"text\">1</od:value>\n" +
+		"  </od:variableValue>\n" +
+		"  <od:variableValue variable=\"second\">\n" +
+		"    <od:value valueType=\"text\">22</od:value>\n" +
+		"  </od:variableValue>\n" +
+		"</od:valueSet>\n" ;
+
+	private Vocabulary vocabulary ;
+	private File directory ;
+
+	protected void setUp() throws Exception {
+		vocabulary = new Vocabulary( 16 ) ;
+		directory = File.createTempFile( "index", "" ) ;
+		directory.delete() ;
+		directory.mkdir() ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testPrefixedElements() throws Exception {
+		VariableIndex index = scan( PREFIXED ) ;
+		assertEquals( 2, index.size() ) ;
+		assertEquals( "first", index.getVariable(0) ) ;
+		assertEquals( "second", index.getVariable(1) ) ;
+		int start = PREFIXED.indexOf( "<od:variableValue variable=\"second\"" ) ;
+		int end = PREFIXED.indexOf( "</od:valueSet>" ) - 1 ;
+		assertEquals( start, index.getStart(1) ) ;
+		assertEquals( end, index.getEnd(1) ) ;
+		assertEquals( PREFIXED.lastIndexOf( '\n', start ), index.getLead(1) ) ;
+		assertEquals( PREFIXED.indexOf( "</od:valueSet>" ), index.getRootEnd() ) ;
+		assertEquals( PREFIXED.indexOf( "</od:valueSet>" ) - 1, index.getTrailing() ) ;
+		assertEquals( PREFIXED.length(), index.getLength() ) ;
+	}
+
+	public void testSelfClosingElements() throws Exception {
+		String content =
+			DECLARATION +
+			"<valueSet>\n" +
+			"  <variableValue variable=\"empty\"/>\n" +
+			"  <variableValue variable=\"spaced\" />\n" +
+			"  <variableValue variable=\"full\"><value>3</value></variableValue>\n" +
+			"  <variableValues variable=\"other\"/>\n" +
+			"</valueSet>" ;
+		VariableIndex index = scan( content ) ;
+		assertEquals( 3, index.size() ) ;
+		assertEquals( "empty", index.getVariable(0) ) ;
+		assertEquals( content.indexOf( "/>" ) + 2, index.getEnd(0) ) ;
+		assertEquals( "spaced", index.getVariable(1) ) ;
+		assertEquals( content.indexOf( " />" ) + 3, index.getEnd(1) ) ;
+		assertEquals( "full", index.getVariable(2) ) ;
+		assertEquals( content.indexOf( "</variableValue>" ) + "</variableValue>".length(), index.getEnd(2) ) ;
+	}
+
+	public void testEntitiesInVariableName() throws Exception {
+		String content =
+			DECLARATION +
+			"<valueSet>\n" +
+			"  <variableValue variable=\"a&amp;b&#x20;&lt;c&gt; &quot;d&quot;&#65;\"/>\n" +
+			"  <variableValue variable='e\nf'/>\n" +
+			"</valueSet>" ;
+		VariableIndex index = scan( content ) ;
+		assertEquals( 2, index.size() ) ;
+		assertEquals( "a&b <c> \"d\"A", index.getVariable(0) ) ;
+		assertEquals( "e f", index.getVariable(1) ) ;
+	}
+
+	public void testVariablesNumberedByVocabulary() throws Exception {
+		VariableIndex index = scan( PREFIXED ) ;
+		assertSame( vocabulary, index.getVocabulary() ) ;
+		for( int i=0; i<index.size(); i++ ) {
+			int id = vocabulary.getId( index.getVariable(i) ) ;
+			assertEquals( id, index.getVariableId(i) ) ;
+			assertSame( vocabulary.getName( id ), index.getVariable(i) ) ;
+		}
+	}
+
+	public void testDocumentTypeNotIndexed() throws Exception {
+		String content =
+			DECLARATION +
+			"<!DOCTYPE valueSet [ <!ENTITY v \"first\"> ]>\n" +
+			"<valueSet>\n" +
+			"  <variableValue variable=\"&v;\"/>\n" +
+			"</valueSet>" ;
+		assertNull( scan( content ) ) ;
+	}
+
+	public void testUtf16NotIndexed() throws Exception {
+		String content = PREFIXED.replace( "UTF-8", "UTF-16" ) ;
+		assertNull( VariableIndex.scan( ByteBuffer.wrap( content.getBytes( "UTF-16" ) ), vocabulary ) ) ;
+		assertNull( VariableIndex.scan( ByteBuffer.wrap( content.getBytes( "UTF-16LE" ) ), vocabulary ) ) ;
+		//
+		// As declared, whatever the bytes...
+		assertNull( scan( content ) ) ;
+	}
+
+	public void testSidecarReadBack() throws Exception {
+		File file = write( "0000001.xml", PREFIXED ) ;
+		File sidecar = new File( directory, "0000001.xml" + VariableIndex.SIDECAR_SUFFIX ) ;
+		VariableIndex index = scan( PREFIXED ) ;
+		index.write( sidecar, file ) ;
+		VariableIndex read = VariableIndex.read( sidecar, file, vocabulary ) ;
+		assertNotNull( read ) ;
+		assertEquals( index.size(), read.size() ) ;
+		for( int i=0; i<index.size(); i++ ) {
+			assertEquals( index.getVariable(i), read.getVariable(i) ) ;
+			assertEquals( index.getVariableId(i), read.getVariableId(i) ) ;
+			assertEquals( index.getLead(i), read.getLead(i) ) ;
+			assertEquals( index.getStart(i), read.getStart(i) ) ;
+			assertEquals( index.getEnd(i), read.getEnd(i) ) ;
+		}
+		assertEquals( index.getTrailing(), read.getTrailing() ) ;
+		assertEquals( index.getRootEnd(), read.getRootEnd() ) ;
+		assertEquals( index.getLength(), read.getLength() ) ;
+		assertTrue( fits( read, file ) ) ;
+	}
+
+	public void testSidecarRejectedOnceFileChanges() throws Exception {
+		File file = write( "0000001.xml", PREFIXED ) ;
+		File sidecar = new File( directory, "0000001.xml" + VariableIndex.SIDECAR_SUFFIX ) ;
+		scan( PREFIXED ).write( sidecar, file ) ;
+		long modified = file.lastModified() ;
+		//
+		// Rewritten at the same length and time of modification, but with the
+		// second element moved, the sidecar is read back yet does not fit...
+		String moved = PREFIXED.replace( ">1<", ">11<" ).replace( ">22<", ">2<" ) ;
+		write( file.getName(), moved ) ;
+		assertTrue( file.setLastModified( modified ) ) ;
+		VariableIndex read = VariableIndex.read( sidecar, file, vocabulary ) ;
+		assertNotNull( read ) ;
+		assertFalse( fits( read, file ) ) ;
+		//
+		// Rewritten at another length, the sidecar is not read back at all...
+		write( file.getName(), PREFIXED.replace( ">1<", ">111<" ) ) ;
+		assertTrue( file.setLastModified( modified ) ) ;
+		assertNull( VariableIndex.read( sidecar, file, vocabulary ) ) ;
+	}
+
+	private VariableIndex scan( String content ) throws Exception {
+		return VariableIndex.scan( ByteBuffer.wrap( content.getBytes( "UTF-8" ) ), vocabulary ) ;
+	}
+
+	private static boolean fits( VariableIndex index, File file ) throws Exception {
+		FileChannel channel = new RandomAccessFile( file, "r" ).getChannel() ;
+		try {
+			return index.fits( channel ) ;
+		}
+		finally {
+			channel.close() ;
+		}
+	}
+
+	private File write( String name, String content ) throws Exception {
+		File file = new File( directory, name ) ;
+		FileOutputStream out = new FileOutputStream( file ) ;
+		try {
+			out.write( content.getBytes( "UTF-8" ) ) ;
+		}
+		finally {
+			out.close() ;
+		}
+		return file ;
+	}
+
+}
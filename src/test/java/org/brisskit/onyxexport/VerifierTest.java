@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package org.brisskit.onyxexport;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.brisskit.onyxexport.ParticipantCompositor.ProcessException;
+
+/**
+ * The bundled export verified against its composition with the same seed: the verification
+ * should pass, altering neither export, and fail once the composition is tampered with.
+ *
+ */
+public class VerifierTest extends TestCase {
+
+	private File directory ;
+	private File original ;
+	private File composed ;
+
+	protected void setUp() throws Exception {
+		directory = ExportFixture.newDirectory( "verify" ) ;
+		original = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "original" ) ) ;
+		composed = ExportFixture.copy( ExportFixture.EXPORT, new File( directory, "composed" ) ) ;
+		ExportFixture.newCompositor( composed, ExportFixture.SEED ).exec() ;
+	}
+
+	protected void tearDown() throws Exception {
+		ExportFixture.delete( directory ) ;
+	}
+
+	public void testCleanCompositionPasses() throws Exception {
+		TreeMap<String,byte[]> before = ExportFixture.readDirectory( composed ) ;
+		verify() ;
+		ExportFixture.assertSameContent( ExportFixture.EXPORT, original ) ;
+		ExportFixture.assertSameContent( before, ExportFixture.readDirectory( composed ) ) ;
+	}
+
+	public void testSwappedFileRestoredFails() throws Exception {
+		//
+		// Put back the original of a file the composition swapped...
+		TreeMap<String,byte[]> originals = ExportFixture.readDirectory( original ) ;
+		String restored = null ;
+		for( Map.Entry<String,byte[]> e : ExportFixture.readDirectory( composed ).entrySet() ) {
+			if( e.getKey().startsWith( ExportFixture.QUESTIONNAIRE + "/" )
+				&&
+				!e.getKey().endsWith( "/" + ExportIndex.ENTITIES_FILE_NAME )
+				&&
+				!Arrays.equals( e.getValue(), originals.get( e.getKey() ) ) ) {
+				restored = e.getKey() ;
+				break ;
+			}
+		}
+		assertNotNull( "No file swapped", restored ) ;
+		ExportFixture.write( new File( composed, restored ), originals.get( restored ) ) ;
+		assertVerifyFails() ;
+	}
+
+	public void testParticipantRemovedFails() throws Exception {
+		File entities = new File( new File( composed, ExportFixture.QUESTIONNAIRE ), ExportIndex.ENTITIES_FILE_NAME ) ;
+		String content = new String( ExportFixture.read( entities ), "UTF-8" ) ;
+		//
+		// Remove a file the composition kept, but not from entities.xml...
+		File[] files = entities.getParentFile().listFiles() ;
+		Arrays.sort( files ) ;
+		for( File file : files ) {
+			if( !file.getName().equals( ExportIndex.ENTITIES_FILE_NAME )
+				&&
+				!file.getName().equals( ExportIndex.VARIABLES_FILE_NAME )
+				&&
+				content.contains( file.getName() ) ) {
+				assertTrue( file.delete() ) ;
+				assertVerifyFails() ;
+				return ;
+			}
+		}
+		fail( "No data file to remove" ) ;
+	}
+
+	private void verify() throws Exception {
+		ParticipantCompositor pc = ExportFixture.newCompositor( original, ExportFixture.SEED ) ;
+		pc.setVerifyExport( composed ) ;
+		pc.exec() ;
+	}
+
+	private void assertVerifyFails() throws Exception {
+		try {
+			verify() ;
+			fail( "Tampered composition verified" ) ;
+		}
+		catch( ProcessException px ) {
+			// expected
+		}
+	}
+
+}